@@ -17,17 +17,56 @@ package io.tsdb.opentsdb.core;
 
 import net.opentsdb.core.IncomingDataPoint;
 
-import java.util.ArrayList;
+import java.nio.ByteBuffer;
 import java.util.HashMap;
 import java.util.Objects;
 
-import static io.tsdb.opentsdb.core.Utils.makeDatapoint;
-
+/**
+ * Streaming accumulator for a single rollup window of a single series.
+ * <p/>
+ * Values are folded into a fixed set of primitives as they arrive, so the
+ * memory used by a window does not depend on how many points it receives.
+ * Integer values are summed exactly in a long, floating point values are
+ * kept in separate double accumulators and the two are only combined when
+ * an aggregate is read.
+ */
 public class DataPoints {
+  /** Size in bytes of the accumulator state written by {@link #writeState} */
+  public static final int STATE_BYTES = 15 * 8;
+
+  private long seriesId;
   private long timestamp;
   private String metric;
   private HashMap<String, String> tags;
-  private ArrayList<IncomingDataPoint> dataPointList;
+
+  private long count;
+
+  private long longCount;
+  private long longSum;
+  private long longMin = Long.MAX_VALUE;
+  private long longMax = Long.MIN_VALUE;
+  // the long sum overflowed into doubleSum, so it is no longer exact
+  private boolean sumOverflowed;
+
+  private long doubleCount;
+  private double doubleSum;
+  private double doubleMin = Double.POSITIVE_INFINITY;
+  private double doubleMax = Double.NEGATIVE_INFINITY;
+
+  private double sumOfSquares;
+
+  // first and last hold either a long or the raw bits of a double
+  private long first;
+  private boolean firstIsLong;
+  private long firstTimestamp;
+  private long last;
+  private boolean lastIsLong;
+  private long lastTimestamp;
+
+  // changed since the last checkpoint
+  private boolean dirty;
+
+  private QuantileSketch sketch;
 
   public DataPoints(final String metric,
                     final long timestamp,
@@ -35,26 +74,32 @@ public class DataPoints {
     this.metric = metric;
     this.timestamp = timestamp;
     this.tags = tags;
-    this.dataPointList = new ArrayList<IncomingDataPoint>();
+  }
+
+  public DataPoints(final long seriesId,
+                    final String metric,
+                    final long timestamp,
+                    final HashMap<String, String> tags) {
+    this(metric, timestamp, tags);
+    this.seriesId = seriesId;
   }
 
   public DataPoints(final String metric,
                     final long timestamp,
                     final String value,
                     final HashMap<String, String> tags) {
-    this.metric = metric;
-    this.timestamp = timestamp;
-    this.tags = tags;
-    this.dataPointList = new ArrayList<IncomingDataPoint>();
-    this.dataPointList.add(makeDatapoint(metric, timestamp, Double.parseDouble(value), tags));
+    this(metric, timestamp, tags);
+    addValue(timestamp, Double.parseDouble(value));
   }
 
   public DataPoints(final long timestamp, final IncomingDataPoint dp) {
-    this.metric = dp.getMetric();
-    this.timestamp = timestamp;
-    this.tags = new HashMap<String, String>(dp.getTags());
-    this.dataPointList = new ArrayList<IncomingDataPoint>();
-    this.dataPointList.add(dp);
+    this(dp.getMetric(), timestamp, new HashMap<String, String>(dp.getTags()));
+    addDatapoint(dp);
+  }
+
+  /** @return the 64 bit series identity, see {@link SeriesKey} */
+  public long getSeriesId() {
+    return seriesId;
   }
 
   public long getTimestamp() {
@@ -69,27 +114,347 @@ public class DataPoints {
     return tags;
   }
 
+  /** Starts tracking quantiles, must be called before any value is added */
+  public void setSketch(final QuantileSketch sketch) {
+    this.sketch = sketch;
+  }
+
+  /** @return the quantile sketch, or null when quantiles are not tracked */
+  public QuantileSketch getSketch() {
+    return sketch;
+  }
+
+  /** @return the estimated value at the given quantile, NaN when quantiles are not tracked */
+  public double getQuantile(final double quantile) {
+    return sketch == null ? Double.NaN : sketch.getQuantile(quantile);
+  }
+
   public void addDatapoint(Long value) {
-    this.dataPointList.add(makeDatapoint(this.metric, this.timestamp, value, this.tags));
+    addValue(this.timestamp, value.longValue());
   }
 
   public void addDatapoint(Double value) {
-    this.dataPointList.add(makeDatapoint(this.metric, this.timestamp, value, this.tags));
+    addValue(this.timestamp, value.doubleValue());
   }
 
+  /**
+   * Compatibility path for callers that still hold an {@link IncomingDataPoint},
+   * the string value is parsed once here and never kept.
+   */
   public void addDatapoint(IncomingDataPoint dp) {
-    this.dataPointList.add(dp);
+    final String value = dp.getValue();
+    if (isIntegerString(value)) {
+      addValue(dp.getTimestamp(), Long.parseLong(value));
+    } else {
+      addValue(dp.getTimestamp(), Double.parseDouble(value));
+    }
+  }
+
+  public void addValue(final long ts, final long value) {
+    final long sum = longSum + value;
+    if (((longSum ^ sum) & (value ^ sum)) < 0) {
+      // the exact sum overflowed, carry what we have over to the double side
+      doubleSum += (double) longSum + (double) value;
+      longSum = 0;
+      sumOverflowed = true;
+    } else {
+      longSum = sum;
+    }
+    longCount++;
+    if (value < longMin) {
+      longMin = value;
+    }
+    if (value > longMax) {
+      longMax = value;
+    }
+    sumOfSquares += (double) value * (double) value;
+    if (sketch != null) {
+      sketch.add((double) value);
+    }
+    track(ts, value, true);
+  }
+
+  public void addValue(final long ts, final double value) {
+    doubleSum += value;
+    doubleCount++;
+    if (value < doubleMin) {
+      doubleMin = value;
+    }
+    if (value > doubleMax) {
+      doubleMax = value;
+    }
+    sumOfSquares += value * value;
+    if (sketch != null) {
+      sketch.add(value);
+    }
+    track(ts, Double.doubleToRawLongBits(value), false);
+  }
+
+  /**
+   * Folds another window of the same series into this one, used to cascade
+   * a closed small window into the larger window that contains it.
+   */
+  public void merge(final DataPoints other) {
+    if (other.count == 0) {
+      return;
+    }
+    final long sum = longSum + other.longSum;
+    if (((longSum ^ sum) & (other.longSum ^ sum)) < 0) {
+      doubleSum += (double) longSum + (double) other.longSum;
+      longSum = 0;
+      sumOverflowed = true;
+    } else {
+      longSum = sum;
+    }
+    sumOverflowed |= other.sumOverflowed;
+    longCount += other.longCount;
+    longMin = Math.min(longMin, other.longMin);
+    longMax = Math.max(longMax, other.longMax);
+    doubleSum += other.doubleSum;
+    doubleCount += other.doubleCount;
+    doubleMin = Math.min(doubleMin, other.doubleMin);
+    doubleMax = Math.max(doubleMax, other.doubleMax);
+    sumOfSquares += other.sumOfSquares;
+    if (other.sketch != null) {
+      if (sketch == null) {
+        sketch = other.sketch.copy();
+      } else {
+        sketch.merge(other.sketch);
+      }
+    }
+    if (count == 0 || other.firstTimestamp < firstTimestamp) {
+      first = other.first;
+      firstIsLong = other.firstIsLong;
+      firstTimestamp = other.firstTimestamp;
+    }
+    if (count == 0 || other.lastTimestamp >= lastTimestamp) {
+      last = other.last;
+      lastIsLong = other.lastIsLong;
+      lastTimestamp = other.lastTimestamp;
+    }
+    count += other.count;
+    dirty = true;
+  }
+
+  private void track(final long ts, final long bits, final boolean isLong) {
+    if (count == 0 || ts < firstTimestamp) {
+      first = bits;
+      firstIsLong = isLong;
+      firstTimestamp = ts;
+    }
+    if (count == 0 || ts >= lastTimestamp) {
+      last = bits;
+      lastIsLong = isLong;
+      lastTimestamp = ts;
+    }
+    count++;
+    dirty = true;
+  }
+
+  public long getCount() {
+    return count;
+  }
+
+  /** @return true when every value seen so far was an integer */
+  public boolean isInteger() {
+    return doubleCount == 0;
+  }
+
+  /**
+   * @return true when {@link #getLongSum()} is the whole sum: every value was
+   * an integer and their sum never overflowed a long
+   */
+  public boolean isExactSum() {
+    return doubleCount == 0 && !sumOverflowed;
+  }
+
+  /** @return the exact sum, only meaningful when {@link #isExactSum()} */
+  public long getLongSum() {
+    return longSum;
+  }
+
+  public double getSum() {
+    return (double) longSum + doubleSum;
+  }
+
+  public double getMin() {
+    if (count == 0) {
+      return Double.NaN;
+    }
+    if (doubleCount == 0) {
+      return (double) longMin;
+    }
+    return longCount == 0 ? doubleMin : Math.min((double) longMin, doubleMin);
+  }
+
+  public double getMax() {
+    if (count == 0) {
+      return Double.NaN;
+    }
+    if (doubleCount == 0) {
+      return (double) longMax;
+    }
+    return longCount == 0 ? doubleMax : Math.max((double) longMax, doubleMax);
+  }
+
+  public long getLongMin() {
+    return longMin;
+  }
+
+  public long getLongMax() {
+    return longMax;
+  }
+
+  public boolean isFirstInteger() {
+    return firstIsLong;
+  }
+
+  /** @return the first value as an exact long, only meaningful when {@link #isFirstInteger()} */
+  public long getFirstLong() {
+    return first;
+  }
+
+  public boolean isLastInteger() {
+    return lastIsLong;
+  }
+
+  /** @return the last value as an exact long, only meaningful when {@link #isLastInteger()} */
+  public long getLastLong() {
+    return last;
+  }
+
+  public double getFirst() {
+    return firstIsLong ? (double) first : Double.longBitsToDouble(first);
+  }
+
+  public double getLast() {
+    return lastIsLong ? (double) last : Double.longBitsToDouble(last);
+  }
+
+  public long getFirstTimestamp() {
+    return firstTimestamp;
+  }
+
+  public long getLastTimestamp() {
+    return lastTimestamp;
+  }
+
+  public double getSumOfSquares() {
+    return sumOfSquares;
+  }
+
+  public double getMean() {
+    if (count == 0) {
+      return 0d;
+    }
+    return getSum() / count;
+  }
+
+  /** @return the population variance of the window */
+  public double getVariance() {
+    if (count == 0) {
+      return 0d;
+    }
+    final double mean = getMean();
+    return Math.max(0d, sumOfSquares / count - mean * mean);
   }
 
   public IncomingDataPoint getAvgValue() {
-    Double value = 0d;
-    Double avgValue = 0d;
-    if (this.dataPointList.size() > 0) {
-      for (IncomingDataPoint dp : this.dataPointList) {
-        value += Double.parseDouble(dp.getValue());
+    return new IncomingDataPoint(this.metric, this.timestamp, Objects.toString(getMean()), this.tags);
+  }
+
+  /**
+   * Writes the accumulator fields, not the series identity or the sketch, as
+   * {@link #STATE_BYTES} bytes at the given absolute offset.
+   */
+  public void writeState(final ByteBuffer buf, final int offset) {
+    buf.putLong(offset, count);
+    buf.putLong(offset + 8, longCount);
+    buf.putLong(offset + 16, longSum);
+    buf.putLong(offset + 24, longMin);
+    buf.putLong(offset + 32, longMax);
+    buf.putLong(offset + 40, doubleCount);
+    buf.putDouble(offset + 48, doubleSum);
+    buf.putDouble(offset + 56, doubleMin);
+    buf.putDouble(offset + 64, doubleMax);
+    buf.putDouble(offset + 72, sumOfSquares);
+    buf.putLong(offset + 80, first);
+    buf.putLong(offset + 88, firstTimestamp);
+    buf.putLong(offset + 96, last);
+    buf.putLong(offset + 104, lastTimestamp);
+    buf.putLong(offset + 112, (firstIsLong ? 1 : 0) | (lastIsLong ? 2 : 0) | (dirty ? 4 : 0)
+        | (sumOverflowed ? 8 : 0));
+  }
+
+  /** Replaces the accumulator fields with state written by {@link #writeState} */
+  public void readState(final ByteBuffer buf, final int offset) {
+    count = buf.getLong(offset);
+    longCount = buf.getLong(offset + 8);
+    longSum = buf.getLong(offset + 16);
+    longMin = buf.getLong(offset + 24);
+    longMax = buf.getLong(offset + 32);
+    doubleCount = buf.getLong(offset + 40);
+    doubleSum = buf.getDouble(offset + 48);
+    doubleMin = buf.getDouble(offset + 56);
+    doubleMax = buf.getDouble(offset + 64);
+    sumOfSquares = buf.getDouble(offset + 72);
+    first = buf.getLong(offset + 80);
+    firstTimestamp = buf.getLong(offset + 88);
+    last = buf.getLong(offset + 96);
+    lastTimestamp = buf.getLong(offset + 104);
+    final long flags = buf.getLong(offset + 112);
+    firstIsLong = (flags & 1) != 0;
+    lastIsLong = (flags & 2) != 0;
+    dirty = (flags & 4) != 0;
+    sumOverflowed = (flags & 8) != 0;
+  }
+
+  /** @return true if the state changed since {@link #clearDirty} was last called */
+  public boolean isDirty() {
+    return dirty;
+  }
+
+  public void clearDirty() {
+    dirty = false;
+  }
+
+  /** Puts the accumulator back to its empty state */
+  public void reset() {
+    count = 0;
+    longCount = 0;
+    longSum = 0;
+    longMin = Long.MAX_VALUE;
+    longMax = Long.MIN_VALUE;
+    sumOverflowed = false;
+    doubleCount = 0;
+    doubleSum = 0;
+    doubleMin = Double.POSITIVE_INFINITY;
+    doubleMax = Double.NEGATIVE_INFINITY;
+    sumOfSquares = 0;
+    first = 0;
+    firstIsLong = false;
+    firstTimestamp = 0;
+    last = 0;
+    lastIsLong = false;
+    lastTimestamp = 0;
+    dirty = false;
+  }
+
+  private static boolean isIntegerString(final String value) {
+    final int length = value.length();
+    if (length == 0) {
+      return false;
+    }
+    int i = value.charAt(0) == '-' || value.charAt(0) == '+' ? 1 : 0;
+    if (i == length || length - i > 18) {
+      return false;
+    }
+    for (; i < length; i++) {
+      final char c = value.charAt(i);
+      if (c < '0' || c > '9') {
+        return false;
       }
-      avgValue = value / this.dataPointList.size();
     }
-    return new IncomingDataPoint(this.metric, this.timestamp, Objects.toString(avgValue), this.tags);
+    return true;
   }
 }
@@ -0,0 +1,252 @@
+package io.tsdb.opentsdb.core;
+
+/**
+ * Copyright 2015 The DiscoveryPlugins Authors
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import net.opentsdb.stats.StatsCollector;
+import net.opentsdb.utils.Config;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import static io.tsdb.opentsdb.core.Utils.getConfigPropertyInt;
+import static io.tsdb.opentsdb.core.Utils.getConfigPropertyString;
+
+/**
+ * Drops the points a collector sends again, recognised by their series and
+ * timestamp, so retries don't inflate rollup counts or relayed traffic.
+ * <p/>
+ * Points are remembered in Bloom filters, one per bucket of arrival time.
+ * A point is a duplicate if the current or the previous bucket holds it,
+ * so a retry is caught for at least one bucket span and at most two. The
+ * memory budget is split between the two filters, and the number of hashes
+ * and the points a bucket takes are derived from it and the false positive
+ * rate. A bucket that fills up rotates early rather than let the rate
+ * climb, which shortens how long points are remembered under heavy load.
+ * A false positive drops a point that was not a duplicate.
+ * <p/>
+ * Bits are set with a CAS and read without a lock. Two copies of a point
+ * arriving at the same instant may both get through, and a point racing a
+ * rotation may be forgotten early.
+ * <p/>
+ * A rotation swaps in a spare bucket cleared beforehand, so the ingest
+ * thread rotating neither allocates nor clears a filter. The bucket it
+ * retires is cleared into the next spare by {@link #prepareSpare()}, called
+ * off the ingest path. Only when that hasn't happened since the last
+ * rotation is the retired bucket cleared inline.
+ */
+public class DuplicateFilter {
+  private static final String PREFIX = "tsd.rtpublisher.dedup.";
+
+  private final long spanMs;
+  private final int hashes;
+  private final long capacity;
+  private final int mask;
+  private volatile Bucket current;
+  private volatile Bucket previous;
+  // guarded by this, at most one of them is set
+  private Bucket spare;
+  private Bucket retired;
+
+  private final AtomicLong checked = new AtomicLong();
+  private final AtomicLong duplicates = new AtomicLong();
+  private final AtomicLong rotations = new AtomicLong();
+  private final AtomicLong early = new AtomicLong();
+  private final AtomicLong inlineClears = new AtomicLong();
+  private long lastDuplicates;
+  private long lastCollected;
+
+  private static final class Bucket {
+    private final AtomicLongArray bits;
+    private final AtomicLong inserted = new AtomicLong();
+    private volatile long startedAt;
+
+    Bucket(final int words, final long startedAt) {
+      this.bits = new AtomicLongArray(words);
+      this.startedAt = startedAt;
+    }
+
+    void clear() {
+      for (int i = 0; i < bits.length(); i++) {
+        bits.lazySet(i, 0);
+      }
+      inserted.set(0);
+    }
+  }
+
+  /**
+   * @param span how long, in milliseconds, each bucket takes points
+   * @param falsePositiveRate the chance a point is wrongly taken for a duplicate
+   * @param maxBytes the memory of both filters together, rounded down to a
+   * power of two. The spare takes as much as one of them on top.
+   */
+  public DuplicateFilter(final long span, final double falsePositiveRate, final long maxBytes, final long now) {
+    if (span <= 0) {
+      throw new IllegalArgumentException("Dedup window must be positive: " + span);
+    }
+    if (falsePositiveRate <= 0 || falsePositiveRate >= 1) {
+      throw new IllegalArgumentException("Dedup false positive rate must be between 0 and 1: "
+              + falsePositiveRate);
+    }
+    long bits = Long.highestOneBit(Math.max(128, maxBytes * 8 / 2));
+    // bits are addressed by the int hashes
+    bits = Math.min(bits, 1L << 32);
+    this.spanMs = span;
+    this.mask = (int) (bits / 64 - 1);
+    this.hashes = Math.max(1, (int) Math.round(-Math.log(falsePositiveRate) / Math.log(2)));
+    // the insertions at which a filter of this size reaches the rate
+    this.capacity = Math.max(1, (long) (bits * Math.log(2) * Math.log(2) / -Math.log(falsePositiveRate)));
+    this.current = new Bucket((int) (bits / 64), now);
+    this.previous = new Bucket((int) (bits / 64), now);
+    this.spare = new Bucket((int) (bits / 64), now);
+    this.lastCollected = now;
+  }
+
+  /**
+   * @return a filter configured from tsd.rtpublisher.dedup.*, or null when
+   * deduplication is not enabled
+   */
+  public static DuplicateFilter fromConfig(final Config config) {
+    if (!Boolean.parseBoolean(getConfigPropertyString(config, PREFIX + "enable", "false"))) {
+      return null;
+    }
+    return new DuplicateFilter(getConfigPropertyInt(config, PREFIX + "window", 300) * 1000L,
+            Double.parseDouble(getConfigPropertyString(config, PREFIX + "false_positive_rate", "0.0001")),
+            getConfigPropertyInt(config, PREFIX + "max_mb", 64) * 1024L * 1024L,
+            System.currentTimeMillis());
+  }
+
+  /**
+   * Remembers the point and tells whether it was seen before.
+   * @param timestamp the point's timestamp in milliseconds
+   * @param now the current time in milliseconds
+   */
+  public boolean isDuplicate(final long seriesId, final long timestamp, final long now) {
+    checked.incrementAndGet();
+    Bucket bucket = current;
+    if (now - bucket.startedAt >= spanMs || bucket.inserted.get() >= capacity) {
+      bucket = rotate(bucket, now);
+    }
+    final long hash = SeriesKey.mix(seriesId ^ SeriesKey.mix(timestamp));
+    final int h1 = (int) hash;
+    final int h2 = (int) (hash >>> 32) | 1;
+    // a duplicate of the previous bucket is added too, so a point retried
+    // for longer stays caught
+    final boolean old = contains(previous, h1, h2);
+    if (!add(bucket, h1, h2) || old) {
+      duplicates.incrementAndGet();
+      return true;
+    }
+    return false;
+  }
+
+  private boolean contains(final Bucket bucket, final int h1, final int h2) {
+    for (int i = 0; i < hashes; i++) {
+      final int bit = h1 + i * h2;
+      if ((bucket.bits.get((bit >>> 6) & mask) & (1L << bit)) == 0) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /** @return false if every bit was already set, i.e. the point was in the bucket */
+  private boolean add(final Bucket bucket, final int h1, final int h2) {
+    boolean added = false;
+    for (int i = 0; i < hashes; i++) {
+      final int bit = h1 + i * h2;
+      final int word = (bit >>> 6) & mask;
+      final long flag = 1L << bit;
+      long value = bucket.bits.get(word);
+      while ((value & flag) == 0) {
+        if (bucket.bits.compareAndSet(word, value, value | flag)) {
+          added = true;
+          break;
+        }
+        value = bucket.bits.get(word);
+      }
+    }
+    if (added) {
+      bucket.inserted.incrementAndGet();
+    }
+    return added;
+  }
+
+  private synchronized Bucket rotate(final Bucket full, final long now) {
+    if (current != full) {
+      // another thread got here first
+      return current;
+    }
+    if (now - full.startedAt < spanMs) {
+      early.incrementAndGet();
+    }
+    Bucket next = spare;
+    if (next == null) {
+      // not prepared since the last rotation
+      next = retired;
+      next.clear();
+      inlineClears.incrementAndGet();
+    }
+    next.startedAt = now;
+    // the old previous may still be read by a racing check, so it is cleared later
+    retired = previous;
+    spare = null;
+    previous = full;
+    current = next;
+    rotations.incrementAndGet();
+    return next;
+  }
+
+  /**
+   * Clears the bucket the last rotation retired so the next one can swap it
+   * in. Meant for a maintenance thread, as clearing takes a pass over a
+   * whole filter. A rotation due meanwhile waits for it.
+   */
+  public synchronized void prepareSpare() {
+    if (retired != null) {
+      retired.clear();
+      spare = retired;
+      retired = null;
+    }
+  }
+
+  public long getDuplicates() {
+    return duplicates.get();
+  }
+
+  public long getInlineClears() {
+    return inlineClears.get();
+  }
+
+  /** Records the counts, and the duplicates per second since the last collection. */
+  public void collectStats(final StatsCollector collector) {
+    final long now = System.currentTimeMillis();
+    final long total = duplicates.get();
+    synchronized (this) {
+      if (now > lastCollected) {
+        collector.record("rtpublisher.dedup.duplicates_per_sec", (total - lastDuplicates) * 1000 / (now - lastCollected));
+      }
+      lastDuplicates = total;
+      lastCollected = now;
+    }
+    collector.record("rtpublisher.dedup.checked", checked.get());
+    collector.record("rtpublisher.dedup.duplicates", total);
+    collector.record("rtpublisher.dedup.rotations", rotations.get());
+    collector.record("rtpublisher.dedup.early_rotations", early.get());
+    collector.record("rtpublisher.dedup.inline_clears", inlineClears.get());
+    collector.record("rtpublisher.dedup.fill", current.inserted.get() * 100 / capacity);
+  }
+}
@@ -0,0 +1,288 @@
+package io.tsdb.opentsdb.core;
+
+/**
+ * Copyright 2015 The DiscoveryPlugins Authors
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.Arrays;
+
+/**
+ * Append only block of points compressed as in Facebook's Gorilla.
+ * <p/>
+ * The first timestamp is written in full, every later one as the delta of
+ * its delta in one of five variable sized buckets, so points at a steady
+ * interval cost a single bit. Values are doubles, each written as the XOR
+ * with the previous one: a repeat costs a bit, otherwise only the bits
+ * between the leading and trailing zeros are written, reusing the previous
+ * window when they fit in it. Timestamps are in milliseconds and must
+ * increase, and long values are kept exactly up to 2^53.
+ * <p/>
+ * A chunk is not thread safe. Readers take a {@link #snapshot} under the
+ * writer's lock and decode it outside. A snapshot only holds what decoding
+ * needs, not the encoder's state, so it can't be appended to.
+ */
+public final class GorillaChunk {
+  private long[] words = new long[4];
+  private int bits;
+  private int count;
+  private boolean integral = true;
+  private final long firstTs;
+  private long lastTs;
+  private long lastDelta;
+  private long lastValue;
+  private int leading = Integer.MAX_VALUE;
+  private int trailing;
+  private final boolean readOnly;
+
+  /** @param firstTs the timestamp of the first point, in milliseconds */
+  public GorillaChunk(final long firstTs) {
+    this.firstTs = firstTs;
+    this.lastTs = firstTs;
+    this.readOnly = false;
+  }
+
+  private GorillaChunk(final GorillaChunk other) {
+    this.words = Arrays.copyOf(other.words, (other.bits + 63) >>> 6);
+    this.bits = other.bits;
+    this.count = other.count;
+    this.integral = other.integral;
+    this.firstTs = other.firstTs;
+    this.lastTs = other.lastTs;
+    this.readOnly = true;
+  }
+
+  /**
+   * @return false if the point is not after the last one, or too far from
+   * it for the chunk, in which case nothing was written
+   * @throws IllegalStateException if the chunk is a snapshot
+   */
+  public boolean append(final long ts, final long value) {
+    return appendBits(ts, Double.doubleToRawLongBits((double) value));
+  }
+
+  /** @see #append(long, long) */
+  public boolean append(final long ts, final double value) {
+    if (!appendBits(ts, Double.doubleToRawLongBits(value))) {
+      return false;
+    }
+    integral = false;
+    return true;
+  }
+
+  private boolean appendBits(final long ts, final long valueBits) {
+    if (readOnly) {
+      throw new IllegalStateException("Can't append to a chunk snapshot");
+    }
+    if (count == 0) {
+      if (ts != firstTs) {
+        return false;
+      }
+      // the first timestamp is kept in the header
+      writeBits(valueBits, 64);
+      lastValue = valueBits;
+      count++;
+      return true;
+    }
+    final long delta = ts - lastTs;
+    final long dod = delta - lastDelta;
+    if (delta <= 0 || dod <= Integer.MIN_VALUE || dod > Integer.MAX_VALUE) {
+      return false;
+    }
+    if (dod == 0) {
+      writeBits(0, 1);
+    } else if (dod >= -63 && dod <= 64) {
+      writeBits(0x2, 2);
+      writeBits(dod, 7);
+    } else if (dod >= -255 && dod <= 256) {
+      writeBits(0x6, 3);
+      writeBits(dod, 9);
+    } else if (dod >= -2047 && dod <= 2048) {
+      writeBits(0xe, 4);
+      writeBits(dod, 12);
+    } else {
+      writeBits(0xf, 4);
+      writeBits(dod, 32);
+    }
+    lastDelta = delta;
+    lastTs = ts;
+
+    final long xor = valueBits ^ lastValue;
+    lastValue = valueBits;
+    if (xor == 0) {
+      writeBits(0, 1);
+    } else {
+      final int lz = Math.min(31, Long.numberOfLeadingZeros(xor));
+      final int tz = Long.numberOfTrailingZeros(xor);
+      if (lz >= leading && tz >= trailing) {
+        writeBits(0x2, 2);
+        writeBits(xor >>> trailing, 64 - leading - trailing);
+      } else {
+        final int meaningful = 64 - lz - tz;
+        writeBits(0x3, 2);
+        writeBits(lz, 5);
+        // 64 meaningful bits don't fit in 6 bits, and 0 never happens
+        writeBits(meaningful & 63, 6);
+        writeBits(xor >>> tz, meaningful);
+        leading = lz;
+        trailing = tz;
+      }
+    }
+    count++;
+    return true;
+  }
+
+  private void writeBits(final long value, final int n) {
+    if (n == 0) {
+      return;
+    }
+    final int needed = (bits + n + 63) >>> 6;
+    if (needed > words.length) {
+      words = Arrays.copyOf(words, Math.max(needed, words.length * 2));
+    }
+    final long v = n == 64 ? value : value & ((1L << n) - 1);
+    final int index = bits >>> 6;
+    final int offset = bits & 63;
+    final int free = 64 - offset;
+    if (n <= free) {
+      words[index] |= v << (free - n);
+    } else {
+      words[index] |= v >>> (n - free);
+      words[index + 1] |= v << (64 - (n - free));
+    }
+    bits += n;
+  }
+
+  /** @return a read only copy of the points written so far, trimmed to their size */
+  public GorillaChunk snapshot() {
+    return new GorillaChunk(this);
+  }
+
+  public int getCount() {
+    return count;
+  }
+
+  public long getFirstTimestamp() {
+    return firstTs;
+  }
+
+  public long getLastTimestamp() {
+    return lastTs;
+  }
+
+  /** @return true if every value appended was a long */
+  public boolean isIntegral() {
+    return integral;
+  }
+
+  /** @return the bytes the compressed points take */
+  public int getBytes() {
+    return (bits + 7) >>> 3;
+  }
+
+  /** @return the bytes held, including room for the next points */
+  public int getCapacity() {
+    return words.length * 8;
+  }
+
+  public Iterator iterator() {
+    return new Iterator();
+  }
+
+  /** Decodes the points in order. */
+  public final class Iterator {
+    private int position;
+    private int read;
+    private long ts;
+    private long delta;
+    private long valueBits;
+    private int leading;
+    private int trailing;
+
+    public boolean hasNext() {
+      return read < count;
+    }
+
+    /** Moves to the next point, read with {@link #timestamp} and {@link #value} */
+    public void next() {
+      if (read == 0) {
+        ts = firstTs;
+        valueBits = readBits(64);
+        read++;
+        return;
+      }
+      final long dod;
+      if (readBits(1) == 0) {
+        dod = 0;
+      } else if (readBits(1) == 0) {
+        dod = signed(readBits(7), 7);
+      } else if (readBits(1) == 0) {
+        dod = signed(readBits(9), 9);
+      } else if (readBits(1) == 0) {
+        dod = signed(readBits(12), 12);
+      } else {
+        dod = signed(readBits(32), 32);
+      }
+      delta += dod;
+      ts += delta;
+      if (readBits(1) == 1) {
+        if (readBits(1) == 1) {
+          leading = (int) readBits(5);
+          int meaningful = (int) readBits(6);
+          if (meaningful == 0) {
+            meaningful = 64;
+          }
+          trailing = 64 - leading - meaningful;
+        }
+        valueBits ^= readBits(64 - leading - trailing) << trailing;
+      }
+      read++;
+    }
+
+    public long timestamp() {
+      return ts;
+    }
+
+    public double value() {
+      return Double.longBitsToDouble(valueBits);
+    }
+
+    private long readBits(final int n) {
+      if (n == 0) {
+        return 0;
+      }
+      final int index = position >>> 6;
+      final int offset = position & 63;
+      final int free = 64 - offset;
+      long v;
+      if (n <= free) {
+        v = words[index] >>> (free - n);
+      } else {
+        v = (words[index] << (n - free)) | (words[index + 1] >>> (64 - (n - free)));
+      }
+      position += n;
+      return n == 64 ? v : v & ((1L << n) - 1);
+    }
+  }
+
+  /**
+   * Reads an n bit field back into a signed delta. The buckets are
+   * asymmetric, e.g. -63 to 64 in 7 bits, so the top value wraps from the
+   * most negative pattern.
+   */
+  private static long signed(final long v, final int n) {
+    final long max = 1L << (n - 1);
+    return v > max ? v - (1L << n) : v;
+  }
+}
@@ -0,0 +1,104 @@
+package io.tsdb.opentsdb.core;
+/**
+ * Copyright 2015 The DiscoveryPlugins Authors
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.Arrays;
+
+/**
+ * HyperLogLog distinct counter over 64 bit hashes, such as the series ids
+ * of {@link SeriesKey}, which are already well mixed.
+ * <p/>
+ * 2^precision one byte registers give a standard error of about
+ * 1.04 / sqrt(2^precision), e.g. 3.2% in 1KB at precision 10. Small
+ * cardinalities use linear counting so they are close to exact.
+ * <p/>
+ * Adds from several threads race on the registers, but a register only
+ * ever grows, so a lost update can only hide a hash that another add to
+ * the same register was about to reveal anyway. That is good enough for
+ * monitoring and saves a lock on the ingest path.
+ */
+public final class HyperLogLog {
+  private final int precision;
+  private final byte[] registers;
+
+  public HyperLogLog(final int precision) {
+    if (precision < 4 || precision > 18) {
+      throw new IllegalArgumentException("HyperLogLog precision must be between 4 and 18: " + precision);
+    }
+    this.precision = precision;
+    this.registers = new byte[1 << precision];
+  }
+
+  public void add(final long hash) {
+    final int index = (int) (hash >>> (64 - precision));
+    // the guard bit caps the rank when every remaining bit is zero
+    final byte rank = (byte) (Long.numberOfLeadingZeros((hash << precision) | (1L << (precision - 1))) + 1);
+    if (registers[index] < rank) {
+      registers[index] = rank;
+    }
+  }
+
+  /** Folds the other counter in, both must have the same precision */
+  public void merge(final HyperLogLog other) {
+    if (other.precision != precision) {
+      throw new IllegalArgumentException("Cannot merge HyperLogLog of precision "
+              + precision + " and " + other.precision);
+    }
+    for (int i = 0; i < registers.length; i++) {
+      if (registers[i] < other.registers[i]) {
+        registers[i] = other.registers[i];
+      }
+    }
+  }
+
+  public long estimate() {
+    final int m = registers.length;
+    double sum = 0;
+    int zeros = 0;
+    for (byte register : registers) {
+      sum += 1.0 / (1L << register);
+      if (register == 0) {
+        zeros++;
+      }
+    }
+    final double estimate = alpha(m) * m * m / sum;
+    if (estimate <= 2.5 * m && zeros > 0) {
+      return Math.round(m * Math.log((double) m / zeros));
+    }
+    return Math.round(estimate);
+  }
+
+  public void clear() {
+    Arrays.fill(registers, (byte) 0);
+  }
+
+  public int getPrecision() {
+    return precision;
+  }
+
+  private static double alpha(final int m) {
+    switch (m) {
+      case 16:
+        return 0.673;
+      case 32:
+        return 0.697;
+      case 64:
+        return 0.709;
+      default:
+        return 0.7213 / (1 + 1.079 / m);
+    }
+  }
+}
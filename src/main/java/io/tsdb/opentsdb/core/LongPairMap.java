@@ -0,0 +1,198 @@
+package io.tsdb.opentsdb.core;
+/**
+ * Copyright 2015 The DiscoveryPlugins Authors
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.Collection;
+
+/**
+ * Open addressing hash map keyed by a pair of primitive longs, used for
+ * (series, window) lookups. Lookups and updates of existing keys never
+ * allocate. Collisions are resolved by linear probing and removal uses
+ * backward shifting, so there are no tombstones to clean up.
+ * <p/>
+ * Not thread safe, callers are expected to guard it.
+ */
+public final class LongPairMap<V> {
+  private static final float LOAD_FACTOR = 0.6f;
+
+  /** Decides which entries {@link #removeIf} takes out */
+  public interface Condition<V> {
+    boolean matches(long key1, long key2, V value);
+  }
+
+  private long[] keys1;
+  private long[] keys2;
+  private Object[] values;
+  private int mask;
+  private int size;
+  private int resizeAt;
+
+  public LongPairMap() {
+    this(16);
+  }
+
+  public LongPairMap(final int expected) {
+    int capacity = 16;
+    while (capacity * LOAD_FACTOR < expected) {
+      capacity <<= 1;
+    }
+    allocate(capacity);
+  }
+
+  public int size() {
+    return size;
+  }
+
+  @SuppressWarnings("unchecked")
+  public V get(final long key1, final long key2) {
+    int i = slot(key1, key2);
+    while (values[i] != null) {
+      if (keys1[i] == key1 && keys2[i] == key2) {
+        return (V) values[i];
+      }
+      i = (i + 1) & mask;
+    }
+    return null;
+  }
+
+  /** @return the previous value for the key, or null */
+  @SuppressWarnings("unchecked")
+  public V put(final long key1, final long key2, final V value) {
+    if (value == null) {
+      throw new IllegalArgumentException("LongPairMap does not accept null values");
+    }
+    int i = slot(key1, key2);
+    while (values[i] != null) {
+      if (keys1[i] == key1 && keys2[i] == key2) {
+        final V previous = (V) values[i];
+        values[i] = value;
+        return previous;
+      }
+      i = (i + 1) & mask;
+    }
+    keys1[i] = key1;
+    keys2[i] = key2;
+    values[i] = value;
+    if (++size > resizeAt) {
+      allocateAndRehash(values.length << 1);
+    }
+    return null;
+  }
+
+  /** @return the removed value, or null if the key was absent */
+  @SuppressWarnings("unchecked")
+  public V remove(final long key1, final long key2) {
+    int i = slot(key1, key2);
+    while (values[i] != null) {
+      if (keys1[i] == key1 && keys2[i] == key2) {
+        final V previous = (V) values[i];
+        removeAt(i);
+        return previous;
+      }
+      i = (i + 1) & mask;
+    }
+    return null;
+  }
+
+  /**
+   * Removes every entry matching the condition, adding the removed values to
+   * the collection.
+   * @return the number of entries removed
+   */
+  @SuppressWarnings("unchecked")
+  public int removeIf(final Condition<V> condition, final Collection<? super V> removed) {
+    int count = 0;
+    int i = 0;
+    while (i < values.length) {
+      final V value = (V) values[i];
+      if (value != null && condition.matches(keys1[i], keys2[i], value)) {
+        if (removed != null) {
+          removed.add(value);
+        }
+        // backward shifting may pull an unvisited entry into this slot, so look at it again
+        removeAt(i);
+        count++;
+      } else {
+        i++;
+      }
+    }
+    return count;
+  }
+
+  /** Adds every value to the collection, in no particular order */
+  @SuppressWarnings("unchecked")
+  public void values(final Collection<? super V> into) {
+    for (Object value : values) {
+      if (value != null) {
+        into.add((V) value);
+      }
+    }
+  }
+
+  public void clear() {
+    allocate(16);
+  }
+
+  private void removeAt(int free) {
+    values[free] = null;
+    size--;
+    int i = (free + 1) & mask;
+    while (values[i] != null) {
+      final int home = slot(keys1[i], keys2[i]);
+      // move the entry back if its home slot is not between the hole and where it sits now
+      if (((i - home) & mask) >= ((i - free) & mask)) {
+        keys1[free] = keys1[i];
+        keys2[free] = keys2[i];
+        values[free] = values[i];
+        values[i] = null;
+        free = i;
+      }
+      i = (i + 1) & mask;
+    }
+  }
+
+  private int slot(final long key1, final long key2) {
+    return (int) SeriesKey.mix(key1 * 31 + key2) & mask;
+  }
+
+  private void allocate(final int capacity) {
+    keys1 = new long[capacity];
+    keys2 = new long[capacity];
+    values = new Object[capacity];
+    mask = capacity - 1;
+    size = 0;
+    resizeAt = (int) (capacity * LOAD_FACTOR);
+  }
+
+  private void allocateAndRehash(final int capacity) {
+    final long[] oldKeys1 = keys1;
+    final long[] oldKeys2 = keys2;
+    final Object[] oldValues = values;
+    allocate(capacity);
+    for (int i = 0; i < oldValues.length; i++) {
+      if (oldValues[i] != null) {
+        int j = slot(oldKeys1[i], oldKeys2[i]);
+        while (values[j] != null) {
+          j = (j + 1) & mask;
+        }
+        keys1[j] = oldKeys1[i];
+        keys2[j] = oldKeys2[i];
+        values[j] = oldValues[i];
+        size++;
+      }
+    }
+  }
+}
@@ -0,0 +1,274 @@
+package io.tsdb.opentsdb.core;
+/**
+ * Copyright 2015 The DiscoveryPlugins Authors
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Mergeable quantile sketch using logarithmically sized buckets, in the
+ * style of DDSketch.
+ * <p/>
+ * A positive value v lands in bucket ceil(log(v) / log(gamma)) with
+ * gamma = (1 + a) / (1 - a), where a is the relative accuracy. Every value
+ * in a bucket is within a relative distance a of the bucket's midpoint, so
+ * any quantile read back is within a factor of (1 +/- a) of the true value
+ * at that rank. Negative values use a mirrored set of buckets and zero (or
+ * anything smaller than {@link #MIN_VALUE} in magnitude) has its own counter.
+ * <p/>
+ * Memory is bounded by maxBuckets per sign. If the observed range needs
+ * more buckets than that, the buckets closest to zero are folded together,
+ * which keeps the accuracy guarantee for the upper quantiles that matter
+ * for latency at the cost of the lowest ones. Two sketches with the same
+ * accuracy merge by adding bucket counts, so a large window is the exact
+ * merge of its small windows.
+ */
+public class QuantileSketch {
+  /** Magnitudes below this are counted as zero */
+  public static final double MIN_VALUE = 1e-9;
+
+  private final double accuracy;
+  private final double gamma;
+  private final double logGamma;
+  private final int maxBuckets;
+
+  private final Buckets positive;
+  private final Buckets negative;
+  private long zeroCount;
+  private long count;
+
+  /** Dense run of bucket counters starting at a moving index offset */
+  private static final class Buckets {
+    private int[] counts = new int[0];
+    private int offset;
+    private long total;
+
+    void add(final int index, final int n, final int maxBuckets) {
+      if (counts.length == 0) {
+        counts = new int[8];
+        offset = index;
+      }
+      int i = index - offset;
+      if (i < 0 || i >= counts.length) {
+        i = grow(index, maxBuckets);
+      }
+      counts[i] += n;
+      total += n;
+    }
+
+    /** Makes room for the index and returns its slot, collapsing low buckets when over the limit */
+    private int grow(final int index, final int maxBuckets) {
+      final int low = Math.min(offset, index);
+      final int high = Math.max(offset + counts.length - 1, index);
+      int span = high - low + 1;
+      if (span <= maxBuckets) {
+        final int size = Math.min(maxBuckets, Math.max(span, counts.length * 2));
+        final int newOffset = index < offset ? Math.max(high - size + 1, low - (size - span)) : offset;
+        final int[] resized = new int[size];
+        System.arraycopy(counts, 0, resized, offset - newOffset, counts.length);
+        counts = resized;
+        offset = newOffset;
+        return index - offset;
+      }
+      // keep the top maxBuckets buckets and fold everything below into the lowest one kept
+      final int newOffset = high - maxBuckets + 1;
+      final int[] resized = new int[maxBuckets];
+      int folded = 0;
+      for (int i = 0; i < counts.length; i++) {
+        final int bucket = offset + i;
+        if (bucket < newOffset) {
+          folded += counts[i];
+        } else {
+          resized[bucket - newOffset] += counts[i];
+        }
+      }
+      resized[0] += folded;
+      counts = resized;
+      offset = newOffset;
+      return Math.max(index, newOffset) - offset;
+    }
+
+    void merge(final Buckets other, final int maxBuckets) {
+      for (int i = 0; i < other.counts.length; i++) {
+        if (other.counts[i] != 0) {
+          add(other.offset + i, other.counts[i], maxBuckets);
+        }
+      }
+    }
+
+    void writeTo(final DataOutput out) throws IOException {
+      out.writeInt(offset);
+      out.writeInt(counts.length);
+      for (int count : counts) {
+        out.writeInt(count);
+      }
+      out.writeLong(total);
+    }
+
+    void readFrom(final DataInput in) throws IOException {
+      offset = in.readInt();
+      counts = new int[in.readInt()];
+      for (int i = 0; i < counts.length; i++) {
+        counts[i] = in.readInt();
+      }
+      total = in.readLong();
+    }
+
+    /** @return the index of the bucket holding the given zero based rank, counting from the lowest bucket */
+    int indexOfRank(final long rank) {
+      long seen = 0;
+      for (int i = 0; i < counts.length; i++) {
+        seen += counts[i];
+        if (seen > rank) {
+          return offset + i;
+        }
+      }
+      return offset + counts.length - 1;
+    }
+
+    /** @return the index of the bucket holding the given zero based rank, counting from the highest bucket */
+    int indexOfRankFromTop(final long rank) {
+      long seen = 0;
+      for (int i = counts.length - 1; i >= 0; i--) {
+        seen += counts[i];
+        if (seen > rank) {
+          return offset + i;
+        }
+      }
+      return offset;
+    }
+  }
+
+  public QuantileSketch(final double accuracy, final int maxBuckets) {
+    if (accuracy <= 0 || accuracy >= 1) {
+      throw new IllegalArgumentException("Sketch accuracy must be in (0, 1): " + accuracy);
+    }
+    if (maxBuckets < 2) {
+      throw new IllegalArgumentException("Sketch needs at least 2 buckets: " + maxBuckets);
+    }
+    this.accuracy = accuracy;
+    this.gamma = (1 + accuracy) / (1 - accuracy);
+    this.logGamma = Math.log(gamma);
+    this.maxBuckets = maxBuckets;
+    this.positive = new Buckets();
+    this.negative = new Buckets();
+  }
+
+  public double getAccuracy() {
+    return accuracy;
+  }
+
+  public long getCount() {
+    return count;
+  }
+
+  public void add(final double value) {
+    if (Double.isNaN(value)) {
+      return;
+    }
+    if (value > MIN_VALUE) {
+      positive.add(index(value), 1, maxBuckets);
+    } else if (value < -MIN_VALUE) {
+      negative.add(index(-value), 1, maxBuckets);
+    } else {
+      zeroCount++;
+    }
+    count++;
+  }
+
+  /**
+   * Adds the other sketch's counts into this one.
+   * @throws IllegalArgumentException if the sketches use different accuracies
+   */
+  public void merge(final QuantileSketch other) {
+    if (other.accuracy != accuracy) {
+      throw new IllegalArgumentException("Cannot merge sketches with accuracy "
+              + accuracy + " and " + other.accuracy);
+    }
+    positive.merge(other.positive, maxBuckets);
+    negative.merge(other.negative, maxBuckets);
+    zeroCount += other.zeroCount;
+    count += other.count;
+  }
+
+  public QuantileSketch copy() {
+    final QuantileSketch copy = new QuantileSketch(accuracy, maxBuckets);
+    copy.merge(this);
+    return copy;
+  }
+
+  /**
+   * @param quantile between 0 and 1 inclusive
+   * @return the estimated value at that quantile, or NaN when empty
+   */
+  public double getQuantile(final double quantile) {
+    if (quantile < 0 || quantile > 1) {
+      throw new IllegalArgumentException("Quantile must be between 0 and 1: " + quantile);
+    }
+    if (count == 0) {
+      return Double.NaN;
+    }
+    final long rank = (long) (quantile * (count - 1));
+    if (rank < negative.total) {
+      // the most negative values sit in the highest negative buckets
+      return -value(negative.indexOfRankFromTop(rank));
+    }
+    if (rank < negative.total + zeroCount) {
+      return 0d;
+    }
+    return value(positive.indexOfRank(rank - negative.total - zeroCount));
+  }
+
+  public void writeTo(final DataOutput out) throws IOException {
+    out.writeDouble(accuracy);
+    out.writeInt(maxBuckets);
+    out.writeLong(zeroCount);
+    out.writeLong(count);
+    positive.writeTo(out);
+    negative.writeTo(out);
+  }
+
+  /** Reads a sketch written by {@link #writeTo} */
+  public static QuantileSketch readFrom(final DataInput in) throws IOException {
+    final QuantileSketch sketch = new QuantileSketch(in.readDouble(), in.readInt());
+    sketch.zeroCount = in.readLong();
+    sketch.count = in.readLong();
+    sketch.positive.readFrom(in);
+    sketch.negative.readFrom(in);
+    return sketch;
+  }
+
+  /** @return the number of bucket slots currently allocated, for memory accounting */
+  public int getBucketCount() {
+    return positive.counts.length + negative.counts.length;
+  }
+
+  private int index(final double magnitude) {
+    return (int) Math.ceil(Math.log(magnitude) / logGamma);
+  }
+
+  private double value(final int index) {
+    return 2 * Math.pow(gamma, index) / (gamma + 1);
+  }
+
+  @Override
+  public String toString() {
+    return "QuantileSketch(accuracy=" + accuracy + ", count=" + count
+            + ", positive=" + Arrays.toString(positive.counts) + ")";
+  }
+}
@@ -0,0 +1,82 @@
+package io.tsdb.opentsdb.core;
+/**
+ * Copyright 2015 The DiscoveryPlugins Authors
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.Map;
+
+/**
+ * 64 bit, non cryptographic series identities computed without allocating.
+ * <p/>
+ * The tag hash is a sum of independently mixed key/value pair hashes, which
+ * makes it canonical: the same tag set hashes the same whatever order the
+ * map iterates in, just as if the tags had been sorted first. With 64 bits
+ * the chance of two of a million live series colliding is about 3e-8.
+ */
+public final class SeriesKey {
+  private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+  private static final long FNV_PRIME = 0x100000001b3L;
+  private static final long TAG_KEY_SEED = 0x9e3779b97f4a7c15L;
+  private static final long TAG_VALUE_SEED = 0xc2b2ae3d27d4eb4fL;
+
+  private SeriesKey() {
+  }
+
+  /** @return the identity of a series from the TSUID bytes the TSD hands to publishers */
+  public static long hash(final byte[] tsuid) {
+    long h = FNV_OFFSET;
+    for (int i = 0; i < tsuid.length; i++) {
+      h = (h ^ (tsuid[i] & 0xff)) * FNV_PRIME;
+    }
+    return mix(h);
+  }
+
+  /** @return the identity of a series from its metric name and tags */
+  public static long hash(final String metric, final Map<String, String> tags) {
+    long tagHash = 0;
+    for (Map.Entry<String, String> tag : tags.entrySet()) {
+      tagHash += pairHash(tag.getKey(), tag.getValue());
+    }
+    return mix(hash(metric, FNV_OFFSET) ^ Long.rotateLeft(tagHash, 17) ^ tags.size());
+  }
+
+  /** @return the hash of a single tag pair, summing these over a tag set gives its canonical hash */
+  public static long pairHash(final String key, final String value) {
+    return mix(hash(key, TAG_KEY_SEED) ^ Long.rotateLeft(hash(value, TAG_VALUE_SEED), 31));
+  }
+
+  public static long hash(final CharSequence value, final long seed) {
+    long h = seed;
+    for (int i = 0; i < value.length(); i++) {
+      h = extend(h, value.charAt(i));
+    }
+    return h;
+  }
+
+  /** @return the hash of a value one character longer, to hash every prefix of a name in one pass */
+  public static long extend(final long hash, final char c) {
+    return (hash ^ c) * FNV_PRIME;
+  }
+
+  /** Murmur3 finalizer, spreads every input bit over the whole word */
+  public static long mix(long h) {
+    h ^= h >>> 33;
+    h *= 0xff51afd7ed558ccdL;
+    h ^= h >>> 33;
+    h *= 0xc4ceb9fe1a85ec53L;
+    h ^= h >>> 33;
+    return h;
+  }
+}
@@ -0,0 +1,173 @@
+package io.tsdb.opentsdb.core;
+/**
+ * Copyright 2015 The DiscoveryPlugins Authors
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * Hierarchical timing wheel of (long, long) keys with one second ticks.
+ * <p/>
+ * There are {@link #LEVELS} wheels of 64 slots. Level 0 has one second
+ * slots, each level above has slots 64 times wider, so four levels reach
+ * about 194 days ahead; anything further out is parked in the last slot of
+ * the top level. Scheduling is O(1). Advancing the clock only touches the
+ * level 0 slots passed over and the higher slots that roll over on the way,
+ * whose entries are pushed down a level. The cost of expiry is therefore
+ * proportional to what expires, not to how much is scheduled.
+ * <p/>
+ * Entries are kept in primitive arrays per slot, so scheduling allocates
+ * nothing once a slot has grown to its working size. Not thread safe.
+ */
+public final class TimingWheel {
+  public static final int LEVELS = 4;
+  private static final int BITS = 6;
+  private static final int SLOTS = 1 << BITS;
+  private static final int SLOT_MASK = SLOTS - 1;
+
+  /** Receives keys whose deadline has passed */
+  public interface Expiry {
+    void expired(long key1, long key2);
+  }
+
+  private static final class Slot {
+    private long[] keys1 = new long[0];
+    private long[] keys2 = new long[0];
+    private long[] deadlines = new long[0];
+    private int size;
+
+    void add(final long key1, final long key2, final long deadline) {
+      if (size == keys1.length) {
+        final int capacity = Math.max(8, size * 2);
+        keys1 = java.util.Arrays.copyOf(keys1, capacity);
+        keys2 = java.util.Arrays.copyOf(keys2, capacity);
+        deadlines = java.util.Arrays.copyOf(deadlines, capacity);
+      }
+      keys1[size] = key1;
+      keys2[size] = key2;
+      deadlines[size] = deadline;
+      size++;
+    }
+  }
+
+  private final Slot[][] wheels = new Slot[LEVELS][SLOTS];
+  private final Slot overdue = new Slot();
+  private long current;
+  private int size;
+
+  /** @param start the time, in seconds, the wheel starts at */
+  public TimingWheel(final long start) {
+    for (int level = 0; level < LEVELS; level++) {
+      for (int slot = 0; slot < SLOTS; slot++) {
+        wheels[level][slot] = new Slot();
+      }
+    }
+    this.current = start;
+  }
+
+  public long getCurrent() {
+    return current;
+  }
+
+  /** @return the number of scheduled entries */
+  public int size() {
+    return size;
+  }
+
+  /**
+   * Schedules the key to expire once the clock reaches the deadline. A
+   * deadline at or before the current time expires on the next advance.
+   */
+  public void schedule(final long key1, final long key2, final long deadline) {
+    size++;
+    place(key1, key2, deadline);
+  }
+
+  /**
+   * Moves the clock forward to the given time, handing every key whose
+   * deadline is at or before it to the expiry callback.
+   * @return the number of expired keys
+   */
+  public int advance(final long now, final Expiry expiry) {
+    int expired = drain(overdue, expiry);
+    if (now <= current) {
+      return expired;
+    }
+    if (size == 0) {
+      current = now;
+      return expired;
+    }
+    while (current < now) {
+      current++;
+      // roll over the higher levels first so their entries land in this tick if due
+      for (int level = 1; level < LEVELS; level++) {
+        if ((current & ((1L << (BITS * level)) - 1)) != 0) {
+          break;
+        }
+        final Slot slot = wheels[level][(int) (current >>> (BITS * level)) & SLOT_MASK];
+        cascade(slot);
+      }
+      expired += drain(wheels[0][(int) current & SLOT_MASK], expiry);
+      if (size == 0) {
+        current = now;
+      }
+    }
+    return expired;
+  }
+
+  private void place(final long key1, final long key2, final long deadline) {
+    final long delta = deadline - current;
+    if (delta <= 0) {
+      overdue.add(key1, key2, deadline);
+      return;
+    }
+    for (int level = 0; level < LEVELS; level++) {
+      if (delta < (1L << (BITS * (level + 1)))) {
+        wheels[level][(int) (deadline >>> (BITS * level)) & SLOT_MASK].add(key1, key2, deadline);
+        return;
+      }
+    }
+    // beyond the reach of the top level, park it where it will be looked at again
+    final int top = LEVELS - 1;
+    wheels[top][(int) ((current >>> (BITS * top)) - 1) & SLOT_MASK].add(key1, key2, deadline);
+  }
+
+  private void cascade(final Slot slot) {
+    final int count = slot.size;
+    if (count == 0) {
+      return;
+    }
+    final long[] keys1 = slot.keys1.clone();
+    final long[] keys2 = slot.keys2.clone();
+    final long[] deadlines = slot.deadlines.clone();
+    slot.size = 0;
+    for (int i = 0; i < count; i++) {
+      if (deadlines[i] <= current) {
+        // due this very tick, level 0's slot for it is drained right after the cascade
+        wheels[0][(int) current & SLOT_MASK].add(keys1[i], keys2[i], deadlines[i]);
+      } else {
+        place(keys1[i], keys2[i], deadlines[i]);
+      }
+    }
+  }
+
+  private int drain(final Slot slot, final Expiry expiry) {
+    final int count = slot.size;
+    for (int i = 0; i < count; i++) {
+      expiry.expired(slot.keys1[i], slot.keys2[i]);
+    }
+    slot.size = 0;
+    size -= count;
+    return count;
+  }
+}
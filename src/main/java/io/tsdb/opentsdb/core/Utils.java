@@ -15,6 +15,7 @@ package io.tsdb.opentsdb.core;
   limitations under the License.
  */
 
+import net.opentsdb.core.Const;
 import net.opentsdb.core.IncomingDataPoint;
 import net.opentsdb.tools.StartupPlugin;
 import net.opentsdb.utils.Config;
@@ -30,16 +31,28 @@ import java.util.*;
 
 public class Utils {
   private static final Logger LOG = LoggerFactory.getLogger(Utils.class);
+  /**
+   * @return the start of the window of the given size containing the given
+   * time, in milliseconds since the epoch
+   */
   public static Date floorTimestamp(Date ts, int windowMinutes) {
-    Calendar calendar = Calendar.getInstance();
-    calendar.set(Calendar.SECOND, 0);
-    calendar.set(Calendar.MILLISECOND, 0);
-    int modulo = calendar.get(Calendar.MINUTE) % windowMinutes;
-    if(modulo > 0) {
-      calendar.add(Calendar.MINUTE, -modulo);
-    }
-    long finalTS = calendar.getTime().getTime() / 1000;
-    return new Date(finalTS);
+    long windowMs = windowMinutes * 60000L;
+    long time = ts.getTime();
+    return new Date(time - Math.floorMod(time, windowMs));
+  }
+
+  /**
+   * Normalizes a data point timestamp the way the TSD does: anything that
+   * does not fit in 32 bits is taken to be in milliseconds.
+   * @return the timestamp in seconds
+   */
+  public static long toSeconds(long timestamp) {
+    return (timestamp & Const.SECOND_MASK) != 0 ? timestamp / 1000 : timestamp;
+  }
+
+  /** @return the data point timestamp in milliseconds, see {@link #toSeconds(long)} */
+  public static long toMillis(long timestamp) {
+    return (timestamp & Const.SECOND_MASK) != 0 ? timestamp : timestamp * 1000;
   }
 
   public static IncomingDataPoint makeDatapoint(final String metric,
@@ -54,14 +67,19 @@ public class Utils {
     return new IncomingDataPoint(metric, timestamp, Objects.toString(value, null), tagsHash);
   }
 
-  public static String getTagString(HashMap<String, String> tags) {
-    String tagString = "";
-    for (Map.Entry<String, String> entry : tags.entrySet()) {
-      String key = entry.getKey();
-      String value = entry.getValue();
-      tagString += key + value;
+  /**
+   * @return the tags as key=value pairs sorted by key, so the same tag set
+   * always gives the same string
+   */
+  public static String getTagString(Map<String, String> tags) {
+    StringBuilder tagString = new StringBuilder();
+    for (Map.Entry<String, String> entry : new TreeMap<String, String>(tags).entrySet()) {
+      if (tagString.length() > 0) {
+        tagString.append(' ');
+      }
+      tagString.append(entry.getKey()).append('=').append(entry.getValue());
     }
-    return tagString;
+    return tagString.toString();
   }
 
   public static String getConfigPropertyString(Config config, String propertyName, String defaultValue) {
@@ -0,0 +1,150 @@
+package io.tsdb.opentsdb.publishing;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.MessageToByteEncoder;
+import io.netty.util.CharsetUtil;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Writes {@link RelayPoint}s as telnet put lines straight into a pooled
+ * direct buffer:
+ * <pre>
+ * put &lt;metric&gt; &lt;timestamp&gt; &lt;value&gt; &lt;tagk=tagv ...&gt;\n
+ * </pre>
+ * Numbers are formatted digit by digit into the buffer. A double is written
+ * with the fewest decimals, up to 15, that read back as the same value, and
+ * always with a '.' so the target stores it as a float; only values needing
+ * more digits, or beyond 2^53 once scaled, go through Double.toString. The
+ * UTF-8 bytes of metric names and tag strings are cached, as they recur on
+ * every point of a series, up to a bounded number of strings per
+ * connection, past which further strings are encoded on every write.
+ * <p>
+ * An encoder belongs to one channel and only runs on its event loop.
+ */
+class PutLineEncoder extends MessageToByteEncoder<RelayPoint> {
+    private static final byte[] PUT = "put ".getBytes(CharsetUtil.US_ASCII);
+    private static final long MAX_EXACT = 1L << 53;
+    private static final long[] POWERS = new long[16];
+
+    static {
+        POWERS[0] = 1;
+        for (int i = 1; i < POWERS.length; i++) {
+            POWERS[i] = POWERS[i - 1] * 10;
+        }
+    }
+
+    private final Map<String, byte[]> cache = new HashMap<String, byte[]>();
+    private final int maxCached;
+    private final byte[] digits = new byte[20];
+
+    /** @param maxCached the most strings whose bytes are kept */
+    PutLineEncoder(int maxCached) {
+        super(RelayPoint.class, true);
+        this.maxCached = maxCached;
+    }
+
+    @Override
+    protected ByteBuf allocateBuffer(ChannelHandlerContext ctx, RelayPoint msg, boolean preferDirect) {
+        // room for the numbers and separators, strings are mostly ASCII
+        int size = 64 + msg.metric.length();
+        for (Map.Entry<String, String> tag : msg.tags.entrySet()) {
+            size += tag.getKey().length() + tag.getValue().length() + 2;
+        }
+        return ctx.alloc().ioBuffer(size);
+    }
+
+    @Override
+    protected void encode(ChannelHandlerContext ctx, RelayPoint msg, ByteBuf out) {
+        try {
+            encode(msg, out);
+        } finally {
+            msg.recycle();
+        }
+    }
+
+    void encode(RelayPoint msg, ByteBuf out) {
+        out.writeBytes(PUT);
+        writeString(out, msg.metric);
+        out.writeByte(' ');
+        writeLong(out, msg.timestamp);
+        out.writeByte(' ');
+        if (msg.integral) {
+            writeLong(out, msg.longValue);
+        } else {
+            writeDouble(out, msg.doubleValue);
+        }
+        for (Map.Entry<String, String> tag : msg.tags.entrySet()) {
+            out.writeByte(' ');
+            writeString(out, tag.getKey());
+            out.writeByte('=');
+            writeString(out, tag.getValue());
+        }
+        out.writeByte('\n');
+    }
+
+    private void writeString(ByteBuf out, String value) {
+        byte[] bytes = cache.get(value);
+        if (bytes == null) {
+            if (cache.size() >= maxCached) {
+                ByteBufUtil.writeUtf8(out, value);
+                return;
+            }
+            bytes = value.getBytes(CharsetUtil.UTF_8);
+            cache.put(value, bytes);
+        }
+        out.writeBytes(bytes);
+    }
+
+    private void writeLong(ByteBuf out, long value) {
+        if (value == Long.MIN_VALUE) {
+            // has no positive counterpart
+            ByteBufUtil.writeAscii(out, Long.toString(value));
+            return;
+        }
+        if (value < 0) {
+            out.writeByte('-');
+            value = -value;
+        }
+        writeDigits(out, value, 1);
+    }
+
+    /** Writes the digits of a positive value, padded with zeros to the minimum. */
+    private void writeDigits(ByteBuf out, long value, int minimum) {
+        int i = digits.length;
+        do {
+            digits[--i] = (byte) ('0' + value % 10);
+            value /= 10;
+        } while (value != 0);
+        while (digits.length - i < minimum) {
+            digits[--i] = '0';
+        }
+        out.writeBytes(digits, i, digits.length - i);
+    }
+
+    private void writeDouble(ByteBuf out, double value) {
+        final double abs = Math.abs(value);
+        for (int decimals = 1; decimals < POWERS.length; decimals++) {
+            final double scaled = abs * POWERS[decimals];
+            if (scaled >= MAX_EXACT) {
+                break;
+            }
+            final long mantissa = Math.round(scaled);
+            // both exact integers below 2^53, so the quotient rounds like parsing the decimal
+            if ((double) mantissa / POWERS[decimals] != abs) {
+                continue;
+            }
+            if (value < 0 || (value == 0 && 1 / value < 0)) {
+                out.writeByte('-');
+            }
+            writeDigits(out, mantissa / POWERS[decimals], 1);
+            out.writeByte('.');
+            writeDigits(out, mantissa % POWERS[decimals], decimals);
+            return;
+        }
+        ByteBufUtil.writeAscii(out, Double.toString(value));
+    }
+}
@@ -1,17 +1,26 @@
 package io.tsdb.opentsdb.publishing;
 
 import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.channel.Channel;
 import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
 import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
 import io.netty.channel.ChannelPipeline;
 import io.netty.channel.EventLoopGroup;
+import io.netty.channel.WriteBufferWaterMark;
 import io.netty.channel.nio.NioEventLoopGroup;
 import io.netty.channel.socket.SocketChannel;
 import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.handler.codec.string.StringEncoder;
 import io.netty.handler.ssl.SslContext;
 import io.netty.handler.ssl.SslContextBuilder;
 import io.netty.handler.ssl.SslProvider;
+import io.netty.util.CharsetUtil;
 import net.opentsdb.core.TSDB;
+import net.opentsdb.utils.Config;
 import org.slf4j.LoggerFactory;
 
 import javax.xml.bind.DatatypeConverter;
@@ -25,62 +34,363 @@ import java.security.cert.CertificateFactory;
 import java.security.cert.X509Certificate;
 import java.security.spec.InvalidKeySpecException;
 import java.security.spec.PKCS8EncodedKeySpec;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
+import static io.tsdb.opentsdb.core.Utils.getConfigPropertyInt;
+import static io.tsdb.opentsdb.core.Utils.getConfigPropertyString;
+
+/**
+ * Connection to the TSD the points are relayed to.
+ * <p>
+ * Connecting never blocks the caller: the connection is made on the event
+ * loop, and made again whenever it fails or drops, after a delay doubling
+ * from tsd.rtpublisher.relay.reconnect.min_ms up to .max_ms. Each delay is
+ * drawn at random from its upper half, so relays restarted together don't
+ * reconnect in lockstep. A successful connection resets the delay.
+ * <p>
+ * While disconnected, lines are either dropped or, with
+ * tsd.rtpublisher.relay.disconnected = buffer, kept in a bounded queue that
+ * is written out once connected. When the queue is full the new lines are
+ * dropped. Either way the dropped lines are counted. With
+ * tsd.rtpublisher.relay.disconnected = spool they go to a {@link RelaySpool}
+ * on disk instead, in a directory of its own per target under
+ * .spool.dir, and are replayed once connected, at most
+ * .spool.replay_lines_per_sec, alongside the new lines.
+ * <p>
+ * Flushes are coalesced by a {@link RelayFlushHandler}, so lines pile up in
+ * the channel's outbound buffer and go out in as few segments as possible:
+ * once tsd.rtpublisher.relay.flush.bytes are waiting, once the event loop
+ * has no more writes queued, or after .flush.linger_ms when set. 0 bytes
+ * flushes every line. When the outbound buffer passes the high water mark the
+ * channel turns unwritable, and new lines get the disconnected policy until
+ * it drains below the low water mark, so a slow target can't make the
+ * buffer grow without bound.
+ * <p>
+ * Points are written as {@link RelayPoint}s and formatted by the
+ * {@link PutLineEncoder} on the event loop, into pooled direct buffers, so
+ * nothing is formatted or copied on the publishing thread.
+ */
 public class RelayClient {
     private static final org.slf4j.Logger LOGGER = LoggerFactory.getLogger(RelayClient.class);
     private static final boolean SSL = System.getProperty("ssl") != null;
-    private static final String HOST = System.getProperty("host", "127.0.0.1");
-    private static final int PORT = Integer.parseInt(System.getProperty("port", "8009"));
-    private static RelayClientHandler clientHandler = new RelayClientHandler();
-    private EventLoopGroup group = new NioEventLoopGroup();
+    static final String HOST = System.getProperty("host", "127.0.0.1");
+    static final int PORT = Integer.parseInt(System.getProperty("port", "8009"));
+    private static final String PREFIX = "tsd.rtpublisher.relay.";
+    private static final int REPLAY_TICK_MS = 10;
+    private final RelayClientHandler clientHandler = new RelayClientHandler(this);
+    private final EventLoopGroup group = new NioEventLoopGroup(1);
+    private final Bootstrap bootstrap = new Bootstrap();
+    private final String host;
+    private final int port;
+    private final long minDelay;
+    private final long maxDelay;
+    private final BlockingQueue<Object> pending;
+    private final RelaySpool spool;
+    private final int replayPerTick;
+    private final int flushBytes;
+    private final long linger;
+    private final int cachedStrings;
+    private volatile Channel channel;
+    private volatile boolean closed;
+    private long delay;
+    private boolean replaying;
+
+    private final AtomicLong connects = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong unwritable = new AtomicLong();
+    private final AtomicLong flushes = new AtomicLong();
 
     public RelayClient(TSDB tsdb) {
+        this(tsdb.getConfig(), HOST, PORT);
+    }
 
-        // Configure SSL.
-        final SslContext sslCtx;
+    RelayClient(Config config, String host, int port) {
+        this.host = host;
+        this.port = port;
+        this.minDelay = Math.max(1, getConfigPropertyInt(config, PREFIX + "reconnect.min_ms", 100));
+        this.maxDelay = Math.max(minDelay, getConfigPropertyInt(config, PREFIX + "reconnect.max_ms", 30000));
+        this.delay = minDelay;
+        String policy = getConfigPropertyString(config, PREFIX + "disconnected", "drop");
+        if ("buffer".equals(policy)) {
+            this.pending = new ArrayBlockingQueue<Object>(getConfigPropertyInt(config, PREFIX + "buffer.max_lines", 100000));
+            this.spool = null;
+        } else if ("spool".equals(policy)) {
+            this.pending = null;
+            final File dir = new File(getConfigPropertyString(config, PREFIX + "spool.dir",
+                    new File(System.getProperty("java.io.tmpdir"), "opentsdb-relay").getPath()), host + "_" + port);
+            try {
+                this.spool = new RelaySpool(dir,
+                        getConfigPropertyInt(config, PREFIX + "spool.segment_mb", 64) * 1024 * 1024,
+                        getConfigPropertyInt(config, PREFIX + "spool.max_mb", 1024) * 1024L * 1024L,
+                        getConfigPropertyInt(config, PREFIX + "spool.retention_sec", 86400) * 1000L);
+            } catch (IOException e) {
+                throw new IllegalStateException("Unable to open the relay spool in " + dir, e);
+            }
+        } else if ("drop".equals(policy)) {
+            this.pending = null;
+            this.spool = null;
+        } else {
+            throw new IllegalArgumentException("Unknown relay disconnected policy " + policy
+                    + ", expected drop, buffer or spool");
+        }
+        this.replayPerTick = Math.max(1, getConfigPropertyInt(config, PREFIX + "spool.replay_lines_per_sec", 20000)
+                * REPLAY_TICK_MS / 1000);
+        this.flushBytes = getConfigPropertyInt(config, PREFIX + "flush.bytes", 65536);
+        this.linger = getConfigPropertyInt(config, PREFIX + "flush.linger_ms", 0);
+        this.cachedStrings = getConfigPropertyInt(config, PREFIX + "encoder.cached_strings", 100000);
+        int lowWaterMark = getConfigPropertyInt(config, PREFIX + "write_buffer.low_bytes", 512 * 1024);
+        int highWaterMark = getConfigPropertyInt(config, PREFIX + "write_buffer.high_bytes", 2 * 1024 * 1024);
 
-        try {
-            Bootstrap b = new Bootstrap();
-            b.group(group)
-                    .channel(NioSocketChannel.class)
-                    .handler(new ChannelInitializer<SocketChannel>() {
-                        @Override
-                        protected void initChannel(SocketChannel ch) throws Exception {
-                            ChannelPipeline p = ch.pipeline();
-                            if (SSL) {
-                                try {
-                                    final SslContext sslCtx = getSSLContext();
-                                    LOGGER.debug("Adding SSL Handler to Pipeline");
-                                    p.addLast("ssl", sslCtx.newHandler(ch.alloc(), HOST, PORT));
-                                } catch (IOException | GeneralSecurityException e) {
-                                    LOGGER.warn("Failed to establish SSL Context");
-                                    LOGGER.debug("Failed to establish SSL Context", e);
-                                    ch.writeAndFlush("Failed to establish SSH Context");
-                                    ch.close();
-                                }
+        bootstrap.group(group)
+                .channel(NioSocketChannel.class)
+                .option(ChannelOption.CONNECT_TIMEOUT_MILLIS, (int) Math.min(Integer.MAX_VALUE, Math.max(1000, maxDelay)))
+                .option(ChannelOption.WRITE_BUFFER_WATER_MARK, new WriteBufferWaterMark(lowWaterMark, highWaterMark))
+                .option(ChannelOption.TCP_NODELAY, true)
+                .option(ChannelOption.ALLOCATOR, PooledByteBufAllocator.DEFAULT)
+                .handler(new ChannelInitializer<SocketChannel>() {
+                    @Override
+                    protected void initChannel(SocketChannel ch) throws Exception {
+                        ChannelPipeline p = ch.pipeline();
+                        if (SSL) {
+                            try {
+                                final SslContext sslCtx = getSSLContext();
+                                LOGGER.debug("Adding SSL Handler to Pipeline");
+                                p.addLast("ssl", sslCtx.newHandler(ch.alloc(), RelayClient.this.host, RelayClient.this.port));
+                            } catch (IOException | GeneralSecurityException e) {
+                                LOGGER.warn("Failed to establish SSL Context");
+                                LOGGER.debug("Failed to establish SSL Context", e);
+                                ch.close();
                             }
-                            p.addLast(clientHandler);
                         }
-                    });
+                        p.addLast(new RelayFlushHandler(flushBytes, linger, flushes));
+                        p.addLast(new StringEncoder(CharsetUtil.UTF_8));
+                        p.addLast(new PutLineEncoder(cachedStrings));
+                        p.addLast(clientHandler);
+                    }
+                });
+        connect();
+    }
 
-            // Make the connection attempt.
-            ChannelFuture f = b.connect(HOST, PORT).sync();
+    private void connect() {
+        if (closed) {
+            return;
+        }
+        bootstrap.connect(host, port).addListener(new ChannelFutureListener() {
+            @Override
+            public void operationComplete(ChannelFuture future) {
+                if (!future.isSuccess()) {
+                    failures.incrementAndGet();
+                    LOGGER.warn("Unable to connect to relay target " + host + ":" + port + ": " + future.cause());
+                    reconnect();
+                    return;
+                }
+                final Channel ch = future.channel();
+                ch.closeFuture().addListener(new ChannelFutureListener() {
+                    @Override
+                    public void operationComplete(ChannelFuture future) {
+                        channel = null;
+                        if (!closed) {
+                            LOGGER.warn("Lost the connection to relay target " + host + ":" + port);
+                            reconnect();
+                        }
+                    }
+                });
+                connects.incrementAndGet();
+                // only touched on the event loop
+                delay = minDelay;
+                channel = ch;
+                LOGGER.info("Connected to relay target " + host + ":" + port);
+                drain(ch);
+                replay();
+            }
+        });
+    }
 
-            // Wait until the connection is closed.
-            f.channel().closeFuture().sync();
-        } catch (InterruptedException e) {
-            e.printStackTrace();
-        } finally {
-            group.shutdownGracefully();
+    /** Schedules the next attempt, on the event loop. */
+    private void reconnect() {
+        if (closed) {
+            return;
         }
+        final long wait = delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+        delay = Math.min(maxDelay, delay * 2);
+        group.schedule(new Runnable() {
+            @Override
+            public void run() {
+                connect();
+            }
+        }, wait, TimeUnit.MILLISECONDS);
     }
 
-    public void writeMessage(String msg) {
-        clientHandler.writeMessage(msg + "\r\n");
+    /** Writes out the buffered lines, as far as the channel stays writable. */
+    void drain(final Channel ch) {
+        if (pending == null || pending.isEmpty()) {
+            return;
+        }
+        Object msg;
+        while (ch.isActive() && ch.isWritable() && (msg = pending.poll()) != null) {
+            ch.write(msg, ch.voidPromise());
+        }
+        ch.flush();
+    }
+
+    /**
+     * Replays the spooled lines, on the event loop, a tick's worth at a time
+     * while the channel stays writable. Started again once connected or
+     * writable after stopping.
+     */
+    void replay() {
+        if (spool == null || replaying) {
+            return;
+        }
+        replaying = true;
+        group.execute(new Runnable() {
+            @Override
+            public void run() {
+                final Channel ch = channel;
+                if (closed || ch == null || !ch.isActive()) {
+                    replaying = false;
+                    return;
+                }
+                final long now = System.currentTimeMillis();
+                int replayed = 0;
+                ByteBuf line = null;
+                while (replayed < replayPerTick && ch.isWritable() && (line = spool.poll(ch.alloc(), now)) != null) {
+                    ch.write(line, ch.voidPromise());
+                    replayed++;
+                }
+                ch.flush();
+                if (line == null || !ch.isWritable()) {
+                    // empty, or the channel calls again once drained
+                    replaying = false;
+                    return;
+                }
+                group.schedule(this, REPLAY_TICK_MS, TimeUnit.MILLISECONDS);
+            }
+        });
+    }
+
+    /**
+     * @return true if the line was handed to the connection, false if it was
+     * buffered, spooled or dropped as there is none or it is unwritable
+     */
+    public boolean writeMessage(String msg) {
+        return write(msg + "\r\n");
+    }
+
+    /**
+     * Relays a point, put together as a put line on the event loop.
+     *
+     * @return true if the point was handed to the connection, false if it was
+     * buffered or dropped as there is none or it is unwritable
+     */
+    public boolean writePoint(String metric, long timestamp, long value, Map<String, String> tags) {
+        return write(RelayPoint.of(metric, timestamp, value, tags));
+    }
+
+    /** @see #writePoint(String, long, long, Map) */
+    public boolean writePoint(String metric, long timestamp, double value, Map<String, String> tags) {
+        return write(RelayPoint.of(metric, timestamp, value, tags));
+    }
+
+    private boolean write(Object msg) {
+        final Channel ch = channel;
+        if (ch != null && ch.isWritable()) {
+            // the flush handler holds the flush back until a batch is ready
+            ch.writeAndFlush(msg, ch.voidPromise());
+            return true;
+        }
+        if (ch != null && ch.isActive()) {
+            unwritable.incrementAndGet();
+        }
+        if (spool != null) {
+            if (!spool.append(msg, System.currentTimeMillis())) {
+                dropped.incrementAndGet();
+            }
+            return false;
+        }
+        if (pending == null || !pending.offer(msg)) {
+            dropped.incrementAndGet();
+            if (msg instanceof RelayPoint) {
+                ((RelayPoint) msg).recycle();
+            }
+            return false;
+        }
+        // the connection may have come back or drained after the check above
+        final Channel now = channel;
+        if (now != null && now.isWritable()) {
+            drain(now);
+        }
+        return false;
+    }
+
+    /** @return the host:port relayed to */
+    public String getTarget() {
+        return host + ':' + port;
+    }
+
+    public boolean isConnected() {
+        final Channel ch = channel;
+        return ch != null && ch.isActive();
+    }
+
+    /** @return true if connected and below the high water mark */
+    boolean isWritable() {
+        final Channel ch = channel;
+        return ch != null && ch.isWritable();
+    }
+
+    /** @return the connections made, the first one included */
+    public long getConnects() {
+        return connects.get();
+    }
+
+    /** @return the connection attempts that failed */
+    public long getFailures() {
+        return failures.get();
+    }
+
+    /** @return the lines dropped while disconnected */
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    /** @return the lines that found the channel unwritable */
+    public long getUnwritable() {
+        return unwritable.get();
+    }
+
+    /** @return the flushes, each writing out the lines written since the last */
+    public long getFlushes() {
+        return flushes.get();
+    }
+
+    /** @return the lines waiting for a connection */
+    public int getPending() {
+        return pending == null ? 0 : pending.size();
+    }
+
+    /** @return the spool of the lines not written, null unless spooling */
+    RelaySpool getSpool() {
+        return spool;
     }
 
     public void shutdown() {
+        closed = true;
+        final Channel ch = channel;
+        if (ch != null) {
+            ch.close();
+        }
         group.shutdownGracefully();
+        if (spool != null) {
+            // a replay still running finds it empty
+            spool.close();
+        }
     }
 
     private static SslContext getSSLContext() throws IOException, GeneralSecurityException {
@@ -1,27 +1,33 @@
 package io.tsdb.opentsdb.publishing;
 
 
-import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandler;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.SimpleChannelInboundHandler;
+import org.slf4j.LoggerFactory;
 
 /**
- * Handles a client-side channel.
+ * Handles a client-side channel. It keeps no state of its own, so every
+ * connection the {@link RelayClient} makes shares it.
  */
+@ChannelHandler.Sharable
 public class RelayClientHandler extends SimpleChannelInboundHandler<Object> {
-    private ChannelHandlerContext ctx;
+    private static final org.slf4j.Logger LOGGER = LoggerFactory.getLogger(RelayClientHandler.class);
 
-    RelayClientHandler() {
+    private final RelayClient client;
 
+    RelayClientHandler(RelayClient client) {
+        this.client = client;
     }
 
     @Override
-    public void channelActive(ChannelHandlerContext ctx) {
-        this.ctx = ctx;
-    }
-
-    @Override
-    public void channelInactive(ChannelHandlerContext ctx) {
+    public void channelWritabilityChanged(ChannelHandlerContext ctx) throws Exception {
+        if (ctx.channel().isWritable()) {
+            // below the low water mark again
+            client.drain(ctx.channel());
+            client.replay();
+        }
+        ctx.fireChannelWritabilityChanged();
     }
 
     @Override
@@ -31,12 +37,8 @@ public class RelayClientHandler extends SimpleChannelInboundHandler<Object> {
 
     @Override
     public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
-        // Close the connection when an exception is raised.
-        cause.printStackTrace();
+        // Close the connection when an exception is raised, the client reconnects.
+        LOGGER.warn("Closing the relay connection to " + ctx.channel().remoteAddress(), cause);
         ctx.close();
     }
-
-    final void writeMessage(String msg) {
-        ctx.writeAndFlush(msg);
-    }
-}
\ No newline at end of file
+}
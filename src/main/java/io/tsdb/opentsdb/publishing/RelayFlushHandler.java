@@ -0,0 +1,87 @@
+package io.tsdb.opentsdb.publishing;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelOutboundHandlerAdapter;
+import io.netty.channel.ChannelPromise;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Coalesces the flush that follows every relayed line. Each handler method
+ * runs on the channel's event loop, so no state here is shared.
+ * <p>
+ * Bytes written since the last flush are counted, and a flush request only
+ * goes through once they reach the batch size. Otherwise a single flush is
+ * queued on the event loop, behind the writes already waiting there, so it
+ * runs once the loop has caught up with them, or after the linger when one
+ * is set. A write arriving after that flush queues the next one.
+ */
+class RelayFlushHandler extends ChannelOutboundHandlerAdapter {
+    private final int flushBytes;
+    private final long linger;
+    private final AtomicLong flushes;
+    private long unflushed;
+    private boolean queued;
+
+    /**
+     * @param flushBytes the bytes after which a flush goes out at once
+     * @param linger milliseconds to wait for more lines, 0 to flush once the
+     * event loop has no more writes queued
+     * @param flushes counts the flushes that went through
+     */
+    RelayFlushHandler(int flushBytes, long linger, AtomicLong flushes) {
+        this.flushBytes = flushBytes;
+        this.linger = linger;
+        this.flushes = flushes;
+    }
+
+    @Override
+    public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception {
+        if (msg instanceof ByteBuf) {
+            unflushed += ((ByteBuf) msg).readableBytes();
+        }
+        ctx.write(msg, promise);
+    }
+
+    @Override
+    public void flush(final ChannelHandlerContext ctx) throws Exception {
+        if (unflushed >= flushBytes) {
+            flushNow(ctx);
+            return;
+        }
+        if (queued) {
+            return;
+        }
+        queued = true;
+        final Runnable task = new Runnable() {
+            @Override
+            public void run() {
+                queued = false;
+                if (unflushed > 0) {
+                    flushNow(ctx);
+                }
+            }
+        };
+        if (linger > 0) {
+            ctx.executor().schedule(task, linger, TimeUnit.MILLISECONDS);
+        } else {
+            ctx.executor().execute(task);
+        }
+    }
+
+    @Override
+    public void close(ChannelHandlerContext ctx, ChannelPromise promise) throws Exception {
+        if (unflushed > 0) {
+            flushNow(ctx);
+        }
+        ctx.close(promise);
+    }
+
+    private void flushNow(ChannelHandlerContext ctx) {
+        unflushed = 0;
+        flushes.incrementAndGet();
+        ctx.flush();
+    }
+}
@@ -0,0 +1,59 @@
+package io.tsdb.opentsdb.publishing;
+
+import io.netty.util.Recycler;
+
+import java.util.Map;
+
+/**
+ * A data point on its way to the relay target, written to the channel as is
+ * and turned into a put line by the {@link PutLineEncoder}. Instances are
+ * pooled: the encoder hands each one back once written, so relaying doesn't
+ * allocate one per point.
+ */
+final class RelayPoint {
+    private static final Recycler<RelayPoint> RECYCLER = new Recycler<RelayPoint>() {
+        @Override
+        protected RelayPoint newObject(Handle<RelayPoint> handle) {
+            return new RelayPoint(handle);
+        }
+    };
+
+    private final Recycler.Handle<RelayPoint> handle;
+    String metric;
+    long timestamp;
+    boolean integral;
+    long longValue;
+    double doubleValue;
+    Map<String, String> tags;
+
+    private RelayPoint(Recycler.Handle<RelayPoint> handle) {
+        this.handle = handle;
+    }
+
+    static RelayPoint of(String metric, long timestamp, long value, Map<String, String> tags) {
+        RelayPoint point = RECYCLER.get();
+        point.metric = metric;
+        point.timestamp = timestamp;
+        point.integral = true;
+        point.longValue = value;
+        point.tags = tags;
+        return point;
+    }
+
+    static RelayPoint of(String metric, long timestamp, double value, Map<String, String> tags) {
+        RelayPoint point = RECYCLER.get();
+        point.metric = metric;
+        point.timestamp = timestamp;
+        point.integral = false;
+        point.doubleValue = value;
+        point.tags = tags;
+        return point;
+    }
+
+    /** Hands the point back to the pool, it must not be used afterwards. */
+    void recycle() {
+        metric = null;
+        tags = null;
+        handle.recycle(this);
+    }
+}
@@ -1,7 +1,9 @@
 package io.tsdb.opentsdb.publishing;
 
-import com.google.common.base.Joiner;
 import com.stumbleupon.async.Deferred;
+import io.tsdb.opentsdb.core.DuplicateFilter;
+import io.tsdb.opentsdb.core.SeriesKey;
+import io.tsdb.opentsdb.core.Utils;
 import net.opentsdb.core.TSDB;
 import net.opentsdb.meta.Annotation;
 import net.opentsdb.stats.StatsCollector;
@@ -10,21 +12,27 @@ import java.util.Map;
 import java.util.concurrent.atomic.AtomicLong;
 
 /**
- * Relays to another OpenTSDB compatible instance
+ * Relays to other OpenTSDB compatible instances, each series always to the
+ * same one, see {@link RelayRing}
  */
 public class RelayPublisher extends RTPublisher {
-    private RelayClient client;
+    private RelayRing ring;
+    private DuplicateFilter dedup;
     private static final AtomicLong msgIn = new AtomicLong();
     private static final AtomicLong msgOut = new AtomicLong();
 
     @Override
     public void initialize(TSDB tsdb) {
-        this.client = new RelayClient(tsdb);
+        this.ring = RelayRing.fromConfig(tsdb.getConfig());
+        this.dedup = DuplicateFilter.fromConfig(tsdb.getConfig());
     }
 
     @Override
     public Deferred<Object> shutdown() {
-        return null;
+        if (ring != null) {
+            ring.shutdown();
+        }
+        return Deferred.fromResult(null);
     }
 
     @Override
@@ -36,11 +44,47 @@ public class RelayPublisher extends RTPublisher {
     public void collectStats(StatsCollector statsCollector) {
         statsCollector.record("messages.input", msgIn.get());
         statsCollector.record("messages.output", msgOut.get());
+        if (dedup != null) {
+            dedup.collectStats(statsCollector);
+            // nothing else runs periodically here, the stats thread clears the next bucket
+            dedup.prepareSpare();
+        }
+        if (ring == null) {
+            // not initialized
+            return;
+        }
+        statsCollector.record("relay.rerouted", ring.getRerouted());
+        for (RelayClient client : ring.getClients()) {
+            // tag values can't hold a ':'
+            final String tag = "target=" + client.getTarget().replace(':', '_');
+            statsCollector.record("relay.connected", client.isConnected() ? 1 : 0, tag);
+            statsCollector.record("relay.connects", client.getConnects(), tag);
+            statsCollector.record("relay.connect_failures", client.getFailures(), tag);
+            statsCollector.record("relay.dropped", client.getDropped(), tag);
+            statsCollector.record("relay.pending", client.getPending(), tag);
+            statsCollector.record("relay.unwritable", client.getUnwritable(), tag);
+            statsCollector.record("relay.flushes", client.getFlushes(), tag);
+            final RelaySpool spool = client.getSpool();
+            if (spool != null) {
+                final long now = System.currentTimeMillis();
+                statsCollector.record("relay.spool.lines", spool.getLines(), tag);
+                statsCollector.record("relay.spool.bytes", spool.getBytes(), tag);
+                statsCollector.record("relay.spool.appended", spool.getAppended(), tag);
+                statsCollector.record("relay.spool.replayed", spool.getReplayed(), tag);
+                statsCollector.record("relay.spool.replay_rate", spool.getReplayRate(now), tag);
+                statsCollector.record("relay.spool.expired", spool.getExpired(), tag);
+                statsCollector.record("relay.spool.rejected", spool.getRejected(), tag);
+                statsCollector.record("relay.spool.oldest_age_sec", spool.getOldestAge(now) / 1000, tag);
+            }
+        }
     }
 
     @Override
     public Deferred<Object> publishDataPoint(final String metric, final long timestamp, final long value, final Map<String, String> tags, final byte[] tsuid) {
         msgIn.getAndIncrement();
+        if (isDuplicate(metric, timestamp, tags, tsuid)) {
+            return null;
+        }
         outputDataPoint(metric, timestamp, value, tags);
         return null;
     }
@@ -48,6 +92,9 @@ public class RelayPublisher extends RTPublisher {
     @Override
     public Deferred<Object> publishDataPoint(final String metric, final long timestamp, final double value, final Map<String, String> tags, final byte[] tsuid) {
         msgIn.getAndIncrement();
+        if (isDuplicate(metric, timestamp, tags, tsuid)) {
+            return null;
+        }
         outputDataPoint(metric, timestamp, value, tags);
         return null;
     }
@@ -57,14 +104,25 @@ public class RelayPublisher extends RTPublisher {
         return null;
     }
 
-    private String convertToPut(final String metric, final long timestamp, final double value, final Map<String, String> tagMap) {
-        String joinedTags = Joiner.on(" ").withKeyValueSeparator("=").join(tagMap);
-        return String.format("%s %d %d %s", metric, timestamp, value, joinedTags);
+    private boolean isDuplicate(final String metric, final long timestamp, final Map<String, String> tags, final byte[] tsuid) {
+        if (dedup == null) {
+            return false;
+        }
+        long seriesId = tsuid != null ? SeriesKey.hash(tsuid) : SeriesKey.hash(metric, tags);
+        return dedup.isDuplicate(seriesId, Utils.toMillis(timestamp), System.currentTimeMillis());
+    }
+
+    private void outputDataPoint(final String metric, final long timestamp, final long value, final Map<String, String> tags) {
+        final RelayClient client = ring.route(SeriesKey.hash(metric, tags));
+        if (client.writePoint(metric, timestamp, value, tags)) {
+            msgOut.getAndIncrement();
+        }
     }
 
     private void outputDataPoint(final String metric, final long timestamp, final double value, final Map<String, String> tags) {
-        String msgToSend = convertToPut(metric, timestamp, value, tags);
-        client.writeMessage(msgToSend);
-        msgOut.getAndIncrement();
+        final RelayClient client = ring.route(SeriesKey.hash(metric, tags));
+        if (client.writePoint(metric, timestamp, value, tags)) {
+            msgOut.getAndIncrement();
+        }
     }
 }
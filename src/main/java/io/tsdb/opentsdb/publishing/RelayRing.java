@@ -0,0 +1,166 @@
+package io.tsdb.opentsdb.publishing;
+
+import io.tsdb.opentsdb.core.SeriesKey;
+import net.opentsdb.utils.Config;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static io.tsdb.opentsdb.core.Utils.getConfigPropertyInt;
+import static io.tsdb.opentsdb.core.Utils.getConfigPropertyString;
+
+/**
+ * Spreads the relayed series over the TSDs in tsd.rtpublisher.relay.hosts,
+ * a comma separated list of host:port, with a connection to each.
+ * <p>
+ * Every target is hashed onto a ring at tsd.rtpublisher.relay.vnodes points,
+ * and a series belongs to the target of the first point at or after its
+ * hash, so each series always goes to the same TSD. The points only depend
+ * on the target's host:port, so adding or removing one, to drain it, only
+ * moves the series of its own share. While a target is disconnected its
+ * series go to the next target along the ring, again leaving the others in
+ * place, and come back once it reconnects. When none is connected a series
+ * stays with its own target, whose disconnected policy applies.
+ * <p>
+ * Without hosts, points go to the single target from the host and port
+ * system properties, as before.
+ */
+class RelayRing {
+    private static final String PREFIX = "tsd.rtpublisher.relay.";
+    private static final int DEFAULT_PORT = 4242;
+
+    private final List<RelayClient> clients;
+    private final long[] points;
+    private final int[] owners;
+    private final AtomicLong rerouted = new AtomicLong();
+
+    /** @param vnodes the points on the ring per target */
+    RelayRing(List<RelayClient> clients, int vnodes) {
+        if (clients.isEmpty()) {
+            throw new IllegalArgumentException("No relay targets");
+        }
+        this.clients = Collections.unmodifiableList(new ArrayList<RelayClient>(clients));
+        final int size = clients.size() * vnodes;
+        final long[] hashes = new long[size];
+        for (int c = 0; c < clients.size(); c++) {
+            final String target = clients.get(c).getTarget();
+            for (int v = 0; v < vnodes; v++) {
+                hashes[c * vnodes + v] = SeriesKey.mix(SeriesKey.hash(target + '#' + v, 0));
+            }
+        }
+        final Integer[] order = new Integer[size];
+        for (int i = 0; i < size; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return Long.compare(hashes[a], hashes[b]);
+            }
+        });
+        this.points = new long[size];
+        this.owners = new int[size];
+        for (int i = 0; i < size; i++) {
+            points[i] = hashes[order[i]];
+            owners[i] = order[i] / vnodes;
+        }
+    }
+
+    static RelayRing fromConfig(Config config) {
+        final String hosts = getConfigPropertyString(config, PREFIX + "hosts", "");
+        final int vnodes = Math.max(1, getConfigPropertyInt(config, PREFIX + "vnodes", 160));
+        final List<RelayClient> clients = new ArrayList<RelayClient>();
+        if (hosts.trim().isEmpty()) {
+            clients.add(new RelayClient(config, RelayClient.HOST, RelayClient.PORT));
+            return new RelayRing(clients, vnodes);
+        }
+        final Set<String> seen = new HashSet<String>();
+        try {
+            for (String target : hosts.split("[,\\s]+")) {
+                if (target.isEmpty()) {
+                    continue;
+                }
+                final int colon = target.lastIndexOf(':');
+                final String host = colon < 0 ? target : target.substring(0, colon);
+                final int port = colon < 0 ? DEFAULT_PORT : Integer.parseInt(target.substring(colon + 1));
+                if (!seen.add(host + ':' + port)) {
+                    throw new IllegalArgumentException("Relay target " + target + " is listed twice");
+                }
+                clients.add(new RelayClient(config, host, port));
+            }
+            return new RelayRing(clients, vnodes);
+        } catch (RuntimeException e) {
+            for (RelayClient client : clients) {
+                client.shutdown();
+            }
+            throw e;
+        }
+    }
+
+    /** @return the target owning the series, whether connected or not */
+    RelayClient owner(long seriesId) {
+        return clients.get(owners[first(seriesId)]);
+    }
+
+    /** @return the target to relay a point of the series to */
+    RelayClient route(long seriesId) {
+        final int first = first(seriesId);
+        final int owner = owners[first];
+        if (isAvailable(clients.get(owner)) || !anyAvailable()) {
+            return clients.get(owner);
+        }
+        for (int i = 1; i < points.length; i++) {
+            final int node = owners[(first + i) % points.length];
+            if (node != owner && isAvailable(clients.get(node))) {
+                rerouted.incrementAndGet();
+                return clients.get(node);
+            }
+        }
+        // the one found connected went away while looking
+        return clients.get(owner);
+    }
+
+    /** @return true if series may be routed to the target */
+    boolean isAvailable(RelayClient client) {
+        return client.isConnected();
+    }
+
+    private boolean anyAvailable() {
+        for (RelayClient client : clients) {
+            if (isAvailable(client)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** @return the index of the first point at or after the hash, wrapping around */
+    private int first(long seriesId) {
+        int i = Arrays.binarySearch(points, seriesId);
+        if (i < 0) {
+            i = -i - 1;
+        }
+        return i == points.length ? 0 : i;
+    }
+
+    List<RelayClient> getClients() {
+        return clients;
+    }
+
+    /** @return the points relayed to another target as theirs was disconnected */
+    long getRerouted() {
+        return rerouted.get();
+    }
+
+    void shutdown() {
+        for (RelayClient client : clients) {
+            client.shutdown();
+        }
+    }
+}
@@ -0,0 +1,353 @@
+package io.tsdb.opentsdb.publishing;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.Unpooled;
+import io.netty.util.CharsetUtil;
+import io.netty.util.internal.PlatformDependent;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+
+/**
+ * Append only log on disk of the put lines a {@link RelayClient} couldn't
+ * write, to be replayed once the target takes them again.
+ * <p>
+ * The log is a directory of segments, files of a fixed size memory-mapped
+ * in full and named after their sequence number. A record is its length,
+ * the time it was appended and the line. The length goes in last, so a
+ * record cut short by a crash ends the segment, and is negated once the
+ * record is replayed. Reopening the directory after a restart picks up the
+ * records not replayed yet; the lines live in the page cache until the OS
+ * writes them back, so they outlive the process but not the machine.
+ * <p>
+ * Segments are only ever appended to, a new one being started when the last
+ * is full, and deleted once replayed. Records older than the retention are
+ * skipped on replay, and segments whose newest record is that old are
+ * deleted to make room. Lines that would take the spool past its disk
+ * budget are rejected.
+ * <p>
+ * Access is synchronized: lines are appended by the publishing threads and
+ * replayed on the event loop.
+ */
+class RelaySpool {
+    private static final org.slf4j.Logger LOGGER = LoggerFactory.getLogger(RelaySpool.class);
+    private static final String SUFFIX = ".spool";
+    // length, append time
+    private static final int HEADER = 12;
+
+    private final File dir;
+    private final int segmentBytes;
+    private final int maxSegments;
+    private final long retention;
+    private final Deque<Segment> segments = new ArrayDeque<Segment>();
+    private final PutLineEncoder encoder = new PutLineEncoder(10000);
+    private final ByteBuf scratch = Unpooled.buffer(256);
+    private long nextId;
+    private long lines;
+    private long appended;
+    private long replayed;
+    private long expired;
+    private long rejected;
+    private long lastReplayed;
+    private long lastRateTime = System.currentTimeMillis();
+    private boolean closed;
+
+    private static final class Segment {
+        final File file;
+        final MappedByteBuffer buffer;
+        int readPos;
+        int writePos;
+        long newest;
+        boolean sealed;
+
+        Segment(File file, MappedByteBuffer buffer) {
+            this.file = file;
+            this.buffer = buffer;
+        }
+
+        /** @return the length of the record at the read position, 0 at the end */
+        int length() {
+            return readPos + HEADER > buffer.capacity() ? 0 : buffer.getInt(readPos);
+        }
+    }
+
+    /**
+     * @param dir the directory of the segments, created if missing
+     * @param segmentBytes the size of each segment
+     * @param maxBytes the disk budget, at least one segment
+     * @param retention milliseconds after which spooled lines are dropped
+     */
+    RelaySpool(File dir, int segmentBytes, long maxBytes, long retention) throws IOException {
+        this.dir = dir;
+        this.segmentBytes = segmentBytes;
+        this.maxSegments = (int) Math.max(1, Math.min(Integer.MAX_VALUE, maxBytes / segmentBytes));
+        this.retention = retention;
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Unable to create the relay spool directory " + dir);
+        }
+        final File[] files = dir.listFiles();
+        Arrays.sort(files);
+        for (File file : files) {
+            final String name = file.getName();
+            if (!name.endsWith(SUFFIX)) {
+                continue;
+            }
+            final long id;
+            try {
+                id = Long.parseLong(name.substring(0, name.length() - SUFFIX.length()));
+            } catch (NumberFormatException e) {
+                continue;
+            }
+            final Segment segment = new Segment(file, map(file, file.length()));
+            // not appended to again, the lines after a torn record would be unreachable
+            segment.sealed = true;
+            int pos = 0;
+            while (pos + HEADER <= segment.buffer.capacity()) {
+                final int length = segment.buffer.getInt(pos);
+                if (length == 0) {
+                    break;
+                }
+                if (length > 0) {
+                    lines++;
+                }
+                segment.newest = segment.buffer.getLong(pos + 4);
+                pos += HEADER + Math.abs(length);
+            }
+            segment.writePos = pos;
+            segments.addLast(segment);
+            nextId = id + 1;
+        }
+        if (lines > 0) {
+            LOGGER.info("Found " + lines + " lines to relay in " + segments.size() + " spool segments in " + dir);
+        }
+    }
+
+    private static MappedByteBuffer map(File file, long bytes) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(bytes);
+            // stays valid once the file is closed
+            return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, bytes);
+        }
+    }
+
+    /**
+     * Appends a line, a String ending in a newline or a {@link RelayPoint},
+     * which is recycled.
+     *
+     * @return false if the line was rejected as the spool is full
+     */
+    synchronized boolean append(Object msg, long now) {
+        if (closed) {
+            if (msg instanceof RelayPoint) {
+                ((RelayPoint) msg).recycle();
+            }
+            rejected++;
+            return false;
+        }
+        scratch.clear();
+        if (msg instanceof RelayPoint) {
+            final RelayPoint point = (RelayPoint) msg;
+            try {
+                encoder.encode(point, scratch);
+            } finally {
+                point.recycle();
+            }
+        } else {
+            scratch.writeCharSequence((CharSequence) msg, CharsetUtil.UTF_8);
+        }
+        final int length = scratch.readableBytes();
+        Segment tail = segments.peekLast();
+        if (tail == null || tail.sealed || tail.writePos + HEADER + length > tail.buffer.capacity()) {
+            tail = startSegment(length, now);
+            if (tail == null) {
+                rejected++;
+                return false;
+            }
+        }
+        final int pos = tail.writePos;
+        tail.buffer.putLong(pos + 4, now);
+        scratch.getBytes(0, slice(tail.buffer, pos + HEADER, length));
+        tail.buffer.putInt(pos, length);
+        tail.writePos = pos + HEADER + length;
+        tail.newest = now;
+        lines++;
+        appended++;
+        return true;
+    }
+
+    /** @return a new last segment, or null if the line can't be taken */
+    private Segment startSegment(int length, long now) {
+        if (HEADER + length > segmentBytes) {
+            LOGGER.warn("Relay line of " + length + " bytes is too long for the spool segments");
+            return null;
+        }
+        final Segment tail = segments.peekLast();
+        if (tail != null && !tail.sealed) {
+            tail.sealed = true;
+            tail.buffer.force();
+        }
+        expire(now);
+        if (segments.size() >= maxSegments) {
+            return null;
+        }
+        final File file = new File(dir, String.format("%019d%s", nextId, SUFFIX));
+        try {
+            final Segment segment = new Segment(file, map(file, segmentBytes));
+            nextId++;
+            segments.addLast(segment);
+            return segment;
+        } catch (IOException e) {
+            LOGGER.warn("Unable to create the relay spool segment " + file, e);
+            return null;
+        }
+    }
+
+    /** Deletes the sealed segments whose newest line is past the retention. */
+    private void expire(long now) {
+        Segment head;
+        while ((head = segments.peekFirst()) != null && head.sealed && head.newest < now - retention) {
+            int length;
+            while ((length = head.length()) != 0) {
+                if (length > 0) {
+                    lines--;
+                    expired++;
+                }
+                head.readPos += HEADER + Math.abs(length);
+            }
+            delete(segments.pollFirst());
+        }
+    }
+
+    /**
+     * Moves to the next line to replay, skipping those replayed or past the
+     * retention and deleting the segments left behind.
+     *
+     * @return the segment holding it, or null if there is none
+     */
+    private Segment seek(long now) {
+        Segment head;
+        while ((head = segments.peekFirst()) != null) {
+            final int length = head.length();
+            if (length == 0) {
+                if (!head.sealed) {
+                    return null;
+                }
+                delete(segments.pollFirst());
+            } else if (length < 0) {
+                head.readPos += HEADER - length;
+            } else if (head.buffer.getLong(head.readPos + 4) < now - retention) {
+                head.buffer.putInt(head.readPos, -length);
+                head.readPos += HEADER + length;
+                lines--;
+                expired++;
+            } else {
+                return head;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Takes the oldest line not replayed yet, which then counts as replayed.
+     *
+     * @return the line in a buffer from the allocator, or null if there is none
+     */
+    synchronized ByteBuf poll(ByteBufAllocator alloc, long now) {
+        final Segment head = seek(now);
+        if (head == null) {
+            return null;
+        }
+        final int length = head.buffer.getInt(head.readPos);
+        final ByteBuf line = alloc.ioBuffer(length);
+        line.writeBytes(slice(head.buffer, head.readPos + HEADER, length));
+        head.buffer.putInt(head.readPos, -length);
+        head.readPos += HEADER + length;
+        lines--;
+        replayed++;
+        return line;
+    }
+
+    private static ByteBuffer slice(ByteBuffer buffer, int pos, int length) {
+        final ByteBuffer slice = buffer.duplicate();
+        slice.limit(pos + length);
+        slice.position(pos);
+        return slice;
+    }
+
+    private void delete(Segment segment) {
+        // unmapped right away, rather than once collected, to hand the disk space back
+        PlatformDependent.freeDirectBuffer(segment.buffer);
+        if (!segment.file.delete()) {
+            LOGGER.warn("Unable to delete the relay spool segment " + segment.file);
+        }
+    }
+
+    /** @return the lines waiting to be replayed */
+    synchronized long getLines() {
+        return lines;
+    }
+
+    /** @return the bytes of disk taken by the segments */
+    synchronized long getBytes() {
+        long bytes = 0;
+        for (Segment segment : segments) {
+            bytes += segment.buffer.capacity();
+        }
+        return bytes;
+    }
+
+    /** @return milliseconds since the oldest line waiting was appended, 0 if there is none */
+    synchronized long getOldestAge(long now) {
+        final Segment head = seek(now);
+        return head == null ? 0 : now - head.buffer.getLong(head.readPos + 4);
+    }
+
+    synchronized long getAppended() {
+        return appended;
+    }
+
+    synchronized long getReplayed() {
+        return replayed;
+    }
+
+    /** @return the lines dropped as they were past the retention */
+    synchronized long getExpired() {
+        return expired;
+    }
+
+    /** @return the lines rejected as the spool was full */
+    synchronized long getRejected() {
+        return rejected;
+    }
+
+    /** @return the lines replayed per second since the previous call */
+    synchronized long getReplayRate(long now) {
+        final long rate = (replayed - lastReplayed) * 1000 / Math.max(1, now - lastRateTime);
+        lastReplayed = replayed;
+        lastRateTime = now;
+        return rate;
+    }
+
+    /** Unmaps the segments, leaving the lines not replayed on disk for the next start. */
+    synchronized void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        for (Segment segment : segments) {
+            segment.buffer.force();
+            PlatformDependent.freeDirectBuffer(segment.buffer);
+        }
+        segments.clear();
+        scratch.release();
+    }
+}
@@ -0,0 +1,231 @@
+package io.tsdb.opentsdb.realtime;
+
+/**
+ * Copyright 2015 The DiscoveryPlugins Authors
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import io.tsdb.opentsdb.core.LongPairMap;
+import net.opentsdb.stats.StatsCollector;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Turns the samples of monotonic counters into increases, so counter
+ * windows accumulate how much the counter went up rather than its raw
+ * values. The sum of a window is then its total increase, which stays exact
+ * when windows are merged into larger tiers or across tags, and
+ * {@link RollupAggregator#RATE} reads the per second rate off it.
+ * <p/>
+ * Each series keeps its last value and timestamp. The increase of a sample
+ * is attributed to the window the sample falls in. A counter going down
+ * either wrapped, if a maximum is configured and the wrapped increase is
+ * less than half of it, or was reset, in which case it is assumed to have
+ * restarted from zero and the new value is the increase. The first sample of
+ * a series, and samples not newer than the last one, add nothing. The state
+ * is not checkpointed, so after a restart every series loses one increase.
+ */
+public class CounterTracker {
+  /** Returned by the long variant of increase when there is nothing to add */
+  static final long NONE = -1;
+
+  private final MetricPatterns metrics;
+  private final long counterMax;
+  private final Stripe[] stripes;
+  private final int mask;
+
+  private final AtomicInteger live = new AtomicInteger();
+  private final AtomicLong resets = new AtomicLong();
+  private final AtomicLong wraps = new AtomicLong();
+  private final AtomicLong outOfOrder = new AtomicLong();
+
+  private static final class Counter {
+    private long last;
+    private boolean isLong;
+    private long lastTs;
+
+    Counter(final long ts, final long last, final boolean isLong) {
+      this.lastTs = ts;
+      this.last = last;
+      this.isLong = isLong;
+    }
+
+    double lastDouble() {
+      return isLong ? last : Double.longBitsToDouble(last);
+    }
+  }
+
+  private static final class Stripe {
+    private final LongPairMap<Counter> counters = new LongPairMap<Counter>();
+  }
+
+  /**
+   * @param patterns comma separated metric names, or prefixes ending with '*'
+   * @param counterMax the value counters wrap after, e.g. 4294967295 for 32
+   * bit counters, or 0 to treat every decrease as a reset
+   */
+  public CounterTracker(final String patterns, final long counterMax, final int concurrency) {
+    this.metrics = new MetricPatterns(patterns);
+    if (counterMax < 0) {
+      throw new IllegalArgumentException("Counter maximum must not be negative: " + counterMax);
+    }
+    this.counterMax = counterMax;
+    int size = 1;
+    while (size < concurrency) {
+      size <<= 1;
+    }
+    this.stripes = new Stripe[size];
+    for (int i = 0; i < size; i++) {
+      this.stripes[i] = new Stripe();
+    }
+    this.mask = size - 1;
+  }
+
+  /** @return true if no counter metrics are configured */
+  public boolean isEmpty() {
+    return metrics.isEmpty();
+  }
+
+  public boolean isCounter(final String metric) {
+    return metrics.matches(metric);
+  }
+
+  /**
+   * @param ts the sample time in milliseconds
+   * @return the increase since the previous sample of the series, or
+   * {@link #NONE} if the sample adds nothing
+   */
+  public long increase(final long seriesId, final long ts, final long value) {
+    final Stripe stripe = stripeFor(seriesId);
+    synchronized (stripe) {
+      final Counter counter = stripe.counters.get(seriesId, 0L);
+      if (counter == null) {
+        stripe.counters.put(seriesId, 0L, new Counter(ts, value, true));
+        live.incrementAndGet();
+        return NONE;
+      }
+      if (ts <= counter.lastTs) {
+        outOfOrder.incrementAndGet();
+        return NONE;
+      }
+      final long increase;
+      if (counter.isLong) {
+        final long last = counter.last;
+        if (value >= last) {
+          increase = value - last;
+        } else if (counterMax > 0 && last <= counterMax && value <= counterMax
+                && counterMax - last + value < counterMax / 2) {
+          wraps.incrementAndGet();
+          increase = counterMax - last + value + 1;
+        } else {
+          resets.incrementAndGet();
+          increase = Math.max(value, 0);
+        }
+      } else {
+        increase = Math.round(increase(counter.lastDouble(), value));
+      }
+      counter.last = value;
+      counter.isLong = true;
+      counter.lastTs = ts;
+      return increase;
+    }
+  }
+
+  /**
+   * @param ts the sample time in milliseconds
+   * @return the increase since the previous sample of the series, or NaN if
+   * the sample adds nothing
+   */
+  public double increase(final long seriesId, final long ts, final double value) {
+    final Stripe stripe = stripeFor(seriesId);
+    synchronized (stripe) {
+      final Counter counter = stripe.counters.get(seriesId, 0L);
+      if (counter == null) {
+        stripe.counters.put(seriesId, 0L, new Counter(ts, Double.doubleToRawLongBits(value), false));
+        live.incrementAndGet();
+        return Double.NaN;
+      }
+      if (ts <= counter.lastTs) {
+        outOfOrder.incrementAndGet();
+        return Double.NaN;
+      }
+      final double increase = increase(counter.lastDouble(), value);
+      counter.last = Double.doubleToRawLongBits(value);
+      counter.isLong = false;
+      counter.lastTs = ts;
+      return increase;
+    }
+  }
+
+  private double increase(final double last, final double value) {
+    if (value >= last) {
+      return value - last;
+    }
+    if (counterMax > 0 && last <= counterMax && value <= counterMax
+            && (double) counterMax - last + value < counterMax / 2) {
+      wraps.incrementAndGet();
+      return (double) counterMax - last + value + 1;
+    }
+    resets.incrementAndGet();
+    return Math.max(value, 0);
+  }
+
+  /**
+   * Forgets the series whose last sample is older than the given time, so
+   * their state doesn't outlive them.
+   * @param before a time in seconds
+   * @return the number of series forgotten
+   */
+  public int evictBefore(final long before) {
+    final long beforeMs = before * 1000L;
+    final LongPairMap.Condition<Counter> stale = new LongPairMap.Condition<Counter>() {
+      @Override
+      public boolean matches(long seriesId, long unused, Counter counter) {
+        return counter.lastTs < beforeMs;
+      }
+    };
+    int count = 0;
+    for (Stripe stripe : stripes) {
+      synchronized (stripe) {
+        count += stripe.counters.removeIf(stale, null);
+      }
+    }
+    live.addAndGet(-count);
+    return count;
+  }
+
+  public int getLive() {
+    return live.get();
+  }
+
+  public long getResets() {
+    return resets.get();
+  }
+
+  public long getWraps() {
+    return wraps.get();
+  }
+
+  public void collectStats(final StatsCollector collector) {
+    collector.record("rollup.counters.live", live.get());
+    collector.record("rollup.counters.resets", resets.get());
+    collector.record("rollup.counters.wraps", wraps.get());
+    collector.record("rollup.counters.out_of_order", outOfOrder.get());
+  }
+
+  private Stripe stripeFor(final long seriesId) {
+    return stripes[(int) (seriesId ^ (seriesId >>> 32)) & mask];
+  }
+}
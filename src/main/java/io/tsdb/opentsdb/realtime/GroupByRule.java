@@ -0,0 +1,161 @@
+package io.tsdb.opentsdb.realtime;
+
+/**
+ * Copyright 2015 The DiscoveryPlugins Authors
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import io.tsdb.opentsdb.core.DataPoints;
+import io.tsdb.opentsdb.core.LongPairMap;
+import io.tsdb.opentsdb.core.SeriesKey;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Pre-aggregation across a tag dimension, e.g. sys.cpu.user across host
+ * keeping dc and role, so a dashboard reads one series instead of one per
+ * host.
+ * <p/>
+ * A rule either keeps the listed tag keys or drops them. Groups are built
+ * when windows close: every closed window of a matching metric is merged
+ * into the accumulator of its reduced tag set, which is exact for sums,
+ * counts, extremes and quantile sketches. All windows with the same start
+ * close in the same expiry, so each group is complete once built.
+ * <p/>
+ * Groups are emitted under their own metric, &lt;metric&gt;.by_dc_role for a
+ * rule keeping dc and role or &lt;metric&gt;.without_host for one dropping
+ * host, so queries on the per series rollups don't count them twice.
+ */
+public final class GroupByRule {
+  private final String pattern;
+  private final boolean prefix;
+  private final boolean keep;
+  private final Set<String> keys;
+  private final String suffix;
+
+  /**
+   * @param pattern a metric name, or a prefix ending with '*'
+   * @param keys the tag keys kept, or dropped if keep is false
+   */
+  public GroupByRule(final String pattern, final boolean keep, final List<String> keys) {
+    if (keys.isEmpty()) {
+      throw new IllegalArgumentException("Group by rule for " + pattern + " has no tag keys");
+    }
+    this.prefix = pattern.endsWith("*");
+    this.pattern = prefix ? pattern.substring(0, pattern.length() - 1) : pattern;
+    this.keep = keep;
+    this.keys = new LinkedHashSet<String>(keys);
+    final StringBuilder name = new StringBuilder(keep ? ".by" : ".without");
+    for (String key : this.keys) {
+      name.append('_').append(key);
+    }
+    this.suffix = name.toString();
+  }
+
+  public boolean matches(final String metric) {
+    return prefix ? metric.startsWith(pattern) : metric.equals(pattern);
+  }
+
+  /** @return the metric the groups of the given metric are emitted under, before the window suffix */
+  public String groupMetric(final String metric) {
+    return metric + suffix;
+  }
+
+  public HashMap<String, String> reduce(final Map<String, String> tags) {
+    final HashMap<String, String> reduced = new HashMap<String, String>();
+    for (Map.Entry<String, String> tag : tags.entrySet()) {
+      if (keys.contains(tag.getKey()) == keep) {
+        reduced.put(tag.getKey(), tag.getValue());
+      }
+    }
+    return reduced;
+  }
+
+  /** @return the metric a group emitted under {@link #groupMetric} was built from */
+  public String sourceMetric(final String groupMetric) {
+    return groupMetric.substring(0, groupMetric.length() - suffix.length());
+  }
+
+  /**
+   * Merges the closed windows of matching metrics into one window per
+   * reduced tag set and window start. The closed windows are left untouched.
+   */
+  public List<DataPoints> aggregate(final List<DataPoints> closed) {
+    final LongPairMap<DataPoints> groups = new LongPairMap<DataPoints>();
+    final List<DataPoints> result = new ArrayList<DataPoints>();
+    for (DataPoints dps : closed) {
+      if (!matches(dps.getMetric())) {
+        continue;
+      }
+      final String metric = groupMetric(dps.getMetric());
+      final HashMap<String, String> tags = reduce(dps.getTags());
+      final long groupId = SeriesKey.hash(metric, tags);
+      DataPoints group = groups.get(groupId, dps.getTimestamp());
+      if (group == null) {
+        group = new DataPoints(groupId, metric, dps.getTimestamp(), tags);
+        groups.put(groupId, dps.getTimestamp(), group);
+        result.add(group);
+      }
+      group.merge(dps);
+    }
+    return result;
+  }
+
+  /**
+   * Parses rules separated by ';', each a metric or metric prefix ending in
+   * '*', a ':' and a comma separated list of tag keys. Keys are kept, or
+   * dropped when every one of them starts with '-', e.g.
+   * "sys.cpu.user:dc,role;sys.mem.*:-host".
+   */
+  public static List<GroupByRule> parseList(final String spec) {
+    final List<GroupByRule> rules = new ArrayList<GroupByRule>();
+    for (String rule : spec.split(";")) {
+      if (rule.trim().isEmpty()) {
+        continue;
+      }
+      final int colon = rule.indexOf(':');
+      if (colon <= 0) {
+        throw new IllegalArgumentException("Invalid group by rule, expected metric:keys: " + rule);
+      }
+      final String metric = rule.substring(0, colon).trim();
+      final List<String> keys = new ArrayList<String>();
+      int dropped = 0;
+      for (String key : rule.substring(colon + 1).split(",")) {
+        key = key.trim();
+        if (key.startsWith("-")) {
+          dropped++;
+          key = key.substring(1).trim();
+        }
+        if (!key.isEmpty()) {
+          keys.add(key);
+        }
+      }
+      if (dropped != 0 && dropped != keys.size()) {
+        throw new IllegalArgumentException("Group by rule mixes kept and dropped tag keys: " + rule);
+      }
+      rules.add(new GroupByRule(metric, dropped == 0, keys));
+    }
+    return rules;
+  }
+
+  @Override
+  public String toString() {
+    return (prefix ? pattern + "*" : pattern) + suffix;
+  }
+}
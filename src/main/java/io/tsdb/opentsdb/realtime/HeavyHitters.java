@@ -0,0 +1,228 @@
+package io.tsdb.opentsdb.realtime;
+
+/**
+ * Copyright 2015 The DiscoveryPlugins Authors
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import io.tsdb.opentsdb.core.SeriesKey;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Streaming top-K of the keys seen most often, e.g. the series sending the
+ * most points, in fixed memory.
+ * <p/>
+ * Every key is counted in a Count-Min sketch of four rows, whose estimate
+ * never undercounts except for the increments lost to races, and candidates
+ * are kept in a table of K entries. A key is only offered to the table when
+ * its estimate passes the smallest count in a full table, and then only on
+ * every 16th point, so adding a point costs four plain increments and a
+ * compare while the table lock is taken a few times per heavy key and
+ * interval. The increments are not atomic: under contention a few are lost,
+ * which the ranking doesn't mind.
+ * <p/>
+ * Counts restart every interval through {@link #rotate}, and the top of the
+ * interval that ended is kept with its rate, so the ranking follows the
+ * current load rather than all time totals.
+ */
+public class HeavyHitters {
+  private static final int DEPTH = 4;
+  private static final long SAMPLE_MASK = 15;
+
+  private final int k;
+  private final int width;
+  private final int mask;
+  private volatile long[] counts;
+  private long[] spare;
+  private final Entry[] top;
+  private int size;
+  private volatile long threshold;
+  private volatile long startedAt;
+  private volatile List<Hitter> previous = Collections.emptyList();
+
+  private static final class Entry {
+    private long key;
+    private String metric;
+    private Map<String, String> tags;
+    private long count;
+  }
+
+  /** A key and its estimated point count and rate over an interval. */
+  public static final class Hitter {
+    private final String metric;
+    private final Map<String, String> tags;
+    private final long count;
+    private final double rate;
+
+    Hitter(final String metric, final Map<String, String> tags, final long count, final double rate) {
+      this.metric = metric;
+      this.tags = tags;
+      this.count = count;
+      this.rate = rate;
+    }
+
+    public String getMetric() {
+      return metric;
+    }
+
+    /** @return the tags of the series, null when the keys are metrics */
+    public Map<String, String> getTags() {
+      return tags;
+    }
+
+    public long getCount() {
+      return count;
+    }
+
+    /** @return points per second */
+    public double getRate() {
+      return rate;
+    }
+  }
+
+  /**
+   * @param k the number of keys ranked
+   * @param width counters per sketch row, rounded up to a power of two, at
+   * most 65536. The estimates overcount by about the total count divided by
+   * the width.
+   * @param now the current time in milliseconds
+   */
+  public HeavyHitters(final int k, final int width, final long now) {
+    if (k <= 0) {
+      throw new IllegalArgumentException("Top-K size must be positive: " + k);
+    }
+    int size = 1;
+    while (size < width) {
+      size <<= 1;
+    }
+    if (size > 65536) {
+      throw new IllegalArgumentException("Top-K sketch width must be at most 65536: " + width);
+    }
+    this.k = k;
+    this.width = size;
+    this.mask = size - 1;
+    this.counts = new long[DEPTH * size];
+    this.spare = new long[DEPTH * size];
+    this.top = new Entry[k];
+    this.startedAt = now;
+  }
+
+  /**
+   * Counts a point of the given key. The metric and tags are only kept when
+   * the key makes it into the table, so nothing is allocated per point.
+   */
+  public void add(final long key, final String metric, final Map<String, String> tags) {
+    final long[] counts = this.counts;
+    // each row takes 16 bits of one mixed hash
+    final long hash = SeriesKey.mix(key);
+    long estimate = Long.MAX_VALUE;
+    for (int row = 0; row < DEPTH; row++) {
+      final int slot = row * width + ((int) (hash >>> (row << 4)) & mask);
+      estimate = Math.min(estimate, ++counts[slot]);
+    }
+    if (estimate > threshold && (estimate & SAMPLE_MASK) == 0) {
+      offer(key, metric, tags, estimate);
+    }
+  }
+
+  private synchronized void offer(final long key, final String metric, final Map<String, String> tags,
+                                  final long estimate) {
+    Entry target = null;
+    int smallest = -1;
+    for (int i = 0; i < size; i++) {
+      if (top[i].key == key) {
+        target = top[i];
+        break;
+      }
+      if (smallest < 0 || top[i].count < top[smallest].count) {
+        smallest = i;
+      }
+    }
+    if (target == null) {
+      if (size < k) {
+        target = new Entry();
+        top[size++] = target;
+      } else if (estimate > top[smallest].count) {
+        target = top[smallest];
+      } else {
+        return;
+      }
+      target.key = key;
+      target.metric = metric;
+      target.tags = tags;
+    }
+    target.count = Math.max(target.count, estimate);
+    if (size == k) {
+      long min = Long.MAX_VALUE;
+      for (int i = 0; i < size; i++) {
+        min = Math.min(min, top[i].count);
+      }
+      threshold = min;
+    }
+  }
+
+  /**
+   * Ends the interval: the current ranking becomes {@link #previous} and the
+   * counts start again from zero.
+   * @param now the current time in milliseconds
+   */
+  public synchronized void rotate(final long now) {
+    previous = ranking(now);
+    // the old counts may still take a racing increment, so they are cleared on their way back in
+    final long[] old = counts;
+    Arrays.fill(spare, 0);
+    counts = spare;
+    spare = old;
+    Arrays.fill(top, 0, size, null);
+    size = 0;
+    threshold = 0;
+    startedAt = now;
+  }
+
+  /** @return the milliseconds since the interval started */
+  public long elapsed(final long now) {
+    return now - startedAt;
+  }
+
+  /** @return the ranking of the interval so far, highest count first */
+  public synchronized List<Hitter> current(final long now) {
+    return ranking(now);
+  }
+
+  /** @return the ranking of the last interval that ended, highest count first */
+  public List<Hitter> previous() {
+    return previous;
+  }
+
+  private List<Hitter> ranking(final long now) {
+    final double seconds = Math.max(1, now - startedAt) / 1000.0;
+    final List<Hitter> ranked = new ArrayList<Hitter>(size);
+    for (int i = 0; i < size; i++) {
+      ranked.add(new Hitter(top[i].metric, top[i].tags, top[i].count, top[i].count / seconds));
+    }
+    Collections.sort(ranked, new Comparator<Hitter>() {
+      @Override
+      public int compare(Hitter a, Hitter b) {
+        return Long.compare(b.count, a.count);
+      }
+    });
+    return ranked;
+  }
+}
@@ -0,0 +1,59 @@
+package io.tsdb.opentsdb.realtime;
+
+/**
+ * Copyright 2015 The DiscoveryPlugins Authors
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A comma separated list of metric names, or prefixes ending with '*',
+ * selecting the metrics a feature applies to.
+ */
+public final class MetricPatterns {
+  private final List<String> exact = new ArrayList<String>();
+  private final List<String> prefixes = new ArrayList<String>();
+
+  public MetricPatterns(final String patterns) {
+    for (String pattern : patterns.split(",")) {
+      pattern = pattern.trim();
+      if (pattern.endsWith("*")) {
+        prefixes.add(pattern.substring(0, pattern.length() - 1));
+      } else if (!pattern.isEmpty()) {
+        exact.add(pattern);
+      }
+    }
+  }
+
+  /** @return true if no metrics are selected */
+  public boolean isEmpty() {
+    return exact.isEmpty() && prefixes.isEmpty();
+  }
+
+  public boolean matches(final String metric) {
+    for (int i = 0; i < exact.size(); i++) {
+      if (metric.equals(exact.get(i))) {
+        return true;
+      }
+    }
+    for (int i = 0; i < prefixes.size(); i++) {
+      if (metric.startsWith(prefixes.get(i))) {
+        return true;
+      }
+    }
+    return false;
+  }
+}
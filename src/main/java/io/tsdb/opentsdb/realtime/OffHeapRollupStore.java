@@ -0,0 +1,656 @@
+package io.tsdb.opentsdb.realtime;
+
+/**
+ * Copyright 2015 The DiscoveryPlugins Authors
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import io.tsdb.opentsdb.core.DataPoints;
+import io.tsdb.opentsdb.core.SeriesKey;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Store of open rollup windows whose accumulators live outside the heap.
+ * <p/>
+ * Every window takes one fixed-width slot: a header, the
+ * {@link DataPoints#STATE_BYTES} of accumulator state and the metric and tags
+ * encoded inline. Slots are carved from chunks of direct memory. Once the
+ * direct memory budget is spent, further chunks are memory-mapped from a
+ * spill file and the OS pages out whatever is not being touched. This is
+ * overflow mapping rather than a spill of idle series: a slot stays where
+ * it was carved, so the windows opened once the budget is spent go to the
+ * file whether their series are hot or cold. Freed direct slots are reused
+ * before mapped ones, so as windows close and reopen the direct chunks are
+ * filled first.
+ * <p/>
+ * The (series id, window start) index is an open addressing table in direct
+ * memory as well, counted against the budget with the slots. It always
+ * stays in direct memory, so past the budget it is the only direct memory
+ * that grows, by 24 to 80 bytes per open window. Windows with the same
+ * start are chained through their slots, so closing windows walks exactly
+ * the windows that close and the heap only holds one entry per distinct
+ * window start. Heap use does not grow with the number of series; the only
+ * exception is a series whose metric and tags do not fit the inline space,
+ * which is kept on the heap.
+ * <p/>
+ * Quantile sketches are variable sized and are not supported here. Values
+ * are added by loading the slot into a per-stripe scratch {@link DataPoints},
+ * so the accumulation rules are exactly those of the heap store.
+ * <p/>
+ * Striped like {@link RollupStore}: each stripe owns its chunks, its index
+ * and its monitor.
+ */
+public class OffHeapRollupStore implements WindowStore {
+  private static final Logger LOG = LoggerFactory.getLogger(OffHeapRollupStore.class);
+
+  private static final int CHUNK_BITS = 12;
+  private static final int CHUNK_SLOTS = 1 << CHUNK_BITS;
+  private static final int MAX_SERIES_BYTES = 4096;
+
+  // slot layout
+  private static final int SERIES_ID = 0;
+  private static final int WINDOW_TS = 8;
+  private static final int NEXT = 16;
+  private static final int SERIES_LENGTH = 20;
+  private static final int STATE = 24;
+  private static final int SERIES = STATE + DataPoints.STATE_BYTES;
+
+  // index entry layout: series id, window start, slot + 1 (0 when empty)
+  private static final int ENTRY_BYTES = 24;
+  private static final int INITIAL_ENTRIES = 1024;
+
+  private static final byte SEPARATOR = 0;
+
+  private final Stripe[] stripes;
+  private final int mask;
+  private final long windowSeconds;
+  private final long allowedLateness;
+  private final int maxSeriesBytes;
+  private final int slotBytes;
+  private final long maxDirectBytes;
+  private final File spillDir;
+  private final AtomicLong directBytes = new AtomicLong();
+  private final AtomicLong spilledBytes = new AtomicLong();
+  private File spillPath;
+  private RandomAccessFile spillFile;
+
+  private final class Stripe {
+    private final List<ByteBuffer> chunks = new ArrayList<ByteBuffer>();
+    // window start -> first slot + 1 of the chain of windows with that start
+    private final TreeMap<Long, Integer> chains = new TreeMap<Long, Integer>();
+    private final Map<Integer, byte[]> oversized = new HashMap<Integer, byte[]>();
+    private final DataPoints scratch = new DataPoints(null, 0L, null);
+    private ByteBuffer index = allocateIndex(INITIAL_ENTRIES);
+    private int indexMask = INITIAL_ENTRIES - 1;
+    private int size;
+    private int carved;
+    private int freeDirect;
+    private int freeMapped;
+    // the highest watermark the stripe was expired to
+    private long expiredUpTo = Long.MIN_VALUE;
+
+    ByteBuffer chunk(final int slot) {
+      return chunks.get(slot >>> CHUNK_BITS);
+    }
+
+    int find(final long seriesId, final long windowTs) {
+      int i = home(seriesId, windowTs, indexMask);
+      while (true) {
+        final int at = i * ENTRY_BYTES;
+        final int slot = index.getInt(at + 16);
+        if (slot == 0) {
+          return -1;
+        }
+        if (index.getLong(at) == seriesId && index.getLong(at + 8) == windowTs) {
+          return slot - 1;
+        }
+        i = (i + 1) & indexMask;
+      }
+    }
+
+    void insert(final long seriesId, final long windowTs, final int slot) {
+      if ((size + 1) * 10L > (indexMask + 1) * 6L) {
+        final ByteBuffer old = index;
+        final int oldEntries = indexMask + 1;
+        index = allocateIndex(oldEntries * 2);
+        indexMask = oldEntries * 2 - 1;
+        for (int i = 0; i < oldEntries; i++) {
+          final int at = i * ENTRY_BYTES;
+          if (old.getInt(at + 16) != 0) {
+            place(old.getLong(at), old.getLong(at + 8), old.getInt(at + 16));
+          }
+        }
+        directBytes.addAndGet(-(long) oldEntries * ENTRY_BYTES);
+      }
+      place(seriesId, windowTs, slot + 1);
+      size++;
+    }
+
+    private void place(final long seriesId, final long windowTs, final int slotPlusOne) {
+      int i = home(seriesId, windowTs, indexMask);
+      while (index.getInt(i * ENTRY_BYTES + 16) != 0) {
+        i = (i + 1) & indexMask;
+      }
+      final int at = i * ENTRY_BYTES;
+      index.putLong(at, seriesId);
+      index.putLong(at + 8, windowTs);
+      index.putInt(at + 16, slotPlusOne);
+    }
+
+    void unlink(final long seriesId, final long windowTs) {
+      int free = home(seriesId, windowTs, indexMask);
+      while (true) {
+        final int at = free * ENTRY_BYTES;
+        if (index.getInt(at + 16) == 0) {
+          return;
+        }
+        if (index.getLong(at) == seriesId && index.getLong(at + 8) == windowTs) {
+          break;
+        }
+        free = (free + 1) & indexMask;
+      }
+      // backward shift the rest of the cluster, as in LongPairMap
+      int i = (free + 1) & indexMask;
+      while (index.getInt(i * ENTRY_BYTES + 16) != 0) {
+        final int at = i * ENTRY_BYTES;
+        final int home = home(index.getLong(at), index.getLong(at + 8), indexMask);
+        if (((i - home) & indexMask) >= ((i - free) & indexMask)) {
+          final int to = free * ENTRY_BYTES;
+          index.putLong(to, index.getLong(at));
+          index.putLong(to + 8, index.getLong(at + 8));
+          index.putInt(to + 16, index.getInt(at + 16));
+          free = i;
+        }
+        i = (i + 1) & indexMask;
+      }
+      index.putInt(free * ENTRY_BYTES + 16, 0);
+      size--;
+    }
+
+    int allocate() {
+      int slot;
+      if (freeDirect != 0) {
+        slot = freeDirect - 1;
+        freeDirect = chunk(slot).getInt(offset(slot) + NEXT);
+        return slot;
+      }
+      if (carved < chunks.size() * CHUNK_SLOTS) {
+        return carved++;
+      }
+      if (freeMapped != 0) {
+        slot = freeMapped - 1;
+        freeMapped = chunk(slot).getInt(offset(slot) + NEXT);
+        return slot;
+      }
+      chunks.add(allocateChunk());
+      return carved++;
+    }
+
+    void release(final int slot) {
+      final ByteBuffer chunk = chunk(slot);
+      if (chunk instanceof MappedByteBuffer) {
+        chunk.putInt(offset(slot) + NEXT, freeMapped);
+        freeMapped = slot + 1;
+      } else {
+        chunk.putInt(offset(slot) + NEXT, freeDirect);
+        freeDirect = slot + 1;
+      }
+    }
+  }
+
+  /**
+   * @param concurrency number of stripes, rounded up to a power of two
+   * @param windowSeconds size of the windows held, in seconds
+   * @param allowedLateness how long, in seconds, a window stays open after
+   * the watermark has passed its end
+   * @param maxDirectBytes direct memory the index and the slots may take
+   * before chunks are mapped from the spill file instead
+   * @param maxSeriesBytes room in each slot for the UTF-8 metric and tags
+   * @param spillDir directory the spill file is created in
+   */
+  public OffHeapRollupStore(final int concurrency, final long windowSeconds, final long allowedLateness,
+                            final long maxDirectBytes, final int maxSeriesBytes, final File spillDir) {
+    if (maxSeriesBytes <= 0 || maxSeriesBytes > MAX_SERIES_BYTES) {
+      throw new IllegalArgumentException("Series bytes must be between 1 and " + MAX_SERIES_BYTES
+              + ": " + maxSeriesBytes);
+    }
+    this.windowSeconds = windowSeconds;
+    this.allowedLateness = allowedLateness;
+    this.maxDirectBytes = maxDirectBytes;
+    this.maxSeriesBytes = maxSeriesBytes;
+    this.slotBytes = (SERIES + maxSeriesBytes + 7) & ~7;
+    this.spillDir = spillDir;
+    int size = 1;
+    while (size < concurrency) {
+      size <<= 1;
+    }
+    this.stripes = new Stripe[size];
+    for (int i = 0; i < size; i++) {
+      this.stripes[i] = new Stripe();
+    }
+    this.mask = size - 1;
+  }
+
+  @Override
+  public boolean addValue(final long seriesId, final String metric, final long windowTs,
+                          final Map<String, String> tags, final long ts, final long value) {
+    final Stripe stripe = stripeFor(seriesId);
+    synchronized (stripe) {
+      if (deadline(windowTs) <= stripe.expiredUpTo) {
+        return false;
+      }
+      final int slot = getOrCreate(stripe, seriesId, metric, windowTs, tags);
+      final ByteBuffer chunk = stripe.chunk(slot);
+      final int state = offset(slot) + STATE;
+      stripe.scratch.readState(chunk, state);
+      stripe.scratch.addValue(ts, value);
+      stripe.scratch.writeState(chunk, state);
+      return true;
+    }
+  }
+
+  @Override
+  public boolean addValue(final long seriesId, final String metric, final long windowTs,
+                          final Map<String, String> tags, final long ts, final double value) {
+    final Stripe stripe = stripeFor(seriesId);
+    synchronized (stripe) {
+      if (deadline(windowTs) <= stripe.expiredUpTo) {
+        return false;
+      }
+      final int slot = getOrCreate(stripe, seriesId, metric, windowTs, tags);
+      final ByteBuffer chunk = stripe.chunk(slot);
+      final int state = offset(slot) + STATE;
+      stripe.scratch.readState(chunk, state);
+      stripe.scratch.addValue(ts, value);
+      stripe.scratch.writeState(chunk, state);
+      return true;
+    }
+  }
+
+  @Override
+  public void merge(final long windowTs, final DataPoints closed) {
+    final Stripe stripe = stripeFor(closed.getSeriesId());
+    synchronized (stripe) {
+      final int slot = getOrCreate(stripe, closed.getSeriesId(), closed.getMetric(), windowTs, closed.getTags());
+      final ByteBuffer chunk = stripe.chunk(slot);
+      final int state = offset(slot) + STATE;
+      stripe.scratch.readState(chunk, state);
+      stripe.scratch.merge(closed);
+      stripe.scratch.setSketch(null);
+      stripe.scratch.writeState(chunk, state);
+    }
+  }
+
+  @Override
+  public List<DataPoints> expire(final long watermark) {
+    final List<DataPoints> closed = new ArrayList<DataPoints>();
+    for (Stripe stripe : stripes) {
+      synchronized (stripe) {
+        stripe.expiredUpTo = Math.max(stripe.expiredUpTo, watermark);
+        while (!stripe.chains.isEmpty() && deadline(stripe.chains.firstKey()) <= watermark) {
+          drain(stripe, stripe.chains.pollFirstEntry().getValue(), closed);
+        }
+      }
+    }
+    return closed;
+  }
+
+  @Override
+  public long deadline(final long windowTs) {
+    return windowTs + windowSeconds + allowedLateness;
+  }
+
+  @Override
+  public List<DataPoints> removeBefore(final long maximumTS) {
+    final List<DataPoints> closed = new ArrayList<DataPoints>();
+    for (Stripe stripe : stripes) {
+      synchronized (stripe) {
+        while (!stripe.chains.isEmpty() && stripe.chains.firstKey() < maximumTS) {
+          drain(stripe, stripe.chains.pollFirstEntry().getValue(), closed);
+        }
+      }
+    }
+    return closed;
+  }
+
+  @Override
+  public List<DataPoints> removeAll() {
+    return removeBefore(Long.MAX_VALUE);
+  }
+
+  @Override
+  public int size() {
+    int size = 0;
+    for (Stripe stripe : stripes) {
+      synchronized (stripe) {
+        size += stripe.size;
+      }
+    }
+    return size;
+  }
+
+  @Override
+  public int getStripeCount() {
+    return stripes.length;
+  }
+
+  @Override
+  public void checkpoint(final int index, final boolean changedOnly, final Visitor visitor) {
+    final Stripe stripe = stripes[index];
+    synchronized (stripe) {
+      for (int head : stripe.chains.values()) {
+        for (int next = head; next != 0; ) {
+          final int slot = next - 1;
+          final ByteBuffer chunk = stripe.chunk(slot);
+          final int base = offset(slot);
+          next = chunk.getInt(base + NEXT);
+          stripe.scratch.readState(chunk, base + STATE);
+          if (!changedOnly || stripe.scratch.isDirty()) {
+            stripe.scratch.clearDirty();
+            stripe.scratch.writeState(chunk, base + STATE);
+            visitor.visit(load(stripe, chunk, slot, base, false));
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * Slots are reused and the index rehashed in place, so unlike the heap
+   * store a racing read could follow a stale chain anywhere. Each stripe is
+   * copied under its monitor instead, holding its writers for the copy.
+   */
+  @Override
+  public void snapshot(final String metric, final List<DataPoints> into) {
+    for (Stripe stripe : stripes) {
+      synchronized (stripe) {
+        for (int head : stripe.chains.values()) {
+          for (int next = head; next != 0; ) {
+            final int slot = next - 1;
+            final ByteBuffer chunk = stripe.chunk(slot);
+            final int base = offset(slot);
+            next = chunk.getInt(base + NEXT);
+            final DataPoints dps = load(stripe, chunk, slot, base, false);
+            if (metric.equals(dps.getMetric())) {
+              into.add(dps);
+            }
+          }
+        }
+      }
+    }
+  }
+
+  @Override
+  public void restore(final DataPoints window) {
+    final Stripe stripe = stripeFor(window.getSeriesId());
+    synchronized (stripe) {
+      final int slot = getOrCreate(stripe, window.getSeriesId(), window.getMetric(), window.getTimestamp(),
+              window.getTags());
+      window.writeState(stripe.chunk(slot), offset(slot) + STATE);
+    }
+  }
+
+  /** Drops every window and deletes the spill file. */
+  @Override
+  public void close() {
+    directBytes.set(0);
+    for (Stripe stripe : stripes) {
+      synchronized (stripe) {
+        stripe.chunks.clear();
+        stripe.chains.clear();
+        stripe.oversized.clear();
+        stripe.index = allocateIndex(INITIAL_ENTRIES);
+        stripe.indexMask = INITIAL_ENTRIES - 1;
+        stripe.size = 0;
+        stripe.carved = 0;
+        stripe.freeDirect = 0;
+        stripe.freeMapped = 0;
+      }
+    }
+    synchronized (this) {
+      if (spillFile != null) {
+        try {
+          spillFile.close();
+        } catch (IOException e) {
+          LOG.warn("Unable to close rollup spill file " + spillPath, e);
+        }
+        if (!spillPath.delete()) {
+          LOG.warn("Unable to delete rollup spill file " + spillPath);
+        }
+        spillFile = null;
+        spilledBytes.set(0);
+      }
+    }
+  }
+
+  /** @return bytes of direct memory taken by the index and the slots */
+  public long getDirectBytes() {
+    return directBytes.get();
+  }
+
+  /** @return bytes of slots mapped from the spill file */
+  public long getSpilledBytes() {
+    return spilledBytes.get();
+  }
+
+  private Stripe stripeFor(final long seriesId) {
+    return stripes[(int) (seriesId ^ (seriesId >>> 32)) & mask];
+  }
+
+  private static int home(final long seriesId, final long windowTs, final int mask) {
+    return (int) SeriesKey.mix(seriesId * 31 + windowTs) & mask;
+  }
+
+  private int offset(final int slot) {
+    return (slot & (CHUNK_SLOTS - 1)) * slotBytes;
+  }
+
+  /** Index tables are never mapped, they are probed on every point. */
+  private ByteBuffer allocateIndex(final int entries) {
+    directBytes.addAndGet((long) entries * ENTRY_BYTES);
+    return ByteBuffer.allocateDirect(entries * ENTRY_BYTES);
+  }
+
+  private ByteBuffer allocateChunk() {
+    final int bytes = CHUNK_SLOTS * slotBytes;
+    if (directBytes.addAndGet(bytes) <= maxDirectBytes) {
+      return ByteBuffer.allocateDirect(bytes);
+    }
+    directBytes.addAndGet(-bytes);
+    try {
+      return mapChunk(bytes);
+    } catch (IOException e) {
+      // better over budget than dropping the point
+      LOG.error("Unable to spill rollup windows to " + spillDir + ", using direct memory", e);
+      directBytes.addAndGet(bytes);
+      return ByteBuffer.allocateDirect(bytes);
+    }
+  }
+
+  private synchronized ByteBuffer mapChunk(final int bytes) throws IOException {
+    if (spillFile == null) {
+      spillPath = File.createTempFile("rollup-" + RollupTier.formatLabel(windowSeconds) + "-", ".spill", spillDir);
+      spillPath.deleteOnExit();
+      spillFile = new RandomAccessFile(spillPath, "rw");
+      LOG.info("Spilling rollup windows to " + spillPath);
+    }
+    final long position = spilledBytes.get();
+    final MappedByteBuffer chunk = spillFile.getChannel().map(FileChannel.MapMode.READ_WRITE, position, bytes);
+    spilledBytes.addAndGet(bytes);
+    return chunk;
+  }
+
+  private int getOrCreate(final Stripe stripe, final long seriesId, final String metric,
+                          final long windowTs, final Map<String, String> tags) {
+    int slot = stripe.find(seriesId, windowTs);
+    if (slot >= 0) {
+      return slot;
+    }
+    slot = stripe.allocate();
+    final ByteBuffer chunk = stripe.chunk(slot);
+    final int base = offset(slot);
+    chunk.putLong(base + SERIES_ID, seriesId);
+    chunk.putLong(base + WINDOW_TS, windowTs);
+    final int length = encodedLength(metric, tags);
+    if (length <= maxSeriesBytes) {
+      putSeries(chunk, base + SERIES, metric, tags);
+      chunk.putInt(base + SERIES_LENGTH, length);
+    } else {
+      final byte[] series = new byte[length];
+      putSeries(ByteBuffer.wrap(series), 0, metric, tags);
+      stripe.oversized.put(slot, series);
+      chunk.putInt(base + SERIES_LENGTH, -1);
+    }
+    stripe.scratch.reset();
+    stripe.scratch.writeState(chunk, base + STATE);
+    final Integer head = stripe.chains.get(windowTs);
+    chunk.putInt(base + NEXT, head == null ? 0 : head);
+    stripe.chains.put(windowTs, slot + 1);
+    stripe.insert(seriesId, windowTs, slot);
+    return slot;
+  }
+
+  private void drain(final Stripe stripe, final int head, final List<DataPoints> closed) {
+    int next = head;
+    while (next != 0) {
+      final int slot = next - 1;
+      final ByteBuffer chunk = stripe.chunk(slot);
+      final int base = offset(slot);
+      next = chunk.getInt(base + NEXT);
+      final DataPoints dps = load(stripe, chunk, slot, base, true);
+      stripe.unlink(dps.getSeriesId(), dps.getTimestamp());
+      stripe.release(slot);
+      closed.add(dps);
+    }
+  }
+
+  private DataPoints load(final Stripe stripe, final ByteBuffer chunk, final int slot, final int base,
+                          final boolean release) {
+    final int length = chunk.getInt(base + SERIES_LENGTH);
+    final byte[] series;
+    if (length < 0) {
+      series = release ? stripe.oversized.remove(slot) : stripe.oversized.get(slot);
+    } else {
+      series = new byte[length];
+      final ByteBuffer view = chunk.duplicate();
+      view.position(base + SERIES);
+      view.get(series);
+    }
+    String metric = null;
+    String key = null;
+    final HashMap<String, String> tags = new HashMap<String, String>();
+    int start = 0;
+    for (int i = 0; i <= series.length; i++) {
+      if (i == series.length || series[i] == SEPARATOR) {
+        final String part = new String(series, start, i - start, StandardCharsets.UTF_8);
+        if (metric == null) {
+          metric = part;
+        } else if (key == null) {
+          key = part;
+        } else {
+          tags.put(key, part);
+          key = null;
+        }
+        start = i + 1;
+      }
+    }
+    final DataPoints dps = new DataPoints(chunk.getLong(base + SERIES_ID), metric,
+            chunk.getLong(base + WINDOW_TS), tags);
+    dps.readState(chunk, base + STATE);
+    return dps;
+  }
+
+  private static int encodedLength(final String metric, final Map<String, String> tags) {
+    int length = utf8Length(metric);
+    for (Map.Entry<String, String> tag : tags.entrySet()) {
+      length += 2 + utf8Length(tag.getKey()) + utf8Length(tag.getValue());
+    }
+    return length;
+  }
+
+  private static void putSeries(final ByteBuffer buf, final int offset, final String metric,
+                                final Map<String, String> tags) {
+    int at = putUtf8(buf, offset, metric);
+    for (Map.Entry<String, String> tag : tags.entrySet()) {
+      buf.put(at++, SEPARATOR);
+      at = putUtf8(buf, at, tag.getKey());
+      buf.put(at++, SEPARATOR);
+      at = putUtf8(buf, at, tag.getValue());
+    }
+  }
+
+  private static int utf8Length(final String value) {
+    int length = 0;
+    for (int i = 0; i < value.length(); i++) {
+      final char c = value.charAt(i);
+      if (c < 0x80) {
+        length += 1;
+      } else if (c < 0x800) {
+        length += 2;
+      } else if (Character.isHighSurrogate(c) && i + 1 < value.length()
+              && Character.isLowSurrogate(value.charAt(i + 1))) {
+        length += 4;
+        i++;
+      } else {
+        length += 3;
+      }
+    }
+    return length;
+  }
+
+  /** Encodes without allocating, unpaired surrogates become U+FFFD */
+  private static int putUtf8(final ByteBuffer buf, int at, final String value) {
+    for (int i = 0; i < value.length(); i++) {
+      final char c = value.charAt(i);
+      if (c < 0x80) {
+        buf.put(at++, (byte) c);
+      } else if (c < 0x800) {
+        buf.put(at++, (byte) (0xc0 | (c >> 6)));
+        buf.put(at++, (byte) (0x80 | (c & 0x3f)));
+      } else if (Character.isHighSurrogate(c) && i + 1 < value.length()
+              && Character.isLowSurrogate(value.charAt(i + 1))) {
+        final int cp = Character.toCodePoint(c, value.charAt(++i));
+        buf.put(at++, (byte) (0xf0 | (cp >> 18)));
+        buf.put(at++, (byte) (0x80 | ((cp >> 12) & 0x3f)));
+        buf.put(at++, (byte) (0x80 | ((cp >> 6) & 0x3f)));
+        buf.put(at++, (byte) (0x80 | (cp & 0x3f)));
+      } else if (Character.isSurrogate(c)) {
+        // keep the three byte width counted by utf8Length
+        buf.put(at++, (byte) 0xef);
+        buf.put(at++, (byte) 0xbf);
+        buf.put(at++, (byte) 0xbd);
+      } else {
+        buf.put(at++, (byte) (0xe0 | (c >> 12)));
+        buf.put(at++, (byte) (0x80 | ((c >> 6) & 0x3f)));
+        buf.put(at++, (byte) (0x80 | (c & 0x3f)));
+      }
+    }
+    return at;
+  }
+}
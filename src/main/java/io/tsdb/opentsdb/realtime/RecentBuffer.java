@@ -0,0 +1,271 @@
+package io.tsdb.opentsdb.realtime;
+
+/**
+ * Copyright 2015 The DiscoveryPlugins Authors
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import io.tsdb.opentsdb.core.GorillaChunk;
+import io.tsdb.opentsdb.core.LongPairMap;
+import net.opentsdb.stats.StatsCollector;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The raw points of the last span, e.g. two hours, of every series of the
+ * selected metrics, kept compressed in memory so dashboards reading recent
+ * data don't have to scan HBase.
+ * <p/>
+ * Each series holds a queue of {@link GorillaChunk}s, a new one started
+ * every quarter of the span, and whole chunks are dropped once their last
+ * point is older than the span by wall clock. A point at a steady interval
+ * with a slowly changing value costs a couple of bytes. Points older than
+ * the last one of their series are dropped, the chunks only append.
+ * <p/>
+ * Series are spread over striped monitors like the rollup stores. A query
+ * copies the chunks it needs under the stripe monitor and decodes them
+ * outside, so ingest only waits for the copies.
+ */
+public class RecentBuffer {
+  private final MetricPatterns metrics;
+  private final long spanMs;
+  private final long chunkMs;
+  private final Stripe[] stripes;
+  private final int mask;
+
+  private final AtomicLong outOfOrder = new AtomicLong();
+
+  private static final class Series {
+    private final String metric;
+    private final HashMap<String, String> tags;
+    private final ArrayDeque<GorillaChunk> chunks = new ArrayDeque<GorillaChunk>();
+
+    Series(final String metric, final Map<String, String> tags) {
+      this.metric = metric;
+      this.tags = new HashMap<String, String>(tags);
+    }
+  }
+
+  private static final class Stripe {
+    private final LongPairMap<Series> series = new LongPairMap<Series>();
+  }
+
+  /** The recent points of one series, copied out of the buffer. */
+  public static final class Snapshot {
+    private final String metric;
+    private final Map<String, String> tags;
+    private final List<GorillaChunk> chunks;
+
+    Snapshot(final String metric, final Map<String, String> tags, final List<GorillaChunk> chunks) {
+      this.metric = metric;
+      this.tags = tags;
+      this.chunks = chunks;
+    }
+
+    public String getMetric() {
+      return metric;
+    }
+
+    public Map<String, String> getTags() {
+      return tags;
+    }
+
+    /** @return true if every value of the series was a long */
+    public boolean isIntegral() {
+      for (GorillaChunk chunk : chunks) {
+        if (!chunk.isIntegral()) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    /** @return the chunks, oldest first */
+    public List<GorillaChunk> getChunks() {
+      return chunks;
+    }
+  }
+
+  /**
+   * @param span how long, in milliseconds, points are kept
+   */
+  public RecentBuffer(final MetricPatterns metrics, final long span, final int concurrency) {
+    if (span <= 0) {
+      throw new IllegalArgumentException("Recent data span must be positive: " + span);
+    }
+    this.metrics = metrics;
+    this.spanMs = span;
+    this.chunkMs = Math.max(1000L, span / 4);
+    int size = 1;
+    while (size < concurrency) {
+      size <<= 1;
+    }
+    this.stripes = new Stripe[size];
+    for (int i = 0; i < size; i++) {
+      this.stripes[i] = new Stripe();
+    }
+    this.mask = size - 1;
+  }
+
+  public boolean matches(final String metric) {
+    return metrics.matches(metric);
+  }
+
+  /** @param ts the point's time in milliseconds */
+  public void addValue(final long seriesId, final String metric, final Map<String, String> tags,
+                       final long ts, final long value) {
+    final Stripe stripe = stripeFor(seriesId);
+    synchronized (stripe) {
+      final GorillaChunk chunk = chunkFor(stripe, seriesId, metric, tags, ts);
+      if (chunk != null && !chunk.append(ts, value)) {
+        outOfOrder.incrementAndGet();
+      }
+    }
+  }
+
+  /** @param ts the point's time in milliseconds */
+  public void addValue(final long seriesId, final String metric, final Map<String, String> tags,
+                       final long ts, final double value) {
+    final Stripe stripe = stripeFor(seriesId);
+    synchronized (stripe) {
+      final GorillaChunk chunk = chunkFor(stripe, seriesId, metric, tags, ts);
+      if (chunk != null && !chunk.append(ts, value)) {
+        outOfOrder.incrementAndGet();
+      }
+    }
+  }
+
+  /**
+   * @return the chunk the point goes in, or null if it is older than the
+   * last point of its series
+   */
+  private GorillaChunk chunkFor(final Stripe stripe, final long seriesId, final String metric,
+                                final Map<String, String> tags, final long ts) {
+    Series series = stripe.series.get(seriesId, 0L);
+    if (series == null) {
+      series = new Series(metric, tags);
+      stripe.series.put(seriesId, 0L, series);
+    }
+    final GorillaChunk last = series.chunks.peekLast();
+    if (last != null) {
+      if (ts <= last.getLastTimestamp()) {
+        outOfOrder.incrementAndGet();
+        return null;
+      }
+      if (ts - last.getFirstTimestamp() < chunkMs && ts - last.getLastTimestamp() < Integer.MAX_VALUE) {
+        return last;
+      }
+    }
+    final GorillaChunk chunk = new GorillaChunk(ts);
+    series.chunks.addLast(chunk);
+    return chunk;
+  }
+
+  /**
+   * Drops the chunks whose points are all older than the span, and the
+   * series left without any.
+   * @param now the current time in milliseconds
+   * @return the number of series dropped
+   */
+  public int trim(final long now) {
+    final long oldest = now - spanMs;
+    final LongPairMap.Condition<Series> expired = new LongPairMap.Condition<Series>() {
+      @Override
+      public boolean matches(long seriesId, long unused, Series series) {
+        while (!series.chunks.isEmpty() && series.chunks.peekFirst().getLastTimestamp() < oldest) {
+          series.chunks.pollFirst();
+        }
+        return series.chunks.isEmpty();
+      }
+    };
+    int count = 0;
+    for (Stripe stripe : stripes) {
+      synchronized (stripe) {
+        count += stripe.series.removeIf(expired, null);
+      }
+    }
+    return count;
+  }
+
+  /**
+   * @param start the first millisecond wanted
+   * @param end the last millisecond wanted
+   * @return the series of the metric with points in the range, their chunks
+   * copied. Chunks may hold points outside the range.
+   */
+  public List<Snapshot> query(final String metric, final long start, final long end) {
+    final List<Snapshot> result = new ArrayList<Snapshot>();
+    final List<Series> values = new ArrayList<Series>();
+    for (Stripe stripe : stripes) {
+      synchronized (stripe) {
+        values.clear();
+        stripe.series.values(values);
+        for (Series series : values) {
+          if (!series.metric.equals(metric)) {
+            continue;
+          }
+          List<GorillaChunk> chunks = null;
+          for (GorillaChunk chunk : series.chunks) {
+            if (chunk.getLastTimestamp() >= start && chunk.getFirstTimestamp() <= end) {
+              if (chunks == null) {
+                chunks = new ArrayList<GorillaChunk>();
+              }
+              chunks.add(chunk.snapshot());
+            }
+          }
+          if (chunks != null) {
+            result.add(new Snapshot(series.metric, Collections.unmodifiableMap(series.tags), chunks));
+          }
+        }
+      }
+    }
+    return result;
+  }
+
+  public void collectStats(final StatsCollector collector) {
+    long series = 0;
+    long points = 0;
+    long bytes = 0;
+    long capacity = 0;
+    for (Stripe stripe : stripes) {
+      final List<Series> values = new ArrayList<Series>();
+      synchronized (stripe) {
+        stripe.series.values(values);
+        for (Series s : values) {
+          for (GorillaChunk chunk : s.chunks) {
+            points += chunk.getCount();
+            bytes += chunk.getBytes();
+            capacity += chunk.getCapacity();
+          }
+        }
+      }
+      series += values.size();
+    }
+    collector.record("rollup.recent.series", series);
+    collector.record("rollup.recent.points", points);
+    collector.record("rollup.recent.bytes", bytes);
+    collector.record("rollup.recent.capacity_bytes", capacity);
+    collector.record("rollup.recent.out_of_order", outOfOrder.get());
+  }
+
+  private Stripe stripeFor(final long seriesId) {
+    return stripes[(int) (seriesId ^ (seriesId >>> 32)) & mask];
+  }
+}
@@ -0,0 +1,175 @@
+package io.tsdb.opentsdb.realtime;
+
+/**
+ * Copyright 2015 The DiscoveryPlugins Authors
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import io.tsdb.opentsdb.core.DataPoints;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Aggregates that can be read off a closed window. They all work from the
+ * same {@link DataPoints} accumulator, so adding an aggregator adds no work
+ * on the ingest path. Integer series keep integer results where the
+ * aggregate allows it. The p* aggregators read the window's quantile sketch,
+ * which is only kept when at least one of them is configured.
+ */
+public enum RollupAggregator {
+  AVG {
+    @Override
+    RollupPoint toPoint(String metric, long ts, Map<String, String> tags, long windowEnd, DataPoints dps) {
+      return new RollupPoint(metric, ts, dps.getMean(), tags, windowEnd);
+    }
+  },
+  SUM {
+    @Override
+    RollupPoint toPoint(String metric, long ts, Map<String, String> tags, long windowEnd, DataPoints dps) {
+      if (dps.isExactSum()) {
+        return new RollupPoint(metric, ts, dps.getLongSum(), tags, windowEnd);
+      }
+      return new RollupPoint(metric, ts, dps.getSum(), tags, windowEnd);
+    }
+  },
+  MIN {
+    @Override
+    RollupPoint toPoint(String metric, long ts, Map<String, String> tags, long windowEnd, DataPoints dps) {
+      if (dps.isInteger()) {
+        return new RollupPoint(metric, ts, dps.getLongMin(), tags, windowEnd);
+      }
+      return new RollupPoint(metric, ts, dps.getMin(), tags, windowEnd);
+    }
+  },
+  MAX {
+    @Override
+    RollupPoint toPoint(String metric, long ts, Map<String, String> tags, long windowEnd, DataPoints dps) {
+      if (dps.isInteger()) {
+        return new RollupPoint(metric, ts, dps.getLongMax(), tags, windowEnd);
+      }
+      return new RollupPoint(metric, ts, dps.getMax(), tags, windowEnd);
+    }
+  },
+  COUNT {
+    @Override
+    RollupPoint toPoint(String metric, long ts, Map<String, String> tags, long windowEnd, DataPoints dps) {
+      return new RollupPoint(metric, ts, dps.getCount(), tags, windowEnd);
+    }
+  },
+  FIRST {
+    @Override
+    RollupPoint toPoint(String metric, long ts, Map<String, String> tags, long windowEnd, DataPoints dps) {
+      if (dps.isFirstInteger()) {
+        return new RollupPoint(metric, ts, dps.getFirstLong(), tags, windowEnd);
+      }
+      return new RollupPoint(metric, ts, dps.getFirst(), tags, windowEnd);
+    }
+  },
+  LAST {
+    @Override
+    RollupPoint toPoint(String metric, long ts, Map<String, String> tags, long windowEnd, DataPoints dps) {
+      if (dps.isLastInteger()) {
+        return new RollupPoint(metric, ts, dps.getLastLong(), tags, windowEnd);
+      }
+      return new RollupPoint(metric, ts, dps.getLast(), tags, windowEnd);
+    }
+  },
+  DEV {
+    @Override
+    RollupPoint toPoint(String metric, long ts, Map<String, String> tags, long windowEnd, DataPoints dps) {
+      return new RollupPoint(metric, ts, Math.sqrt(dps.getVariance()), tags, windowEnd);
+    }
+  },
+  /** Per second rate of a counter window, whose values are the increases fed by {@link CounterTracker} */
+  RATE {
+    @Override
+    RollupPoint toPoint(String metric, long ts, Map<String, String> tags, long windowEnd, DataPoints dps) {
+      return new RollupPoint(metric, ts, dps.getSum() / (windowEnd / 1000L - ts), tags, windowEnd);
+    }
+  },
+  P50(0.5),
+  P75(0.75),
+  P90(0.9),
+  P95(0.95),
+  P99(0.99),
+  P999(0.999);
+
+  private final double quantile;
+
+  RollupAggregator() {
+    this(Double.NaN);
+  }
+
+  RollupAggregator(final double quantile) {
+    this.quantile = quantile;
+  }
+
+  /** @return the name used in configuration and in emitted metric names */
+  public String label() {
+    return name().toLowerCase();
+  }
+
+  /**
+   * @return the aggregator across series that keeps this aggregate exact in
+   * a native pre-aggregate, or null if it can't be written as a native rollup
+   */
+  public String nativeGroupBy() {
+    switch (this) {
+      case SUM:
+      case COUNT:
+        return "sum";
+      case MIN:
+        return "min";
+      case MAX:
+        return "max";
+      default:
+        return null;
+    }
+  }
+
+  /** @return true when the aggregator needs a quantile sketch kept per window */
+  public boolean isQuantile() {
+    return !Double.isNaN(quantile);
+  }
+
+  /** Reads the aggregate off a closed window, the quantile aggregators use this implementation. */
+  RollupPoint toPoint(String metric, long ts, Map<String, String> tags, long windowEnd, DataPoints dps) {
+    return new RollupPoint(metric, ts, dps.getQuantile(quantile), tags, windowEnd);
+  }
+
+  /**
+   * Parses a comma separated list such as "avg,sum,max".
+   * @throws IllegalArgumentException if a name is not a known aggregator
+   */
+  public static List<RollupAggregator> parseList(final String spec) {
+    final List<RollupAggregator> aggregators = new ArrayList<RollupAggregator>();
+    for (String name : spec.split(",")) {
+      name = name.trim();
+      if (name.isEmpty()) {
+        continue;
+      }
+      try {
+        aggregators.add(RollupAggregator.valueOf(name.toUpperCase()));
+      } catch (IllegalArgumentException e) {
+        throw new IllegalArgumentException("Unknown rollup aggregator: " + name);
+      }
+    }
+    if (aggregators.isEmpty()) {
+      throw new IllegalArgumentException("No rollup aggregators configured");
+    }
+    return aggregators;
+  }
+}
@@ -0,0 +1,526 @@
+package io.tsdb.opentsdb.realtime;
+
+/**
+ * Copyright 2015 The DiscoveryPlugins Authors
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import com.google.common.io.CountingInputStream;
+import io.tsdb.opentsdb.core.DataPoints;
+import io.tsdb.opentsdb.core.QuantileSketch;
+import net.opentsdb.stats.StatsCollector;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+
+/**
+ * Checkpoints the open rollup windows to a local append-only file so a
+ * restarted TSD carries on with its partially aggregated windows.
+ * <p/>
+ * Each checkpoint appends the windows that changed since the previous one,
+ * followed by a commit record with the watermark and a CRC32 of the batch.
+ * Once the file has grown to twice its last compacted size, a full snapshot
+ * is written to a temporary file, synced, and renamed over it. A crash mid
+ * write leaves a batch without a valid commit, which restore ignores.
+ * <p/>
+ * Stores are visited one stripe at a time and each stripe is serialized to
+ * memory under its lock, then written out after the lock is released, so
+ * ingest never waits on the disk. Checkpoints hold the tier list's monitor,
+ * which the publisher also holds while closing windows, so a checkpoint
+ * never sees a window both in its tier and already merged into the next.
+ * <p/>
+ * Closing a window only hands its rollup points to the flusher, which
+ * writes them some time later. So every batch also carries the points of
+ * closed windows that the TSD hasn't acknowledged yet, as the source
+ * reports them at the commit.
+ * <p/>
+ * On restore the file is read twice: once to find the last valid commit,
+ * then again to replay the windows up to it. Later records of a window
+ * replace earlier ones, and windows the committed watermark had already
+ * closed are skipped, their points being either written or among the
+ * unwritten points of the last batch. Those points are handed back to the
+ * source to be written again; a point written just before the crash may so
+ * be written twice, with the same value.
+ */
+public class RollupCheckpoint implements Runnable {
+  private static final Logger LOG = LoggerFactory.getLogger(RollupCheckpoint.class);
+
+  private static final int MAGIC = 0x524b5054;
+  private static final int VERSION = 2;
+  private static final byte WINDOW = 1;
+  private static final byte COMMIT = 2;
+  private static final byte POINT = 3;
+  private static final long MIN_COMPACT_BYTES = 16L * 1024 * 1024;
+
+  /** Event time state saved with every checkpoint */
+  public interface Source {
+    /** @return the watermark the last completed expiry ran with */
+    long getWatermark();
+
+    long getMaxEventTime();
+
+    /**
+     * Adds the rollup points of the windows closed by the watermark that
+     * haven't been written yet. Called with the tier list's monitor held.
+     */
+    void unwritten(List<RollupPoint> into);
+
+    /**
+     * Called once a checkpoint has been restored, before any point is
+     * ingested, with the points that still have to be written
+     */
+    void restored(long watermark, long maxEventTime, List<RollupPoint> unwritten);
+  }
+
+  private final File file;
+  private final List<RollupTier> tiers;
+  private final Source source;
+  private final ScheduledExecutorService scheduler;
+  private FileChannel channel;
+  private long compactAt;
+  private boolean forceSnapshot = true;
+
+  private final AtomicLong failed = new AtomicLong();
+  private volatile long fileBytes;
+  private volatile long lastBytes;
+  private volatile long lastWindows;
+  private volatile long lastDurationMs;
+  private volatile long restoreMs;
+  private volatile long restoredWindows;
+
+  /** Collects the serialized windows of one stripe */
+  private static final class Batch implements WindowStore.Visitor {
+    private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    private final DataOutputStream out = new DataOutputStream(bytes);
+    private final ByteBuffer state = ByteBuffer.allocate(DataPoints.STATE_BYTES);
+    private long tierSeconds;
+    private int windows;
+
+    @Override
+    public void visit(final DataPoints window) {
+      try {
+        out.writeByte(WINDOW);
+        out.writeLong(tierSeconds);
+        out.writeLong(window.getSeriesId());
+        out.writeLong(window.getTimestamp());
+        window.writeState(state, 0);
+        out.write(state.array());
+        out.writeUTF(window.getMetric());
+        writeTags(out, window.getTags());
+        out.writeBoolean(window.getSketch() != null);
+        if (window.getSketch() != null) {
+          window.getSketch().writeTo(out);
+        }
+        windows++;
+      } catch (IOException e) {
+        // a ByteArrayOutputStream doesn't throw
+        throw new IllegalStateException(e);
+      }
+    }
+  }
+
+  public RollupCheckpoint(final File file, final List<RollupTier> tiers, final Source source) {
+    this.file = file;
+    this.tiers = tiers;
+    this.source = source;
+    this.scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r, "RollupCheckpoint");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+  }
+
+  public void start(final long intervalSeconds) {
+    LOG.info("Checkpointing rollup windows to " + file + " every " + intervalSeconds + "s");
+    scheduler.scheduleWithFixedDelay(this, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+  }
+
+  @Override
+  public void run() {
+    try {
+      checkpoint(false);
+    } catch (Throwable t) {
+      failed.incrementAndGet();
+      LOG.error("Failed to checkpoint rollup windows to " + file, t);
+    }
+  }
+
+  /**
+   * Writes a final checkpoint and closes the file. Called once every window
+   * has been drained, so the file is left empty of windows and the next
+   * start doesn't emit them a second time.
+   */
+  public void shutdown() {
+    scheduler.shutdown();
+    try {
+      scheduler.awaitTermination(30, TimeUnit.SECONDS);
+      checkpoint(true);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } catch (IOException e) {
+      LOG.error("Failed to write the final rollup checkpoint to " + file, e);
+    }
+    synchronized (tiers) {
+      closeChannel();
+    }
+  }
+
+  /**
+   * Appends the windows changed since the last checkpoint, or writes a full
+   * snapshot when asked to, when the file has grown enough or when the last
+   * attempt failed part way.
+   */
+  public void checkpoint(final boolean snapshot) throws IOException {
+    final long start = System.currentTimeMillis();
+    synchronized (tiers) {
+      try {
+        if (snapshot || forceSnapshot || channel == null || channel.size() >= compactAt) {
+          writeSnapshot();
+        } else {
+          lastBytes = writeBatch(channel, true);
+          fileBytes = channel.size();
+        }
+        forceSnapshot = false;
+      } catch (IOException e) {
+        // windows visited by the failed batch are no longer marked as changed
+        forceSnapshot = true;
+        throw e;
+      }
+    }
+    lastDurationMs = System.currentTimeMillis() - start;
+    if (LOG.isDebugEnabled()) {
+      LOG.debug("Checkpointed " + lastWindows + " rollup windows, " + lastBytes + " bytes in "
+              + lastDurationMs + "ms");
+    }
+  }
+
+  /**
+   * Loads the last valid checkpoint into the tiers' stores and hands the
+   * restored watermark to the source, then compacts the file.
+   * @return the number of windows restored
+   */
+  public long restore() throws IOException {
+    final long start = System.currentTimeMillis();
+    long windows = 0;
+    if (file.exists() && file.length() > 0) {
+      final Map<Long, RollupTier> bySeconds = new HashMap<Long, RollupTier>();
+      for (RollupTier tier : tiers) {
+        bySeconds.put(tier.getSeconds(), tier);
+      }
+      final long[] committed = new long[3];
+      if (scan(committed)) {
+        final long validEnd = committed[0];
+        if (validEnd > 0) {
+          final List<RollupPoint> unwritten = replay(validEnd, bySeconds, committed[1]);
+          source.restored(committed[1], committed[2], unwritten);
+          if (!unwritten.isEmpty()) {
+            LOG.info("Writing again " + unwritten.size() + " rollup points unwritten before the restart");
+          }
+          for (RollupTier tier : tiers) {
+            windows += tier.getStore().size();
+          }
+        }
+        if (validEnd < file.length()) {
+          LOG.warn("Ignoring " + (file.length() - validEnd) + " bytes after the last complete rollup checkpoint");
+        }
+      }
+    }
+    restoredWindows = windows;
+    restoreMs = System.currentTimeMillis() - start;
+    LOG.info("Restored " + windows + " rollup windows from " + file + " in " + restoreMs + "ms");
+    checkpoint(true);
+    return windows;
+  }
+
+  public void collectStats(final StatsCollector collector) {
+    collector.record("rollup.checkpoint.bytes", fileBytes);
+    collector.record("rollup.checkpoint.last_bytes", lastBytes);
+    collector.record("rollup.checkpoint.last_windows", lastWindows);
+    collector.record("rollup.checkpoint.duration_ms", lastDurationMs);
+    collector.record("rollup.checkpoint.failed", failed.get());
+    collector.record("rollup.checkpoint.restore_ms", restoreMs);
+    collector.record("rollup.checkpoint.restored", restoredWindows);
+  }
+
+  private void writeSnapshot() throws IOException {
+    final File temp = new File(file.getPath() + ".tmp");
+    final FileChannel out = FileChannel.open(temp.toPath(), StandardOpenOption.CREATE,
+            StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+    try {
+      final ByteBuffer header = ByteBuffer.allocate(8);
+      header.putInt(MAGIC).putInt(VERSION).flip();
+      writeFully(out, header);
+      lastBytes = writeBatch(out, false);
+    } finally {
+      out.close();
+    }
+    closeChannel();
+    Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    fileBytes = channel.size();
+    compactAt = Math.max(fileBytes * 2, MIN_COMPACT_BYTES);
+  }
+
+  /** @return the number of bytes written, synced before returning */
+  private long writeBatch(final FileChannel out, final boolean changedOnly) throws IOException {
+    final CRC32 crc = new CRC32();
+    final Batch batch = new Batch();
+    long written = 0;
+    for (RollupTier tier : tiers) {
+      batch.tierSeconds = tier.getSeconds();
+      final WindowStore store = tier.getStore();
+      for (int stripe = 0; stripe < store.getStripeCount(); stripe++) {
+        store.checkpoint(stripe, changedOnly, batch);
+        written += drain(out, batch, crc);
+      }
+    }
+    final List<RollupPoint> unwritten = new ArrayList<RollupPoint>();
+    source.unwritten(unwritten);
+    for (RollupPoint point : unwritten) {
+      batch.out.writeByte(POINT);
+      writePoint(batch.out, point);
+      if (batch.bytes.size() >= 1 << 16) {
+        written += drain(out, batch, crc);
+      }
+    }
+    batch.out.writeByte(COMMIT);
+    batch.out.writeLong(source.getWatermark());
+    batch.out.writeLong(source.getMaxEventTime());
+    batch.out.writeInt(batch.windows);
+    written += drain(out, batch, crc);
+    batch.out.writeLong(crc.getValue());
+    written += drain(out, batch, crc);
+    out.force(false);
+    lastWindows = batch.windows;
+    return written;
+  }
+
+  private static long drain(final FileChannel out, final Batch batch, final CRC32 crc) throws IOException {
+    final int size = batch.bytes.size();
+    if (size > 0) {
+      final byte[] bytes = batch.bytes.toByteArray();
+      crc.update(bytes, 0, size);
+      writeFully(out, ByteBuffer.wrap(bytes));
+      batch.bytes.reset();
+    }
+    return size;
+  }
+
+  private static void writeFully(final FileChannel out, final ByteBuffer buf) throws IOException {
+    while (buf.hasRemaining()) {
+      out.write(buf);
+    }
+  }
+
+  private void closeChannel() {
+    if (channel != null) {
+      try {
+        channel.close();
+      } catch (IOException e) {
+        LOG.warn("Unable to close rollup checkpoint " + file, e);
+      }
+      channel = null;
+    }
+  }
+
+  /**
+   * Scans the file for the last commit whose CRC matches.
+   * @param committed receives the offset just past that commit, its
+   * watermark and its max event time
+   * @return false if the file is not a checkpoint
+   */
+  private boolean scan(final long[] committed) throws IOException {
+    final CountingInputStream counting = new CountingInputStream(
+            new BufferedInputStream(new FileInputStream(file), 1 << 16));
+    final CheckedInputStream checked = new CheckedInputStream(counting, new CRC32());
+    final DataInputStream in = new DataInputStream(checked);
+    try {
+      // version 1 is the same without unwritten points
+      final int magic = in.readInt();
+      final int version = in.readInt();
+      if (magic != MAGIC || version < 1 || version > VERSION) {
+        LOG.warn(file + " is not a rollup checkpoint, starting without one");
+        return false;
+      }
+      checked.getChecksum().reset();
+      while (true) {
+        final byte type = in.readByte();
+        if (type == WINDOW) {
+          in.readLong();
+          readWindow(in);
+        } else if (type == POINT) {
+          readPoint(in);
+        } else if (type == COMMIT) {
+          final long watermark = in.readLong();
+          final long maxEventTime = in.readLong();
+          in.readInt();
+          final long expected = checked.getChecksum().getValue();
+          if (in.readLong() != expected) {
+            LOG.warn("Rollup checkpoint " + file + " is corrupt after offset " + committed[0]);
+            break;
+          }
+          committed[0] = counting.getCount();
+          committed[1] = watermark;
+          committed[2] = maxEventTime;
+          checked.getChecksum().reset();
+        } else {
+          LOG.warn("Unknown record type " + type + " in rollup checkpoint " + file);
+          break;
+        }
+      }
+    } catch (EOFException e) {
+      // torn write, everything up to the last commit is still good
+    } finally {
+      in.close();
+    }
+    return true;
+  }
+
+  /** @return the unwritten points of the last committed batch */
+  private List<RollupPoint> replay(final long validEnd, final Map<Long, RollupTier> bySeconds,
+                                   final long watermark) throws IOException {
+    final CountingInputStream counting = new CountingInputStream(
+            new BufferedInputStream(new FileInputStream(file), 1 << 16));
+    final DataInputStream in = new DataInputStream(counting);
+    List<RollupPoint> committed = new ArrayList<RollupPoint>();
+    List<RollupPoint> batch = new ArrayList<RollupPoint>();
+    try {
+      in.readInt();
+      in.readInt();
+      while (counting.getCount() < validEnd) {
+        final byte type = in.readByte();
+        if (type == COMMIT) {
+          in.readLong();
+          in.readLong();
+          in.readInt();
+          in.readLong();
+          // each batch lists every point unwritten at its commit
+          committed = batch;
+          batch = new ArrayList<RollupPoint>();
+          continue;
+        }
+        if (type == POINT) {
+          batch.add(readPoint(in));
+          continue;
+        }
+        final long tierSeconds = in.readLong();
+        final DataPoints window = readWindow(in);
+        final RollupTier tier = bySeconds.get(tierSeconds);
+        if (tier == null || tier.getStore().deadline(window.getTimestamp()) <= watermark) {
+          // the window size is no longer configured, or the window was closed before the restart
+          continue;
+        }
+        window.clearDirty();
+        tier.getStore().restore(window);
+      }
+    } finally {
+      in.close();
+    }
+    return committed;
+  }
+
+  private static void writePoint(final DataOutputStream out, final RollupPoint point) throws IOException {
+    out.writeUTF(point.getMetric());
+    out.writeLong(point.getTimestamp());
+    out.writeBoolean(point.isInteger());
+    out.writeLong(point.isInteger() ? point.getLongValue() : Double.doubleToRawLongBits(point.getDoubleValue()));
+    out.writeLong(point.getWindowEnd());
+    writeTags(out, point.getTags());
+    out.writeBoolean(point.isNative());
+    if (point.isNative()) {
+      out.writeUTF(point.getInterval());
+      out.writeUTF(point.getAggregator());
+      out.writeUTF(point.isGroupBy() ? point.getGroupByAggregator() : "");
+    }
+  }
+
+  private static RollupPoint readPoint(final DataInputStream in) throws IOException {
+    final String metric = in.readUTF();
+    final long timestamp = in.readLong();
+    final boolean isInteger = in.readBoolean();
+    final long value = in.readLong();
+    final long windowEnd = in.readLong();
+    final Map<String, String> tags = readTags(in);
+    final RollupPoint point = isInteger
+            ? new RollupPoint(metric, timestamp, value, tags, windowEnd)
+            : new RollupPoint(metric, timestamp, Double.longBitsToDouble(value), tags, windowEnd);
+    if (!in.readBoolean()) {
+      return point;
+    }
+    final String interval = in.readUTF();
+    final String aggregator = in.readUTF();
+    final String groupBy = in.readUTF();
+    return point.asNative(interval, aggregator, groupBy.isEmpty() ? null : groupBy);
+  }
+
+  private static void writeTags(final DataOutputStream out, final Map<String, String> tags) throws IOException {
+    out.writeShort(tags.size());
+    for (Map.Entry<String, String> tag : tags.entrySet()) {
+      out.writeUTF(tag.getKey());
+      out.writeUTF(tag.getValue());
+    }
+  }
+
+  private static HashMap<String, String> readTags(final DataInputStream in) throws IOException {
+    final int tagCount = in.readUnsignedShort();
+    final HashMap<String, String> tags = new HashMap<String, String>();
+    for (int i = 0; i < tagCount; i++) {
+      tags.put(in.readUTF(), in.readUTF());
+    }
+    return tags;
+  }
+
+  /** Reads a window record following its type and tier */
+  private static DataPoints readWindow(final DataInputStream in) throws IOException {
+    final long seriesId = in.readLong();
+    final long windowTs = in.readLong();
+    final byte[] state = new byte[DataPoints.STATE_BYTES];
+    in.readFully(state);
+    final String metric = in.readUTF();
+    final HashMap<String, String> tags = readTags(in);
+    final DataPoints window = new DataPoints(seriesId, metric, windowTs, tags);
+    window.readState(ByteBuffer.wrap(state), 0);
+    if (in.readBoolean()) {
+      window.setSketch(QuantileSketch.readFrom(in));
+    }
+    return window;
+  }
+}
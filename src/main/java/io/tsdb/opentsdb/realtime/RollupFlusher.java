@@ -0,0 +1,303 @@
+package io.tsdb.opentsdb.realtime;
+
+/**
+ * Copyright 2015 The DiscoveryPlugins Authors
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import com.google.common.util.concurrent.RateLimiter;
+import com.stumbleupon.async.Callback;
+import com.stumbleupon.async.Deferred;
+import net.opentsdb.core.TSDB;
+import net.opentsdb.stats.StatsCollector;
+import net.opentsdb.utils.Config;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static io.tsdb.opentsdb.core.Utils.getConfigPropertyInt;
+
+/**
+ * Periodically collects closed rollup windows and writes their aggregates
+ * back into the TSDB with {@link TSDB#addPoint}, or with
+ * {@link TSDB#addAggregatePoint} for native rollups.
+ * <p/>
+ * Each cycle is scheduled with a random jitter on top of the flush interval
+ * so that TSDs sharing a window size don't all hit HBase on the boundary.
+ * Writes go out in batches through a rate limiter, and a cycle stops early
+ * once too many writes are still waiting on HBase; whatever is left stays
+ * queued for the next cycle.
+ * <p/>
+ * The pending queue is only ever touched by the flusher's own thread, the
+ * final flush on shutdown included. Points the source has {@link #track}ed
+ * are remembered from then until their write completes, so a checkpoint can
+ * save those not written yet.
+ */
+public class RollupFlusher implements Runnable {
+  private static final Logger LOG = LoggerFactory.getLogger(RollupFlusher.class);
+
+  private static final String INTERVAL_KEY = "tsd.rtpublisher.rollup.flush_interval";
+  private static final String JITTER_KEY = "tsd.rtpublisher.rollup.flush_jitter";
+  private static final String RATE_KEY = "tsd.rtpublisher.rollup.max_write_rate";
+  private static final String BATCH_KEY = "tsd.rtpublisher.rollup.flush_batch_size";
+  private static final String OUTSTANDING_KEY = "tsd.rtpublisher.rollup.max_outstanding";
+  private static final String PENDING_KEY = "tsd.rtpublisher.rollup.max_pending";
+
+  /** Supplies the aggregates of windows that have closed since the last call. */
+  public interface WindowSource {
+    List<RollupPoint> closedWindows(boolean all);
+  }
+
+  /** Writes a single rollup point, to the TSDB outside of tests. */
+  interface Writer {
+    Deferred<Object> write(RollupPoint point);
+  }
+
+  private final Writer writer;
+  private final WindowSource source;
+  private final long intervalMs;
+  private final long jitterMs;
+  private final int batchSize;
+  private final int maxOutstanding;
+  private final int maxPending;
+  private final RateLimiter rateLimiter;
+  private final ArrayDeque<RollupPoint> pending = new ArrayDeque<RollupPoint>();
+  private final Set<RollupPoint> unwritten =
+          Collections.newSetFromMap(new ConcurrentHashMap<RollupPoint, Boolean>());
+  private final ScheduledThreadPoolExecutor scheduler;
+
+  private final AtomicLong outstanding = new AtomicLong();
+  private final AtomicLong written = new AtomicLong();
+  private final AtomicLong failed = new AtomicLong();
+  private final AtomicLong dropped = new AtomicLong();
+  private volatile long flushLag;
+  private volatile int pendingSize;
+  private volatile boolean running;
+
+  public RollupFlusher(final TSDB tsdb, final WindowSource source) {
+    this(tsdb.getConfig(), tsdbWriter(tsdb), source);
+  }
+
+  RollupFlusher(final Config config, final Writer writer, final WindowSource source) {
+    this.writer = writer;
+    this.source = source;
+    this.intervalMs = getConfigPropertyInt(config, INTERVAL_KEY, 10) * 1000L;
+    this.jitterMs = getConfigPropertyInt(config, JITTER_KEY, 5000);
+    this.batchSize = getConfigPropertyInt(config, BATCH_KEY, 500);
+    this.maxOutstanding = getConfigPropertyInt(config, OUTSTANDING_KEY, 10000);
+    this.maxPending = getConfigPropertyInt(config, PENDING_KEY, 1000000);
+    final int rate = getConfigPropertyInt(config, RATE_KEY, 10000);
+    this.rateLimiter = rate > 0 ? RateLimiter.create(rate) : null;
+    this.scheduler = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r, "RollupFlusher");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    // the next cycle is not waited for on shutdown
+    scheduler.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+    LOG.info("Flushing rollups every " + intervalMs + "ms (+" + jitterMs + "ms jitter) at up to "
+            + (rate > 0 ? rate + " points/s" : "unlimited points/s"));
+  }
+
+  public void start() {
+    running = true;
+    scheduleNext();
+  }
+
+  @Override
+  public void run() {
+    try {
+      enqueue(source.closedWindows(false));
+      flushPending(true);
+    } catch (Exception e) {
+      LOG.error("Rollup flush failed", e);
+    } finally {
+      if (running) {
+        scheduleNext();
+      }
+    }
+  }
+
+  /**
+   * Stops the schedule and writes every open window, without rate limiting.
+   * A cycle in progress stops after its current batch, the final flush then
+   * runs on the flusher's thread.
+   * @return a deferred that completes when the final writes have been acknowledged
+   */
+  public Deferred<Object> shutdown() {
+    running = false;
+    final List<Deferred<Object>> deferreds;
+    try {
+      deferreds = scheduler.submit(new Callable<List<Deferred<Object>>>() {
+        @Override
+        public List<Deferred<Object>> call() {
+          enqueue(source.closedWindows(true));
+          return flushPending(false);
+        }
+      }).get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return Deferred.fromError(e);
+    } catch (ExecutionException e) {
+      LOG.error("Final rollup flush failed", e.getCause());
+      return Deferred.fromError(e);
+    } finally {
+      scheduler.shutdown();
+    }
+    return Deferred.group(deferreds).addCallback(new Callback<Object, ArrayList<Object>>() {
+      @Override
+      public Object call(ArrayList<Object> results) {
+        return null;
+      }
+    });
+  }
+
+  public void collectStats(final StatsCollector collector) {
+    collector.record("rollup.flush.lag_ms", flushLag);
+    collector.record("rollup.flush.outstanding", outstanding.get());
+    collector.record("rollup.flush.pending", pendingSize);
+    collector.record("rollup.flush.written", written.get());
+    collector.record("rollup.flush.failed", failed.get());
+    collector.record("rollup.flush.dropped", dropped.get());
+  }
+
+  /**
+   * Remembers points as closed but not written yet, until their write
+   * completes or they are dropped. The source calls it while the windows it
+   * closed are still out of a checkpoint's sight.
+   */
+  void track(final List<RollupPoint> points) {
+    unwritten.addAll(points);
+  }
+
+  /** Adds the tracked points whose write hasn't completed yet. */
+  void unwritten(final List<RollupPoint> into) {
+    into.addAll(unwritten);
+  }
+
+  private void scheduleNext() {
+    final long jitter = jitterMs > 0 ? ThreadLocalRandom.current().nextLong(jitterMs + 1) : 0;
+    scheduler.schedule(this, intervalMs + jitter, TimeUnit.MILLISECONDS);
+  }
+
+  private void enqueue(final List<RollupPoint> points) {
+    for (RollupPoint point : points) {
+      if (pending.size() >= maxPending) {
+        unwritten.remove(pending.pollFirst());
+        dropped.incrementAndGet();
+      }
+      pending.addLast(point);
+    }
+    pendingSize = pending.size();
+  }
+
+  private List<Deferred<Object>> flushPending(final boolean throttle) {
+    final List<Deferred<Object>> deferreds = new ArrayList<Deferred<Object>>();
+    while (!pending.isEmpty()) {
+      if (throttle && !running) {
+        // shutting down, the final flush takes the rest
+        break;
+      }
+      if (throttle && outstanding.get() >= maxOutstanding) {
+        LOG.debug(outstanding.get() + " rollup writes outstanding, deferring "
+                + pending.size() + " points to the next flush");
+        break;
+      }
+      final int batch = Math.min(batchSize, pending.size());
+      if (throttle && rateLimiter != null) {
+        rateLimiter.acquire(batch);
+      }
+      for (int i = 0; i < batch; i++) {
+        final Deferred<Object> deferred = write(pending.pollFirst());
+        if (!throttle && deferred != null) {
+          deferreds.add(deferred);
+        }
+      }
+    }
+    pendingSize = pending.size();
+    return deferreds;
+  }
+
+  private Deferred<Object> write(final RollupPoint point) {
+    flushLag = Math.max(0, System.currentTimeMillis() - point.getWindowEnd());
+    final Deferred<Object> deferred;
+    try {
+      deferred = writer.write(point);
+    } catch (RuntimeException e) {
+      unwritten.remove(point);
+      failed.incrementAndGet();
+      LOG.warn("Unable to write rollup " + point.getMetric() + ": " + e.getMessage());
+      return null;
+    }
+    outstanding.incrementAndGet();
+    return deferred.addBoth(new Callback<Object, Object>() {
+      @Override
+      public Object call(Object result) {
+        outstanding.decrementAndGet();
+        unwritten.remove(point);
+        if (result instanceof Exception) {
+          failed.incrementAndGet();
+          LOG.debug("Rollup write failed for " + point.getMetric(), (Exception) result);
+        } else {
+          written.incrementAndGet();
+        }
+        return result;
+      }
+    });
+  }
+
+  static Writer tsdbWriter(final TSDB tsdb) {
+    return new Writer() {
+      @Override
+      public Deferred<Object> write(final RollupPoint point) {
+        if (point.isNative()) {
+          return writeNative(point);
+        }
+        if (point.isInteger()) {
+          return tsdb.addPoint(point.getMetric(), point.getTimestamp(), point.getLongValue(), point.getTags());
+        }
+        return tsdb.addPoint(point.getMetric(), point.getTimestamp(), point.getDoubleValue(), point.getTags());
+      }
+
+      private Deferred<Object> writeNative(final RollupPoint point) {
+        // pre-aggregates get the aggregate tag added to the map they are given
+        final Map<String, String> tags = new HashMap<String, String>(point.getTags());
+        if (point.isInteger()) {
+          return tsdb.addAggregatePoint(point.getMetric(), point.getTimestamp(), point.getLongValue(), tags,
+                  point.isGroupBy(), point.getInterval(), point.getAggregator(), point.getGroupByAggregator());
+        }
+        return tsdb.addAggregatePoint(point.getMetric(), point.getTimestamp(), point.getDoubleValue(), tags,
+                point.isGroupBy(), point.getInterval(), point.getAggregator(), point.getGroupByAggregator());
+      }
+    };
+  }
+}
@@ -0,0 +1,365 @@
+package io.tsdb.opentsdb.realtime;
+
+/**
+ * Copyright 2015 The DiscoveryPlugins Authors
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import net.opentsdb.stats.StatsCollector;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Single writer ingest: points are handed from the Netty workers to a fixed
+ * set of shards, each drained by its own owner thread.
+ * <p/>
+ * A series always goes to the same shard, picked from the same bits of the
+ * series id as the store stripes, so with at least as many stripes as
+ * shards every stripe is only ever written by one owner thread. The stripe
+ * locks are then uncontended on the ingest path, and only meet the flusher
+ * and the checkpoint. Points of a series are applied in the order
+ * they were published, which the counter increases rely on.
+ * <p/>
+ * Each shard has a bounded multi producer, single consumer ring of primitive
+ * records in parallel arrays. A producer claims a slot with a CAS on the
+ * tail and publishes it through the slot's sequence number, so there is no
+ * lock and nothing is allocated per point. When a ring is full the overflow
+ * policy decides: {@link Overflow#BLOCK} waits for room, {@link Overflow#DROP}
+ * drops the point and {@link Overflow#DIRECT} applies it on the calling
+ * thread, where the stripe lock keeps it safe. Only BLOCK keeps the order of
+ * a series: a point applied directly overtakes those of its series still
+ * queued, which the counters then drop as no newer than the last sample.
+ * BLOCK only waits up to a timeout, so a stuck owner thread can't hold the
+ * Netty workers, and then applies the point directly.
+ */
+public class RollupPipeline {
+  private static final Logger LOG = LoggerFactory.getLogger(RollupPipeline.class);
+  private static final long IDLE_NANOS = 1000000L;
+
+  /** Where the owner threads apply the points. */
+  public interface Sink {
+    void apply(long seriesId, String metric, Map<String, String> tags, long ts, long value);
+
+    void apply(long seriesId, String metric, Map<String, String> tags, long ts, double value);
+  }
+
+  public enum Overflow {
+    BLOCK, DROP, DIRECT
+  }
+
+  private final Sink sink;
+  private final Overflow overflow;
+  private final long blockTimeoutNanos;
+  private final Shard[] shards;
+  private final int mask;
+
+  private final AtomicLong dropped = new AtomicLong();
+  private final AtomicLong direct = new AtomicLong();
+  private final AtomicLong blocked = new AtomicLong();
+  private final AtomicLong blockTimeouts = new AtomicLong();
+
+  private final class Shard implements Runnable {
+    private final int capacity;
+    private final int ringMask;
+    private final AtomicLongArray sequences;
+    private final long[] seriesIds;
+    private final long[] timestamps;
+    private final long[] values;
+    private final boolean[] isLong;
+    private final long[] enqueued;
+    private final String[] metrics;
+    private final Object[] tags;
+    private final AtomicLong tail = new AtomicLong();
+    private final AtomicLong head = new AtomicLong();
+    private final AtomicLong applied = new AtomicLong();
+    private final AtomicLong latencyNanos = new AtomicLong();
+    private final AtomicLong maxLatencyNanos = new AtomicLong();
+    private final Thread owner;
+    private volatile boolean running = true;
+    private volatile boolean sleeping;
+
+    Shard(final int index, final int capacity) {
+      int size = 1;
+      while (size < capacity) {
+        size <<= 1;
+      }
+      this.capacity = size;
+      this.ringMask = size - 1;
+      this.sequences = new AtomicLongArray(size);
+      for (int i = 0; i < size; i++) {
+        sequences.set(i, i);
+      }
+      this.seriesIds = new long[size];
+      this.timestamps = new long[size];
+      this.values = new long[size];
+      this.isLong = new boolean[size];
+      this.enqueued = new long[size];
+      this.metrics = new String[size];
+      this.tags = new Object[size];
+      this.owner = new Thread(this, "RollupPipeline-" + index);
+      this.owner.setDaemon(true);
+    }
+
+    boolean offer(final long seriesId, final String metric, final Map<String, String> tags,
+                  final long ts, final long value, final boolean isLong) {
+      long pos = tail.get();
+      int slot;
+      while (true) {
+        slot = (int) pos & ringMask;
+        final long diff = sequences.get(slot) - pos;
+        if (diff == 0) {
+          if (tail.compareAndSet(pos, pos + 1)) {
+            break;
+          }
+          pos = tail.get();
+        } else if (diff < 0) {
+          // the consumer has not freed the slot from the previous lap yet
+          return false;
+        } else {
+          pos = tail.get();
+        }
+      }
+      this.seriesIds[slot] = seriesId;
+      this.metrics[slot] = metric;
+      this.tags[slot] = tags;
+      this.timestamps[slot] = ts;
+      this.values[slot] = value;
+      this.isLong[slot] = isLong;
+      this.enqueued[slot] = System.nanoTime();
+      sequences.lazySet(slot, pos + 1);
+      if (sleeping) {
+        // only the first producer to see it asleep pays for the wake up
+        sleeping = false;
+        LockSupport.unpark(owner);
+      }
+      return true;
+    }
+
+    @SuppressWarnings("unchecked")
+    private int drain() {
+      long pos = head.get();
+      final long now = System.nanoTime();
+      long latency = 0;
+      int count = 0;
+      while (count < capacity) {
+        final int slot = (int) pos & ringMask;
+        if (sequences.get(slot) != pos + 1) {
+          break;
+        }
+        final String metric = this.metrics[slot];
+        final Map<String, String> tags = (Map<String, String>) this.tags[slot];
+        this.metrics[slot] = null;
+        this.tags[slot] = null;
+        latency = Math.max(latency, now - this.enqueued[slot]);
+        try {
+          if (this.isLong[slot]) {
+            sink.apply(this.seriesIds[slot], metric, tags, this.timestamps[slot], this.values[slot]);
+          } else {
+            sink.apply(this.seriesIds[slot], metric, tags, this.timestamps[slot],
+                    Double.longBitsToDouble(this.values[slot]));
+          }
+        } catch (RuntimeException e) {
+          LOG.error("Failed to apply a point of " + metric, e);
+        }
+        sequences.lazySet(slot, pos + capacity);
+        pos++;
+        count++;
+      }
+      if (count > 0) {
+        head.lazySet(pos);
+        applied.addAndGet(count);
+        latencyNanos.lazySet(latency);
+        if (latency > maxLatencyNanos.get()) {
+          maxLatencyNanos.lazySet(latency);
+        }
+      }
+      return count;
+    }
+
+    @Override
+    public void run() {
+      while (true) {
+        if (drain() > 0) {
+          continue;
+        }
+        if (!running) {
+          // one last pass for points published while stopping
+          if (drain() == 0) {
+            return;
+          }
+          continue;
+        }
+        sleeping = true;
+        if (sequences.get((int) head.get() & ringMask) != head.get() + 1) {
+          LockSupport.parkNanos(this, IDLE_NANOS);
+        }
+        sleeping = false;
+      }
+    }
+
+    int depth() {
+      return (int) (tail.get() - head.get());
+    }
+  }
+
+  /**
+   * @param shardCount number of shards and owner threads, rounded up to a
+   * power of two. The stores must have at least as many stripes.
+   * @param capacity points each ring holds, rounded up to a power of two
+   * @param blockTimeoutMs how long {@link Overflow#BLOCK} waits for room
+   * before applying the point on the calling thread
+   */
+  public RollupPipeline(final Sink sink, final int shardCount, final int capacity, final Overflow overflow,
+                        final long blockTimeoutMs) {
+    this.sink = sink;
+    this.overflow = overflow;
+    this.blockTimeoutNanos = blockTimeoutMs * 1000000L;
+    int size = 1;
+    while (size < shardCount) {
+      size <<= 1;
+    }
+    this.shards = new Shard[size];
+    for (int i = 0; i < size; i++) {
+      this.shards[i] = new Shard(i, capacity);
+    }
+    this.mask = size - 1;
+  }
+
+  public void start() {
+    for (Shard shard : shards) {
+      shard.owner.start();
+    }
+  }
+
+  /** Stops taking points, then waits for the owner threads to apply what is queued. */
+  public void shutdown() {
+    for (Shard shard : shards) {
+      shard.running = false;
+      LockSupport.unpark(shard.owner);
+    }
+    for (Shard shard : shards) {
+      try {
+        shard.owner.join();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return;
+      }
+    }
+  }
+
+  public void publish(final long seriesId, final String metric, final Map<String, String> tags,
+                      final long ts, final long value) {
+    if (!offer(shardFor(seriesId), seriesId, metric, tags, ts, value, true)) {
+      sink.apply(seriesId, metric, tags, ts, value);
+    }
+  }
+
+  public void publish(final long seriesId, final String metric, final Map<String, String> tags,
+                      final long ts, final double value) {
+    if (!offer(shardFor(seriesId), seriesId, metric, tags, ts, Double.doubleToRawLongBits(value), false)) {
+      sink.apply(seriesId, metric, tags, ts, value);
+    }
+  }
+
+  /**
+   * @return true if the point was queued or dropped, false if the caller
+   * should apply it itself
+   */
+  private boolean offer(final Shard shard, final long seriesId, final String metric,
+                        final Map<String, String> tags, final long ts, final long value,
+                        final boolean isLong) {
+    if (!shard.running) {
+      return false;
+    }
+    if (shard.offer(seriesId, metric, tags, ts, value, isLong)) {
+      return true;
+    }
+    switch (overflow) {
+      case DROP:
+        dropped.incrementAndGet();
+        return true;
+      case BLOCK:
+        blocked.incrementAndGet();
+        final long deadline = System.nanoTime() + blockTimeoutNanos;
+        while (shard.running) {
+          LockSupport.parkNanos(1000L);
+          if (shard.offer(seriesId, metric, tags, ts, value, isLong)) {
+            return true;
+          }
+          if (System.nanoTime() - deadline >= 0) {
+            blockTimeouts.incrementAndGet();
+            direct.incrementAndGet();
+            return false;
+          }
+        }
+        return false;
+      default:
+        direct.incrementAndGet();
+        return false;
+    }
+  }
+
+  public long getApplied() {
+    long applied = 0;
+    for (Shard shard : shards) {
+      applied += shard.applied.get();
+    }
+    return applied;
+  }
+
+  public long getDropped() {
+    return dropped.get();
+  }
+
+  public long getDirect() {
+    return direct.get();
+  }
+
+  public long getBlockTimeouts() {
+    return blockTimeouts.get();
+  }
+
+  public int getShardCount() {
+    return shards.length;
+  }
+
+  /**
+   * Records the depth and drain latency of every shard. The latency is that
+   * of the oldest point in the last batch drained, the maximum is since the
+   * previous collection.
+   */
+  public void collectStats(final StatsCollector collector) {
+    for (int i = 0; i < shards.length; i++) {
+      final Shard shard = shards[i];
+      final String tag = "shard=" + i;
+      collector.record("rollup.pipeline.depth", shard.depth(), tag);
+      collector.record("rollup.pipeline.applied", shard.applied.get(), tag);
+      collector.record("rollup.pipeline.drain_latency_us", shard.latencyNanos.get() / 1000, tag);
+      collector.record("rollup.pipeline.drain_latency_max_us", shard.maxLatencyNanos.getAndSet(0) / 1000, tag);
+    }
+    collector.record("rollup.pipeline.dropped", dropped.get());
+    collector.record("rollup.pipeline.direct", direct.get());
+    collector.record("rollup.pipeline.blocked", blocked.get());
+    collector.record("rollup.pipeline.block_timeouts", blockTimeouts.get());
+  }
+
+  private Shard shardFor(final long seriesId) {
+    return shards[(int) (seriesId ^ (seriesId >>> 32)) & mask];
+  }
+}
@@ -0,0 +1,140 @@
+package io.tsdb.opentsdb.realtime;
+
+/**
+ * Copyright 2015 The DiscoveryPlugins Authors
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.Map;
+
+/**
+ * A single aggregate produced by a closed rollup window, waiting to be
+ * written back into the TSDB. A point with a rollup interval is written to
+ * the native rollup tables under its raw metric, otherwise it is a plain
+ * point of a rollup metric.
+ */
+public final class RollupPoint {
+  private final String metric;
+  private final long timestamp;
+  private final boolean isInteger;
+  private final long longValue;
+  private final double doubleValue;
+  private final Map<String, String> tags;
+  private final long windowEnd;
+  private final String interval;
+  private final String aggregator;
+  private final String groupByAggregator;
+
+  public RollupPoint(final String metric, final long timestamp, final long value,
+                     final Map<String, String> tags, final long windowEnd) {
+    this.metric = metric;
+    this.timestamp = timestamp;
+    this.isInteger = true;
+    this.longValue = value;
+    this.doubleValue = value;
+    this.tags = tags;
+    this.windowEnd = windowEnd;
+    this.interval = null;
+    this.aggregator = null;
+    this.groupByAggregator = null;
+  }
+
+  public RollupPoint(final String metric, final long timestamp, final double value,
+                     final Map<String, String> tags, final long windowEnd) {
+    this.metric = metric;
+    this.timestamp = timestamp;
+    this.isInteger = false;
+    this.longValue = (long) value;
+    this.doubleValue = value;
+    this.tags = tags;
+    this.windowEnd = windowEnd;
+    this.interval = null;
+    this.aggregator = null;
+    this.groupByAggregator = null;
+  }
+
+  private RollupPoint(final RollupPoint point, final String interval, final String aggregator,
+                     final String groupByAggregator) {
+    this.metric = point.metric;
+    this.timestamp = point.timestamp;
+    this.isInteger = point.isInteger;
+    this.longValue = point.longValue;
+    this.doubleValue = point.doubleValue;
+    this.tags = point.tags;
+    this.windowEnd = point.windowEnd;
+    this.interval = interval;
+    this.aggregator = aggregator;
+    this.groupByAggregator = groupByAggregator;
+  }
+
+  /**
+   * @param interval the rollup interval, as configured in the TSD's rollup config
+   * @param aggregator the aggregator over time, e.g. sum or count
+   * @param groupByAggregator the aggregator across series for a pre-aggregate,
+   * or null for the rollup of a single series
+   * @return a copy of this point to be written as a native rollup
+   */
+  public RollupPoint asNative(final String interval, final String aggregator, final String groupByAggregator) {
+    return new RollupPoint(this, interval, aggregator, groupByAggregator);
+  }
+
+  public String getMetric() {
+    return metric;
+  }
+
+  public long getTimestamp() {
+    return timestamp;
+  }
+
+  public boolean isInteger() {
+    return isInteger;
+  }
+
+  public long getLongValue() {
+    return longValue;
+  }
+
+  public double getDoubleValue() {
+    return doubleValue;
+  }
+
+  public Map<String, String> getTags() {
+    return tags;
+  }
+
+  public boolean isNative() {
+    return interval != null;
+  }
+
+  public boolean isGroupBy() {
+    return groupByAggregator != null;
+  }
+
+  public String getInterval() {
+    return interval;
+  }
+
+  public String getAggregator() {
+    return aggregator;
+  }
+
+  public String getGroupByAggregator() {
+    return groupByAggregator;
+  }
+
+  /** @return wall clock time in milliseconds at which the source window closed */
+  public long getWindowEnd() {
+    return windowEnd;
+  }
+}
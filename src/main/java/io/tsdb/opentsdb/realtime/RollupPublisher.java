@@ -18,46 +18,352 @@ package io.tsdb.opentsdb.realtime;
 
 import com.stumbleupon.async.Deferred;
 import io.tsdb.opentsdb.core.DataPoints;
-import net.opentsdb.core.IncomingDataPoint;
+import io.tsdb.opentsdb.core.DuplicateFilter;
+import io.tsdb.opentsdb.core.LongPairMap;
+import io.tsdb.opentsdb.core.SeriesKey;
 import net.opentsdb.core.TSDB;
 import net.opentsdb.meta.Annotation;
+import net.opentsdb.rollup.NoSuchRollupForIntervalException;
+import net.opentsdb.rollup.RollupConfig;
 import net.opentsdb.stats.StatsCollector;
 import net.opentsdb.tsd.RTPublisher;
 import net.opentsdb.utils.Config;
-import org.apache.commons.codec.digest.DigestUtils;
 import org.kohsuke.MetaInfServices;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
 
-import static io.tsdb.opentsdb.core.Utils.floorTimestamp;
-import static io.tsdb.opentsdb.core.Utils.getTagString;
-import static io.tsdb.opentsdb.core.Utils.makeDatapoint;
+import static io.tsdb.opentsdb.core.Utils.getConfigPropertyInt;
+import static io.tsdb.opentsdb.core.Utils.getConfigPropertyString;
+import static io.tsdb.opentsdb.core.Utils.toMillis;
+import static io.tsdb.opentsdb.core.Utils.toSeconds;
 
 @MetaInfServices
-public class RollupPublisher extends RTPublisher {
+public class RollupPublisher extends RTPublisher
+        implements RollupFlusher.WindowSource, RollupCheckpoint.Source, RollupPipeline.Sink {
 
   private static final Logger LOG = LoggerFactory.getLogger(RollupPublisher.class);
-  private Map<String, DataPoints> dataPointsMap;
+  /** The TSD has no getter for its publisher, the inspection endpoint finds it here. */
+  private static volatile RollupPublisher instance;
+  private List<RollupTier> tiers;
+  private List<RollupAggregator> aggregators;
+  private List<RollupAggregator> counterAggregators;
+  private List<String> rollupSuffixes;
+  private RollupFlusher flusher;
+  private RollupCheckpoint checkpoint;
+  private SeriesLimiter limiter;
+  private List<GroupByRule> groupBy;
+  private CounterTracker counters;
+  private RollupPipeline pipeline;
+  private SlidingWindows sliding;
+  private RecentBuffer recent;
+  private HeavyHitters heavySeries;
+  private HeavyHitters creations;
+  private DuplicateFilter dedup;
+  private RuleEngine rules;
+  private TransitionLog transitionLog;
+  private long topKInterval;
+  private boolean nativeOutput;
+  private int topMetrics;
+  private long idleTimeout;
   private int minutes = 5;
   private String rollupKey = "tsd.rtpublisher.rollup.window";
-  private TSDB tsdb;
+  private String windowsKey = "tsd.rtpublisher.rollup.windows";
+  private String aggregatorsKey = "tsd.rtpublisher.rollup.aggregators";
+  private String stripesKey = "tsd.rtpublisher.rollup.stripes";
+  private String sketchAccuracyKey = "tsd.rtpublisher.rollup.sketch.accuracy";
+  private String sketchBucketsKey = "tsd.rtpublisher.rollup.sketch.max_buckets";
+  private String latenessKey = "tsd.rtpublisher.rollup.allowed_lateness";
+  private String watermarkLagKey = "tsd.rtpublisher.rollup.max_watermark_lag";
+  private String storeKey = "tsd.rtpublisher.rollup.store";
+  private String maxDirectKey = "tsd.rtpublisher.rollup.offheap.max_direct_mb";
+  private String seriesBytesKey = "tsd.rtpublisher.rollup.offheap.max_series_bytes";
+  private String spillDirKey = "tsd.rtpublisher.rollup.offheap.spill_dir";
+  private String checkpointDirKey = "tsd.rtpublisher.rollup.checkpoint.dir";
+  private String checkpointIntervalKey = "tsd.rtpublisher.rollup.checkpoint.interval";
+  private String limitsKey = "tsd.rtpublisher.rollup.limits.";
+  private String groupByKey = "tsd.rtpublisher.rollup.groupby";
+  private String countersKey = "tsd.rtpublisher.rollup.counters";
+  private String counterMaxKey = "tsd.rtpublisher.rollup.counters.max";
+  private String counterAggregatorsKey = "tsd.rtpublisher.rollup.counters.aggregators";
+  private String pipelineKey = "tsd.rtpublisher.rollup.pipeline.";
+  private String outputKey = "tsd.rtpublisher.rollup.output";
+  private String slidingKey = "tsd.rtpublisher.rollup.sliding.";
+  private String topKKey = "tsd.rtpublisher.rollup.topk.";
+  private String recentKey = "tsd.rtpublisher.rollup.recent.";
+  private String rulesKey = "tsd.rtpublisher.rollup.rules";
+  private long allowedLateness;
+  private long maxWatermarkLag;
+  private final AtomicLong maxEventTime = new AtomicLong();
+  private final AtomicLong latePoints = new AtomicLong();
+  private volatile long watermark;
+  // rollup points restored from the checkpoint, guarded by the tiers
+  private List<RollupPoint> restoredPoints = new ArrayList<RollupPoint>();
 
   public void initialize(final TSDB tsdb) {
+    initialize(tsdb.getConfig(), tsdb.getRollupConfig(), RollupFlusher.tsdbWriter(tsdb));
+  }
+
+  /**
+   * @param rollups the TSD's rollup config, null if rollups aren't enabled
+   * @param writer writes the closed windows back to the TSD
+   */
+  void initialize(final Config config, final RollupConfig rollups, final RollupFlusher.Writer writer) {
     LOG.info("init RollupPublisher");
-    this.tsdb = tsdb;
-    this.dataPointsMap = new HashMap<String, DataPoints>();
-    Config config = tsdb.getConfig();
     if (config.hasProperty(rollupKey)) {
-      this.minutes = tsdb.getConfig().getInt(rollupKey);
+      this.minutes = config.getInt(rollupKey);
+    }
+    int stripes = getConfigPropertyInt(config, stripesKey, Runtime.getRuntime().availableProcessors() * 4);
+    int shards = getConfigPropertyInt(config, pipelineKey + "shards", 0);
+    // every stripe must belong to a single shard
+    stripes = Math.max(stripes, shards);
+    String output = getConfigPropertyString(config, outputKey, "metrics");
+    if (!"metrics".equals(output) && !"native".equals(output)) {
+      throw new IllegalArgumentException("Unknown rollup output " + output + ", expected metrics or native");
+    }
+    this.nativeOutput = "native".equals(output);
+    this.aggregators = RollupAggregator.parseList(
+            getConfigPropertyString(config, aggregatorsKey, this.nativeOutput ? "sum,count" : "avg"));
+    this.counters = new CounterTracker(getConfigPropertyString(config, countersKey, ""),
+            Long.parseLong(getConfigPropertyString(config, counterMaxKey, "0")), stripes);
+    if (this.nativeOutput && !this.counters.isEmpty()) {
+      // the increases would land under the raw metric, mixed with its values
+      throw new IllegalArgumentException("Counters can't be rolled up with native output");
+    }
+    this.counterAggregators = RollupAggregator.parseList(
+            getConfigPropertyString(config, counterAggregatorsKey, "rate"));
+    MetricPatterns slidingMetrics = new MetricPatterns(getConfigPropertyString(config, slidingKey + "metrics", ""));
+    List<RollupAggregator> slidingAggregators = RollupAggregator.parseList(
+            getConfigPropertyString(config, slidingKey + "aggregators", "avg"));
+    double sketchAccuracy = 0;
+    int sketchBuckets = getConfigPropertyInt(config, sketchBucketsKey, 1024);
+    List<RollupAggregator> all = new ArrayList<RollupAggregator>(this.aggregators);
+    if (!this.counters.isEmpty()) {
+      all.addAll(this.counterAggregators);
+    }
+    if (!slidingMetrics.isEmpty()) {
+      all.addAll(slidingAggregators);
+    }
+    for (RollupAggregator aggregator : all) {
+      if (aggregator.isQuantile()) {
+        sketchAccuracy = Double.parseDouble(getConfigPropertyString(config, sketchAccuracyKey, "0.01"));
+        LOG.info("Tracking quantiles with " + (sketchAccuracy * 100) + "% relative accuracy, "
+                + sketchBuckets + " buckets max");
+        break;
+      }
+    }
+    this.allowedLateness = getConfigPropertyInt(config, latenessKey, 30);
+    this.maxWatermarkLag = getConfigPropertyInt(config, watermarkLagKey, 600);
+    this.watermark = System.currentTimeMillis() / 1000 - this.maxWatermarkLag;
+    String backend = getConfigPropertyString(config, storeKey, "heap");
+    Map<Long, String> windows = RollupTier.parseWindows(
+            config.hasProperty(windowsKey) ? config.getString(windowsKey) : null, this.minutes);
+    this.tiers = new ArrayList<RollupTier>();
+    if ("offheap".equals(backend)) {
+      if (sketchAccuracy > 0) {
+        throw new IllegalArgumentException("Quantile aggregators are not supported by the offheap rollup store");
+      }
+      // the direct memory budget is shared evenly by the tiers
+      long maxDirect = getConfigPropertyInt(config, maxDirectKey, 256) * 1024L * 1024L / windows.size();
+      int seriesBytes = getConfigPropertyInt(config, seriesBytesKey, 256);
+      File spillDir = new File(getConfigPropertyString(config, spillDirKey, System.getProperty("java.io.tmpdir")));
+      for (Map.Entry<Long, String> window : windows.entrySet()) {
+        long seconds = window.getKey();
+        this.tiers.add(new RollupTier(seconds, window.getValue(), new OffHeapRollupStore(stripes, seconds,
+                this.allowedLateness, maxDirect, seriesBytes, spillDir)));
+      }
+      LOG.info("Keeping rollup windows off heap, " + maxDirect + " direct bytes per tier, spilling to " + spillDir);
+    } else if ("heap".equals(backend)) {
+      for (Map.Entry<Long, String> window : windows.entrySet()) {
+        long seconds = window.getKey();
+        this.tiers.add(new RollupTier(seconds, window.getValue(), new RollupStore(stripes, seconds,
+                this.allowedLateness, sketchAccuracy, sketchBuckets)));
+      }
+    } else {
+      throw new IllegalArgumentException("Unknown rollup store " + backend + ", expected heap or offheap");
+    }
+    this.groupBy = GroupByRule.parseList(getConfigPropertyString(config, groupByKey, ""));
+    if (!this.groupBy.isEmpty()) {
+      LOG.info("Pre-aggregating " + this.groupBy);
+    }
+    if (!slidingMetrics.isEmpty()) {
+      List<Long> slidingWindows = new ArrayList<Long>();
+      for (String window : getConfigPropertyString(config, slidingKey + "windows", "5m").split(",")) {
+        if (!window.trim().isEmpty()) {
+          slidingWindows.add(RollupTier.parseSeconds(window));
+        }
+      }
+      List<Long> halfLives = new ArrayList<Long>();
+      for (String halfLife : getConfigPropertyString(config, slidingKey + "ewma", "").split(",")) {
+        if (!halfLife.trim().isEmpty()) {
+          halfLives.add(RollupTier.parseSeconds(halfLife));
+        }
+      }
+      long slide = RollupTier.parseSeconds(getConfigPropertyString(config, slidingKey + "slide", "30s"));
+      this.sliding = new SlidingWindows(slidingMetrics, slide, slidingWindows, slidingAggregators, halfLives,
+              stripes, this.allowedLateness, sketchAccuracy, sketchBuckets);
+      LOG.info("Emitting sliding windows " + slidingWindows + "s every " + slide + "s, EWMA half lives "
+              + halfLives + "s");
+    }
+    MetricPatterns recentMetrics = new MetricPatterns(getConfigPropertyString(config, recentKey + "metrics", ""));
+    if (!recentMetrics.isEmpty()) {
+      long span = RollupTier.parseSeconds(getConfigPropertyString(config, recentKey + "span", "2h"));
+      this.recent = new RecentBuffer(recentMetrics, span * 1000L, stripes);
+      LOG.info("Keeping the last " + span + "s of raw points in memory");
+    }
+    if (this.counters.isEmpty()) {
+      this.counters = null;
+    } else {
+      LOG.info("Rolling up counters as " + this.counterAggregators);
+    }
+    this.rollupSuffixes = new ArrayList<String>();
+    if (this.nativeOutput) {
+      // native rollups don't come back through the publisher
+      checkNativeRollups(rollups, this.tiers, this.aggregators);
+    } else {
+      for (RollupTier tier : this.tiers) {
+        for (RollupAggregator aggregator : this.aggregators) {
+          this.rollupSuffixes.add("." + tier.getLabel() + "-" + aggregator.label());
+        }
+        if (this.counters != null) {
+          for (RollupAggregator aggregator : this.counterAggregators) {
+            if (!this.aggregators.contains(aggregator)) {
+              this.rollupSuffixes.add("." + tier.getLabel() + "-" + aggregator.label());
+            }
+          }
+        }
+      }
+    }
+    if (this.sliding != null) {
+      // sliding windows are always written as metrics
+      this.rollupSuffixes.addAll(this.sliding.suffixes());
+    }
+    this.idleTimeout = getConfigPropertyInt(config, limitsKey + "idle_timeout", 3600);
+    this.limiter = new SeriesLimiter(stripes,
+            getConfigPropertyInt(config, limitsKey + "metric_soft", 0),
+            getConfigPropertyInt(config, limitsKey + "metric_hard", 0),
+            getConfigPropertyInt(config, limitsKey + "global_soft", 0),
+            getConfigPropertyInt(config, limitsKey + "global_hard", 1000000),
+            Double.parseDouble(getConfigPropertyString(config, limitsKey + "sample_rate", "0.1")),
+            this.idleTimeout,
+            getConfigPropertyInt(config, limitsKey + "max_metrics", 10000));
+    this.topMetrics = getConfigPropertyInt(config, limitsKey + "top", 10);
+    int topK = getConfigPropertyInt(config, topKKey + "size", 20);
+    if (topK > 0) {
+      int width = getConfigPropertyInt(config, topKKey + "width", 4096);
+      long now = System.currentTimeMillis();
+      this.heavySeries = new HeavyHitters(topK, width, now);
+      this.creations = new HeavyHitters(topK, width, now);
+      this.limiter.trackCreations(this.creations);
+      this.topKInterval = getConfigPropertyInt(config, topKKey + "interval", 60) * 1000L;
+      LOG.info("Ranking the top " + topK + " series and metrics every " + this.topKInterval + "ms");
+    }
+    this.dedup = DuplicateFilter.fromConfig(config);
+    List<ThresholdRule> rules = ThresholdRule.parseList(getConfigPropertyString(config, rulesKey, ""));
+    String rulesFile = getConfigPropertyString(config, rulesKey + ".file", "");
+    if (!rulesFile.isEmpty()) {
+      try {
+        rules.addAll(ThresholdRule.parseList(new String(Files.readAllBytes(Paths.get(rulesFile)), "UTF-8")));
+      } catch (IOException e) {
+        throw new IllegalStateException("Unable to read rules from " + rulesFile, e);
+      }
+    }
+    if (!rules.isEmpty()) {
+      String log = getConfigPropertyString(config, rulesKey + ".log", "");
+      this.transitionLog = new TransitionLog(log.isEmpty() ? null : new File(log));
+      this.rules = new RuleEngine(rules, this.transitionLog, stripes, this.allowedLateness, this.idleTimeout);
+      LOG.info("Evaluating " + rules.size() + " threshold rules, transitions to " + (log.isEmpty() ? "the log" : log));
+    }
+    LOG.info("Using " + stripes + " rollup store stripes, " + this.allowedLateness + "s allowed lateness");
+    if (this.nativeOutput) {
+      LOG.info("Using windows of: " + this.tiers.size() + " tiers, emitting native rollups " + this.aggregators);
+    } else {
+      LOG.info("Using windows of: " + this.tiers.size() + " tiers, emitting " + this.rollupSuffixes);
+    }
+    // created before the checkpoint, which asks it for the points not written yet
+    this.flusher = new RollupFlusher(config, writer, this);
+    String checkpointDir = getConfigPropertyString(config, checkpointDirKey, "");
+    if (!checkpointDir.isEmpty()) {
+      this.checkpoint = new RollupCheckpoint(new File(checkpointDir, "rollup.checkpoint"), this.tiers, this);
+      try {
+        this.checkpoint.restore();
+      } catch (IOException e) {
+        throw new IllegalStateException("Unable to restore rollup checkpoint from " + checkpointDir, e);
+      }
+      this.checkpoint.start(getConfigPropertyInt(config, checkpointIntervalKey, 30));
+    }
+    if (shards > 0) {
+      RollupPipeline.Overflow overflow = RollupPipeline.Overflow.valueOf(
+              getConfigPropertyString(config, pipelineKey + "overflow", "block").toUpperCase());
+      this.pipeline = new RollupPipeline(this, shards,
+              getConfigPropertyInt(config, pipelineKey + "capacity", 65536), overflow,
+              getConfigPropertyInt(config, pipelineKey + "block_timeout_ms", 10));
+      this.pipeline.start();
+      LOG.info("Ingesting through " + this.pipeline.getShardCount() + " pipeline shards, "
+              + overflow.name().toLowerCase() + " on overflow");
+    }
+    this.flusher.start();
+    instance = this;
+  }
+
+  /** @return the publisher of this TSD, or null when it isn't running */
+  static RollupPublisher current() {
+    return instance;
+  }
+
+  /**
+   * Native rollups are written to the rollup tables of the TSD, so every
+   * window must be one of its configured rollup intervals and every
+   * aggregator one that the tables and pre-aggregates can hold.
+   */
+  static void checkNativeRollups(final RollupConfig rollups, final List<RollupTier> tiers,
+                                 final List<RollupAggregator> aggregators) {
+    if (rollups == null) {
+      throw new IllegalArgumentException("Native rollup output needs tsd.rollups.enable and a rollup config");
+    }
+    for (RollupTier tier : tiers) {
+      try {
+        rollups.getRollupInterval(tier.getLabel());
+      } catch (NoSuchRollupForIntervalException e) {
+        throw new IllegalArgumentException("Rollup window " + tier.getLabel()
+                + " is not a configured rollup interval of the TSD");
+      }
+    }
+    for (RollupAggregator aggregator : aggregators) {
+      if (aggregator.nativeGroupBy() == null) {
+        throw new IllegalArgumentException("Rollup aggregator " + aggregator.label()
+                + " can't be written as a native rollup, use sum, count, min or max");
+      }
+      rollups.getIdForAggregator(aggregator.label());
     }
-    LOG.info("Using window of:" + this.minutes + " minutes");
   }
 
   public Deferred<Object> shutdown() {
-    this.storeRollups();
-    return null;
+    if (instance == this) {
+      instance = null;
+    }
+    if (this.pipeline != null) {
+      // apply whatever is still queued before the last flush
+      this.pipeline.shutdown();
+    }
+    Deferred<Object> flushed = this.flusher.shutdown();
+    if (this.checkpoint != null) {
+      this.checkpoint.shutdown();
+    }
+    // every window has been drained into the flusher by now
+    for (RollupTier tier : this.tiers) {
+      tier.getStore().close();
+    }
+    if (this.transitionLog != null) {
+      this.transitionLog.close();
+    }
+    return flushed;
   }
 
   public String version() {
@@ -65,24 +371,129 @@ public class RollupPublisher extends RTPublisher {
   }
 
   public void collectStats(final StatsCollector collector) {
+    for (RollupTier tier : this.tiers) {
+      collector.record("rollup.windows.open", tier.getStore().size(), "window=" + tier.getLabel());
+      if (tier.getStore() instanceof OffHeapRollupStore) {
+        OffHeapRollupStore store = (OffHeapRollupStore) tier.getStore();
+        collector.record("rollup.offheap.direct_bytes", store.getDirectBytes(), "window=" + tier.getLabel());
+        collector.record("rollup.offheap.spilled_bytes", store.getSpilledBytes(), "window=" + tier.getLabel());
+      }
+    }
+    collector.record("rollup.points.late", this.latePoints.get());
+    if (this.dedup != null) {
+      this.dedup.collectStats(collector);
+    }
+    collector.record("rollup.watermark.lag", System.currentTimeMillis() / 1000 - this.watermark);
+    this.limiter.collectStats(collector, this.topMetrics);
+    if (this.counters != null) {
+      this.counters.collectStats(collector);
+    }
+    if (this.pipeline != null) {
+      this.pipeline.collectStats(collector);
+    }
+    if (this.sliding != null) {
+      this.sliding.collectStats(collector);
+    }
+    if (this.recent != null) {
+      this.recent.collectStats(collector);
+    }
+    if (this.rules != null) {
+      this.rules.collectStats(collector);
+    }
+    if (this.heavySeries != null) {
+      // the names only fit in a tag by metric, the inspection endpoint has the series
+      Map<String, Double> rates = new LinkedHashMap<String, Double>();
+      for (HeavyHitters.Hitter hitter : this.heavySeries.previous()) {
+        Double rate = rates.get(hitter.getMetric());
+        rates.put(hitter.getMetric(), rate == null ? hitter.getRate() : rate + hitter.getRate());
+      }
+      for (Map.Entry<String, Double> rate : rates.entrySet()) {
+        collector.record("rollup.topk.points_per_sec", rate.getValue().longValue(), "metric=" + rate.getKey());
+      }
+      for (HeavyHitters.Hitter hitter : this.creations.previous()) {
+        collector.record("rollup.topk.new_series_per_sec", (long) hitter.getRate(), "metric=" + hitter.getMetric());
+      }
+    }
+    this.flusher.collectStats(collector);
+    if (this.checkpoint != null) {
+      this.checkpoint.collectStats(collector);
+    }
   }
 
   public Deferred<Object> publishDataPoint(final String metric,
                                            final long timestamp, final long value, final Map<String, String> tags,
                                            final byte[] tsuid) {
-    LOG.trace("Storing Datapoint: " + metric + " " + timestamp + " " + value);
-    IncomingDataPoint dp = makeDatapoint(metric + "." + Objects.toString(this.minutes) + "m-avg", timestamp, value, tags);
-    storeDatapoint(dp);
-    return new Deferred<Object>();
+    if (isRollupMetric(metric)) {
+      // our own rollups coming back through TSDB.addPoint
+      return null;
+    }
+    if (LOG.isTraceEnabled()) {
+      LOG.trace("Storing Datapoint: " + metric + " " + timestamp + " " + value);
+    }
+    long seriesId = seriesId(metric, tags, tsuid);
+    if (this.dedup != null && this.dedup.isDuplicate(seriesId, toMillis(timestamp), System.currentTimeMillis())) {
+      return null;
+    }
+    if (this.heavySeries != null) {
+      this.heavySeries.add(seriesId, metric, tags);
+    }
+    if (this.rules != null) {
+      // rules see every point, whether or not it is late or its series limited for the rollups
+      this.rules.add(seriesId, metric, tags, toMillis(timestamp), value);
+    }
+    if (this.recent != null && this.recent.matches(metric)) {
+      // like the rules, recent data shows the points the rollups leave out
+      this.recent.addValue(seriesId, metric, tags, toMillis(timestamp), value);
+    }
+    RollupTier tier = this.tiers.get(0);
+    long ts = toSeconds(timestamp);
+    if (!admit(tier, tier.windowStart(ts), ts)) {
+      return null;
+    }
+    if (this.pipeline != null) {
+      this.pipeline.publish(seriesId, metric, tags, toMillis(timestamp), value);
+    } else {
+      apply(seriesId, metric, tags, toMillis(timestamp), value);
+    }
+    return null;
   }
 
   public Deferred<Object> publishDataPoint(final String metric,
                                            final long timestamp, final double value, final Map<String, String> tags,
                                            final byte[] tsuid) {
-    LOG.trace("Storing Datapoint: " + metric + " " + timestamp + " " + value);
-    IncomingDataPoint dp = makeDatapoint(metric + "." + Objects.toString(this.minutes) + "m-avg", timestamp, value, tags);
-    storeDatapoint(dp);
-    return new Deferred<Object>();
+    if (isRollupMetric(metric)) {
+      // our own rollups coming back through TSDB.addPoint
+      return null;
+    }
+    if (LOG.isTraceEnabled()) {
+      LOG.trace("Storing Datapoint: " + metric + " " + timestamp + " " + value);
+    }
+    long seriesId = seriesId(metric, tags, tsuid);
+    if (this.dedup != null && this.dedup.isDuplicate(seriesId, toMillis(timestamp), System.currentTimeMillis())) {
+      return null;
+    }
+    if (this.heavySeries != null) {
+      this.heavySeries.add(seriesId, metric, tags);
+    }
+    if (this.rules != null) {
+      // rules see every point, whether or not it is late or its series limited for the rollups
+      this.rules.add(seriesId, metric, tags, toMillis(timestamp), value);
+    }
+    if (this.recent != null && this.recent.matches(metric)) {
+      // like the rules, recent data shows the points the rollups leave out
+      this.recent.addValue(seriesId, metric, tags, toMillis(timestamp), value);
+    }
+    RollupTier tier = this.tiers.get(0);
+    long ts = toSeconds(timestamp);
+    if (!admit(tier, tier.windowStart(ts), ts)) {
+      return null;
+    }
+    if (this.pipeline != null) {
+      this.pipeline.publish(seriesId, metric, tags, toMillis(timestamp), value);
+    } else {
+      apply(seriesId, metric, tags, toMillis(timestamp), value);
+    }
+    return null;
   }
 
   @Override
@@ -90,39 +501,325 @@ public class RollupPublisher extends RTPublisher {
     return null;
   }
 
-  private void storeDatapoint(final IncomingDataPoint dp) {
-    long ts = floorTimestamp(new Date(dp.getTimestamp()), this.minutes).getTime();
-    String tagString = getTagString(new HashMap<String, String>(dp.getTags()));
-    String key = DigestUtils.md5Hex(dp.getMetric() + Objects.toString(ts) + tagString);
-    LOG.trace("Key evaluates to: " + key);
-    if (!this.dataPointsMap.containsKey(key)) {
-      LOG.trace("adding new dps key, timestamp: " + ts);
-      this.dataPointsMap.put(key, new DataPoints(ts, dp));
-    } else {
-      LOG.trace("adding to existing dps, timestamp: " + ts);
-      DataPoints dps = this.dataPointsMap.get(key);
-      dps.addDatapoint(dp);
-      this.dataPointsMap.replace(key, dps);
+  /**
+   * Rolls a point up into its first tier window, on the publishing thread or
+   * on the pipeline shard owning the series.
+   */
+  @Override
+  public void apply(final long seriesId, final String metric, final Map<String, String> tags,
+                    final long ts, final long value) {
+    RollupTier tier = this.tiers.get(0);
+    long windowTs = tier.windowStart(ts / 1000);
+    if (this.pipeline != null && tier.getStore().deadline(windowTs) <= this.watermark) {
+      // the window closed while the point was queued
+      this.latePoints.incrementAndGet();
+      return;
+    }
+    if (!this.limiter.admit(metric, seriesId, System.currentTimeMillis() / 1000)) {
+      return;
     }
+    if (this.counters != null && this.counters.isCounter(metric)) {
+      long increase = this.counters.increase(seriesId, ts, value);
+      if (increase == CounterTracker.NONE) {
+        return;
+      }
+      addValue(tier, seriesId, metric, windowTs, tags, ts, increase);
+      return;
+    }
+    addValue(tier, seriesId, metric, windowTs, tags, ts, value);
+  }
+
+  private void addValue(final RollupTier tier, final long seriesId, final String metric, final long windowTs,
+                        final Map<String, String> tags, final long ts, final long value) {
+    if (!tier.getStore().addValue(seriesId, metric, windowTs, tags, ts, value)) {
+      // expired since the watermark was checked
+      this.latePoints.incrementAndGet();
+      return;
+    }
+    if (this.sliding != null && this.sliding.matches(metric)) {
+      this.sliding.addValue(seriesId, metric, tags, ts, value);
+    }
+  }
+
+  @Override
+  public void apply(final long seriesId, final String metric, final Map<String, String> tags,
+                    final long ts, final double value) {
+    RollupTier tier = this.tiers.get(0);
+    long windowTs = tier.windowStart(ts / 1000);
+    if (this.pipeline != null && tier.getStore().deadline(windowTs) <= this.watermark) {
+      // the window closed while the point was queued
+      this.latePoints.incrementAndGet();
+      return;
+    }
+    if (!this.limiter.admit(metric, seriesId, System.currentTimeMillis() / 1000)) {
+      return;
+    }
+    if (this.counters != null && this.counters.isCounter(metric)) {
+      double increase = this.counters.increase(seriesId, ts, value);
+      if (Double.isNaN(increase)) {
+        return;
+      }
+      addValue(tier, seriesId, metric, windowTs, tags, ts, increase);
+      return;
+    }
+    addValue(tier, seriesId, metric, windowTs, tags, ts, value);
   }
 
-  private void storeRollups() {
-    if (this.dataPointsMap.size()== 0) {
-      LOG.debug("No DataPoints to consider for rollup");
+  private void addValue(final RollupTier tier, final long seriesId, final String metric, final long windowTs,
+                        final Map<String, String> tags, final long ts, final double value) {
+    if (!tier.getStore().addValue(seriesId, metric, windowTs, tags, ts, value)) {
+      // expired since the watermark was checked
+      this.latePoints.incrementAndGet();
       return;
     }
-    LOG.debug("Considering " + this.dataPointsMap.size() + " DataPoints for rollup");
-    long maximumTS = floorTimestamp(new Date(), this.minutes).getTime();
-    for (Map.Entry<String, DataPoints> entry : this.dataPointsMap.entrySet()) {
-      DataPoints dps = entry.getValue();
-      if (dps.getTimestamp() < (maximumTS)) {
-        IncomingDataPoint avgDP = dps.getAvgValue();
-        LOG.debug( "Key: " + entry.getKey() + " Metric: " + dps.getMetric() +
-                " Timestamp: " + Objects.toString(dps.getTimestamp()) +
-                " Tags: " + getTagString(dps.getTags()) + " Avg: " + avgDP.getValue());
-        LOG.trace("removing " + entry.getKey() + " from dataPointsMap");
-        this.dataPointsMap.remove(entry.getKey());
+    if (this.sliding != null && this.sliding.matches(metric)) {
+      this.sliding.addValue(seriesId, metric, tags, ts, value);
+    }
+  }
+
+  /**
+   * Advances the event time high water mark and rejects points whose window
+   * has already been closed by the watermark.
+   */
+  private boolean admit(final RollupTier tier, final long windowTs, final long ts) {
+    if (tier.getStore().deadline(windowTs) <= this.watermark) {
+      this.latePoints.incrementAndGet();
+      return false;
+    }
+    long seen = this.maxEventTime.get();
+    while (ts > seen && !this.maxEventTime.compareAndSet(seen, ts)) {
+      seen = this.maxEventTime.get();
+    }
+    return true;
+  }
+
+  /**
+   * The watermark follows the newest event time seen, but never runs ahead of
+   * the wall clock, so a client with a skewed clock can't close every window,
+   * and never falls further behind it than the maximum lag, so windows still
+   * close when points stop arriving.
+   */
+  private long advanceWatermark() {
+    long now = System.currentTimeMillis() / 1000;
+    long next = Math.max(Math.min(this.maxEventTime.get(), now), now - this.maxWatermarkLag);
+    if (next > this.watermark) {
+      this.watermark = next;
+    }
+    return this.watermark;
+  }
+
+  /** @return the tier with the given label, the smallest for null, or null if there is none */
+  RollupTier getTier(final String label) {
+    if (label == null) {
+      return this.tiers.get(0);
+    }
+    for (RollupTier tier : this.tiers) {
+      if (tier.getLabel().equals(label)) {
+        return tier;
+      }
+    }
+    return null;
+  }
+
+  /** @return the aggregator emitted first for the metric */
+  RollupAggregator defaultAggregator(final String metric) {
+    return this.counters != null && this.counters.isCounter(metric)
+            ? this.counterAggregators.get(0) : this.aggregators.get(0);
+  }
+
+  /**
+   * Copies the open windows of the metric in the given tier. The open
+   * windows of the smaller tiers are merged in, as they only reach the tier
+   * once they close. The tier list is held like the flusher does, so no
+   * window is missed or counted twice while moving up a tier, but no stripe
+   * is, so ingest carries on.
+   */
+  List<DataPoints> liveWindows(final String metric, final RollupTier tier) {
+    LongPairMap<DataPoints> merged = new LongPairMap<DataPoints>();
+    List<DataPoints> result = new ArrayList<DataPoints>();
+    List<DataPoints> windows = new ArrayList<DataPoints>();
+    synchronized (this.tiers) {
+      for (RollupTier smaller : this.tiers) {
+        windows.clear();
+        smaller.getStore().snapshot(metric, windows);
+        for (DataPoints dps : windows) {
+          long windowTs = tier.windowStart(dps.getTimestamp());
+          DataPoints window = merged.get(dps.getSeriesId(), windowTs);
+          if (window == null) {
+            window = new DataPoints(dps.getSeriesId(), metric, windowTs, dps.getTags());
+            merged.put(dps.getSeriesId(), windowTs, window);
+            result.add(window);
+          }
+          window.merge(dps);
+        }
+        if (smaller == tier) {
+          break;
+        }
+      }
+    }
+    return result;
+  }
+
+  /** @return the recent raw points, or null when not kept */
+  RecentBuffer getRecent() {
+    return this.recent;
+  }
+
+  /** @return the threshold rules, or null when there are none */
+  RuleEngine getRules() {
+    return this.rules;
+  }
+
+  /** @return the series sending the most points, or null when not tracked */
+  HeavyHitters getHeavySeries() {
+    return this.heavySeries;
+  }
+
+  /** @return the metrics creating the most series, or null when not tracked */
+  HeavyHitters getCreations() {
+    return this.creations;
+  }
+
+  @Override
+  public long getWatermark() {
+    return this.watermark;
+  }
+
+  @Override
+  public long getMaxEventTime() {
+    return this.maxEventTime.get();
+  }
+
+  @Override
+  public void unwritten(final List<RollupPoint> into) {
+    into.addAll(this.restoredPoints);
+    this.flusher.unwritten(into);
+  }
+
+  @Override
+  public void restored(final long watermark, final long maxEventTime, final List<RollupPoint> unwritten) {
+    if (watermark > this.watermark) {
+      this.watermark = watermark;
+    }
+    this.maxEventTime.set(Math.max(this.maxEventTime.get(), maxEventTime));
+    // handed to the flusher with the first windows it closes
+    this.restoredPoints = new ArrayList<RollupPoint>(unwritten);
+  }
+
+  private boolean isRollupMetric(final String metric) {
+    for (int i = 0; i < this.rollupSuffixes.size(); i++) {
+      if (metric.endsWith(this.rollupSuffixes.get(i))) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * The TSUID already identifies the series exactly, so it is hashed when the
+   * TSD provides it. Otherwise the metric and a canonical hash of the tags
+   * are used.
+   */
+  private static long seriesId(final String metric, final Map<String, String> tags, final byte[] tsuid) {
+    return tsuid != null ? SeriesKey.hash(tsuid) : SeriesKey.hash(metric, tags);
+  }
+
+  /**
+   * Walks the tiers smallest first. Every window that closed in a tier is
+   * turned into one point per aggregator and merged into the next tier, so
+   * a larger window is built from a handful of closed small windows rather
+   * than from the raw points.
+   */
+  @Override
+  public List<RollupPoint> closedWindows(final boolean all) {
+    long now = System.currentTimeMillis();
+    this.limiter.evictIdle(now / 1000);
+    if (this.recent != null) {
+      this.recent.trim(now);
+    }
+    if (this.dedup != null) {
+      this.dedup.prepareSpare();
+    }
+    if (this.heavySeries != null && this.heavySeries.elapsed(now) >= this.topKInterval) {
+      this.heavySeries.rotate(now);
+      this.creations.rotate(now);
+    }
+    if (this.counters != null) {
+      this.counters.evictBefore(this.watermark - this.idleTimeout);
+    }
+    List<RollupPoint> points;
+    // checkpoints hold this too, so they see the watermark and windows of one expiry
+    synchronized (this.tiers) {
+      points = this.restoredPoints;
+      this.restoredPoints = new ArrayList<RollupPoint>();
+      long watermark = advanceWatermark();
+      closeWindows(all, watermark, points);
+      if (this.sliding != null) {
+        this.sliding.close(watermark, all, points);
+      }
+      // before the next checkpoint, which no longer sees the windows closed
+      this.flusher.track(points);
+    }
+    if (this.rules != null) {
+      this.rules.advance(this.watermark);
+    }
+    return points;
+  }
+
+  private void closeWindows(final boolean all, final long watermark, final List<RollupPoint> points) {
+    for (int i = 0; i < this.tiers.size(); i++) {
+      RollupTier tier = this.tiers.get(i);
+      RollupTier next = i + 1 < this.tiers.size() ? this.tiers.get(i + 1) : null;
+      List<DataPoints> closed = all ? tier.getStore().removeAll() : tier.getStore().expire(watermark);
+      if (closed.size() == 0) {
+        LOG.debug("No DataPoints to consider for " + tier.getLabel() + " rollup");
+        continue;
+      }
+      LOG.debug("Considering " + closed.size() + " DataPoints for " + tier.getLabel() + " rollup");
+      for (GroupByRule rule : this.groupBy) {
+        for (DataPoints group : rule.aggregate(closed)) {
+          emit(tier, group, rule.sourceMetric(group.getMetric()), true, points);
+        }
+      }
+      for (DataPoints dps : closed) {
+        emit(tier, dps, dps.getMetric(), false, points);
+        if (next != null) {
+          long nextTs = next.windowStart(dps.getTimestamp());
+          next.getStore().merge(nextTs, dps);
+        }
+      }
+    }
+  }
+
+  /**
+   * @param source the metric of the raw points, which picks the aggregators:
+   * the windows of counters hold increases rather than values
+   * @param grouped true for the window of a group by rule
+   */
+  private void emit(final RollupTier tier, final DataPoints dps, final String source, final boolean grouped,
+                    final List<RollupPoint> points) {
+    List<RollupAggregator> aggregators = this.counters != null && this.counters.isCounter(source)
+            ? this.counterAggregators : this.aggregators;
+    emit(tier, dps, source, grouped, aggregators, this.nativeOutput, points);
+  }
+
+  /**
+   * Adds a point per aggregator for the window, under the raw metric for
+   * native output, otherwise under the rollup metric of the tier.
+   */
+  static void emit(final RollupTier tier, final DataPoints dps, final String source, final boolean grouped,
+                   final List<RollupAggregator> aggregators, final boolean nativeOutput,
+                   final List<RollupPoint> points) {
+    long windowEnd = dps.getTimestamp() * 1000L + tier.getSeconds() * 1000L;
+    for (RollupAggregator aggregator : aggregators) {
+      if (nativeOutput) {
+        // under the raw metric, the rollup and pre-aggregate tables keep them apart
+        RollupPoint point = aggregator.toPoint(source, dps.getTimestamp(), dps.getTags(), windowEnd, dps);
+        points.add(point.asNative(tier.getLabel(), aggregator.label(), grouped ? aggregator.nativeGroupBy() : null));
+      } else {
+        String rollupMetric = dps.getMetric() + "." + tier.getLabel() + "-" + aggregator.label();
+        points.add(aggregator.toPoint(rollupMetric, dps.getTimestamp(), dps.getTags(), windowEnd, dps));
       }
     }
   }
-}
\ No newline at end of file
+}
@@ -0,0 +1,313 @@
+package io.tsdb.opentsdb.realtime;
+
+/**
+ * Copyright 2015 The DiscoveryPlugins Authors
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import com.stumbleupon.async.Deferred;
+import io.tsdb.opentsdb.core.DataPoints;
+import io.tsdb.opentsdb.core.GorillaChunk;
+import net.opentsdb.core.TSDB;
+import net.opentsdb.core.Tags;
+import net.opentsdb.query.filter.TagVFilter;
+import net.opentsdb.stats.StatsCollector;
+import net.opentsdb.tsd.BadRequestException;
+import net.opentsdb.tsd.HttpRpcPlugin;
+import net.opentsdb.tsd.HttpRpcPluginQuery;
+import net.opentsdb.utils.DateTime;
+import net.opentsdb.utils.JSON;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.handler.codec.http.HttpResponseStatus;
+import org.kohsuke.MetaInfServices;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Inspection endpoint of the real-time rollups, served by the TSD under
+ * /plugin/rollup once listed in tsd.http.rpc.plugins:
+ * <ul>
+ * <li>/plugin/rollup/topk: the series sending the most points and the
+ * metrics creating the most series, for the interval so far and the last
+ * one that ended. ?n= limits the entries.</li>
+ * <li>/plugin/rollup/recent?m=sys.cpu.user{host=web*}&amp;start=1h-ago: the
+ * raw points kept in memory, one entry per series in the format of
+ * /api/query. start defaults to the whole span, end to now, and ms returns
+ * millisecond timestamps.</li>
+ * <li>/plugin/rollup/live?m=p99:sys.cpu.user{host=web*}&amp;window=1h: the
+ * current value of the windows that haven't closed yet, one entry per
+ * series in the format of /api/query keyed by window start. The aggregator
+ * defaults to the first one emitted for the metric, the window to the
+ * smallest.</li>
+ * <li>/plugin/rollup/rules: the series breaching a threshold rule, with the
+ * start of the first window that breached it and the value of the latest.</li>
+ * </ul>
+ */
+@MetaInfServices
+public class RollupRpc extends HttpRpcPlugin {
+  private static final Logger LOG = LoggerFactory.getLogger(RollupRpc.class);
+
+  @Override
+  public void initialize(final TSDB tsdb) {
+    LOG.info("init RollupRpc");
+  }
+
+  @Override
+  public Deferred<Object> shutdown() {
+    return Deferred.fromResult(null);
+  }
+
+  @Override
+  public String version() {
+    return "2.3.0";
+  }
+
+  @Override
+  public void collectStats(final StatsCollector collector) {
+  }
+
+  @Override
+  public String getPath() {
+    return "rollup";
+  }
+
+  @Override
+  public void execute(final TSDB tsdb, final HttpRpcPluginQuery query) throws IOException {
+    final RollupPublisher publisher = RollupPublisher.current();
+    if (publisher == null) {
+      query.sendBuffer(HttpResponseStatus.SERVICE_UNAVAILABLE,
+              ChannelBuffers.wrappedBuffer("The rollup publisher is not running".getBytes("UTF-8")), "text/plain");
+      return;
+    }
+    final String[] path = query.explodePath();
+    final String route = path.length > 0 ? path[path.length - 1] : "";
+    if ("topk".equals(route)) {
+      reply(query, topK(publisher, limit(query)));
+    } else if ("recent".equals(route)) {
+      reply(query, recent(publisher, query));
+    } else if ("live".equals(route)) {
+      reply(query, live(publisher, query));
+    } else if ("rules".equals(route)) {
+      reply(query, rules(publisher));
+    } else {
+      query.notFound();
+    }
+  }
+
+  private static Map<String, Object> topK(final RollupPublisher publisher, final int limit) {
+    final HeavyHitters series = publisher.getHeavySeries();
+    if (series == null) {
+      throw new BadRequestException("Top-K tracking is disabled, see tsd.rtpublisher.rollup.topk.size");
+    }
+    final long now = System.currentTimeMillis();
+    final Map<String, Object> result = new LinkedHashMap<String, Object>();
+    result.put("elapsed", series.elapsed(now) / 1000);
+    result.put("series", ranking(series, now, limit));
+    result.put("newSeries", ranking(publisher.getCreations(), now, limit));
+    return result;
+  }
+
+  private static List<Map<String, Object>> recent(final RollupPublisher publisher,
+                                                  final HttpRpcPluginQuery query) {
+    final RecentBuffer recent = publisher.getRecent();
+    if (recent == null) {
+      throw new BadRequestException("Recent data is not kept, see tsd.rtpublisher.rollup.recent.metrics");
+    }
+    final List<TagVFilter> filters = new ArrayList<TagVFilter>();
+    final String metric = parseMetric(query, filters);
+    final String tz = query.getQueryStringParam("tz");
+    final long start = query.hasQueryStringParam("start")
+            ? parseTime(query.getQueryStringParam("start"), tz) : 0;
+    final long end = query.hasQueryStringParam("end")
+            ? parseTime(query.getQueryStringParam("end"), tz) : Long.MAX_VALUE;
+    final boolean ms = query.hasQueryStringParam("ms");
+    final List<Map<String, Object>> results = new ArrayList<Map<String, Object>>();
+    for (RecentBuffer.Snapshot series : recent.query(metric, start, end)) {
+      if (!matches(filters, series.getTags())) {
+        continue;
+      }
+      final boolean integral = series.isIntegral();
+      final Map<String, Object> dps = new LinkedHashMap<String, Object>();
+      for (GorillaChunk chunk : series.getChunks()) {
+        final GorillaChunk.Iterator it = chunk.iterator();
+        while (it.hasNext()) {
+          it.next();
+          if (it.timestamp() < start || it.timestamp() > end) {
+            continue;
+          }
+          final String ts = Long.toString(ms ? it.timestamp() : it.timestamp() / 1000);
+          dps.put(ts, integral ? (Object) (long) it.value() : (Object) it.value());
+        }
+      }
+      if (dps.isEmpty()) {
+        continue;
+      }
+      final Map<String, Object> result = new LinkedHashMap<String, Object>();
+      result.put("metric", series.getMetric());
+      result.put("tags", series.getTags());
+      result.put("aggregateTags", new ArrayList<String>());
+      result.put("dps", dps);
+      results.add(result);
+    }
+    return results;
+  }
+
+  private static List<Map<String, Object>> live(final RollupPublisher publisher, final HttpRpcPluginQuery query) {
+    final String m = query.getRequiredQueryStringParam("m");
+    final int colon = m.indexOf(':');
+    final List<TagVFilter> filters = new ArrayList<TagVFilter>();
+    final String metric = parseMetric(colon < 0 ? m : m.substring(colon + 1), filters);
+    final RollupAggregator aggregator;
+    if (colon < 0) {
+      aggregator = publisher.defaultAggregator(metric);
+    } else {
+      try {
+        aggregator = RollupAggregator.parseList(m.substring(0, colon)).get(0);
+      } catch (IllegalArgumentException e) {
+        throw new BadRequestException(e.getMessage());
+      }
+    }
+    final RollupTier tier = publisher.getTier(query.getQueryStringParam("window"));
+    if (tier == null) {
+      throw new BadRequestException("No rollup window " + query.getQueryStringParam("window"));
+    }
+    final boolean ms = query.hasQueryStringParam("ms");
+    // windows of a series in start order
+    final Map<Long, Map<String, Object>> bySeries = new LinkedHashMap<Long, Map<String, Object>>();
+    for (DataPoints window : publisher.liveWindows(metric, tier)) {
+      if (window.getCount() == 0 || !matches(filters, window.getTags())) {
+        continue;
+      }
+      final long windowEnd = (window.getTimestamp() + tier.getSeconds()) * 1000L;
+      final RollupPoint point = aggregator.toPoint(metric, window.getTimestamp(), window.getTags(), windowEnd,
+              window);
+      if (!point.isInteger() && Double.isNaN(point.getDoubleValue())) {
+        // a quantile without sketches
+        continue;
+      }
+      Map<String, Object> result = bySeries.get(window.getSeriesId());
+      if (result == null) {
+        result = new LinkedHashMap<String, Object>();
+        result.put("metric", metric);
+        result.put("tags", window.getTags());
+        result.put("aggregateTags", new ArrayList<String>());
+        result.put("dps", new TreeMap<Long, Object>());
+        bySeries.put(window.getSeriesId(), result);
+      }
+      @SuppressWarnings("unchecked")
+      final Map<Long, Object> dps = (Map<Long, Object>) result.get("dps");
+      dps.put(ms ? window.getTimestamp() * 1000L : window.getTimestamp(),
+              point.isInteger() ? (Object) point.getLongValue() : (Object) point.getDoubleValue());
+    }
+    return new ArrayList<Map<String, Object>>(bySeries.values());
+  }
+
+  private static List<Map<String, Object>> rules(final RollupPublisher publisher) {
+    final RuleEngine rules = publisher.getRules();
+    if (rules == null) {
+      throw new BadRequestException("No threshold rules, see tsd.rtpublisher.rollup.rules");
+    }
+    final List<Map<String, Object>> results = new ArrayList<Map<String, Object>>();
+    for (RuleEngine.Transition breach : rules.breaching()) {
+      results.add(TransitionLog.toJson(breach));
+    }
+    return results;
+  }
+
+  /** Parses the m parameter, a metric and optional tag filters as in /api/query. */
+  static String parseMetric(final HttpRpcPluginQuery query, final List<TagVFilter> filters) {
+    return parseMetric(query.getRequiredQueryStringParam("m"), filters);
+  }
+
+  private static String parseMetric(final String m, final List<TagVFilter> filters) {
+    try {
+      return Tags.parseWithMetricAndFilters(m, filters);
+    } catch (IllegalArgumentException e) {
+      throw new BadRequestException("Invalid m: " + m + ", " + e.getMessage());
+    }
+  }
+
+  /** @return the time in milliseconds */
+  static long parseTime(final String time, final String tz) {
+    try {
+      return DateTime.parseDateTimeString(time, tz);
+    } catch (IllegalArgumentException e) {
+      throw new BadRequestException("Invalid time: " + time + ", " + e.getMessage());
+    }
+  }
+
+  static boolean matches(final List<TagVFilter> filters, final Map<String, String> tags) {
+    for (TagVFilter filter : filters) {
+      try {
+        // the string filters answer at once, without the UID tables
+        if (!filter.match(tags).join()) {
+          return false;
+        }
+      } catch (Exception e) {
+        throw new IllegalStateException("Failed to match tag filter " + filter, e);
+      }
+    }
+    return true;
+  }
+
+  private static Map<String, Object> ranking(final HeavyHitters hitters, final long now, final int limit) {
+    final Map<String, Object> ranking = new LinkedHashMap<String, Object>();
+    ranking.put("current", toJson(hitters.current(now), limit));
+    ranking.put("previous", toJson(hitters.previous(), limit));
+    return ranking;
+  }
+
+  private static List<Map<String, Object>> toJson(final List<HeavyHitters.Hitter> hitters, final int limit) {
+    final List<Map<String, Object>> entries = new ArrayList<Map<String, Object>>();
+    for (HeavyHitters.Hitter hitter : hitters.subList(0, Math.min(limit, hitters.size()))) {
+      final Map<String, Object> entry = new LinkedHashMap<String, Object>();
+      entry.put("metric", hitter.getMetric());
+      if (hitter.getTags() != null) {
+        entry.put("tags", hitter.getTags());
+      }
+      entry.put("count", hitter.getCount());
+      entry.put("rate", hitter.getRate());
+      entries.add(entry);
+    }
+    return entries;
+  }
+
+  private static int limit(final HttpRpcPluginQuery query) {
+    if (!query.hasQueryStringParam("n")) {
+      return Integer.MAX_VALUE;
+    }
+    final String n = query.getQueryStringParam("n");
+    try {
+      final int limit = Integer.parseInt(n);
+      if (limit >= 0) {
+        return limit;
+      }
+    } catch (NumberFormatException e) {
+      // reported below
+    }
+    throw new BadRequestException("Invalid n: " + n);
+  }
+
+  private static void reply(final HttpRpcPluginQuery query, final Object body) {
+    query.sendBuffer(HttpResponseStatus.OK, ChannelBuffers.wrappedBuffer(JSON.serializeToBytes(body)),
+            "application/json");
+  }
+}
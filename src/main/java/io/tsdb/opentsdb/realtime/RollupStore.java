@@ -0,0 +1,350 @@
+package io.tsdb.opentsdb.realtime;
+
+/**
+ * Copyright 2015 The DiscoveryPlugins Authors
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import io.tsdb.opentsdb.core.DataPoints;
+import io.tsdb.opentsdb.core.LongPairMap;
+import io.tsdb.opentsdb.core.QuantileSketch;
+import io.tsdb.opentsdb.core.TimingWheel;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * Thread safe store of open rollup windows, keyed by series and window.
+ * <p/>
+ * The key space is split over a power of two number of stripes, each with
+ * its own map and its own lock. Writers for different series almost never
+ * meet on the same stripe, so ingest from many Netty worker threads does
+ * not serialize on a single lock. Every read-modify-write of a window
+ * happens entirely under its stripe's write lock, which is what makes the
+ * check-then-put safe.
+ * <p/>
+ * The locks are {@link StampedLock}s so {@link #snapshot} can copy windows
+ * under an optimistic read: it takes no lock, and starts the stripe again
+ * if a writer got in while it was copying. Ingest never waits for a query.
+ * <p/>
+ * Keys are the primitive (series id, window start) pair, so adding to a
+ * window that is already open allocates nothing. All windows of a series
+ * share a stripe.
+ * <p/>
+ * Windows are in event time. When a window is opened it is scheduled on its
+ * stripe's {@link TimingWheel} to close once the watermark passes its end
+ * plus the allowed lateness, so {@link #expire(long)} only touches the
+ * windows that actually close. A point for a window the stripe has already
+ * expired is rejected under the stripe's lock, so it can't reopen a window
+ * that was emitted.
+ */
+public class RollupStore implements WindowStore {
+  private final Stripe[] stripes;
+  private final int mask;
+  private final long windowSeconds;
+  private final long allowedLateness;
+  private final double sketchAccuracy;
+  private final int sketchBuckets;
+
+  private static final int OPTIMISTIC_ATTEMPTS = 64;
+
+  private static final class Stripe {
+    private final StampedLock lock = new StampedLock();
+    private final LongPairMap<DataPoints> windows = new LongPairMap<DataPoints>();
+    private final TimingWheel wheel = new TimingWheel(System.currentTimeMillis() / 1000);
+    // the highest watermark the stripe was expired to
+    private long expiredUpTo = Long.MIN_VALUE;
+  }
+
+  public RollupStore(final int concurrency) {
+    this(concurrency, 0, 0, 0, 0);
+  }
+
+  /**
+   * @param windowSeconds size of the windows held, in seconds
+   * @param allowedLateness how long, in seconds, a window stays open after
+   * the watermark has passed its end
+   * @param sketchAccuracy relative accuracy of the quantile sketch kept per
+   * window, or 0 to not track quantiles
+   * @param sketchBuckets maximum buckets per sketch
+   */
+  public RollupStore(final int concurrency, final long windowSeconds, final long allowedLateness,
+                     final double sketchAccuracy, final int sketchBuckets) {
+    this.windowSeconds = windowSeconds;
+    this.allowedLateness = allowedLateness;
+    this.sketchAccuracy = sketchAccuracy;
+    this.sketchBuckets = sketchBuckets;
+    int size = 1;
+    while (size < concurrency) {
+      size <<= 1;
+    }
+    this.stripes = new Stripe[size];
+    for (int i = 0; i < size; i++) {
+      this.stripes[i] = new Stripe();
+    }
+    this.mask = size - 1;
+  }
+
+  public RollupStore() {
+    this(Runtime.getRuntime().availableProcessors() * 4);
+  }
+
+  @Override
+  public boolean addValue(final long seriesId, final String metric, final long windowTs,
+                          final Map<String, String> tags, final long ts, final long value) {
+    final Stripe stripe = stripeFor(seriesId);
+    final long stamp = stripe.lock.writeLock();
+    try {
+      if (deadline(windowTs) <= stripe.expiredUpTo) {
+        return false;
+      }
+      getOrCreate(stripe, seriesId, metric, windowTs, tags).addValue(ts, value);
+      return true;
+    } finally {
+      stripe.lock.unlockWrite(stamp);
+    }
+  }
+
+  @Override
+  public boolean addValue(final long seriesId, final String metric, final long windowTs,
+                          final Map<String, String> tags, final long ts, final double value) {
+    final Stripe stripe = stripeFor(seriesId);
+    final long stamp = stripe.lock.writeLock();
+    try {
+      if (deadline(windowTs) <= stripe.expiredUpTo) {
+        return false;
+      }
+      getOrCreate(stripe, seriesId, metric, windowTs, tags).addValue(ts, value);
+      return true;
+    } finally {
+      stripe.lock.unlockWrite(stamp);
+    }
+  }
+
+  /**
+   * Folds a closed window of a smaller tier into the window of this store
+   * that contains it.
+   */
+  @Override
+  public void merge(final long windowTs, final DataPoints closed) {
+    final Stripe stripe = stripeFor(closed.getSeriesId());
+    final long stamp = stripe.lock.writeLock();
+    try {
+      getOrCreate(stripe, closed.getSeriesId(), closed.getMetric(), windowTs, closed.getTags()).merge(closed);
+    } finally {
+      stripe.lock.unlockWrite(stamp);
+    }
+  }
+
+  /**
+   * Removes and returns every window whose end plus the allowed lateness is
+   * at or before the watermark. Stripes are locked one at a time so ingest
+   * keeps flowing on the others.
+   */
+  @Override
+  public List<DataPoints> expire(final long watermark) {
+    final List<DataPoints> closed = new ArrayList<DataPoints>();
+    for (final Stripe stripe : stripes) {
+      final long stamp = stripe.lock.writeLock();
+      try {
+        stripe.expiredUpTo = Math.max(stripe.expiredUpTo, watermark);
+        stripe.wheel.advance(watermark, new TimingWheel.Expiry() {
+          @Override
+          public void expired(long seriesId, long windowTs) {
+            final DataPoints dps = stripe.windows.remove(seriesId, windowTs);
+            if (dps != null) {
+              closed.add(dps);
+            }
+          }
+        });
+      } finally {
+        stripe.lock.unlockWrite(stamp);
+      }
+    }
+    return closed;
+  }
+
+  /** @return the time, in seconds, at which a window starting at the given time closes */
+  @Override
+  public long deadline(final long windowTs) {
+    return windowTs + windowSeconds + allowedLateness;
+  }
+
+  /**
+   * Removes and returns every window that starts before the given timestamp,
+   * scanning every open window. Prefer {@link #expire(long)}.
+   */
+  @Override
+  public List<DataPoints> removeBefore(final long maximumTS) {
+    final List<DataPoints> closed = new ArrayList<DataPoints>();
+    final LongPairMap.Condition<DataPoints> before = new LongPairMap.Condition<DataPoints>() {
+      @Override
+      public boolean matches(long seriesId, long windowTs, DataPoints dps) {
+        return windowTs < maximumTS;
+      }
+    };
+    for (Stripe stripe : stripes) {
+      final long stamp = stripe.lock.writeLock();
+      try {
+        stripe.windows.removeIf(before, closed);
+      } finally {
+        stripe.lock.unlockWrite(stamp);
+      }
+    }
+    return closed;
+  }
+
+  @Override
+  public List<DataPoints> removeAll() {
+    return removeBefore(Long.MAX_VALUE);
+  }
+
+  /** @return the number of open windows, only a snapshot while writers are active */
+  @Override
+  public int size() {
+    int size = 0;
+    for (Stripe stripe : stripes) {
+      final long stamp = stripe.lock.readLock();
+      try {
+        size += stripe.windows.size();
+      } finally {
+        stripe.lock.unlockRead(stamp);
+      }
+    }
+    return size;
+  }
+
+  @Override
+  public void checkpoint(final int stripe, final boolean changedOnly, final Visitor visitor) {
+    final List<DataPoints> windows = new ArrayList<DataPoints>();
+    final long stamp = stripes[stripe].lock.writeLock();
+    try {
+      stripes[stripe].windows.values(windows);
+      for (DataPoints dps : windows) {
+        if (!changedOnly || dps.isDirty()) {
+          dps.clearDirty();
+          visitor.visit(dps);
+        }
+      }
+    } finally {
+      stripes[stripe].lock.unlockWrite(stamp);
+    }
+  }
+
+  /**
+   * Copies the windows of the metric one stripe at a time, reading each
+   * optimistically until no writer interfered. Copies from a stripe being
+   * written are torn or throw, and are thrown away. A stripe still changing
+   * after {@link #OPTIMISTIC_ATTEMPTS} attempts is read under its read lock,
+   * which only holds its writers for the copy.
+   */
+  @Override
+  public void snapshot(final String metric, final List<DataPoints> into) {
+    final List<DataPoints> windows = new ArrayList<DataPoints>();
+    final List<DataPoints> copies = new ArrayList<DataPoints>();
+    for (Stripe stripe : stripes) {
+      boolean copied = false;
+      for (int attempt = 0; attempt < OPTIMISTIC_ATTEMPTS && !copied; attempt++) {
+        final long stamp = stripe.lock.tryOptimisticRead();
+        if (stamp == 0) {
+          // a writer holds the stripe, it is only ever held briefly
+          Thread.yield();
+          continue;
+        }
+        windows.clear();
+        copies.clear();
+        try {
+          stripe.windows.values(windows);
+          copy(windows, metric, copies);
+        } catch (RuntimeException e) {
+          // read while the map or a window was being changed
+        }
+        copied = stripe.lock.validate(stamp);
+      }
+      if (!copied) {
+        final long stamp = stripe.lock.readLock();
+        try {
+          windows.clear();
+          copies.clear();
+          stripe.windows.values(windows);
+          copy(windows, metric, copies);
+        } finally {
+          stripe.lock.unlockRead(stamp);
+        }
+      }
+      into.addAll(copies);
+    }
+  }
+
+  private static void copy(final List<DataPoints> windows, final String metric, final List<DataPoints> into) {
+    for (DataPoints dps : windows) {
+      if (dps != null && metric.equals(dps.getMetric())) {
+        final DataPoints copy = new DataPoints(dps.getSeriesId(), dps.getMetric(), dps.getTimestamp(),
+                dps.getTags());
+        copy.merge(dps);
+        into.add(copy);
+      }
+    }
+  }
+
+  @Override
+  public void restore(final DataPoints window) {
+    if (sketchAccuracy > 0 && (window.getSketch() == null || window.getSketch().getAccuracy() != sketchAccuracy)) {
+      // quantiles were off or configured differently before the restart
+      window.setSketch(new QuantileSketch(sketchAccuracy, sketchBuckets));
+    } else if (sketchAccuracy == 0) {
+      window.setSketch(null);
+    }
+    final Stripe stripe = stripeFor(window.getSeriesId());
+    final long stamp = stripe.lock.writeLock();
+    try {
+      if (stripe.windows.put(window.getSeriesId(), window.getTimestamp(), window) == null) {
+        stripe.wheel.schedule(window.getSeriesId(), window.getTimestamp(), deadline(window.getTimestamp()));
+      }
+    } finally {
+      stripe.lock.unlockWrite(stamp);
+    }
+  }
+
+  @Override
+  public void close() {
+    // nothing outside the heap
+  }
+
+  @Override
+  public int getStripeCount() {
+    return stripes.length;
+  }
+
+  private Stripe stripeFor(final long seriesId) {
+    return stripes[(int) (seriesId ^ (seriesId >>> 32)) & mask];
+  }
+
+  private DataPoints getOrCreate(final Stripe stripe, final long seriesId, final String metric,
+                                 final long windowTs, final Map<String, String> tags) {
+    DataPoints dps = stripe.windows.get(seriesId, windowTs);
+    if (dps == null) {
+      dps = new DataPoints(seriesId, metric, windowTs, new HashMap<String, String>(tags));
+      if (sketchAccuracy > 0) {
+        dps.setSketch(new QuantileSketch(sketchAccuracy, sketchBuckets));
+      }
+      stripe.windows.put(seriesId, windowTs, dps);
+      stripe.wheel.schedule(seriesId, windowTs, deadline(windowTs));
+    }
+    return dps;
+  }
+}
@@ -0,0 +1,178 @@
+package io.tsdb.opentsdb.realtime;
+
+/**
+ * Copyright 2015 The DiscoveryPlugins Authors
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * One window size of the rollup matrix together with the store holding its
+ * open windows. Only the smallest tier sees raw points, every larger tier is
+ * fed by merging the closed windows of the tier below it.
+ */
+public final class RollupTier {
+  private final long seconds;
+  private final String label;
+  private final WindowStore store;
+
+  public RollupTier(final long seconds, final WindowStore store) {
+    this(seconds, formatLabel(seconds), store);
+  }
+
+  /**
+   * @param label the window as used in metric names, e.g. "60m" for a window
+   * from tsd.rtpublisher.rollup.window, whose metrics were always named in
+   * minutes
+   */
+  public RollupTier(final long seconds, final String label, final WindowStore store) {
+    if (seconds <= 0) {
+      throw new IllegalArgumentException("Rollup window must be positive: " + seconds);
+    }
+    this.seconds = seconds;
+    this.label = label;
+    this.store = store;
+  }
+
+  public long getSeconds() {
+    return seconds;
+  }
+
+  /** @return the window as used in metric names, e.g. "5m" or "1h" */
+  public String getLabel() {
+    return label;
+  }
+
+  public WindowStore getStore() {
+    return store;
+  }
+
+  /** @return the start, in seconds, of the window containing the given second */
+  public long windowStart(final long timestampSeconds) {
+    return timestampSeconds - Math.floorMod(timestampSeconds, seconds);
+  }
+
+  /**
+   * Parses a single window such as "30s", "5m", "1h" or "1d". A bare number
+   * is read as minutes, matching tsd.rtpublisher.rollup.window.
+   */
+  public static long parseSeconds(final String spec) {
+    final String trimmed = spec.trim().toLowerCase();
+    if (trimmed.isEmpty()) {
+      throw new IllegalArgumentException("Empty rollup window");
+    }
+    final char unit = trimmed.charAt(trimmed.length() - 1);
+    final long multiplier;
+    String number = trimmed.substring(0, trimmed.length() - 1);
+    switch (unit) {
+      case 's':
+        multiplier = 1;
+        break;
+      case 'm':
+        multiplier = 60;
+        break;
+      case 'h':
+        multiplier = 3600;
+        break;
+      case 'd':
+        multiplier = 86400;
+        break;
+      default:
+        multiplier = 60;
+        number = trimmed;
+    }
+    try {
+      return Long.parseLong(number) * multiplier;
+    } catch (NumberFormatException e) {
+      throw new IllegalArgumentException("Invalid rollup window: " + spec);
+    }
+  }
+
+  /**
+   * Parses a comma separated list of windows, sorted smallest first. Every
+   * window must be a multiple of the one before it so it can be built by
+   * cascading.
+   */
+  public static List<Long> parseList(final String spec) {
+    final List<Long> windows = new ArrayList<Long>();
+    for (String window : spec.split(",")) {
+      if (!window.trim().isEmpty()) {
+        final long seconds = parseSeconds(window);
+        if (seconds <= 0) {
+          throw new IllegalArgumentException("Rollup window must be positive: " + window);
+        }
+        if (!windows.contains(seconds)) {
+          windows.add(seconds);
+        }
+      }
+    }
+    if (windows.isEmpty()) {
+      throw new IllegalArgumentException("No rollup windows configured");
+    }
+    Collections.sort(windows, new Comparator<Long>() {
+      @Override
+      public int compare(Long a, Long b) {
+        return a.compareTo(b);
+      }
+    });
+    for (int i = 1; i < windows.size(); i++) {
+      if (windows.get(i) % windows.get(i - 1) != 0) {
+        throw new IllegalArgumentException("Rollup window " + formatLabel(windows.get(i))
+                + " is not a multiple of " + formatLabel(windows.get(i - 1)));
+      }
+    }
+    return windows;
+  }
+
+  /**
+   * Reads the windows of tsd.rtpublisher.rollup.windows or, when that is not
+   * set, the single window of tsd.rtpublisher.rollup.window. The latter keeps
+   * the "&lt;N&gt;m" label its metrics have always been named with, so 60 stays
+   * "60m" rather than becoming "1h".
+   *
+   * @param windows the list of windows, null when not configured
+   * @param legacyMinutes the minutes of the legacy window
+   * @return the label of each window keyed by its seconds, smallest first
+   */
+  public static Map<Long, String> parseWindows(final String windows, final int legacyMinutes) {
+    final Map<Long, String> labels = new LinkedHashMap<Long, String>();
+    if (windows == null) {
+      labels.put(legacyMinutes * 60L, legacyMinutes + "m");
+      return labels;
+    }
+    for (long seconds : parseList(windows)) {
+      labels.put(seconds, formatLabel(seconds));
+    }
+    return labels;
+  }
+
+  static String formatLabel(final long seconds) {
+    if (seconds % 86400 == 0) {
+      return (seconds / 86400) + "d";
+    }
+    if (seconds % 3600 == 0) {
+      return (seconds / 3600) + "h";
+    }
+    if (seconds % 60 == 0) {
+      return (seconds / 60) + "m";
+    }
+    return seconds + "s";
+  }
+}
@@ -0,0 +1,393 @@
+package io.tsdb.opentsdb.realtime;
+
+/**
+ * Copyright 2015 The DiscoveryPlugins Authors
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import io.tsdb.opentsdb.core.LongPairMap;
+import io.tsdb.opentsdb.core.SeriesKey;
+import net.opentsdb.stats.StatsCollector;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Evaluates {@link ThresholdRule}s on the points as they arrive, so alerting
+ * doesn't have to poll the TSD with queries.
+ * <p/>
+ * Rules are indexed by metric name, and prefix rules by their prefix, so a
+ * point costs a hash lookup per '.' of its metric when prefix rules exist
+ * and one otherwise, whatever the number of rules. Prefixes are looked up
+ * by a hash of the metric's leading characters, built up in one pass over
+ * the name, so no substring is allocated. Each rule a series
+ * matches keeps a running aggregate of its open window; a series that
+ * doesn't match keeps an empty state so its tags are only tested once.
+ * <p/>
+ * A window is evaluated when the series sends a point of a later window, or
+ * when the watermark has passed its end by the allowed lateness, whichever
+ * comes first. Points of a window already evaluated are dropped. The sink
+ * only hears of transitions: a series starting to breach a rule, and one
+ * that stops breaching it or goes idle while breaching it. Rule state is not
+ * checkpointed, so a restart forgets which series were breaching.
+ * <p/>
+ * States are spread over striped monitors like the recent buffer. The sink
+ * is called outside them, from the ingest threads and the one closing
+ * windows.
+ */
+public class RuleEngine {
+  private final ThresholdRule[] rules;
+  private final Map<String, int[]> exact = new HashMap<String, int[]>();
+  // by the hash and length of the prefix, only read once built
+  private final LongPairMap<int[]> prefixes = new LongPairMap<int[]>();
+  private final long allowedLateness;
+  private final long idleTimeout;
+  private final Sink sink;
+  private final Stripe[] stripes;
+  private final int mask;
+
+  private final AtomicLong evaluations = new AtomicLong();
+  private final AtomicLong transitions = new AtomicLong();
+  private final AtomicLong late = new AtomicLong();
+
+  /** Receives the state changes of the rules. */
+  public interface Sink {
+    void transition(Transition transition);
+  }
+
+  /** A series starting or stopping to breach a rule. */
+  public static final class Transition {
+    private final ThresholdRule rule;
+    private final String metric;
+    private final Map<String, String> tags;
+    private final long windowStart;
+    private final double value;
+    private final boolean breached;
+
+    Transition(final ThresholdRule rule, final String metric, final Map<String, String> tags,
+               final long windowStart, final double value, final boolean breached) {
+      this.rule = rule;
+      this.metric = metric;
+      this.tags = tags;
+      this.windowStart = windowStart;
+      this.value = value;
+      this.breached = breached;
+    }
+
+    public ThresholdRule getRule() {
+      return rule;
+    }
+
+    public String getMetric() {
+      return metric;
+    }
+
+    public Map<String, String> getTags() {
+      return tags;
+    }
+
+    /** @return the start, in seconds, of the window evaluated */
+    public long getWindowStart() {
+      return windowStart;
+    }
+
+    /** @return the aggregate of the window, NaN when the series went idle */
+    public double getValue() {
+      return value;
+    }
+
+    /** @return true if the series started breaching the rule, false if it stopped */
+    public boolean isBreached() {
+      return breached;
+    }
+  }
+
+  private static final class State {
+    private final int rule;
+    private final String metric;
+    private final Map<String, String> tags;
+    private long windowStart = Long.MIN_VALUE;
+    private long evaluatedUpTo = Long.MIN_VALUE;
+    private long lastSeen;
+    private long count;
+    private double sum;
+    private double min;
+    private double max;
+    private double last;
+    private boolean breached;
+    private long breachedSince;
+    private double breachedValue;
+
+    /** @param tags null for a series the rule doesn't match */
+    State(final int rule, final String metric, final Map<String, String> tags) {
+      this.rule = rule;
+      this.metric = metric;
+      this.tags = tags;
+    }
+  }
+
+  private static final class Stripe {
+    private final LongPairMap<State> states = new LongPairMap<State>();
+  }
+
+  /**
+   * @param allowedLateness how long, in seconds, a window stays open after
+   * the watermark has passed its end
+   * @param idleTimeout how long, in seconds of event time, the state of a
+   * series without points is kept
+   */
+  public RuleEngine(final List<ThresholdRule> rules, final Sink sink, final int concurrency,
+                    final long allowedLateness, final long idleTimeout) {
+    this.rules = rules.toArray(new ThresholdRule[rules.size()]);
+    for (int i = 0; i < this.rules.length; i++) {
+      final String metric = this.rules[i].getMetric();
+      final boolean prefix = this.rules[i].isPrefix();
+      final long hash = SeriesKey.hash(metric, 0);
+      final int[] ids = prefix ? prefixes.get(hash, metric.length()) : exact.get(metric);
+      final int[] grown = ids == null ? new int[1] : Arrays.copyOf(ids, ids.length + 1);
+      grown[grown.length - 1] = i;
+      if (prefix) {
+        prefixes.put(hash, metric.length(), grown);
+      } else {
+        exact.put(metric, grown);
+      }
+    }
+    this.sink = sink;
+    this.allowedLateness = allowedLateness;
+    this.idleTimeout = idleTimeout;
+    int size = 1;
+    while (size < concurrency) {
+      size <<= 1;
+    }
+    this.stripes = new Stripe[size];
+    for (int i = 0; i < size; i++) {
+      this.stripes[i] = new Stripe();
+    }
+    this.mask = size - 1;
+  }
+
+  public int size() {
+    return rules.length;
+  }
+
+  /**
+   * Adds a point to the open window of every rule its series matches.
+   * @param ts the point's time in milliseconds
+   */
+  public void add(final long seriesId, final String metric, final Map<String, String> tags,
+                  final long ts, final double value) {
+    List<Transition> changed = null;
+    if (!exact.isEmpty()) {
+      final int[] ids = exact.get(metric);
+      if (ids != null) {
+        changed = add(ids, seriesId, metric, tags, ts / 1000, value, changed);
+      }
+    }
+    if (prefixes.size() > 0) {
+      // the hash of each prefix ending in a '.', a character at a time
+      long hash = 0;
+      for (int i = 0; i < metric.length(); i++) {
+        final char c = metric.charAt(i);
+        hash = SeriesKey.extend(hash, c);
+        if (c != '.') {
+          continue;
+        }
+        final int[] ids = prefixes.get(hash, i + 1);
+        // the prefixes of the rules under one key are the same
+        if (ids != null && metric.startsWith(rules[ids[0]].getMetric())) {
+          changed = add(ids, seriesId, metric, tags, ts / 1000, value, changed);
+        }
+      }
+    }
+    if (changed != null) {
+      publish(changed);
+    }
+  }
+
+  private List<Transition> add(final int[] ids, final long seriesId, final String metric,
+                               final Map<String, String> tags, final long ts, final double value,
+                               List<Transition> changed) {
+    final Stripe stripe = stripes[(int) (seriesId ^ (seriesId >>> 32)) & mask];
+    synchronized (stripe) {
+      for (int id : ids) {
+        final ThresholdRule rule = rules[id];
+        State state = stripe.states.get(seriesId, id);
+        if (state == null) {
+          state = new State(id, metric, rule.matches(tags) ? new HashMap<String, String>(tags) : null);
+          stripe.states.put(seriesId, id, state);
+        }
+        state.lastSeen = Math.max(state.lastSeen, ts);
+        if (state.tags == null) {
+          continue;
+        }
+        final long windowStart = ts - ts % rule.getWindow();
+        if (windowStart < state.evaluatedUpTo
+                || (state.windowStart != Long.MIN_VALUE && windowStart < state.windowStart)) {
+          late.incrementAndGet();
+          continue;
+        }
+        if (state.windowStart != Long.MIN_VALUE && windowStart > state.windowStart) {
+          changed = evaluate(state, changed);
+        }
+        if (state.windowStart == Long.MIN_VALUE) {
+          state.windowStart = windowStart;
+          state.min = value;
+          state.max = value;
+        }
+        state.count++;
+        state.sum += value;
+        state.min = Math.min(state.min, value);
+        state.max = Math.max(state.max, value);
+        state.last = value;
+      }
+    }
+    return changed;
+  }
+
+  /**
+   * Evaluates the windows the watermark closed, and forgets the series idle
+   * for longer than the timeout.
+   */
+  public void advance(final long watermark) {
+    final List<Transition> changed = new ArrayList<Transition>();
+    final LongPairMap.Condition<State> expired = new LongPairMap.Condition<State>() {
+      @Override
+      public boolean matches(long seriesId, long rule, State state) {
+        if (state.windowStart != Long.MIN_VALUE
+                && state.windowStart + rules[state.rule].getWindow() + allowedLateness <= watermark) {
+          evaluate(state, changed);
+        }
+        if (state.lastSeen >= watermark - idleTimeout) {
+          return false;
+        }
+        if (state.breached) {
+          changed.add(new Transition(rules[state.rule], state.metric, state.tags, state.evaluatedUpTo,
+                  Double.NaN, false));
+        }
+        return true;
+      }
+    };
+    for (Stripe stripe : stripes) {
+      synchronized (stripe) {
+        stripe.states.removeIf(expired, null);
+      }
+      if (!changed.isEmpty()) {
+        publish(changed);
+        changed.clear();
+      }
+    }
+  }
+
+  private List<Transition> evaluate(final State state, List<Transition> changed) {
+    final ThresholdRule rule = rules[state.rule];
+    final double value;
+    switch (rule.getAggregate()) {
+      case AVG:
+        value = state.sum / state.count;
+        break;
+      case SUM:
+        value = state.sum;
+        break;
+      case MIN:
+        value = state.min;
+        break;
+      case MAX:
+        value = state.max;
+        break;
+      case COUNT:
+        value = state.count;
+        break;
+      default:
+        value = state.last;
+    }
+    evaluations.incrementAndGet();
+    final boolean breached = rule.breached(value);
+    if (breached != state.breached) {
+      if (changed == null) {
+        changed = new ArrayList<Transition>();
+      }
+      changed.add(new Transition(rule, state.metric, state.tags, state.windowStart, value, breached));
+      state.breached = breached;
+      state.breachedSince = state.windowStart;
+    }
+    if (breached) {
+      state.breachedValue = value;
+    }
+    state.evaluatedUpTo = state.windowStart + rule.getWindow();
+    state.windowStart = Long.MIN_VALUE;
+    state.count = 0;
+    state.sum = 0;
+    return changed;
+  }
+
+  private void publish(final List<Transition> changed) {
+    transitions.addAndGet(changed.size());
+    for (Transition transition : changed) {
+      sink.transition(transition);
+    }
+  }
+
+  /**
+   * @return the series breaching a rule, each as the transition that started
+   * it with the value of its latest window
+   */
+  public List<Transition> breaching() {
+    final List<Transition> result = new ArrayList<Transition>();
+    final List<State> values = new ArrayList<State>();
+    for (Stripe stripe : stripes) {
+      synchronized (stripe) {
+        values.clear();
+        stripe.states.values(values);
+        for (State state : values) {
+          if (state.breached) {
+            result.add(new Transition(rules[state.rule], state.metric, Collections.unmodifiableMap(state.tags),
+                    state.breachedSince, state.breachedValue, true));
+          }
+        }
+      }
+    }
+    return result;
+  }
+
+  public void collectStats(final StatsCollector collector) {
+    long series = 0;
+    long breached = 0;
+    final List<State> values = new ArrayList<State>();
+    for (Stripe stripe : stripes) {
+      synchronized (stripe) {
+        values.clear();
+        stripe.states.values(values);
+        for (State state : values) {
+          if (state.tags != null) {
+            series++;
+          }
+          if (state.breached) {
+            breached++;
+          }
+        }
+      }
+    }
+    collector.record("rollup.rules.rules", rules.length);
+    collector.record("rollup.rules.series", series);
+    collector.record("rollup.rules.breached", breached);
+    collector.record("rollup.rules.evaluations", evaluations.get());
+    collector.record("rollup.rules.transitions", transitions.get());
+    collector.record("rollup.rules.late", late.get());
+  }
+}
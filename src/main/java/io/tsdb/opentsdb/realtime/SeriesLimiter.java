@@ -0,0 +1,390 @@
+package io.tsdb.opentsdb.realtime;
+
+/**
+ * Copyright 2015 The DiscoveryPlugins Authors
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import io.tsdb.opentsdb.core.HyperLogLog;
+import io.tsdb.opentsdb.core.SeriesKey;
+import net.opentsdb.stats.StatsCollector;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Admission control for new series, so a client inventing a tag value per
+ * request can't grow the rollup state without bound.
+ * <p/>
+ * Every admitted series is tracked as live until it has been idle for the
+ * idle timeout, and counted against its metric and the global total. A new
+ * series is rejected once either count reaches its hard limit. Between the
+ * soft and the hard limit, new series are sampled by series id, so a series
+ * is either kept whole or not at all. A limit of 0 is no limit. The checks
+ * and the counts are not atomic together, so a burst across threads can
+ * overshoot a limit by a few series.
+ * <p/>
+ * Each metric also keeps a {@link HyperLogLog} of every series seen, rejected
+ * or not, over the last one to two idle timeouts. That shows which metrics
+ * are exploding even when their series are being rejected. Metrics past the
+ * tracked maximum are counted together under {@link #OTHER}.
+ * <p/>
+ * The live series are kept in open addressing tables of primitive arrays,
+ * about 35 bytes of heap per series and no object, so the limiter doesn't
+ * undo the off heap store. With no limit configured series are not tracked
+ * at all and only the cardinality estimates are kept.
+ */
+public class SeriesLimiter {
+  static final String OTHER = "_other";
+  private static final int PRECISION = 10;
+  private static final long SAMPLE_SEED = 0x5851f42d4c957f2dL;
+
+  private final Stripe[] stripes;
+  private final int mask;
+  private final int metricSoft;
+  private final int metricHard;
+  private final int globalSoft;
+  private final int globalHard;
+  private final double sampleRate;
+  private final long idleSeconds;
+  private final int maxMetrics;
+  private final boolean tracking;
+  // indexed by MetricStats.index
+  private final MetricStats[] registry;
+
+  private final ConcurrentHashMap<String, MetricStats> metrics = new ConcurrentHashMap<String, MetricStats>();
+  private final AtomicInteger live = new AtomicInteger();
+  private final AtomicLong rejected = new AtomicLong();
+  private final AtomicLong evicted = new AtomicLong();
+  private volatile long rotatedAt;
+  private volatile HeavyHitters creations;
+  // set once the tracked metrics are full, so the rest map to it without a lock
+  private volatile MetricStats other;
+
+  static final class MetricStats {
+    private final String metric;
+    private final int index;
+    private final AtomicInteger live = new AtomicInteger();
+    private final AtomicLong rejected = new AtomicLong();
+    private volatile HyperLogLog current = new HyperLogLog(PRECISION);
+    private volatile HyperLogLog previous = new HyperLogLog(PRECISION);
+    private long lastEstimate;
+
+    MetricStats(final String metric, final int index) {
+      this.metric = metric;
+      this.index = index;
+    }
+
+    String getMetric() {
+      return metric;
+    }
+
+    long getLastEstimate() {
+      return lastEstimate;
+    }
+
+    long estimate() {
+      final HyperLogLog union = new HyperLogLog(PRECISION);
+      union.merge(previous);
+      union.merge(current);
+      return union.estimate();
+    }
+
+    void rotate() {
+      previous = current;
+      current = new HyperLogLog(PRECISION);
+    }
+  }
+
+  /**
+   * The live series of a stripe, by series id, with linear probing and
+   * backward shift removal like {@link io.tsdb.opentsdb.core.LongPairMap}.
+   */
+  private static final class Stripe {
+    private static final float LOAD_FACTOR = 0.6f;
+
+    private long[] ids;
+    private long[] lastSeen;
+    // MetricStats.index + 1, 0 for a free slot
+    private int[] metrics;
+    private int mask;
+    private int size;
+    private int resizeAt;
+
+    Stripe() {
+      allocate(16);
+    }
+
+    /** @return the slot of the series, or -1 */
+    int find(final long seriesId) {
+      int i = slot(seriesId);
+      while (metrics[i] != 0) {
+        if (ids[i] == seriesId) {
+          return i;
+        }
+        i = (i + 1) & mask;
+      }
+      return -1;
+    }
+
+    void insert(final long seriesId, final long now, final int metric) {
+      int i = slot(seriesId);
+      while (metrics[i] != 0) {
+        i = (i + 1) & mask;
+      }
+      ids[i] = seriesId;
+      lastSeen[i] = now;
+      metrics[i] = metric + 1;
+      if (++size > resizeAt) {
+        final long[] oldIds = ids;
+        final long[] oldLastSeen = lastSeen;
+        final int[] oldMetrics = metrics;
+        allocate(oldMetrics.length << 1);
+        for (int j = 0; j < oldMetrics.length; j++) {
+          if (oldMetrics[j] != 0) {
+            insert(oldIds[j], oldLastSeen[j], oldMetrics[j] - 1);
+          }
+        }
+      }
+    }
+
+    /** Removes the series last seen before the given time, counting them off their metric. */
+    int removeIdle(final long idleBefore, final MetricStats[] registry) {
+      int count = 0;
+      int i = 0;
+      while (i < metrics.length) {
+        if (metrics[i] != 0 && lastSeen[i] < idleBefore) {
+          registry[metrics[i] - 1].live.decrementAndGet();
+          // backward shifting may pull an unvisited entry into this slot, so look at it again
+          removeAt(i);
+          count++;
+        } else {
+          i++;
+        }
+      }
+      return count;
+    }
+
+    private void removeAt(int free) {
+      metrics[free] = 0;
+      size--;
+      int i = (free + 1) & mask;
+      while (metrics[i] != 0) {
+        final int home = slot(ids[i]);
+        if (((i - home) & mask) >= ((i - free) & mask)) {
+          ids[free] = ids[i];
+          lastSeen[free] = lastSeen[i];
+          metrics[free] = metrics[i];
+          metrics[i] = 0;
+          free = i;
+        }
+        i = (i + 1) & mask;
+      }
+    }
+
+    private int slot(final long seriesId) {
+      return (int) SeriesKey.mix(seriesId) & mask;
+    }
+
+    private void allocate(final int capacity) {
+      ids = new long[capacity];
+      lastSeen = new long[capacity];
+      metrics = new int[capacity];
+      mask = capacity - 1;
+      size = 0;
+      resizeAt = (int) (capacity * LOAD_FACTOR);
+    }
+  }
+
+  /**
+   * @param sampleRate fraction of new series admitted between a soft and a
+   * hard limit
+   * @param idleSeconds how long a series must go without points before it
+   * stops counting as live
+   * @param maxMetrics number of metrics tracked separately
+   */
+  public SeriesLimiter(final int concurrency, final int metricSoft, final int metricHard,
+                       final int globalSoft, final int globalHard, final double sampleRate,
+                       final long idleSeconds, final int maxMetrics) {
+    this.metricSoft = metricSoft;
+    this.metricHard = metricHard;
+    this.globalSoft = globalSoft;
+    this.globalHard = globalHard;
+    this.sampleRate = sampleRate;
+    this.idleSeconds = idleSeconds;
+    this.maxMetrics = maxMetrics;
+    this.tracking = metricSoft > 0 || metricHard > 0 || globalSoft > 0 || globalHard > 0;
+    this.registry = new MetricStats[maxMetrics + 1];
+    this.rotatedAt = System.currentTimeMillis() / 1000;
+    int size = 1;
+    while (size < concurrency) {
+      size <<= 1;
+    }
+    this.stripes = new Stripe[size];
+    for (int i = 0; i < size; i++) {
+      this.stripes[i] = new Stripe();
+    }
+    this.mask = size - 1;
+  }
+
+  /**
+   * @param now the current time in seconds
+   * @return true if the point may be rolled up, false if its series was not
+   * admitted
+   */
+  public boolean admit(final String metric, final long seriesId, final long now) {
+    if (!tracking) {
+      // nothing to hold back, only the cardinality is estimated
+      statsFor(metric).current.add(seriesId);
+      return true;
+    }
+    final Stripe stripe = stripes[(int) (seriesId ^ (seriesId >>> 32)) & mask];
+    synchronized (stripe) {
+      final int slot = stripe.find(seriesId);
+      if (slot >= 0) {
+        stripe.lastSeen[slot] = now;
+        registry[stripe.metrics[slot] - 1].current.add(seriesId);
+        return true;
+      }
+      final MetricStats stats = statsFor(metric);
+      stats.current.add(seriesId);
+      final HeavyHitters creations = this.creations;
+      if (creations != null) {
+        creations.add(SeriesKey.hash(metric, 0), metric, null);
+      }
+      if (!allowed(stats, seriesId)) {
+        stats.rejected.incrementAndGet();
+        rejected.incrementAndGet();
+        return false;
+      }
+      stripe.insert(seriesId, now, stats.index);
+      stats.live.incrementAndGet();
+      live.incrementAndGet();
+      return true;
+    }
+  }
+
+  /**
+   * Counts every new series, admitted or not, against its metric in the
+   * given tracker, to rank the metrics creating series the fastest.
+   */
+  public void trackCreations(final HeavyHitters creations) {
+    this.creations = creations;
+  }
+
+  /**
+   * Stops tracking the series that went without points for longer than the
+   * idle timeout, making room for new ones, and ages the cardinality
+   * estimates.
+   * @return the number of series evicted
+   */
+  public int evictIdle(final long now) {
+    final long idleBefore = now - idleSeconds;
+    int count = 0;
+    for (Stripe stripe : stripes) {
+      synchronized (stripe) {
+        count += stripe.removeIdle(idleBefore, registry);
+      }
+    }
+    live.addAndGet(-count);
+    evicted.addAndGet(count);
+    if (now - rotatedAt >= idleSeconds) {
+      rotatedAt = now;
+      for (MetricStats stats : metrics.values()) {
+        stats.rotate();
+      }
+    }
+    return count;
+  }
+
+  public int getLive() {
+    return live.get();
+  }
+
+  public long getRejected() {
+    return rejected.get();
+  }
+
+  /** Records the global counts and the metrics with the most series. */
+  public void collectStats(final StatsCollector collector, final int top) {
+    collector.record("rollup.series.live", live.get());
+    collector.record("rollup.series.rejected", rejected.get());
+    collector.record("rollup.series.evicted", evicted.get());
+    for (MetricStats stats : topMetrics(top)) {
+      final String tag = "metric=" + stats.metric;
+      collector.record("rollup.series.cardinality", stats.lastEstimate, tag);
+      collector.record("rollup.series.live", stats.live.get(), tag);
+      collector.record("rollup.series.rejected", stats.rejected.get(), tag);
+    }
+  }
+
+  /** @return the metrics with the highest cardinality estimate, highest first */
+  List<MetricStats> topMetrics(final int top) {
+    final List<MetricStats> ranked = new ArrayList<MetricStats>();
+    for (MetricStats stats : metrics.values()) {
+      stats.lastEstimate = stats.estimate();
+      ranked.add(stats);
+    }
+    Collections.sort(ranked, new Comparator<MetricStats>() {
+      @Override
+      public int compare(MetricStats a, MetricStats b) {
+        return Long.compare(b.lastEstimate, a.lastEstimate);
+      }
+    });
+    return ranked.subList(0, Math.min(top, ranked.size()));
+  }
+
+  private MetricStats statsFor(final String metric) {
+    MetricStats stats = metrics.get(metric);
+    if (stats != null) {
+      return stats;
+    }
+    stats = other;
+    if (stats != null) {
+      return stats;
+    }
+    synchronized (metrics) {
+      final boolean full = metrics.size() >= maxMetrics;
+      final String key = full ? OTHER : metric;
+      stats = metrics.get(key);
+      if (stats == null) {
+        stats = new MetricStats(key, metrics.size());
+        registry[stats.index] = stats;
+        metrics.put(key, stats);
+      }
+      if (full) {
+        other = stats;
+      }
+    }
+    return stats;
+  }
+
+  private boolean allowed(final MetricStats stats, final long seriesId) {
+    final int global = live.get();
+    final int perMetric = stats.live.get();
+    if ((globalHard > 0 && global >= globalHard) || (metricHard > 0 && perMetric >= metricHard)) {
+      return false;
+    }
+    if ((globalSoft > 0 && global >= globalSoft) || (metricSoft > 0 && perMetric >= metricSoft)) {
+      // the same series always gets the same answer
+      return (SeriesKey.mix(seriesId ^ SAMPLE_SEED) >>> 11) * 0x1.0p-53 < sampleRate;
+    }
+    return true;
+  }
+}
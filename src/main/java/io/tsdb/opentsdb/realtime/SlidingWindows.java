@@ -0,0 +1,290 @@
+package io.tsdb.opentsdb.realtime;
+
+/**
+ * Copyright 2015 The DiscoveryPlugins Authors
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import io.tsdb.opentsdb.core.DataPoints;
+import io.tsdb.opentsdb.core.LongPairMap;
+import net.opentsdb.stats.StatsCollector;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Sliding windows and exponentially weighted moving averages, e.g. a 5m
+ * average emitted every 30s, for the selected metrics.
+ * <p/>
+ * Points are only added to panes, tumbling windows the size of the slide,
+ * held in a {@link RollupStore} of their own so they close by event time
+ * like every other window. Each series keeps its last panes in a ring, as
+ * many as the largest window needs. Every time the watermark passes a slide
+ * boundary, the windows ending there are built by merging the panes they
+ * cover, smallest window first so each pane is merged once, and each EWMA
+ * is moved towards the mean of the pane that just ended. A point is thus
+ * touched once, and a window costs a merge per pane instead of a pass over
+ * its raw points.
+ * <p/>
+ * Windows are emitted as &lt;metric&gt;.&lt;window&gt;_&lt;slide&gt;-&lt;aggregator&gt;
+ * and timestamped at their start like the tumbling rollups, EWMAs as
+ * &lt;metric&gt;.ewma_&lt;half life&gt; at the start of the latest pane. A series
+ * is forgotten once the largest window holds none of its panes. The state
+ * is not checkpointed.
+ * <p/>
+ * Panes are added to from the ingest threads, everything else is only
+ * called by the thread closing windows.
+ */
+public class SlidingWindows {
+  private final MetricPatterns metrics;
+  private final long slide;
+  private final long[] windows;
+  private final String[] labels;
+  private final List<RollupAggregator> aggregators;
+  private final double[] decays;
+  private final String[] ewmaLabels;
+  private final int panes;
+  private final long allowedLateness;
+  private final RollupStore store;
+  private final LongPairMap<Series> series = new LongPairMap<Series>();
+  private long lastBoundary = Long.MIN_VALUE;
+
+  private static final class Series {
+    private final long seriesId;
+    private final String metric;
+    private final HashMap<String, String> tags;
+    private final DataPoints[] ring;
+    private final double[] ewma;
+    private long newest = Long.MIN_VALUE;
+
+    Series(final DataPoints pane, final int panes, final int ewmas) {
+      this.seriesId = pane.getSeriesId();
+      this.metric = pane.getMetric();
+      this.tags = pane.getTags();
+      this.ring = new DataPoints[panes];
+      this.ewma = new double[ewmas];
+      Arrays.fill(this.ewma, Double.NaN);
+    }
+  }
+
+  /**
+   * @param slide the pane size and emission cadence, in seconds
+   * @param windows the window sizes, in seconds, each a multiple of the slide
+   * @param halfLives the EWMA half lives, in seconds
+   * @param allowedLateness how long, in seconds, a pane stays open after the
+   * watermark has passed its end
+   */
+  public SlidingWindows(final MetricPatterns metrics, final long slide, final List<Long> windows,
+                        final List<RollupAggregator> aggregators, final List<Long> halfLives,
+                        final int concurrency, final long allowedLateness,
+                        final double sketchAccuracy, final int sketchBuckets) {
+    if (slide <= 0) {
+      throw new IllegalArgumentException("Sliding window slide must be positive: " + slide);
+    }
+    if (windows.isEmpty() && halfLives.isEmpty()) {
+      throw new IllegalArgumentException("Sliding windows need a window or an EWMA half life");
+    }
+    final List<Long> sorted = new ArrayList<Long>(windows);
+    Collections.sort(sorted);
+    this.metrics = metrics;
+    this.slide = slide;
+    this.windows = new long[sorted.size()];
+    this.labels = new String[sorted.size()];
+    long largest = slide;
+    for (int i = 0; i < sorted.size(); i++) {
+      final long window = sorted.get(i);
+      if (window <= 0 || window % slide != 0) {
+        throw new IllegalArgumentException("Sliding window " + RollupTier.formatLabel(window)
+                + " is not a multiple of the slide " + RollupTier.formatLabel(slide));
+      }
+      this.windows[i] = window;
+      this.labels[i] = RollupTier.formatLabel(window) + "_" + RollupTier.formatLabel(slide);
+      largest = Math.max(largest, window);
+    }
+    this.aggregators = aggregators;
+    this.decays = new double[halfLives.size()];
+    this.ewmaLabels = new String[halfLives.size()];
+    for (int i = 0; i < halfLives.size(); i++) {
+      final long halfLife = halfLives.get(i);
+      if (halfLife <= 0) {
+        throw new IllegalArgumentException("EWMA half life must be positive: " + halfLife);
+      }
+      // the weight left to the old average after one slide
+      this.decays[i] = Math.pow(0.5, (double) slide / halfLife);
+      this.ewmaLabels[i] = "ewma_" + RollupTier.formatLabel(halfLife);
+    }
+    this.panes = (int) (largest / slide);
+    this.allowedLateness = allowedLateness;
+    this.store = new RollupStore(concurrency, slide, allowedLateness, sketchAccuracy, sketchBuckets);
+  }
+
+  public boolean matches(final String metric) {
+    return metrics.matches(metric);
+  }
+
+  /** @param ts the point's time in milliseconds */
+  public void addValue(final long seriesId, final String metric, final Map<String, String> tags,
+                       final long ts, final long value) {
+    store.addValue(seriesId, metric, paneStart(ts / 1000), tags, ts, value);
+  }
+
+  /** @param ts the point's time in milliseconds */
+  public void addValue(final long seriesId, final String metric, final Map<String, String> tags,
+                       final long ts, final double value) {
+    store.addValue(seriesId, metric, paneStart(ts / 1000), tags, ts, value);
+  }
+
+  /** @return the suffixes of the emitted metrics, which must not be fed back in */
+  public List<String> suffixes() {
+    final List<String> suffixes = new ArrayList<String>();
+    for (String label : labels) {
+      for (RollupAggregator aggregator : aggregators) {
+        suffixes.add("." + label + "-" + aggregator.label());
+      }
+    }
+    for (String label : ewmaLabels) {
+      suffixes.add("." + label);
+    }
+    return suffixes;
+  }
+
+  /**
+   * Takes in the panes the watermark closed and emits the windows and EWMAs
+   * of every slide boundary passed since the last call.
+   * @param all true to close every pane, on shutdown
+   */
+  public void close(final long watermark, final boolean all, final List<RollupPoint> points) {
+    long newest = Long.MIN_VALUE;
+    for (DataPoints pane : all ? store.removeAll() : store.expire(watermark)) {
+      Series state = series.get(pane.getSeriesId(), 0L);
+      if (state == null) {
+        state = new Series(pane, panes, decays.length);
+        series.put(pane.getSeriesId(), 0L, state);
+      }
+      add(state, pane);
+      newest = Math.max(newest, pane.getTimestamp());
+    }
+    final long end;
+    if (all) {
+      end = newest == Long.MIN_VALUE ? lastBoundary : Math.max(lastBoundary, newest + slide);
+    } else {
+      // the last boundary whose panes have all closed
+      end = paneStart(watermark - allowedLateness);
+    }
+    if (end == Long.MIN_VALUE || end <= lastBoundary) {
+      return;
+    }
+    // boundaries further back than the largest window have nothing left to emit
+    long boundary = lastBoundary == Long.MIN_VALUE
+            ? end : Math.max(lastBoundary + slide, end - (panes - 1) * slide);
+    for (; boundary <= end; boundary += slide) {
+      emit(boundary, points);
+    }
+    lastBoundary = end;
+  }
+
+  public int size() {
+    return series.size();
+  }
+
+  public void collectStats(final StatsCollector collector) {
+    collector.record("rollup.sliding.series", series.size());
+    collector.record("rollup.sliding.panes_open", store.size());
+  }
+
+  private void add(final Series state, final DataPoints pane) {
+    final int slot = slot(pane.getTimestamp());
+    final DataPoints current = state.ring[slot];
+    if (current == null || current.getTimestamp() < pane.getTimestamp()) {
+      state.ring[slot] = pane;
+    } else if (current.getTimestamp() == pane.getTimestamp()) {
+      // a late point reopened a pane that had already closed
+      current.merge(pane);
+    } else {
+      // older than the ring holds
+      return;
+    }
+    state.newest = Math.max(state.newest, pane.getTimestamp());
+  }
+
+  private void emit(final long boundary, final List<RollupPoint> points) {
+    final long oldest = boundary - panes * slide;
+    series.removeIf(new LongPairMap.Condition<Series>() {
+      @Override
+      public boolean matches(long seriesId, long unused, Series state) {
+        if (state.newest < oldest) {
+          return true;
+        }
+        emit(state, boundary, points);
+        return false;
+      }
+    }, null);
+  }
+
+  private void emit(final Series state, final long boundary, final List<RollupPoint> points) {
+    final long windowEnd = boundary * 1000L;
+    final DataPoints latest = pane(state, boundary - slide);
+    if (latest != null && latest.getCount() > 0) {
+      final double mean = latest.getMean();
+      for (int i = 0; i < decays.length; i++) {
+        state.ewma[i] = Double.isNaN(state.ewma[i]) ? mean : state.ewma[i] * decays[i] + mean * (1 - decays[i]);
+      }
+    }
+    for (int i = 0; i < decays.length; i++) {
+      if (!Double.isNaN(state.ewma[i])) {
+        points.add(new RollupPoint(state.metric + "." + ewmaLabels[i], boundary - slide, state.ewma[i],
+                state.tags, windowEnd));
+      }
+    }
+    if (windows.length == 0) {
+      // only EWMAs
+      return;
+    }
+    final DataPoints window = new DataPoints(state.seriesId, state.metric, boundary - windows[0], state.tags);
+    long covered = 0;
+    for (int i = 0; i < windows.length; i++) {
+      for (; covered < windows[i]; covered += slide) {
+        final DataPoints pane = pane(state, boundary - slide - covered);
+        if (pane != null) {
+          window.merge(pane);
+        }
+      }
+      if (window.getCount() == 0) {
+        continue;
+      }
+      final long start = boundary - windows[i];
+      for (RollupAggregator aggregator : aggregators) {
+        points.add(aggregator.toPoint(state.metric + "." + labels[i] + "-" + aggregator.label(), start,
+                state.tags, windowEnd, window));
+      }
+    }
+  }
+
+  private DataPoints pane(final Series state, final long paneTs) {
+    final DataPoints pane = state.ring[slot(paneTs)];
+    return pane != null && pane.getTimestamp() == paneTs ? pane : null;
+  }
+
+  private int slot(final long paneTs) {
+    return (int) Math.floorMod(paneTs / slide, (long) panes);
+  }
+
+  private long paneStart(final long seconds) {
+    return seconds - Math.floorMod(seconds, slide);
+  }
+}
@@ -0,0 +1,255 @@
+package io.tsdb.opentsdb.realtime;
+
+/**
+ * Copyright 2015 The DiscoveryPlugins Authors
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * An alerting rule compiled once from a line such as
+ * <pre>
+ * cpu_high = avg(5m) sys.cpu.user{host=web*,dc=lga|ewr} &gt; 90
+ * </pre>
+ * Every series of the metric whose tags match is aggregated over tumbling
+ * windows of the given size, and the aggregate of each window compared to
+ * the threshold. The metric is a name, or a prefix ending in ".*". A tag
+ * filter is a literal, a prefix or suffix glob, or '*' for any value, or
+ * alternatives of those separated by '|'; the tag must be present in every
+ * case.
+ * Aggregators are avg, sum, min, max, count and last, comparisons &gt;,
+ * &gt;=, &lt;, &lt;=, == and !=.
+ */
+public final class ThresholdRule {
+  private static final Pattern SYNTAX = Pattern.compile(
+          "\\s*([\\w.\\-]+)\\s*=\\s*(\\w+)\\(\\s*(\\w+)\\s*\\)\\s+([^\\s{]+)\\s*(?:\\{([^}]*)\\})?"
+                  + "\\s*(>=|<=|==|!=|>|<)\\s*(\\S+)\\s*");
+
+  public enum Aggregate { AVG, SUM, MIN, MAX, COUNT, LAST }
+
+  private final String name;
+  private final String metric;
+  private final boolean prefix;
+  private final String[] tagKeys;
+  private final TagFilter[] tagFilters;
+  private final Aggregate aggregate;
+  private final long window;
+  private final String operator;
+  private final double threshold;
+  private final String spec;
+
+  private static final class TagFilter {
+    private final Set<String> literals;
+    private final String[] prefixes;
+    private final String[] suffixes;
+    private final boolean any;
+
+    TagFilter(final Set<String> literals, final List<String> prefixes, final List<String> suffixes,
+              final boolean any) {
+      this.literals = literals;
+      this.prefixes = prefixes.toArray(new String[prefixes.size()]);
+      this.suffixes = suffixes.toArray(new String[suffixes.size()]);
+      this.any = any;
+    }
+
+    boolean matches(final String value) {
+      if (value == null) {
+        return false;
+      }
+      if (any || literals.contains(value)) {
+        return true;
+      }
+      for (String prefix : prefixes) {
+        if (value.startsWith(prefix)) {
+          return true;
+        }
+      }
+      for (String suffix : suffixes) {
+        if (value.endsWith(suffix)) {
+          return true;
+        }
+      }
+      return false;
+    }
+
+    /** Each alternative is a literal, a prefix or suffix glob, or '*'. */
+    static TagFilter parse(final String filter) {
+      final Set<String> literals = new HashSet<String>();
+      final List<String> prefixes = new ArrayList<String>();
+      final List<String> suffixes = new ArrayList<String>();
+      boolean any = false;
+      for (String alternative : filter.split("\\|")) {
+        final int star = alternative.indexOf('*');
+        if (star < 0) {
+          literals.add(alternative);
+        } else if (alternative.length() == 1) {
+          any = true;
+        } else if (star != alternative.lastIndexOf('*')
+                || (star != 0 && star != alternative.length() - 1)) {
+          throw new IllegalArgumentException("Tag filter globs must be a prefix or a suffix: " + filter);
+        } else if (star == 0) {
+          suffixes.add(alternative.substring(1));
+        } else {
+          prefixes.add(alternative.substring(0, star));
+        }
+      }
+      return new TagFilter(literals, prefixes, suffixes, any);
+    }
+  }
+
+  private ThresholdRule(final String name, final String metric, final Map<String, String> tags,
+                        final Aggregate aggregate, final long window, final String operator,
+                        final double threshold, final String spec) {
+    this.name = name;
+    this.prefix = metric.endsWith(".*");
+    this.metric = prefix ? metric.substring(0, metric.length() - 1) : metric;
+    this.tagKeys = new String[tags.size()];
+    this.tagFilters = new TagFilter[tags.size()];
+    int i = 0;
+    for (Map.Entry<String, String> tag : tags.entrySet()) {
+      this.tagKeys[i] = tag.getKey();
+      this.tagFilters[i] = TagFilter.parse(tag.getValue());
+      i++;
+    }
+    this.aggregate = aggregate;
+    this.window = window;
+    this.operator = operator;
+    this.threshold = threshold;
+    this.spec = spec;
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  /** @return the metric name, or the prefix including its final '.' */
+  public String getMetric() {
+    return metric;
+  }
+
+  public boolean isPrefix() {
+    return prefix;
+  }
+
+  public Aggregate getAggregate() {
+    return aggregate;
+  }
+
+  /** @return the window size in seconds */
+  public long getWindow() {
+    return window;
+  }
+
+  public boolean matches(final Map<String, String> tags) {
+    for (int i = 0; i < tagKeys.length; i++) {
+      if (!tagFilters[i].matches(tags.get(tagKeys[i]))) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /** @return true if the aggregate of a window breaches the threshold */
+  public boolean breached(final double value) {
+    switch (operator.charAt(0)) {
+      case '>':
+        return operator.length() == 1 ? value > threshold : value >= threshold;
+      case '<':
+        return operator.length() == 1 ? value < threshold : value <= threshold;
+      case '=':
+        return value == threshold;
+      default:
+        return value != threshold;
+    }
+  }
+
+  /**
+   * Parses one rule, see the class comment for the syntax.
+   */
+  public static ThresholdRule parse(final String spec) {
+    final Matcher m = SYNTAX.matcher(spec);
+    if (!m.matches()) {
+      throw new IllegalArgumentException("Invalid rule, expected name = agg(window) metric{tags} op threshold: "
+              + spec);
+    }
+    final Aggregate aggregate;
+    try {
+      aggregate = Aggregate.valueOf(m.group(2).toUpperCase());
+    } catch (IllegalArgumentException e) {
+      throw new IllegalArgumentException("Unknown rule aggregator " + m.group(2) + " in " + spec);
+    }
+    final String metric = m.group(4);
+    if (metric.indexOf('*') >= 0 && (!metric.endsWith(".*") || metric.indexOf('*') != metric.length() - 1)) {
+      throw new IllegalArgumentException("Rule metric prefixes must end with .*: " + spec);
+    }
+    final Map<String, String> tags = new LinkedHashMap<String, String>();
+    if (m.group(5) != null) {
+      for (String tag : m.group(5).split(",")) {
+        if (tag.trim().isEmpty()) {
+          continue;
+        }
+        final int eq = tag.indexOf('=');
+        if (eq <= 0 || eq == tag.length() - 1) {
+          throw new IllegalArgumentException("Invalid tag filter " + tag + " in rule " + spec);
+        }
+        tags.put(tag.substring(0, eq).trim(), tag.substring(eq + 1).trim());
+      }
+    }
+    final double threshold;
+    try {
+      threshold = Double.parseDouble(m.group(7));
+    } catch (NumberFormatException e) {
+      throw new IllegalArgumentException("Invalid rule threshold " + m.group(7) + " in " + spec);
+    }
+    final long window = RollupTier.parseSeconds(m.group(3));
+    if (window <= 0) {
+      throw new IllegalArgumentException("Rule window must be positive: " + spec);
+    }
+    return new ThresholdRule(m.group(1), metric, tags, aggregate, window, m.group(6), threshold, spec.trim());
+  }
+
+  /**
+   * Parses rules separated by ';' or new lines. Blank lines and lines
+   * starting with '#' are skipped.
+   */
+  public static List<ThresholdRule> parseList(final String spec) {
+    final List<ThresholdRule> rules = new ArrayList<ThresholdRule>();
+    final Set<String> names = new HashSet<String>();
+    for (String rule : spec.split("[;\\n]")) {
+      if (rule.trim().isEmpty() || rule.trim().startsWith("#")) {
+        continue;
+      }
+      final ThresholdRule parsed = parse(rule);
+      if (!names.add(parsed.getName())) {
+        throw new IllegalArgumentException("Duplicate rule name " + parsed.getName());
+      }
+      rules.add(parsed);
+    }
+    return rules;
+  }
+
+  @Override
+  public String toString() {
+    return spec;
+  }
+}
@@ -0,0 +1,99 @@
+package io.tsdb.opentsdb.realtime;
+
+/**
+ * Copyright 2015 The DiscoveryPlugins Authors
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import net.opentsdb.utils.JSON;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Writes rule transitions as JSON lines, appended to a local file for an
+ * alert forwarder to tail, or to this class's logger when no file is given.
+ * Transitions are rare, so every line is flushed as it is written.
+ */
+public class TransitionLog implements RuleEngine.Sink {
+  private static final Logger LOG = LoggerFactory.getLogger(TransitionLog.class);
+
+  private final Writer writer;
+
+  /** @param file the file appended to, or null to log */
+  public TransitionLog(final File file) {
+    if (file == null) {
+      this.writer = null;
+      return;
+    }
+    try {
+      this.writer = new OutputStreamWriter(new FileOutputStream(file, true), "UTF-8");
+    } catch (IOException e) {
+      throw new IllegalStateException("Unable to open rule transition log " + file, e);
+    }
+  }
+
+  @Override
+  public void transition(final RuleEngine.Transition transition) {
+    final String line = JSON.serializeToString(toJson(transition));
+    if (writer == null) {
+      if (transition.isBreached()) {
+        LOG.warn(line);
+      } else {
+        LOG.info(line);
+      }
+      return;
+    }
+    synchronized (this) {
+      try {
+        writer.write(line);
+        writer.write('\n');
+        writer.flush();
+      } catch (IOException e) {
+        LOG.error("Unable to write rule transition " + line, e);
+      }
+    }
+  }
+
+  static Map<String, Object> toJson(final RuleEngine.Transition transition) {
+    final Map<String, Object> json = new LinkedHashMap<String, Object>();
+    json.put("rule", transition.getRule().getName());
+    json.put("state", transition.isBreached() ? "breached" : "ok");
+    json.put("metric", transition.getMetric());
+    json.put("tags", transition.getTags());
+    json.put("timestamp", transition.getWindowStart());
+    // NaN isn't JSON, it marks a series gone idle
+    json.put("value", Double.isNaN(transition.getValue()) ? null : transition.getValue());
+    json.put("expression", transition.getRule().toString());
+    return json;
+  }
+
+  public synchronized void close() {
+    if (writer == null) {
+      return;
+    }
+    try {
+      writer.close();
+    } catch (IOException e) {
+      LOG.warn("Unable to close rule transition log", e);
+    }
+  }
+}
@@ -0,0 +1,82 @@
+package io.tsdb.opentsdb.realtime;
+
+/**
+ * Copyright 2015 The DiscoveryPlugins Authors
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import io.tsdb.opentsdb.core.DataPoints;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Backend holding the open windows of one rollup tier, keyed by series id
+ * and window start. Implementations must be safe to call from every ingest
+ * thread and the flusher at once.
+ */
+public interface WindowStore {
+
+  /** Receives the windows of a stripe being checkpointed, while the stripe is locked */
+  interface Visitor {
+    void visit(DataPoints window);
+  }
+
+  /**
+   * @return false if the window was already closed by {@link #expire}, in
+   * which case the point is dropped
+   */
+  boolean addValue(long seriesId, String metric, long windowTs, Map<String, String> tags, long ts, long value);
+
+  /** @see #addValue(long, String, long, Map, long, long) */
+  boolean addValue(long seriesId, String metric, long windowTs, Map<String, String> tags, long ts, double value);
+
+  /** Folds a closed window of a smaller tier into the window of this store that contains it. */
+  void merge(long windowTs, DataPoints closed);
+
+  /** Removes and returns every window whose deadline is at or before the watermark. */
+  List<DataPoints> expire(long watermark);
+
+  /** @return the time, in seconds, at which a window starting at the given time closes */
+  long deadline(long windowTs);
+
+  /** Removes and returns every window that starts before the given timestamp. */
+  List<DataPoints> removeBefore(long maximumTS);
+
+  List<DataPoints> removeAll();
+
+  /** @return the number of open windows, only a snapshot while writers are active */
+  int size();
+
+  int getStripeCount();
+
+  /**
+   * Hands the windows of one stripe to the visitor under that stripe's lock,
+   * either all of them or only those that changed since they were last
+   * visited, and marks them unchanged.
+   */
+  void checkpoint(int stripe, boolean changedOnly, Visitor visitor);
+
+  /**
+   * Adds copies of the open windows of the metric, for queries on windows
+   * that haven't closed yet. Stores should keep ingest from waiting on it.
+   */
+  void snapshot(String metric, List<DataPoints> into);
+
+  /** Opens the window with the state of a restored checkpoint, replacing any state it had. */
+  void restore(DataPoints window);
+
+  /** Releases any memory or files held outside the heap. */
+  void close();
+}
@@ -0,0 +1,113 @@
+package io.tsdb.opentsdb.core;
+
+import net.opentsdb.core.IncomingDataPoint;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+
+import static org.junit.Assert.*;
+
+/**
+ * Copyright 2015 The DiscoveryPlugins Authors
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+public class DataPointsTest {
+
+  private DataPoints newDataPoints() {
+    HashMap<String, String> tags = new HashMap<String, String>();
+    tags.put("host", "web01");
+    return new DataPoints("sys.cpu.user", 1500000000L, tags);
+  }
+
+  @Test
+  public void testLongAggregates() throws Exception {
+    DataPoints dps = newDataPoints();
+    dps.addValue(1500000001L, 4L);
+    dps.addValue(1500000002L, 2L);
+    dps.addValue(1500000003L, 9L);
+
+    assertTrue(dps.isInteger());
+    assertEquals(3, dps.getCount());
+    assertEquals(15L, dps.getLongSum());
+    assertEquals(2d, dps.getMin(), 0d);
+    assertEquals(9d, dps.getMax(), 0d);
+    assertEquals(4d, dps.getFirst(), 0d);
+    assertEquals(9d, dps.getLast(), 0d);
+    assertEquals(101d, dps.getSumOfSquares(), 0d);
+    assertEquals(5d, dps.getMean(), 0d);
+  }
+
+  @Test
+  public void testMixedAggregates() throws Exception {
+    DataPoints dps = newDataPoints();
+    dps.addValue(1500000002L, 1L);
+    dps.addValue(1500000001L, 0.5d);
+    dps.addValue(1500000003L, -2.5d);
+
+    assertFalse(dps.isInteger());
+    assertEquals(-1d, dps.getSum(), 0d);
+    assertEquals(-2.5d, dps.getMin(), 0d);
+    assertEquals(1d, dps.getMax(), 0d);
+    assertEquals(0.5d, dps.getFirst(), 0d);
+    assertEquals(-2.5d, dps.getLast(), 0d);
+  }
+
+  @Test
+  public void testLongSumOverflow() throws Exception {
+    DataPoints dps = newDataPoints();
+    dps.addValue(1500000001L, Long.MAX_VALUE);
+    dps.addValue(1500000002L, Long.MAX_VALUE);
+    assertEquals(2d * Long.MAX_VALUE, dps.getSum(), 1e4);
+  }
+
+  @Test
+  public void testSumNotExactAfterOverflow() throws Exception {
+    DataPoints dps = newDataPoints();
+    dps.addValue(1500000001L, Long.MAX_VALUE - 1);
+    assertTrue(dps.isExactSum());
+    dps.addValue(1500000002L, 10L);
+    dps.addValue(1500000003L, 5L);
+    // every value is still an integer, but the long sum only holds the 5
+    assertTrue(dps.isInteger());
+    assertFalse(dps.isExactSum());
+    assertEquals((double) Long.MAX_VALUE + 14, dps.getSum(), 1e4);
+
+    // carried through merges and the saved state
+    DataPoints merged = newDataPoints();
+    merged.addValue(1500000004L, 1L);
+    merged.merge(dps);
+    assertFalse(merged.isExactSum());
+    ByteBuffer state = ByteBuffer.allocate(DataPoints.STATE_BYTES);
+    merged.writeState(state, 0);
+    DataPoints restored = newDataPoints();
+    restored.readState(state, 0);
+    assertFalse(restored.isExactSum());
+    restored.reset();
+    assertTrue(restored.isExactSum());
+  }
+
+  @Test
+  public void testGetAvgValue() throws Exception {
+    DataPoints dps = newDataPoints();
+    assertEquals("0.0", dps.getAvgValue().getValue());
+    dps.addDatapoint(new IncomingDataPoint("sys.cpu.user", 1500000001L, "3", dps.getTags()));
+    dps.addDatapoint(new IncomingDataPoint("sys.cpu.user", 1500000002L, "4.0", dps.getTags()));
+    IncomingDataPoint avg = dps.getAvgValue();
+    assertEquals("3.5", avg.getValue());
+    assertEquals(1500000000L, avg.getTimestamp());
+    assertEquals("web01", avg.getTags().get("host"));
+  }
+}
@@ -0,0 +1,89 @@
+package io.tsdb.opentsdb.core;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Copyright 2015 The DiscoveryPlugins Authors
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+public class DuplicateFilterTest {
+
+  @Test
+  public void testDropsRepeatsAndKeepsDistinctPoints() throws Exception {
+    long now = 1500000000000L;
+    DuplicateFilter filter = new DuplicateFilter(60000L, 0.001, 1024 * 1024, now);
+    int falsePositives = 0;
+    for (long series = 0; series < 1000; series++) {
+      for (long ts = 0; ts < 100; ts++) {
+        if (filter.isDuplicate(series, now + ts * 1000, now)) {
+          falsePositives++;
+        }
+      }
+    }
+    // 100000 points, well below what 512KB per filter takes at 0.1%
+    assertTrue("false positives: " + falsePositives, falsePositives < 100);
+    for (long series = 0; series < 1000; series++) {
+      assertTrue(filter.isDuplicate(series, now + 50000, now + 1000));
+    }
+    assertEquals(1000 + falsePositives, filter.getDuplicates());
+  }
+
+  @Test
+  public void testForgetsAfterTwoWindows() throws Exception {
+    long now = 1500000000000L;
+    DuplicateFilter filter = new DuplicateFilter(60000L, 0.001, 1024 * 1024, now);
+    assertFalse(filter.isDuplicate(1, now, now));
+    // rotated into the previous filter, still caught
+    assertTrue(filter.isDuplicate(1, now, now + 60000));
+    // seen again, so carried into the new filter
+    assertTrue(filter.isDuplicate(1, now, now + 120000));
+    assertFalse(filter.isDuplicate(2, now, now + 120000));
+    // two rotations without seeing it
+    assertFalse(filter.isDuplicate(3, now, now + 180000));
+    assertFalse(filter.isDuplicate(2, now, now + 240000));
+  }
+
+  @Test
+  public void testRotatesIntoThePreparedSpare() throws Exception {
+    long now = 1500000000000L;
+    DuplicateFilter filter = new DuplicateFilter(60000L, 0.001, 1024 * 1024, now);
+    assertFalse(filter.isDuplicate(1, now, now));
+    assertFalse(filter.isDuplicate(2, now, now + 60000));
+    filter.prepareSpare();
+    assertFalse(filter.isDuplicate(3, now, now + 120000));
+    assertEquals(0, filter.getInlineClears());
+    // the first bucket was cleared on its way back in
+    filter.prepareSpare();
+    assertFalse(filter.isDuplicate(1, now, now + 180000));
+    assertEquals(0, filter.getInlineClears());
+    // not prepared, so the rotating thread clears it
+    assertFalse(filter.isDuplicate(2, now, now + 240000));
+    assertEquals(1, filter.getInlineClears());
+  }
+
+  @Test
+  public void testRotatesEarlyWhenFull() throws Exception {
+    long now = 1500000000000L;
+    // 128 bits per filter hold about a dozen points at 1%
+    DuplicateFilter filter = new DuplicateFilter(60000L, 0.01, 0, now);
+    for (long series = 0; series < 1000; series++) {
+      filter.isDuplicate(series, now, now);
+    }
+    // without rotating every bit would be set and everything a duplicate
+    assertTrue(filter.getDuplicates() < 500);
+  }
+}
@@ -0,0 +1,116 @@
+package io.tsdb.opentsdb.core;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Copyright 2015 The DiscoveryPlugins Authors
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+public class GorillaChunkTest {
+
+  @Test
+  public void testRoundTripsIrregularPoints() throws Exception {
+    Random random = new Random(42);
+    long[] timestamps = new long[5000];
+    double[] values = new double[timestamps.length];
+    GorillaChunk chunk = new GorillaChunk(1500000000000L);
+    long ts = 1500000000000L;
+    for (int i = 0; i < timestamps.length; i++) {
+      timestamps[i] = ts;
+      // mostly steady, with jitter and the odd long gap
+      values[i] = i % 7 == 0 ? values[Math.max(0, i - 1)] : random.nextGaussian() * Math.pow(10, random.nextInt(12));
+      assertTrue(chunk.append(ts, values[i]));
+      ts += i % 100 == 99 ? 3000000L + random.nextInt(100000) : 10000 + random.nextInt(500) - 250;
+    }
+    assertFalse(chunk.isIntegral());
+    assertFalse(chunk.append(ts - 20000000, 1.0));
+
+    GorillaChunk.Iterator it = chunk.snapshot().iterator();
+    for (int i = 0; i < timestamps.length; i++) {
+      assertTrue(it.hasNext());
+      it.next();
+      assertEquals(timestamps[i], it.timestamp());
+      assertEquals(Double.doubleToRawLongBits(values[i]), Double.doubleToRawLongBits(it.value()));
+    }
+    assertFalse(it.hasNext());
+  }
+
+  @Test
+  public void testSnapshotIsReadOnly() throws Exception {
+    GorillaChunk chunk = new GorillaChunk(1000);
+    assertTrue(chunk.append(1000, 1.5));
+    assertTrue(chunk.append(2000, 2.5));
+    GorillaChunk snapshot = chunk.snapshot();
+    try {
+      snapshot.append(3000, 3.5);
+      fail("appended to a snapshot");
+    } catch (IllegalStateException expected) {
+    }
+    try {
+      snapshot.append(3000, 3L);
+      fail("appended to a snapshot");
+    } catch (IllegalStateException expected) {
+    }
+    assertFalse(snapshot.isIntegral());
+    assertEquals(2, snapshot.getCount());
+    assertEquals(2000, snapshot.getLastTimestamp());
+
+    // the chunk itself goes on, leaving the snapshot as it was
+    assertTrue(chunk.append(3000, 3.5));
+    GorillaChunk.Iterator it = snapshot.iterator();
+    it.next();
+    it.next();
+    assertEquals(2.5, it.value(), 0);
+    assertFalse(it.hasNext());
+    assertEquals(3, chunk.getCount());
+  }
+
+  @Test
+  public void testSteadySeriesCostAFewBitsPerPoint() throws Exception {
+    GorillaChunk chunk = new GorillaChunk(1000);
+    for (int i = 0; i < 720; i++) {
+      assertTrue(chunk.append(1000 + i * 10000L, 50 + (i % 5)));
+    }
+    assertTrue(chunk.isIntegral());
+    assertEquals(720, chunk.getCount());
+    assertTrue("bytes " + chunk.getBytes(), chunk.getBytes() < 720 * 2);
+    GorillaChunk.Iterator it = chunk.iterator();
+    for (int i = 0; i < 720; i++) {
+      it.next();
+      assertEquals(1000 + i * 10000L, it.timestamp());
+      assertEquals(50 + (i % 5), (long) it.value());
+    }
+  }
+
+  @Test
+  public void testExtremeDeltasAndValues() throws Exception {
+    long[] timestamps = {0, 1, 2, 66, 67, 67 + 2147483646L, 67 + 2147483646L * 2, 67 + 2147483646L * 2 + 1};
+    long[] values = {Long.MIN_VALUE, 0, -1, Long.MAX_VALUE, 1L << 53, -(1L << 53), 3, 3};
+    GorillaChunk chunk = new GorillaChunk(0);
+    for (int i = 0; i < timestamps.length; i++) {
+      assertTrue(chunk.append(timestamps[i], values[i]));
+    }
+    GorillaChunk.Iterator it = chunk.iterator();
+    for (int i = 0; i < timestamps.length; i++) {
+      it.next();
+      assertEquals(timestamps[i], it.timestamp());
+      assertEquals((double) values[i], it.value(), 0);
+    }
+  }
+}
@@ -0,0 +1,61 @@
+package io.tsdb.opentsdb.core;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * Copyright 2015 The DiscoveryPlugins Authors
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+public class HyperLogLogTest {
+
+  private static long seriesId(final int host) {
+    Map<String, String> tags = new HashMap<String, String>();
+    tags.put("host", "web" + host);
+    return SeriesKey.hash("sys.cpu.user", tags);
+  }
+
+  @Test
+  public void testEstimateWithinError() throws Exception {
+    for (int cardinality : new int[]{10, 1000, 100000, 1000000}) {
+      HyperLogLog hll = new HyperLogLog(12);
+      for (int i = 0; i < cardinality; i++) {
+        // every series seen several times must count once
+        hll.add(seriesId(i));
+        hll.add(seriesId(i));
+      }
+      // 1.6% standard error at precision 12, allow three of them
+      assertEquals(cardinality, hll.estimate(), Math.max(1, cardinality * 0.05));
+    }
+  }
+
+  @Test
+  public void testMergeIsUnion() throws Exception {
+    HyperLogLog a = new HyperLogLog(10);
+    HyperLogLog b = new HyperLogLog(10);
+    for (int i = 0; i < 60000; i++) {
+      a.add(seriesId(i));
+      b.add(seriesId(i + 30000));
+    }
+    a.merge(b);
+    assertEquals(90000, a.estimate(), 90000 * 0.1);
+    a.clear();
+    assertEquals(0, a.estimate());
+  }
+}
@@ -0,0 +1,94 @@
+package io.tsdb.opentsdb.core;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Copyright 2015 The DiscoveryPlugins Authors
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+public class LongPairMapTest {
+
+  @Test
+  public void testMatchesHashMap() throws Exception {
+    Random random = new Random(1);
+    LongPairMap<Long> map = new LongPairMap<Long>();
+    Map<String, Long> reference = new HashMap<String, Long>();
+    for (int i = 0; i < 200000; i++) {
+      long k1 = random.nextInt(500);
+      long k2 = random.nextInt(20);
+      String key = k1 + "/" + k2;
+      if (random.nextInt(3) == 0) {
+        assertEquals(reference.remove(key), map.remove(k1, k2));
+      } else {
+        assertEquals(reference.put(key, (long) i), map.put(k1, k2, (long) i));
+      }
+      assertEquals(reference.size(), map.size());
+    }
+    for (Map.Entry<String, Long> entry : reference.entrySet()) {
+      String[] parts = entry.getKey().split("/");
+      assertEquals(entry.getValue(), map.get(Long.parseLong(parts[0]), Long.parseLong(parts[1])));
+    }
+  }
+
+  @Test
+  public void testRemoveIfVisitsEveryEntryOnce() throws Exception {
+    LongPairMap<Long> map = new LongPairMap<Long>();
+    for (long window = 0; window < 10; window++) {
+      for (long series = 0; series < 1000; series++) {
+        map.put(series, window, series * 10 + window);
+      }
+    }
+    List<Long> removed = new ArrayList<Long>();
+    int count = map.removeIf(new LongPairMap.Condition<Long>() {
+      @Override
+      public boolean matches(long series, long window, Long value) {
+        return window < 5;
+      }
+    }, removed);
+    assertEquals(5000, count);
+    assertEquals(5000, removed.size());
+    assertEquals(5000, map.size());
+    for (long series = 0; series < 1000; series++) {
+      assertNull(map.get(series, 4));
+      assertEquals(Long.valueOf(series * 10 + 5), map.get(series, 5));
+    }
+  }
+
+  @Test
+  public void testSeriesKeyIgnoresTagOrder() throws Exception {
+    Map<String, String> forward = new LinkedHashMap<String, String>();
+    forward.put("host", "web01");
+    forward.put("dc", "lax");
+    Map<String, String> backward = new LinkedHashMap<String, String>();
+    backward.put("dc", "lax");
+    backward.put("host", "web01");
+    Map<String, String> swapped = new LinkedHashMap<String, String>();
+    swapped.put("host", "lax");
+    swapped.put("dc", "web01");
+
+    assertEquals(SeriesKey.hash("sys.cpu.user", forward), SeriesKey.hash("sys.cpu.user", backward));
+    assertNotEquals(SeriesKey.hash("sys.cpu.user", forward), SeriesKey.hash("sys.cpu.user", swapped));
+    assertNotEquals(SeriesKey.hash("sys.cpu.user", forward), SeriesKey.hash("sys.cpu.nice", forward));
+  }
+}
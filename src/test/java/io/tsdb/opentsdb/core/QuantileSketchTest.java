@@ -0,0 +1,106 @@
+package io.tsdb.opentsdb.core;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Copyright 2015 The DiscoveryPlugins Authors
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+public class QuantileSketchTest {
+  private static final double ACCURACY = 0.01;
+  private static final double[] QUANTILES = {0.5, 0.9, 0.95, 0.99};
+
+  private static void assertRelative(double expected, double actual) {
+    assertEquals(expected, actual, Math.abs(expected) * ACCURACY + 1e-12);
+  }
+
+  private static double exact(double[] sorted, double quantile) {
+    return sorted[(int) (quantile * (sorted.length - 1))];
+  }
+
+  @Test
+  public void testQuantilesWithinAccuracy() throws Exception {
+    Random random = new Random(42);
+    QuantileSketch sketch = new QuantileSketch(ACCURACY, 2048);
+    double[] values = new double[100000];
+    for (int i = 0; i < values.length; i++) {
+      // log-normal, roughly what request latencies look like
+      values[i] = Math.exp(random.nextGaussian() * 2 + 3);
+      sketch.add(values[i]);
+    }
+    Arrays.sort(values);
+    for (double q : QUANTILES) {
+      assertRelative(exact(values, q), sketch.getQuantile(q));
+    }
+  }
+
+  @Test
+  public void testMergeMatchesSingleSketch() throws Exception {
+    Random random = new Random(7);
+    QuantileSketch whole = new QuantileSketch(ACCURACY, 2048);
+    QuantileSketch merged = new QuantileSketch(ACCURACY, 2048);
+    for (int window = 0; window < 12; window++) {
+      QuantileSketch part = new QuantileSketch(ACCURACY, 2048);
+      for (int i = 0; i < 1000; i++) {
+        double value = random.nextDouble() * 1000 * (window + 1);
+        part.add(value);
+        whole.add(value);
+      }
+      merged.merge(part);
+    }
+    assertEquals(whole.getCount(), merged.getCount());
+    for (double q : QUANTILES) {
+      assertEquals(whole.getQuantile(q), merged.getQuantile(q), 0d);
+    }
+  }
+
+  @Test
+  public void testNegativeAndZeroValues() throws Exception {
+    QuantileSketch sketch = new QuantileSketch(ACCURACY, 128);
+    for (int i = -50; i <= 50; i++) {
+      sketch.add(i);
+    }
+    assertRelative(-50, sketch.getQuantile(0));
+    assertEquals(0d, sketch.getQuantile(0.5), 0d);
+    assertRelative(50, sketch.getQuantile(1));
+  }
+
+  @Test
+  public void testBucketLimitKeepsUpperQuantiles() throws Exception {
+    QuantileSketch sketch = new QuantileSketch(ACCURACY, 64);
+    double[] values = new double[10000];
+    for (int i = 0; i < values.length; i++) {
+      values[i] = Math.pow(10, i / 1000d);
+      sketch.add(values[i]);
+    }
+    assertTrue(sketch.getBucketCount() <= 64);
+    assertRelative(exact(values, 0.99), sketch.getQuantile(0.99));
+  }
+
+  @Test
+  public void testEmptySketch() throws Exception {
+    assertTrue(Double.isNaN(new QuantileSketch(ACCURACY, 16).getQuantile(0.5)));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testMergeDifferentAccuracy() throws Exception {
+    new QuantileSketch(0.01, 16).merge(new QuantileSketch(0.02, 16));
+  }
+}
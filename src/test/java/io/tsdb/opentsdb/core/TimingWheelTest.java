@@ -0,0 +1,86 @@
+package io.tsdb.opentsdb.core;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Copyright 2015 The DiscoveryPlugins Authors
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+public class TimingWheelTest {
+
+  private static final class Recorder implements TimingWheel.Expiry {
+    private final List<long[]> expired = new ArrayList<long[]>();
+    private long now;
+
+    @Override
+    public void expired(long key1, long key2) {
+      // key2 carries the deadline in these tests
+      assertTrue("expired early: " + key2 + " at " + now, key2 <= now);
+      expired.add(new long[]{key1, key2});
+    }
+  }
+
+  @Test
+  public void testExpiresAtDeadlineAcrossLevels() throws Exception {
+    long start = 1500000000L;
+    TimingWheel wheel = new TimingWheel(start);
+    Random random = new Random(3);
+    int scheduled = 0;
+    for (int i = 0; i < 5000; i++) {
+      long deadline = start + 1 + random.nextInt(20000);
+      wheel.schedule(i, deadline, deadline);
+      scheduled++;
+    }
+    Recorder recorder = new Recorder();
+    long now = start;
+    while (wheel.size() > 0) {
+      now += 1 + random.nextInt(90);
+      recorder.now = now;
+      int before = recorder.expired.size();
+      wheel.advance(now, recorder);
+      for (int i = before; i < recorder.expired.size(); i++) {
+        assertTrue(recorder.expired.get(i)[1] > now - 91);
+      }
+    }
+    assertEquals(scheduled, recorder.expired.size());
+  }
+
+  @Test
+  public void testOverdueExpiresOnNextAdvance() throws Exception {
+    TimingWheel wheel = new TimingWheel(1000L);
+    wheel.schedule(1L, 900L, 900L);
+    Recorder recorder = new Recorder();
+    recorder.now = 1000L;
+    assertEquals(1, wheel.advance(1000L, recorder));
+    assertEquals(0, wheel.size());
+  }
+
+  @Test
+  public void testNothingExpiresBeforeDeadline() throws Exception {
+    TimingWheel wheel = new TimingWheel(0L);
+    wheel.schedule(1L, 4096L, 4096L);
+    Recorder recorder = new Recorder();
+    recorder.now = 4095L;
+    assertEquals(0, wheel.advance(4095L, recorder));
+    recorder.now = 4096L;
+    assertEquals(1, wheel.advance(4096L, recorder));
+  }
+}
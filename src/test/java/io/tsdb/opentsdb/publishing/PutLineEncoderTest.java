@@ -0,0 +1,90 @@
+package io.tsdb.opentsdb.publishing;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.util.CharsetUtil;
+import org.junit.Test;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Copyright 2015 The DiscoveryPlugins Authors
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+public class PutLineEncoderTest {
+
+    private static Map<String, String> tags() {
+        Map<String, String> tags = new LinkedHashMap<String, String>();
+        tags.put("host", "web01");
+        tags.put("dc", "z\u00fcrich");
+        return tags;
+    }
+
+    private static String encode(EmbeddedChannel channel, RelayPoint point) {
+        assertTrue(channel.writeOutbound(point));
+        ByteBuf buf = channel.readOutbound();
+        try {
+            return buf.toString(CharsetUtil.UTF_8);
+        } finally {
+            buf.release();
+        }
+    }
+
+    private static String value(EmbeddedChannel channel, double value) {
+        String line = encode(channel, RelayPoint.of("m", 1, value, new LinkedHashMap<String, String>()));
+        return line.substring("put m 1 ".length(), line.length() - 1);
+    }
+
+    @Test
+    public void testLongs() {
+        EmbeddedChannel channel = new EmbeddedChannel(new PutLineEncoder(2));
+        assertEquals("put sys.cpu.user 1500000000 42 host=web01 dc=z\u00fcrich\n",
+                encode(channel, RelayPoint.of("sys.cpu.user", 1500000000L, 42L, tags())));
+        // the same strings again, now from the cache, and past its size
+        assertEquals("put sys.cpu.user 1500000000123 -7 host=web01 dc=z\u00fcrich\n",
+                encode(channel, RelayPoint.of("sys.cpu.user", 1500000000123L, -7L, tags())));
+        assertEquals("put m 0 " + Long.MIN_VALUE + " host=web01 dc=z\u00fcrich\n",
+                encode(channel, RelayPoint.of("m", 0, Long.MIN_VALUE, tags())));
+        assertEquals("put m 0 " + Long.MAX_VALUE + " host=web01 dc=z\u00fcrich\n",
+                encode(channel, RelayPoint.of("m", 0, Long.MAX_VALUE, tags())));
+        channel.finish();
+    }
+
+    @Test
+    public void testDoubles() {
+        EmbeddedChannel channel = new EmbeddedChannel(new PutLineEncoder(100));
+        assertEquals("42.0", value(channel, 42.0));
+        assertEquals("0.1", value(channel, 0.1));
+        assertEquals("-2.5", value(channel, -2.5));
+        assertEquals("0.0", value(channel, 0.0));
+        assertEquals("-0.0", value(channel, -0.0));
+        assertEquals("0.000123", value(channel, 0.000123));
+        assertEquals("3.141592653589793", value(channel, Math.PI));
+        assertEquals("1.0E300", value(channel, 1e300));
+        assertEquals("NaN", value(channel, Double.NaN));
+        assertEquals("-Infinity", value(channel, Double.NEGATIVE_INFINITY));
+        // whatever is written reads back as the same double
+        Random random = new Random(42);
+        for (int i = 0; i < 10000; i++) {
+            double v = (random.nextDouble() - 0.5) * Math.pow(10, random.nextInt(20) - 10);
+            assertEquals(v, Double.parseDouble(value(channel, v)), 0);
+        }
+        channel.finish();
+    }
+}
@@ -0,0 +1,138 @@
+package io.tsdb.opentsdb.publishing;
+
+import net.opentsdb.utils.Config;
+
+import java.io.InputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Copyright 2015 The DiscoveryPlugins Authors
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * Points per second {@link RelayClient} delivers to a local sink that only
+ * counts lines, flushing every line (flush.bytes = 0, as before batching)
+ * against the default batching, with 1, 2 and 4 publishing threads. The
+ * publishers wait while the channel is unwritable, so nothing is dropped
+ * and time is measured until the sink has read every line.
+ * <p/>
+ * Run with: java -cp build/classes/test:build/classes/main:... io.tsdb.opentsdb.publishing.RelayClientBenchmark
+ */
+public class RelayClientBenchmark {
+    private static final int POINTS_PER_THREAD = 500000;
+    private static final int[] THREADS = {1, 2, 4};
+
+    public static void main(String[] args) throws Exception {
+        // warm up the JIT before measuring
+        run(2, 0);
+        run(2, 65536);
+
+        System.out.println(String.format("%8s %18s %18s %14s", "threads", "per line pts/s", "batched pts/s",
+                "lines/flush"));
+        for (int threads : THREADS) {
+            double perLine = run(threads, 0)[0];
+            double[] batched = run(threads, 65536);
+            System.out.println(String.format("%8d %18.0f %18.0f %14.1f", threads, perLine, batched[0], batched[1]));
+        }
+    }
+
+    /** @return the points per second, and the lines per flush */
+    private static double[] run(final int threadCount, final int flushBytes) throws Exception {
+        final ServerSocket server = new ServerSocket(0);
+        final AtomicLong received = new AtomicLong();
+        final Thread sink = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                final byte[] buffer = new byte[65536];
+                try (Socket socket = server.accept(); InputStream in = socket.getInputStream()) {
+                    int n;
+                    while ((n = in.read(buffer)) >= 0) {
+                        long lines = 0;
+                        for (int i = 0; i < n; i++) {
+                            if (buffer[i] == '\n') {
+                                lines++;
+                            }
+                        }
+                        received.addAndGet(lines);
+                    }
+                } catch (Exception e) {
+                    // closed at the end of the run
+                }
+            }
+        });
+        sink.start();
+
+        Config config = new Config(false);
+        config.overrideConfig("tsd.rtpublisher.relay.flush.bytes", Integer.toString(flushBytes));
+        final RelayClient client = new RelayClient(config, "127.0.0.1", server.getLocalPort());
+        while (!client.isWritable()) {
+            Thread.sleep(10);
+        }
+
+        final CountDownLatch start = new CountDownLatch(1);
+        final List<Thread> threads = new ArrayList<Thread>();
+        for (int t = 0; t < threadCount; t++) {
+            // as handed over by the TSD, the tags of a series recur
+            final List<Map<String, String>> series = new ArrayList<Map<String, String>>();
+            for (int i = 0; i < 1000; i++) {
+                Map<String, String> tags = new HashMap<String, String>();
+                tags.put("host", "web" + i);
+                tags.put("thread", Integer.toString(t));
+                series.add(tags);
+            }
+            Thread publisher = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int i = 0; i < POINTS_PER_THREAD; i++) {
+                        while (!client.isWritable()) {
+                            Thread.yield();
+                        }
+                        client.writePoint("sys.cpu.user", 1500000000 + i, i * 0.5, series.get(i % 1000));
+                    }
+                }
+            });
+            threads.add(publisher);
+            publisher.start();
+        }
+        long begin = System.nanoTime();
+        start.countDown();
+        for (Thread publisher : threads) {
+            publisher.join();
+        }
+        long expected = (long) threadCount * POINTS_PER_THREAD;
+        // a publisher racing the channel turning unwritable may still see its line dropped
+        while (received.get() < expected - client.getDropped()) {
+            Thread.sleep(1);
+        }
+        long elapsed = System.nanoTime() - begin;
+        double linesPerFlush = (double) expected / Math.max(1, client.getFlushes());
+        client.shutdown();
+        server.close();
+        sink.join();
+        return new double[] {expected / (elapsed / 1e9), linesPerFlush};
+    }
+}
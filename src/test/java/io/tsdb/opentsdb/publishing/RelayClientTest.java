@@ -0,0 +1,161 @@
+package io.tsdb.opentsdb.publishing;
+
+import net.opentsdb.utils.Config;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+import static org.junit.Assert.*;
+
+/**
+ * Copyright 2015 The DiscoveryPlugins Authors
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+public class RelayClientTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static int freePort() throws Exception {
+        ServerSocket socket = new ServerSocket(0);
+        int port = socket.getLocalPort();
+        socket.close();
+        return port;
+    }
+
+    private static void awaitConnects(RelayClient client, long connects) throws Exception {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (client.getConnects() < connects || !client.isConnected()) {
+            assertTrue("not connected in time", System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+    }
+
+    @Test(timeout = 30000)
+    public void testBuffersUntilConnectedAndReconnects() throws Exception {
+        Config config = new Config(false);
+        config.overrideConfig("tsd.rtpublisher.relay.reconnect.min_ms", "10");
+        config.overrideConfig("tsd.rtpublisher.relay.reconnect.max_ms", "50");
+        config.overrideConfig("tsd.rtpublisher.relay.disconnected", "buffer");
+        config.overrideConfig("tsd.rtpublisher.relay.buffer.max_lines", "2");
+        int port = freePort();
+        RelayClient client = new RelayClient(config, "127.0.0.1", port);
+        try {
+            assertFalse(client.isConnected());
+            assertFalse(client.writeMessage("put a 1 1 host=a"));
+            assertFalse(client.writeMessage("put b 1 1 host=a"));
+            // over the buffer
+            assertFalse(client.writeMessage("put c 1 1 host=a"));
+            assertEquals(2, client.getPending());
+            assertEquals(1, client.getDropped());
+            while (client.getFailures() < 2) {
+                // retrying with backoff
+                Thread.sleep(10);
+            }
+
+            ServerSocket server = new ServerSocket(port);
+            Socket socket = server.accept();
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), "UTF-8"));
+            assertEquals("put a 1 1 host=a", in.readLine());
+            assertEquals("put b 1 1 host=a", in.readLine());
+            awaitConnects(client, 1);
+            assertTrue(client.writeMessage("put d 1 1 host=a"));
+            assertEquals("put d 1 1 host=a", in.readLine());
+
+            // the target restarts
+            socket.close();
+            Socket again = server.accept();
+            awaitConnects(client, 2);
+            assertTrue(client.writeMessage("put e 1 1 host=a"));
+            in = new BufferedReader(new InputStreamReader(again.getInputStream(), "UTF-8"));
+            assertEquals("put e 1 1 host=a", in.readLine());
+            again.close();
+            server.close();
+        } finally {
+            client.shutdown();
+        }
+    }
+
+    @Test(timeout = 30000)
+    public void testCoalescesFlushes() throws Exception {
+        Config config = new Config(false);
+        config.overrideConfig("tsd.rtpublisher.relay.flush.bytes", "4096");
+        ServerSocket server = new ServerSocket(0);
+        RelayClient client = new RelayClient(config, "127.0.0.1", server.getLocalPort());
+        try {
+            Socket socket = server.accept();
+            awaitConnects(client, 1);
+            for (int i = 0; i < 10000; i++) {
+                assertTrue(client.writeMessage("put sys.cpu.user " + i + " 1 host=a"));
+            }
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), "UTF-8"));
+            for (int i = 0; i < 10000; i++) {
+                assertEquals("put sys.cpu.user " + i + " 1 host=a", in.readLine());
+            }
+            // about 30 bytes a line, so a flush per 130 lines or so
+            assertTrue(client.getFlushes() < 1000);
+            socket.close();
+            server.close();
+        } finally {
+            client.shutdown();
+        }
+    }
+
+    @Test(timeout = 30000)
+    public void testSpoolsUntilConnected() throws Exception {
+        Config config = new Config(false);
+        config.overrideConfig("tsd.rtpublisher.relay.reconnect.min_ms", "10");
+        config.overrideConfig("tsd.rtpublisher.relay.reconnect.max_ms", "50");
+        config.overrideConfig("tsd.rtpublisher.relay.disconnected", "spool");
+        config.overrideConfig("tsd.rtpublisher.relay.spool.dir", folder.getRoot().getPath());
+        config.overrideConfig("tsd.rtpublisher.relay.spool.segment_mb", "1");
+        config.overrideConfig("tsd.rtpublisher.relay.spool.replay_lines_per_sec", "1000");
+        int port = freePort();
+        RelayClient client = new RelayClient(config, "127.0.0.1", port);
+        for (int i = 0; i < 50; i++) {
+            assertFalse(client.writeMessage("put a " + i + " 1 host=a"));
+        }
+        // the target was down for a TSD restart as well
+        client.shutdown();
+        client = new RelayClient(config, "127.0.0.1", port);
+        try {
+            for (int i = 50; i < 100; i++) {
+                assertFalse(client.writeMessage("put a " + i + " 1 host=a"));
+            }
+            assertEquals(100, client.getSpool().getLines());
+            assertEquals(0, client.getDropped());
+
+            ServerSocket server = new ServerSocket(port);
+            Socket socket = server.accept();
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), "UTF-8"));
+            long start = System.currentTimeMillis();
+            for (int i = 0; i < 100; i++) {
+                assertEquals("put a " + i + " 1 host=a", in.readLine());
+            }
+            // 10 lines every 10ms
+            assertTrue(System.currentTimeMillis() - start >= 50);
+            assertEquals(0, client.getSpool().getLines());
+            socket.close();
+            server.close();
+        } finally {
+            client.shutdown();
+        }
+    }
+}
@@ -0,0 +1,123 @@
+package io.tsdb.opentsdb.publishing;
+
+import io.tsdb.opentsdb.core.SeriesKey;
+import net.opentsdb.utils.Config;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+/**
+ * Copyright 2015 The DiscoveryPlugins Authors
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+public class RelayRingTest {
+    private static final int SERIES = 20000;
+
+    /** Targets that are never connected, the ring only needs their names */
+    private static RelayRing ring(String hosts, final Set<String> down) throws Exception {
+        Config config = new Config(false);
+        config.overrideConfig("tsd.rtpublisher.relay.hosts", hosts);
+        final RelayRing ring = RelayRing.fromConfig(config);
+        return new RelayRing(ring.getClients(), 160) {
+            @Override
+            boolean isAvailable(RelayClient client) {
+                return !down.contains(client.getTarget());
+            }
+        };
+    }
+
+    private static long series(int i) {
+        Map<String, String> tags = new HashMap<String, String>();
+        tags.put("host", "web" + i);
+        return SeriesKey.hash("sys.cpu.user", tags);
+    }
+
+    private static List<String> route(RelayRing ring) {
+        List<String> targets = new ArrayList<String>();
+        for (int i = 0; i < SERIES; i++) {
+            targets.add(ring.route(series(i)).getTarget());
+        }
+        return targets;
+    }
+
+    @Test
+    public void testSpreadsAndKeepsSeriesInPlace() throws Exception {
+        Set<String> down = new HashSet<String>();
+        RelayRing four = ring("a:1,b:1, c:1,d", down);
+        RelayRing three = ring("a:1,b:1,c:1", down);
+        try {
+            assertEquals("d:4242", four.getClients().get(3).getTarget());
+            List<String> before = route(four);
+            Map<String, Integer> counts = new HashMap<String, Integer>();
+            for (String target : before) {
+                counts.put(target, counts.containsKey(target) ? counts.get(target) + 1 : 1);
+            }
+            assertEquals(4, counts.size());
+            for (int count : counts.values()) {
+                assertTrue(count + " series on a target", Math.abs(count - SERIES / 4) < SERIES / 10);
+            }
+
+            // draining d only moves its own series
+            List<String> after = route(three);
+            for (int i = 0; i < SERIES; i++) {
+                if (!before.get(i).equals("d:4242")) {
+                    assertEquals(before.get(i), after.get(i));
+                }
+            }
+        } finally {
+            four.shutdown();
+            three.shutdown();
+        }
+    }
+
+    @Test
+    public void testRoutesAroundDisconnectedTarget() throws Exception {
+        Set<String> down = new HashSet<String>();
+        RelayRing ring = ring("a:1,b:1,c:1", down);
+        try {
+            List<String> before = route(ring);
+            down.add("b:1");
+            List<String> failed = route(ring);
+            Set<String> spread = new HashSet<String>();
+            for (int i = 0; i < SERIES; i++) {
+                if (before.get(i).equals("b:1")) {
+                    assertNotEquals("b:1", failed.get(i));
+                    spread.add(failed.get(i));
+                } else {
+                    assertEquals(before.get(i), failed.get(i));
+                }
+            }
+            // b's share is spread over the others rather than landing on one
+            assertEquals(2, spread.size());
+            assertTrue(ring.getRerouted() > 0);
+
+            // with none connected every series stays with its own target
+            down.add("a:1");
+            down.add("c:1");
+            assertEquals(before, route(ring));
+            down.clear();
+            assertEquals(before, route(ring));
+        } finally {
+            ring.shutdown();
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package io.tsdb.opentsdb.publishing;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.UnpooledByteBufAllocator;
+import io.netty.util.CharsetUtil;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.Collections;
+
+import static org.junit.Assert.*;
+
+/**
+ * Copyright 2015 The DiscoveryPlugins Authors
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+public class RelaySpoolTest {
+    private static final long HOUR = 3600 * 1000L;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static String poll(RelaySpool spool, long now) {
+        ByteBuf line = spool.poll(UnpooledByteBufAllocator.DEFAULT, now);
+        if (line == null) {
+            return null;
+        }
+        try {
+            return line.toString(CharsetUtil.UTF_8);
+        } finally {
+            line.release();
+        }
+    }
+
+    private static int segments(File dir) {
+        return dir.listFiles().length;
+    }
+
+    @Test
+    public void testReplaysAcrossRestarts() throws Exception {
+        File dir = folder.newFolder();
+        RelaySpool spool = new RelaySpool(dir, 4096, 1 << 20, HOUR);
+        // about 30 bytes a record, so several segments
+        for (int i = 0; i < 300; i++) {
+            assertTrue(spool.append(RelayPoint.of("sys.cpu.user", i, (long) i,
+                    Collections.singletonMap("host", "a")), 1000 + i));
+        }
+        assertTrue(spool.append("put m 1 1.5 host=b\r\n", 2000));
+        assertEquals(301, spool.getLines());
+        assertTrue(segments(dir) > 1);
+        assertEquals(1000, spool.getOldestAge(2000));
+        for (int i = 0; i < 100; i++) {
+            assertEquals("put sys.cpu.user " + i + " " + i + " host=a\n", poll(spool, 2000));
+        }
+        spool.close();
+
+        spool = new RelaySpool(dir, 4096, 1 << 20, HOUR);
+        assertEquals(201, spool.getLines());
+        for (int i = 100; i < 300; i++) {
+            assertEquals("put sys.cpu.user " + i + " " + i + " host=a\n", poll(spool, 2000));
+        }
+        assertEquals("put m 1 1.5 host=b\r\n", poll(spool, 2000));
+        assertNull(poll(spool, 2000));
+        assertEquals(0, spool.getLines());
+        assertEquals(0, spool.getOldestAge(2000));
+        // new lines go after the ones from before the restart
+        assertTrue(spool.append("put n 1 1 host=c\r\n", 3000));
+        assertEquals("put n 1 1 host=c\r\n", poll(spool, 3000));
+        // the replayed segments are gone
+        assertEquals(1, segments(dir));
+        spool.close();
+    }
+
+    @Test
+    public void testBudgetAndRetention() throws Exception {
+        File dir = folder.newFolder();
+        RelaySpool spool = new RelaySpool(dir, 1024, 2048, HOUR);
+        int taken = 0;
+        while (spool.append("put sys.cpu.user 1 1 host=a\r\n", 0)) {
+            taken++;
+        }
+        assertEquals(1, spool.getRejected());
+        assertEquals(taken, spool.getLines());
+        assertEquals(2048, spool.getBytes());
+
+        // past the retention the old segments make room for new lines
+        assertTrue(spool.append("put m 1 1 host=a\r\n", 2 * HOUR));
+        assertEquals(1, spool.getLines());
+        assertTrue(spool.getExpired() > 0);
+        assertEquals("put m 1 1 host=a\r\n", poll(spool, 2 * HOUR));
+        spool.close();
+    }
+}
@@ -0,0 +1,105 @@
+package io.tsdb.opentsdb.realtime;
+
+import io.tsdb.opentsdb.core.DataPoints;
+import org.junit.Test;
+
+import java.util.HashMap;
+
+import static org.junit.Assert.*;
+
+/**
+ * Copyright 2015 The DiscoveryPlugins Authors
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+public class CounterTrackerTest {
+
+  @Test
+  public void testMatchesMetrics() throws Exception {
+    CounterTracker counters = new CounterTracker("net.if.bytes_in, proc.stat.*", 0, 1);
+    assertTrue(counters.isCounter("net.if.bytes_in"));
+    assertFalse(counters.isCounter("net.if.bytes_out"));
+    assertTrue(counters.isCounter("proc.stat.intr"));
+    assertTrue(new CounterTracker(" ", 0, 1).isEmpty());
+  }
+
+  @Test
+  public void testIncreasesAcrossResets() throws Exception {
+    CounterTracker counters = new CounterTracker("c", 0, 4);
+    assertEquals(CounterTracker.NONE, counters.increase(1L, 1000, 100));
+    assertEquals(50, counters.increase(1L, 2000, 150));
+    // out of order and duplicate samples add nothing and leave the state alone
+    assertEquals(CounterTracker.NONE, counters.increase(1L, 1500, 120));
+    assertEquals(CounterTracker.NONE, counters.increase(1L, 2000, 150));
+    // the process restarted, counting from zero again
+    assertEquals(30, counters.increase(1L, 3000, 30));
+    assertEquals(1, counters.getResets());
+    assertEquals(0, counters.getWraps());
+    assertEquals(1, counters.getLive());
+  }
+
+  @Test
+  public void testWrapsAtTheMaximum() throws Exception {
+    CounterTracker counters = new CounterTracker("c", 4294967295L, 1);
+    counters.increase(1L, 1000, 4294967200L);
+    assertEquals(196, counters.increase(1L, 2000, 100));
+    assertEquals(1, counters.getWraps());
+    // a small drop would need most of the range to be a wrap, so it is a reset
+    assertEquals(5, counters.increase(1L, 3000, 5));
+    assertEquals(1, counters.getResets());
+    counters.increase(1L, 4000, 3000000000L);
+    assertEquals(1294967303L, counters.increase(1L, 5000, 7));
+    assertEquals(2, counters.getWraps());
+  }
+
+  @Test
+  public void testDoubleCounters() throws Exception {
+    CounterTracker counters = new CounterTracker("c", 0, 1);
+    assertTrue(Double.isNaN(counters.increase(1L, 1000, 1.5)));
+    assertEquals(2.0, counters.increase(1L, 2000, 3.5), 0);
+    assertEquals(1.0, counters.increase(1L, 3000, 1.0), 0);
+    // switching to integer values carries on from the last double
+    assertEquals(3, counters.increase(1L, 4000, 4L));
+  }
+
+  @Test
+  public void testRateOfAWindow() throws Exception {
+    CounterTracker counters = new CounterTracker("c", 0, 1);
+    DataPoints window = new DataPoints("c", 60, new HashMap<String, String>());
+    long value = 0;
+    counters.increase(1L, 59000, value);
+    for (long ts = 60; ts < 120; ts += 10) {
+      value += 300;
+      if (ts == 90) {
+        value = 0;
+      }
+      long increase = counters.increase(1L, ts * 1000, value);
+      window.addValue(ts * 1000, increase);
+    }
+    // 300 a step, except the reset which only counts from zero
+    assertEquals(1500, window.getLongSum());
+    RollupPoint rate = RollupAggregator.RATE.toPoint("c.1m-rate", 60, window.getTags(), 120000, window);
+    assertEquals(25.0, rate.getDoubleValue(), 0);
+  }
+
+  @Test
+  public void testEvictsStaleSeries() throws Exception {
+    CounterTracker counters = new CounterTracker("c", 0, 2);
+    counters.increase(1L, 1000, 1);
+    counters.increase(2L, 5000, 1);
+    assertEquals(1, counters.evictBefore(2));
+    assertEquals(1, counters.getLive());
+    assertEquals(CounterTracker.NONE, counters.increase(1L, 6000, 10));
+  }
+}
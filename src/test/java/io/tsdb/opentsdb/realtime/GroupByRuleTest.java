@@ -0,0 +1,88 @@
+package io.tsdb.opentsdb.realtime;
+
+import io.tsdb.opentsdb.core.DataPoints;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * Copyright 2015 The DiscoveryPlugins Authors
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+public class GroupByRuleTest {
+
+  private static DataPoints window(final String metric, final String host, final String dc,
+                                   final long windowTs, final long... values) {
+    HashMap<String, String> tags = new HashMap<String, String>();
+    tags.put("host", host);
+    tags.put("dc", dc);
+    tags.put("role", "web");
+    DataPoints dps = new DataPoints(metric, windowTs, tags);
+    for (int i = 0; i < values.length; i++) {
+      dps.addValue(windowTs * 1000 + i, values[i]);
+    }
+    return dps;
+  }
+
+  @Test
+  public void testParseList() throws Exception {
+    List<GroupByRule> rules = GroupByRule.parseList("sys.cpu.user:dc,role; sys.mem.*:-host");
+    assertEquals(2, rules.size());
+    assertTrue(rules.get(0).matches("sys.cpu.user"));
+    assertFalse(rules.get(0).matches("sys.cpu.user2"));
+    assertEquals("sys.cpu.user.by_dc_role", rules.get(0).groupMetric("sys.cpu.user"));
+    assertTrue(rules.get(1).matches("sys.mem.free"));
+    assertEquals("sys.mem.free.without_host", rules.get(1).groupMetric("sys.mem.free"));
+    assertTrue(GroupByRule.parseList("").isEmpty());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testRejectsMixedKeepAndDrop() throws Exception {
+    GroupByRule.parseList("sys.cpu.user:dc,-host");
+  }
+
+  @Test
+  public void testAggregatesAcrossDroppedTags() throws Exception {
+    List<DataPoints> closed = new ArrayList<DataPoints>();
+    closed.add(window("sys.cpu.user", "web01", "lax", 0, 1, 2));
+    closed.add(window("sys.cpu.user", "web02", "lax", 0, 10));
+    closed.add(window("sys.cpu.user", "web03", "nyc", 0, 100));
+    closed.add(window("sys.cpu.user", "web01", "lax", 60, 7));
+    closed.add(window("sys.cpu.nice", "web01", "lax", 0, 1000));
+
+    GroupByRule rule = GroupByRule.parseList("sys.cpu.user:dc").get(0);
+    List<DataPoints> groups = rule.aggregate(closed);
+    Map<String, DataPoints> byKey = new HashMap<String, DataPoints>();
+    for (DataPoints group : groups) {
+      assertEquals("sys.cpu.user.by_dc", group.getMetric());
+      assertEquals("sys.cpu.user", rule.sourceMetric(group.getMetric()));
+      assertEquals(1, group.getTags().size());
+      byKey.put(group.getTags().get("dc") + "/" + group.getTimestamp(), group);
+    }
+    assertEquals(3, groups.size());
+    assertEquals(13, byKey.get("lax/0").getLongSum());
+    assertEquals(3, byKey.get("lax/0").getCount());
+    assertEquals(10, byKey.get("lax/0").getLongMax());
+    assertEquals(100, byKey.get("nyc/0").getLongSum());
+    assertEquals(7, byKey.get("lax/60").getLongSum());
+    // the per series windows are left as they were
+    assertEquals(3, closed.get(0).getLongSum());
+  }
+}
@@ -0,0 +1,85 @@
+package io.tsdb.opentsdb.realtime;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+/**
+ * Copyright 2015 The DiscoveryPlugins Authors
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+public class HeavyHittersTest {
+
+  @Test
+  public void testFindsTheHeavyKeysAmongManyLightOnes() throws Exception {
+    HeavyHitters hitters = new HeavyHitters(5, 1024, 0);
+    Map<String, String> tags = new HashMap<String, String>();
+    for (int round = 0; round < 200; round++) {
+      // five heavy series, (i + 1) * 10 points each per round
+      for (int i = 0; i < 5; i++) {
+        for (int j = 0; j < (i + 1) * 10; j++) {
+          hitters.add(i, "heavy" + i, tags);
+        }
+      }
+      // and a long tail of light ones
+      for (int i = 0; i < 100; i++) {
+        hitters.add(1000 + round * 100 + i, "light", tags);
+      }
+    }
+    List<HeavyHitters.Hitter> top = hitters.current(10000);
+    assertEquals(5, top.size());
+    for (int i = 0; i < 5; i++) {
+      assertEquals("heavy" + (4 - i), top.get(i).getMetric());
+      long expected = (5 - i) * 10 * 200;
+      assertEquals(expected, top.get(i).getCount(), expected * 0.05);
+      assertEquals(expected / 10.0, top.get(i).getRate(), expected * 0.05 / 10);
+    }
+  }
+
+  @Test
+  public void testRotationKeepsTheLastInterval() throws Exception {
+    HeavyHitters hitters = new HeavyHitters(2, 256, 0);
+    for (int i = 0; i < 160; i++) {
+      hitters.add(1, "sys.cpu.user", null);
+      hitters.add(2, "sys.cpu.nice", null);
+      hitters.add(2, "sys.cpu.nice", null);
+    }
+    hitters.rotate(8000);
+    assertEquals(0, hitters.elapsed(8000));
+    assertTrue(hitters.current(8000).isEmpty());
+    List<HeavyHitters.Hitter> previous = hitters.previous();
+    assertEquals("sys.cpu.nice", previous.get(0).getMetric());
+    assertEquals(40, previous.get(0).getRate(), 0.01);
+    assertEquals(20, previous.get(1).getRate(), 0.01);
+
+    // the counts start again from zero
+    for (int i = 0; i < 32; i++) {
+      hitters.add(3, "sys.mem.free", null);
+    }
+    Set<String> current = new HashSet<String>();
+    for (HeavyHitters.Hitter hitter : hitters.current(9000)) {
+      current.add(hitter.getMetric());
+      assertEquals(32, hitter.getCount());
+    }
+    assertEquals(1, current.size());
+    assertTrue(current.contains("sys.mem.free"));
+  }
+}
@@ -0,0 +1,198 @@
+package io.tsdb.opentsdb.realtime;
+
+import io.tsdb.opentsdb.core.DataPoints;
+import io.tsdb.opentsdb.core.SeriesKey;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Copyright 2015 The DiscoveryPlugins Authors
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+public class OffHeapRollupStoreTest {
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private static Map<String, String> tags(final int series) {
+    Map<String, String> tags = new HashMap<String, String>();
+    tags.put("host", "web" + series);
+    tags.put("dc", series % 2 == 0 ? "lax" : "z\u00fcrich");
+    if (series % 50 == 0) {
+      // too long for the inline space
+      StringBuilder longValue = new StringBuilder();
+      for (int i = 0; i < 100; i++) {
+        longValue.append("x");
+      }
+      tags.put("owner", longValue.toString());
+    }
+    return tags;
+  }
+
+  @Test
+  public void testMatchesHeapStoreWhileSpilling() throws Exception {
+    // no direct budget at all, every slot lives in the spill file
+    OffHeapRollupStore offHeap = new OffHeapRollupStore(4, 60, 0, 0, 64, folder.getRoot());
+    RollupStore heap = new RollupStore(4, 60, 0, 0, 0);
+    // the heap store's timing wheel starts at the clock, keep windows ahead of it
+    long base = System.currentTimeMillis() / 1000 / 60 * 60 + 60;
+    Random random = new Random(7);
+    for (int i = 0; i < 200000; i++) {
+      int series = random.nextInt(5000);
+      Map<String, String> tags = tags(series);
+      long id = SeriesKey.hash("sys.cpu.user", tags);
+      long windowTs = base + 60L * random.nextInt(5);
+      long ts = windowTs * 1000 + random.nextInt(60000);
+      if (random.nextBoolean()) {
+        long value = random.nextInt(1000) - 500;
+        offHeap.addValue(id, "sys.cpu.user", windowTs, tags, ts, value);
+        heap.addValue(id, "sys.cpu.user", windowTs, tags, ts, value);
+      } else {
+        double value = random.nextGaussian();
+        offHeap.addValue(id, "sys.cpu.user", windowTs, tags, ts, value);
+        heap.addValue(id, "sys.cpu.user", windowTs, tags, ts, value);
+      }
+    }
+    assertEquals(heap.size(), offHeap.size());
+    assertTrue(offHeap.getSpilledBytes() > 0);
+    // only the index is in direct memory
+    assertTrue(offHeap.getDirectBytes() > 0);
+
+    assertSameWindows(heap.expire(base + 180), offHeap.expire(base + 180));
+    assertEquals(heap.size(), offHeap.size());
+    assertSameWindows(heap.removeAll(), offHeap.removeAll());
+    assertEquals(0, offHeap.size());
+    offHeap.close();
+    assertEquals(0, folder.getRoot().listFiles().length);
+  }
+
+  @Test
+  public void testSlotsAreReusedAcrossWindows() throws Exception {
+    OffHeapRollupStore store = new OffHeapRollupStore(1, 60, 0, 1L << 30, 64, folder.getRoot());
+    for (long windowTs = 0; windowTs < 6000; windowTs += 60) {
+      for (int series = 0; series < 1000; series++) {
+        store.addValue(series, "sys.cpu.user", windowTs, tags(series), windowTs * 1000, 1L);
+      }
+      assertEquals(1000, store.expire(windowTs + 60).size());
+    }
+    long afterFirstChunk = store.getDirectBytes();
+    store.addValue(1, "sys.cpu.user", 6000, tags(1), 6000000, 1L);
+    assertEquals(afterFirstChunk, store.getDirectBytes());
+    assertEquals(0, store.getSpilledBytes());
+  }
+
+  @Test
+  public void testExpiredWindowsAreNotReopened() throws Exception {
+    OffHeapRollupStore store = new OffHeapRollupStore(2, 60, 10, 1L << 24, 128, folder.getRoot());
+    assertTrue(store.addValue(1L, "sys.cpu.user", 0, tags(1), 1000, 1L));
+    assertEquals(1, store.expire(70).size());
+    assertFalse(store.addValue(1L, "sys.cpu.user", 0, tags(1), 2000, 2L));
+    assertFalse(store.addValue(2L, "sys.cpu.user", 0, tags(2), 2000, 2.5d));
+    assertEquals(0, store.size());
+    assertTrue(store.addValue(1L, "sys.cpu.user", 60, tags(1), 61000, 3L));
+    assertEquals(1, store.size());
+    store.close();
+  }
+
+  @Test
+  public void testIndexCountsAgainstTheBudget() throws Exception {
+    final long index = 1024 * 24;
+    // the index takes the whole budget, so the first chunk is mapped
+    OffHeapRollupStore full = new OffHeapRollupStore(1, 60, 0, index, 64, folder.getRoot());
+    assertEquals(index, full.getDirectBytes());
+    full.addValue(1L, "sys.cpu.user", 0, tags(1), 1000, 1L);
+    assertEquals(index, full.getDirectBytes());
+    long chunk = full.getSpilledBytes();
+    assertTrue(chunk > 0);
+    full.close();
+
+    OffHeapRollupStore store = new OffHeapRollupStore(1, 60, 0, 1L << 30, 64, folder.getRoot());
+    store.addValue(1L, "sys.cpu.user", 0, tags(1), 1000, 1L);
+    assertEquals(index + chunk, store.getDirectBytes());
+    // the index doubles past 60% load, the old table is no longer counted
+    for (int series = 2; series <= 1000; series++) {
+      store.addValue(series, "sys.cpu.user", 0, tags(series), 1000, 1L);
+    }
+    assertEquals(2 * index + chunk, store.getDirectBytes());
+    assertEquals(0, store.getSpilledBytes());
+    store.close();
+  }
+
+  @Test
+  public void testMergeIntoLargerWindow() throws Exception {
+    RollupStore minute = new RollupStore(2, 60, 0, 0, 0);
+    OffHeapRollupStore hour = new OffHeapRollupStore(2, 3600, 0, 1L << 24, 128, folder.getRoot());
+    for (long ts = 0; ts < 3600; ts += 10) {
+      minute.addValue(9L, "sys.cpu.user", ts - ts % 60, tags(9), ts * 1000, ts);
+    }
+    for (DataPoints dps : minute.removeAll()) {
+      hour.merge(0, dps);
+    }
+    List<DataPoints> closed = hour.expire(3600);
+    assertEquals(1, closed.size());
+    assertEquals(360, closed.get(0).getCount());
+    assertEquals(0, closed.get(0).getFirstLong());
+    assertEquals(3590, closed.get(0).getLastLong());
+    assertEquals(tags(9), closed.get(0).getTags());
+  }
+
+  @Test
+  public void testSnapshotCopiesTheOpenWindowsOfAMetric() throws Exception {
+    OffHeapRollupStore store = new OffHeapRollupStore(2, 60, 0, 1L << 24, 128, folder.getRoot());
+    store.addValue(1L, "sys.cpu.user", 0, tags(1), 1000, 5L);
+    store.addValue(1L, "sys.cpu.user", 60, tags(1), 61000, 7L);
+    store.addValue(2L, "sys.cpu.nice", 0, tags(2), 2000, 1L);
+    List<DataPoints> windows = new ArrayList<DataPoints>();
+    store.snapshot("sys.cpu.user", windows);
+    assertEquals(2, windows.size());
+    long sum = 0;
+    for (DataPoints dps : windows) {
+      assertEquals(tags(1), dps.getTags());
+      sum += dps.getLongSum();
+    }
+    assertEquals(12, sum);
+    assertEquals(3, store.size());
+  }
+
+  private static void assertSameWindows(final List<DataPoints> expected, final List<DataPoints> actual) {
+    assertEquals(expected.size(), actual.size());
+    Map<String, DataPoints> byKey = new HashMap<String, DataPoints>();
+    for (DataPoints dps : actual) {
+      byKey.put(dps.getSeriesId() + "/" + dps.getTimestamp(), dps);
+    }
+    for (DataPoints want : expected) {
+      DataPoints got = byKey.get(want.getSeriesId() + "/" + want.getTimestamp());
+      assertNotNull(got);
+      assertEquals(want.getMetric(), got.getMetric());
+      assertEquals(want.getTags(), got.getTags());
+      assertEquals(want.getCount(), got.getCount());
+      assertEquals(want.getSum(), got.getSum(), 1e-9);
+      assertEquals(want.getMin(), got.getMin(), 0);
+      assertEquals(want.getMax(), got.getMax(), 0);
+      assertEquals(want.getSumOfSquares(), got.getSumOfSquares(), 1e-9);
+      assertEquals(want.getFirst(), got.getFirst(), 0);
+      assertEquals(want.getLast(), got.getLast(), 0);
+      assertEquals(want.getLastTimestamp(), got.getLastTimestamp());
+    }
+  }
+}
@@ -0,0 +1,83 @@
+package io.tsdb.opentsdb.realtime;
+
+import io.tsdb.opentsdb.core.GorillaChunk;
+import io.tsdb.opentsdb.core.SeriesKey;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * Copyright 2015 The DiscoveryPlugins Authors
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+public class RecentBufferTest {
+
+  private static Map<String, String> tags(final String host) {
+    Map<String, String> tags = new HashMap<String, String>();
+    tags.put("host", host);
+    return tags;
+  }
+
+  private static List<Long> timestamps(final RecentBuffer.Snapshot snapshot) {
+    List<Long> timestamps = new ArrayList<Long>();
+    for (GorillaChunk chunk : snapshot.getChunks()) {
+      GorillaChunk.Iterator it = chunk.iterator();
+      while (it.hasNext()) {
+        it.next();
+        timestamps.add(it.timestamp());
+      }
+    }
+    return timestamps;
+  }
+
+  @Test
+  public void testKeepsTheSpanOfEachSeries() throws Exception {
+    RecentBuffer buffer = new RecentBuffer(new MetricPatterns("sys.*"), 3600 * 1000L, 4);
+    assertTrue(buffer.matches("sys.cpu.user"));
+    assertFalse(buffer.matches("app.requests"));
+    long web01 = SeriesKey.hash("sys.cpu.user", tags("web01"));
+    long web02 = SeriesKey.hash("sys.cpu.user", tags("web02"));
+    // two hours of points every 10s, so chunks of 15m
+    for (long ts = 0; ts < 7200 * 1000L; ts += 10000) {
+      buffer.addValue(web01, "sys.cpu.user", tags("web01"), ts, ts / 1000);
+      buffer.addValue(web02, "sys.cpu.user", tags("web02"), ts, 0.5);
+    }
+    // out of order
+    buffer.addValue(web01, "sys.cpu.user", tags("web01"), 5000, 1L);
+
+    assertEquals(0, buffer.trim(7200 * 1000L));
+    List<RecentBuffer.Snapshot> series = buffer.query("sys.cpu.user", 0, Long.MAX_VALUE);
+    assertEquals(2, series.size());
+    for (RecentBuffer.Snapshot snapshot : series) {
+      List<Long> timestamps = timestamps(snapshot);
+      // whole chunks are dropped, the oldest left starts at the span
+      assertEquals(3600 * 1000L, (long) timestamps.get(0));
+      assertEquals(7190 * 1000L, (long) timestamps.get(timestamps.size() - 1));
+      assertEquals("web01".equals(snapshot.getTags().get("host")), snapshot.isIntegral());
+    }
+    // only the chunks overlapping the range are copied
+    series = buffer.query("sys.cpu.user", 7000 * 1000L, 7100 * 1000L);
+    assertEquals(1, series.get(0).getChunks().size());
+    assertTrue(buffer.query("sys.cpu.nice", 0, Long.MAX_VALUE).isEmpty());
+
+    assertEquals(2, buffer.trim(7200 * 1000L + 3600 * 1000L));
+    assertTrue(buffer.query("sys.cpu.user", 0, Long.MAX_VALUE).isEmpty());
+  }
+}
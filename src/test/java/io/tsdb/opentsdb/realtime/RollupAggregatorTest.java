@@ -0,0 +1,134 @@
+package io.tsdb.opentsdb.realtime;
+
+import io.tsdb.opentsdb.core.DataPoints;
+import io.tsdb.opentsdb.core.QuantileSketch;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * Copyright 2015 The DiscoveryPlugins Authors
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+public class RollupAggregatorTest {
+  private static final long START = 1500000000L;
+  private static final long END = (START + 60) * 1000L;
+
+  private static DataPoints window() {
+    HashMap<String, String> tags = new HashMap<String, String>();
+    tags.put("host", "web01");
+    return new DataPoints("sys.cpu.user", START, tags);
+  }
+
+  private static RollupPoint point(RollupAggregator aggregator, DataPoints dps) {
+    return aggregator.toPoint(dps.getMetric(), START, dps.getTags(), END, dps);
+  }
+
+  @Test
+  public void testIntegerWindow() {
+    DataPoints dps = window();
+    dps.addValue(START + 2, 4L);
+    dps.addValue(START + 1, 2L);
+    dps.addValue(START + 3, 9L);
+
+    Map<RollupAggregator, Long> longs = new HashMap<RollupAggregator, Long>();
+    longs.put(RollupAggregator.SUM, 15L);
+    longs.put(RollupAggregator.MIN, 2L);
+    longs.put(RollupAggregator.MAX, 9L);
+    longs.put(RollupAggregator.COUNT, 3L);
+    longs.put(RollupAggregator.FIRST, 2L);
+    longs.put(RollupAggregator.LAST, 9L);
+    for (Map.Entry<RollupAggregator, Long> want : longs.entrySet()) {
+      RollupPoint point = point(want.getKey(), dps);
+      assertTrue(want.getKey().label(), point.isInteger());
+      assertEquals(want.getKey().label(), want.getValue().longValue(), point.getLongValue());
+      assertEquals(START, point.getTimestamp());
+      assertEquals(END, point.getWindowEnd());
+    }
+    assertFalse(point(RollupAggregator.AVG, dps).isInteger());
+    assertEquals(5d, point(RollupAggregator.AVG, dps).getDoubleValue(), 0d);
+    assertEquals(Math.sqrt(26d / 3), point(RollupAggregator.DEV, dps).getDoubleValue(), 1e-9);
+    // 15 over the 60 seconds of the window
+    assertEquals(0.25d, point(RollupAggregator.RATE, dps).getDoubleValue(), 0d);
+  }
+
+  @Test
+  public void testMixedWindow() {
+    DataPoints dps = window();
+    dps.addValue(START + 1, 1L);
+    dps.addValue(START + 2, 0.5d);
+    assertFalse(point(RollupAggregator.SUM, dps).isInteger());
+    assertEquals(1.5d, point(RollupAggregator.SUM, dps).getDoubleValue(), 0d);
+    assertEquals(0.5d, point(RollupAggregator.MIN, dps).getDoubleValue(), 0d);
+    assertTrue(point(RollupAggregator.FIRST, dps).isInteger());
+    assertEquals(0.5d, point(RollupAggregator.LAST, dps).getDoubleValue(), 0d);
+  }
+
+  @Test
+  public void testSumPastLongRange() {
+    DataPoints dps = window();
+    dps.addValue(START + 1, Long.MAX_VALUE);
+    dps.addValue(START + 2, 3L);
+    RollupPoint sum = point(RollupAggregator.SUM, dps);
+    assertFalse(sum.isInteger());
+    assertEquals((double) Long.MAX_VALUE + 3, sum.getDoubleValue(), 1e4);
+    // min and max stay exact
+    assertEquals(Long.MAX_VALUE, point(RollupAggregator.MAX, dps).getLongValue());
+  }
+
+  @Test
+  public void testQuantiles() {
+    DataPoints dps = window();
+    dps.setSketch(new QuantileSketch(0.01, 1024));
+    for (int i = 1; i <= 1000; i++) {
+      dps.addValue(START + 1, (long) i);
+    }
+    assertTrue(RollupAggregator.P99.isQuantile());
+    assertFalse(RollupAggregator.MAX.isQuantile());
+    assertEquals(500d, point(RollupAggregator.P50, dps).getDoubleValue(), 10d);
+    assertEquals(990d, point(RollupAggregator.P99, dps).getDoubleValue(), 20d);
+  }
+
+  @Test
+  public void testParseList() {
+    assertEquals(Arrays.asList(RollupAggregator.AVG, RollupAggregator.P999, RollupAggregator.SUM),
+            RollupAggregator.parseList(" avg,P999,, sum"));
+    try {
+      RollupAggregator.parseList("avg,median");
+      fail("unknown aggregator");
+    } catch (IllegalArgumentException expected) {
+      assertTrue(expected.getMessage().contains("median"));
+    }
+    try {
+      RollupAggregator.parseList("");
+      fail("no aggregators");
+    } catch (IllegalArgumentException expected) {
+    }
+  }
+
+  @Test
+  public void testNativeGroupBy() {
+    assertEquals("sum", RollupAggregator.SUM.nativeGroupBy());
+    assertEquals("sum", RollupAggregator.COUNT.nativeGroupBy());
+    assertEquals("min", RollupAggregator.MIN.nativeGroupBy());
+    assertEquals("max", RollupAggregator.MAX.nativeGroupBy());
+    assertNull(RollupAggregator.AVG.nativeGroupBy());
+    assertNull(RollupAggregator.P50.nativeGroupBy());
+  }
+}
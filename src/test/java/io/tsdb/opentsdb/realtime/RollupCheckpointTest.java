@@ -0,0 +1,207 @@
+package io.tsdb.opentsdb.realtime;
+
+import io.tsdb.opentsdb.core.DataPoints;
+import io.tsdb.opentsdb.core.QuantileSketch;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * Copyright 2015 The DiscoveryPlugins Authors
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+public class RollupCheckpointTest {
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private static final class State implements RollupCheckpoint.Source {
+    private long watermark;
+    private long maxEventTime;
+    private List<RollupPoint> unwritten = new ArrayList<RollupPoint>();
+
+    @Override
+    public long getWatermark() {
+      return watermark;
+    }
+
+    @Override
+    public long getMaxEventTime() {
+      return maxEventTime;
+    }
+
+    @Override
+    public void unwritten(List<RollupPoint> into) {
+      into.addAll(unwritten);
+    }
+
+    @Override
+    public void restored(long watermark, long maxEventTime, List<RollupPoint> unwritten) {
+      this.watermark = watermark;
+      this.maxEventTime = maxEventTime;
+      this.unwritten = unwritten;
+    }
+  }
+
+  private final long base = System.currentTimeMillis() / 1000 / 3600 * 3600 + 3600;
+
+  private List<RollupTier> tiers(final boolean offHeap) {
+    List<RollupTier> tiers = new ArrayList<RollupTier>();
+    tiers.add(new RollupTier(60, new RollupStore(4, 60, 0, 0.01, 64)));
+    tiers.add(new RollupTier(3600, offHeap
+            ? new OffHeapRollupStore(4, 3600, 0, 1L << 24, 64, folder.getRoot())
+            : new RollupStore(4, 3600, 0, 0.01, 64)));
+    return tiers;
+  }
+
+  private static Map<String, String> tags(final int series) {
+    Map<String, String> tags = new HashMap<String, String>();
+    tags.put("host", "web" + series);
+    return tags;
+  }
+
+  private void add(final List<RollupTier> tiers, final int series, final long ts, final long value) {
+    tiers.get(0).getStore().addValue(series, "sys.cpu.user", ts - ts % 60, tags(series), ts * 1000, value);
+    tiers.get(1).getStore().addValue(series, "sys.cpu.user", ts - ts % 3600, tags(series), ts * 1000, value);
+  }
+
+  @Test
+  public void testRestoresIncrementalCheckpoints() throws Exception {
+    File file = new File(folder.getRoot(), "rollup.checkpoint");
+    State state = new State();
+    List<RollupTier> tiers = tiers(true);
+    RollupCheckpoint checkpoint = new RollupCheckpoint(file, tiers, state);
+    assertEquals(0, checkpoint.restore());
+    for (int series = 0; series < 1000; series++) {
+      add(tiers, series, base, series);
+    }
+    checkpoint.checkpoint(false);
+    // only some series change before the next checkpoint
+    for (int series = 0; series < 100; series++) {
+      add(tiers, series, base + 1, 1);
+    }
+    long before = file.length();
+    state.watermark = base - 1;
+    state.maxEventTime = base + 1;
+    checkpoint.checkpoint(false);
+    assertTrue(file.length() - before < (file.length() - 8) / 5);
+
+    State restoredState = new State();
+    List<RollupTier> restored = tiers(false);
+    assertEquals(2000, new RollupCheckpoint(file, restored, restoredState).restore());
+    assertEquals(base - 1, restoredState.watermark);
+    assertEquals(base + 1, restoredState.maxEventTime);
+    assertSameWindows(tiers.get(0).getStore().removeAll(), restored.get(0).getStore().removeAll());
+    assertSameWindows(tiers.get(1).getStore().removeAll(), restored.get(1).getStore().removeAll());
+  }
+
+  @Test
+  public void testIgnoresTornBatchAndClosedWindows() throws Exception {
+    File file = new File(folder.getRoot(), "rollup.checkpoint");
+    State state = new State();
+    List<RollupTier> tiers = tiers(false);
+    RollupCheckpoint checkpoint = new RollupCheckpoint(file, tiers, state);
+    checkpoint.restore();
+    add(tiers, 1, base, 5);
+    add(tiers, 2, base + 60, 7);
+    // the first minute closed before this checkpoint, only the hour and the second minute survive
+    state.watermark = base + 60;
+    checkpoint.checkpoint(false);
+    long committed = file.length();
+    add(tiers, 2, base + 61, 9);
+    checkpoint.checkpoint(false);
+    RandomAccessFile raf = new RandomAccessFile(file, "rw");
+    raf.setLength(file.length() - 3);
+    raf.close();
+
+    List<RollupTier> restored = tiers(false);
+    assertEquals(3, new RollupCheckpoint(file, restored, new State()).restore());
+    List<DataPoints> minutes = restored.get(0).getStore().removeAll();
+    assertEquals(1, minutes.size());
+    assertEquals(base + 60, minutes.get(0).getTimestamp());
+    assertEquals(1, minutes.get(0).getCount());
+    assertEquals(2, restored.get(1).getStore().removeAll().size());
+    // restore compacts the file without the torn batch
+    assertTrue(file.length() <= committed);
+  }
+
+  @Test
+  public void testRestoresPointsNotWrittenYet() throws Exception {
+    File file = new File(folder.getRoot(), "rollup.checkpoint");
+    State state = new State();
+    RollupCheckpoint checkpoint = new RollupCheckpoint(file, tiers(false), state);
+    checkpoint.restore();
+    RollupPoint written = new RollupPoint("sys.cpu.user.1m-sum", base, 5L, tags(1), (base + 60) * 1000);
+    RollupPoint plain = new RollupPoint("sys.cpu.user.1m-avg", base, 2.5d, tags(1), (base + 60) * 1000);
+    RollupPoint grouped = new RollupPoint("sys.cpu.user", base, 7L, tags(2), (base + 60) * 1000)
+            .asNative("1m", "count", "sum");
+    state.unwritten.add(written);
+    state.unwritten.add(plain);
+    state.unwritten.add(grouped);
+    state.watermark = base + 60;
+    checkpoint.checkpoint(false);
+    // the first point was written before the next checkpoint
+    state.unwritten.remove(written);
+    checkpoint.checkpoint(false);
+
+    State restoredState = new State();
+    new RollupCheckpoint(file, tiers(false), restoredState).restore();
+    assertEquals(base + 60, restoredState.watermark);
+    assertEquals(2, restoredState.unwritten.size());
+    RollupPoint first = restoredState.unwritten.get(0);
+    assertEquals("sys.cpu.user.1m-avg", first.getMetric());
+    assertFalse(first.isInteger());
+    assertEquals(2.5d, first.getDoubleValue(), 0);
+    assertFalse(first.isNative());
+    assertEquals((base + 60) * 1000, first.getWindowEnd());
+    RollupPoint second = restoredState.unwritten.get(1);
+    assertEquals("sys.cpu.user", second.getMetric());
+    assertEquals(base, second.getTimestamp());
+    assertEquals(7L, second.getLongValue());
+    assertEquals(tags(2), second.getTags());
+    assertEquals("1m", second.getInterval());
+    assertEquals("count", second.getAggregator());
+    assertEquals("sum", second.getGroupByAggregator());
+  }
+
+  private static void assertSameWindows(final List<DataPoints> expected, final List<DataPoints> actual) {
+    assertEquals(expected.size(), actual.size());
+    Map<String, DataPoints> byKey = new HashMap<String, DataPoints>();
+    for (DataPoints dps : actual) {
+      byKey.put(dps.getSeriesId() + "/" + dps.getTimestamp(), dps);
+    }
+    for (DataPoints want : expected) {
+      DataPoints got = byKey.get(want.getSeriesId() + "/" + want.getTimestamp());
+      assertNotNull(got);
+      assertEquals(want.getTags(), got.getTags());
+      assertEquals(want.getCount(), got.getCount());
+      assertEquals(want.getLongSum(), got.getLongSum());
+      assertEquals(want.getLast(), got.getLast(), 0);
+      QuantileSketch sketch = got.getSketch();
+      assertNotNull(sketch);
+      if (want.getSketch() != null) {
+        assertEquals(want.getQuantile(0.5), got.getQuantile(0.5), 0);
+      }
+    }
+  }
+}
@@ -0,0 +1,154 @@
+package io.tsdb.opentsdb.realtime;
+
+import com.stumbleupon.async.Deferred;
+import com.stumbleupon.async.DeferredGroupException;
+import net.opentsdb.utils.Config;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Copyright 2015 The DiscoveryPlugins Authors
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+public class RollupFlusherTest {
+  private final AtomicInteger writes = new AtomicInteger();
+  private final Set<String> writers = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+  private final RollupFlusher.Writer writer = new RollupFlusher.Writer() {
+    @Override
+    public Deferred<Object> write(RollupPoint point) {
+      writes.incrementAndGet();
+      writers.add(Thread.currentThread().getName());
+      return Deferred.fromResult(null);
+    }
+  };
+
+  private static List<RollupPoint> points(final int count) {
+    final List<RollupPoint> points = new ArrayList<RollupPoint>();
+    for (int i = 0; i < count; i++) {
+      points.add(new RollupPoint("sys.cpu.user.1m-avg", 1500000000L, i,
+              Collections.singletonMap("host", "web" + i), 1500000060000L));
+    }
+    return points;
+  }
+
+  @Test(timeout = 10000)
+  public void testShutdownDoesNotWaitForTheNextCycle() throws Exception {
+    final Config config = new Config(false);
+    config.overrideConfig("tsd.rtpublisher.rollup.flush_interval", "3600");
+    final RollupFlusher flusher = new RollupFlusher(config, writer, new RollupFlusher.WindowSource() {
+      @Override
+      public List<RollupPoint> closedWindows(boolean all) {
+        return all ? points(3) : Collections.<RollupPoint>emptyList();
+      }
+    });
+    flusher.start();
+    final long start = System.nanoTime();
+    flusher.shutdown().joinUninterruptibly(5000);
+    assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 2000);
+    assertEquals(3, writes.get());
+    assertEquals(Collections.singleton("RollupFlusher"), writers);
+  }
+
+  @Test(timeout = 10000)
+  public void testShutdownCutsShortARateLimitedCycle() throws Exception {
+    final Config config = new Config(false);
+    config.overrideConfig("tsd.rtpublisher.rollup.flush_interval", "0");
+    config.overrideConfig("tsd.rtpublisher.rollup.flush_jitter", "0");
+    config.overrideConfig("tsd.rtpublisher.rollup.max_write_rate", "1");
+    config.overrideConfig("tsd.rtpublisher.rollup.flush_batch_size", "1");
+    final CountDownLatch cycling = new CountDownLatch(1);
+    final RollupFlusher flusher = new RollupFlusher(config, writer, new RollupFlusher.WindowSource() {
+      private boolean first = true;
+
+      @Override
+      public List<RollupPoint> closedWindows(boolean all) {
+        if (all) {
+          return points(5);
+        }
+        if (first) {
+          first = false;
+          cycling.countDown();
+          // a point a second, so 100 seconds of writes
+          return points(100);
+        }
+        return Collections.emptyList();
+      }
+    });
+    flusher.start();
+    cycling.await();
+    final long start = System.nanoTime();
+    flusher.shutdown().joinUninterruptibly(5000);
+    assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 3000);
+    // what the cycle left and the open windows, written unthrottled
+    assertEquals(105, writes.get());
+    assertEquals(Collections.singleton("RollupFlusher"), writers);
+  }
+
+  @Test(timeout = 10000)
+  public void testTracksPointsUntilTheirWriteCompletes() throws Exception {
+    final Config config = new Config(false);
+    config.overrideConfig("tsd.rtpublisher.rollup.flush_interval", "3600");
+    final List<Deferred<Object>> acks = Collections.synchronizedList(new ArrayList<Deferred<Object>>());
+    final List<RollupPoint> closed = points(2);
+    final RollupFlusher[] flusher = new RollupFlusher[1];
+    flusher[0] = new RollupFlusher(config, new RollupFlusher.Writer() {
+      @Override
+      public Deferred<Object> write(RollupPoint point) {
+        Deferred<Object> ack = new Deferred<Object>();
+        acks.add(ack);
+        return ack;
+      }
+    }, new RollupFlusher.WindowSource() {
+      @Override
+      public List<RollupPoint> closedWindows(boolean all) {
+        // as the publisher does, before a checkpoint can miss the windows closed
+        flusher[0].track(closed);
+        return closed;
+      }
+    });
+    flusher[0].start();
+    Deferred<Object> shutdown = flusher[0].shutdown();
+    List<RollupPoint> unwritten = new ArrayList<RollupPoint>();
+    flusher[0].unwritten(unwritten);
+    assertEquals(new HashSet<RollupPoint>(closed), new HashSet<RollupPoint>(unwritten));
+
+    acks.get(0).callback(null);
+    unwritten.clear();
+    flusher[0].unwritten(unwritten);
+    assertEquals(Collections.singletonList(closed.get(1)), unwritten);
+    // a failed write is counted and not tracked any longer either
+    acks.get(1).callback(new RuntimeException("write failed"));
+    try {
+      shutdown.join(5000);
+      fail("the final flush had a failed write");
+    } catch (DeferredGroupException expected) {
+    }
+    unwritten.clear();
+    flusher[0].unwritten(unwritten);
+    assertTrue(unwritten.isEmpty());
+  }
+}
@@ -0,0 +1,119 @@
+package io.tsdb.opentsdb.realtime;
+
+import io.tsdb.opentsdb.core.SeriesKey;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Copyright 2015 The DiscoveryPlugins Authors
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * Ingest scaling of {@link RollupPipeline} with 1, 2, 4, 8 and 16 shards, fed
+ * by as many publishing threads, against the same threads writing straight
+ * into the striped {@link RollupStore}. Half the points go to 16 hot series,
+ * which is where the direct writers meet on the stripe monitors. Time is
+ * measured until every point has been applied.
+ * <p/>
+ * Run with: java -cp build/classes/test:build/classes/main:... io.tsdb.opentsdb.realtime.RollupPipelineBenchmark
+ */
+public class RollupPipelineBenchmark {
+  private static final int SERIES = 10000;
+  private static final int HOT = 16;
+  private static final int POINTS_PER_THREAD = 2000000;
+  private static final int[] THREADS = {1, 2, 4, 8, 16};
+
+  public static void main(String[] args) throws Exception {
+    final long[] keys = new long[SERIES];
+    final List<Map<String, String>> tags = new ArrayList<Map<String, String>>();
+    for (int s = 0; s < SERIES; s++) {
+      Map<String, String> t = new HashMap<String, String>();
+      t.put("host", "web" + s);
+      tags.add(t);
+      keys[s] = SeriesKey.hash("sys.cpu.user", t);
+    }
+
+    // warm up the JIT before measuring
+    run(4, true, keys, tags);
+    run(4, false, keys, tags);
+
+    System.out.println(String.format("%8s %16s %16s", "threads", "pipeline pts/s", "direct pts/s"));
+    for (int threads : THREADS) {
+      double pipelined = run(threads, true, keys, tags);
+      double direct = run(threads, false, keys, tags);
+      System.out.println(String.format("%8d %16.0f %16.0f", threads, pipelined, direct));
+    }
+  }
+
+  private static double run(final int threadCount, final boolean pipelined, final long[] keys,
+                            final List<Map<String, String>> tags) throws InterruptedException {
+    final RollupStore store = new RollupStore(Math.max(64, threadCount * 4));
+    final RollupPipeline.Sink sink = new RollupPipeline.Sink() {
+      @Override
+      public void apply(long seriesId, String metric, Map<String, String> tags, long ts, long value) {
+        store.addValue(seriesId, metric, 0L, tags, ts, value);
+      }
+
+      @Override
+      public void apply(long seriesId, String metric, Map<String, String> tags, long ts, double value) {
+        store.addValue(seriesId, metric, 0L, tags, ts, value);
+      }
+    };
+    final RollupPipeline pipeline = pipelined
+            ? new RollupPipeline(sink, threadCount, 65536, RollupPipeline.Overflow.BLOCK, 60000) : null;
+    if (pipeline != null) {
+      pipeline.start();
+    }
+    final CountDownLatch start = new CountDownLatch(1);
+    final List<Thread> threads = new ArrayList<Thread>();
+    for (int t = 0; t < threadCount; t++) {
+      final int offset = t * 7919;
+      Thread thread = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            start.await();
+          } catch (InterruptedException e) {
+            return;
+          }
+          for (int i = 0; i < POINTS_PER_THREAD; i++) {
+            int s = (i & 1) == 0 ? i % HOT : (i + offset) % SERIES;
+            if (pipeline != null) {
+              pipeline.publish(keys[s], "sys.cpu.user", tags.get(s), i, (long) i);
+            } else {
+              sink.apply(keys[s], "sys.cpu.user", tags.get(s), i, (long) i);
+            }
+          }
+        }
+      });
+      threads.add(thread);
+      thread.start();
+    }
+    long begin = System.nanoTime();
+    start.countDown();
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    if (pipeline != null) {
+      pipeline.shutdown();
+    }
+    long elapsed = System.nanoTime() - begin;
+    return (double) threadCount * POINTS_PER_THREAD / (elapsed / 1e9);
+  }
+}
@@ -0,0 +1,188 @@
+package io.tsdb.opentsdb.realtime;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.*;
+
+/**
+ * Copyright 2015 The DiscoveryPlugins Authors
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+public class RollupPipelineTest {
+  private static final Map<String, String> TAGS = new HashMap<String, String>();
+
+  /** Records the timestamps applied per series, and the threads applying them. */
+  private static class RecordingSink implements RollupPipeline.Sink {
+    final Map<Long, List<Long>> applied = new ConcurrentHashMap<Long, List<Long>>();
+    final Map<Long, String> threads = new ConcurrentHashMap<Long, String>();
+    volatile CountDownLatch gate;
+    final CountDownLatch entered = new CountDownLatch(1);
+
+    @Override
+    public void apply(long seriesId, String metric, Map<String, String> tags, long ts, long value) {
+      CountDownLatch latch = gate;
+      if (latch != null) {
+        entered.countDown();
+        try {
+          latch.await();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      }
+      List<Long> list = applied.get(seriesId);
+      if (list == null) {
+        list = Collections.synchronizedList(new ArrayList<Long>());
+        applied.put(seriesId, list);
+      }
+      list.add(ts);
+      String previous = threads.put(seriesId, Thread.currentThread().getName());
+      assertTrue(previous == null || previous.equals(Thread.currentThread().getName()));
+    }
+
+    @Override
+    public void apply(long seriesId, String metric, Map<String, String> tags, long ts, double value) {
+      apply(seriesId, metric, tags, ts, (long) value);
+    }
+  }
+
+  @Test
+  public void testAppliesSeriesInOrderOnOneShard() throws Exception {
+    final RecordingSink sink = new RecordingSink();
+    final RollupPipeline pipeline = new RollupPipeline(sink, 4, 1024, RollupPipeline.Overflow.BLOCK, 60000);
+    pipeline.start();
+    List<Thread> producers = new ArrayList<Thread>();
+    for (int p = 0; p < 4; p++) {
+      final long base = p * 100;
+      Thread producer = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          for (int i = 0; i < 20000; i++) {
+            pipeline.publish(base + i % 100, "m", TAGS, i, (long) i);
+          }
+        }
+      });
+      producers.add(producer);
+      producer.start();
+    }
+    for (Thread producer : producers) {
+      producer.join();
+    }
+    pipeline.shutdown();
+
+    assertEquals(80000, pipeline.getApplied());
+    assertEquals(400, sink.applied.size());
+    for (List<Long> timestamps : sink.applied.values()) {
+      assertEquals(200, timestamps.size());
+      for (int i = 1; i < timestamps.size(); i++) {
+        assertTrue(timestamps.get(i) > timestamps.get(i - 1));
+      }
+    }
+    for (String thread : sink.threads.values()) {
+      assertTrue(thread.startsWith("RollupPipeline-"));
+    }
+  }
+
+  @Test
+  public void testOverflowPolicies() throws Exception {
+    RecordingSink sink = new RecordingSink();
+    sink.gate = new CountDownLatch(1);
+    RollupPipeline dropping = new RollupPipeline(sink, 1, 4, RollupPipeline.Overflow.DROP, 0);
+    dropping.start();
+    // a slot is only freed once its point is applied, so the ring fills up
+    for (int i = 0; i < 100; i++) {
+      dropping.publish(1L, "m", TAGS, i, (long) i);
+    }
+    assertEquals(96, dropping.getDropped());
+    sink.gate.countDown();
+    dropping.shutdown();
+    assertEquals(100, dropping.getApplied() + dropping.getDropped());
+
+    RecordingSink directSink = new RecordingSink();
+    CountDownLatch gate = new CountDownLatch(1);
+    directSink.gate = gate;
+    RollupPipeline direct = new RollupPipeline(directSink, 1, 4, RollupPipeline.Overflow.DIRECT, 0);
+    direct.start();
+    for (int i = 0; i < 4; i++) {
+      direct.publish(i, "m", TAGS, i, (long) i);
+    }
+    // the ring is full now, so this one is applied on the calling thread
+    directSink.gate = null;
+    direct.publish(100L, "m", TAGS, 0, 0L);
+    assertEquals(Thread.currentThread().getName(), directSink.threads.get(100L));
+    assertEquals(1, direct.getDirect());
+    gate.countDown();
+    direct.shutdown();
+    assertEquals(4, direct.getApplied());
+
+    final RecordingSink blockingSink = new RecordingSink();
+    final CountDownLatch blockingGate = new CountDownLatch(1);
+    blockingSink.gate = blockingGate;
+    final RollupPipeline blocking = new RollupPipeline(blockingSink, 1, 4, RollupPipeline.Overflow.BLOCK, 60000);
+    blocking.start();
+    Thread producer = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        for (int i = 0; i < 20; i++) {
+          blocking.publish(1L, "m", TAGS, i, (long) i);
+        }
+      }
+    });
+    producer.start();
+    // the ring is full, so the producer waits rather than overtaking
+    producer.join(100);
+    assertTrue(producer.isAlive());
+    blockingSink.gate = null;
+    blockingGate.countDown();
+    producer.join();
+    blocking.shutdown();
+    assertEquals(20, blocking.getApplied());
+    List<Long> timestamps = blockingSink.applied.get(1L);
+    for (int i = 0; i < 20; i++) {
+      assertEquals(i, (long) timestamps.get(i));
+    }
+  }
+
+  @Test
+  public void testBlockGivesUpAfterTheTimeout() throws Exception {
+    RecordingSink sink = new RecordingSink();
+    CountDownLatch gate = new CountDownLatch(1);
+    sink.gate = gate;
+    RollupPipeline pipeline = new RollupPipeline(sink, 1, 4, RollupPipeline.Overflow.BLOCK, 20);
+    pipeline.start();
+    for (int i = 0; i < 4; i++) {
+      pipeline.publish(i, "m", TAGS, i, (long) i);
+    }
+    // the owner thread is stuck, so this one waits then is applied here
+    sink.entered.await();
+    sink.gate = null;
+    long start = System.nanoTime();
+    pipeline.publish(100L, "m", TAGS, 0, 0L);
+    assertTrue(System.nanoTime() - start >= 20000000L);
+    assertEquals(Thread.currentThread().getName(), sink.threads.get(100L));
+    assertEquals(1, pipeline.getBlockTimeouts());
+    assertEquals(1, pipeline.getDirect());
+    gate.countDown();
+    pipeline.shutdown();
+    assertEquals(4, pipeline.getApplied());
+  }
+}
@@ -0,0 +1,208 @@
+package io.tsdb.opentsdb.realtime;
+
+import com.stumbleupon.async.Deferred;
+import io.tsdb.opentsdb.core.DataPoints;
+import net.opentsdb.rollup.RollupConfig;
+import net.opentsdb.rollup.RollupInterval;
+import net.opentsdb.utils.Config;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Copyright 2015 The DiscoveryPlugins Authors
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+public class RollupPublisherTest {
+  private static final long START = 1500001200L;
+  private static final RollupTier HOUR = new RollupTier(3600, null);
+
+  private static DataPoints window(String metric) {
+    HashMap<String, String> tags = new HashMap<String, String>();
+    tags.put("host", "web01");
+    DataPoints dps = new DataPoints(metric, START, tags);
+    dps.addValue(START + 1, 4L);
+    dps.addValue(START + 2, 7L);
+    return dps;
+  }
+
+  private static RollupConfig rollupConfig() {
+    return RollupConfig.builder()
+            .addAggregationId("sum", 0)
+            .addAggregationId("count", 1)
+            .addAggregationId("min", 2)
+            .addInterval(RollupInterval.builder()
+                    .setTable("tsdb-rollup-1h")
+                    .setPreAggregationTable("tsdb-rollup-agg-1h")
+                    .setInterval("1h")
+                    .setRowSpan("1d"))
+            .build();
+  }
+
+  @Test
+  public void testNativeRollup() {
+    List<RollupPoint> points = new ArrayList<RollupPoint>();
+    RollupPublisher.emit(HOUR, window("sys.cpu.user"), "sys.cpu.user", false,
+            Arrays.asList(RollupAggregator.SUM, RollupAggregator.COUNT), true, points);
+
+    assertEquals(2, points.size());
+    RollupPoint sum = points.get(0);
+    assertTrue(sum.isNative());
+    assertFalse(sum.isGroupBy());
+    assertEquals("sys.cpu.user", sum.getMetric());
+    assertEquals("1h", sum.getInterval());
+    assertEquals("sum", sum.getAggregator());
+    assertNull(sum.getGroupByAggregator());
+    assertEquals(START, sum.getTimestamp());
+    assertEquals(11, sum.getLongValue());
+    assertEquals("web01", sum.getTags().get("host"));
+    assertEquals((START + 3600) * 1000L, sum.getWindowEnd());
+    RollupPoint count = points.get(1);
+    assertEquals("count", count.getAggregator());
+    assertEquals(2, count.getLongValue());
+  }
+
+  @Test
+  public void testNativeGroupByRollup() {
+    // a group by window carries the rule's metric, the point the raw one
+    List<RollupPoint> points = new ArrayList<RollupPoint>();
+    RollupPublisher.emit(HOUR, window("sys.cpu.user.by_dc"), "sys.cpu.user", true,
+            Arrays.asList(RollupAggregator.SUM, RollupAggregator.COUNT, RollupAggregator.MAX), true, points);
+
+    assertEquals(3, points.size());
+    for (RollupPoint point : points) {
+      assertTrue(point.isNative());
+      assertTrue(point.isGroupBy());
+      assertEquals("sys.cpu.user", point.getMetric());
+      assertEquals("1h", point.getInterval());
+    }
+    assertEquals("sum", points.get(0).getAggregator());
+    assertEquals("sum", points.get(0).getGroupByAggregator());
+    // counts of the series add up across them
+    assertEquals("count", points.get(1).getAggregator());
+    assertEquals("sum", points.get(1).getGroupByAggregator());
+    assertEquals("max", points.get(2).getAggregator());
+    assertEquals("max", points.get(2).getGroupByAggregator());
+  }
+
+  @Test
+  public void testMetricsRollup() {
+    List<RollupPoint> points = new ArrayList<RollupPoint>();
+    RollupPublisher.emit(HOUR, window("sys.cpu.user"), "sys.cpu.user", false,
+            Collections.singletonList(RollupAggregator.SUM), false, points);
+
+    assertEquals(1, points.size());
+    assertFalse(points.get(0).isNative());
+    assertEquals("sys.cpu.user.1h-sum", points.get(0).getMetric());
+  }
+
+  @Test
+  public void testCheckNativeRollups() {
+    RollupConfig rollups = rollupConfig();
+    List<RollupTier> hour = Collections.singletonList(HOUR);
+    RollupPublisher.checkNativeRollups(rollups, hour,
+            Arrays.asList(RollupAggregator.SUM, RollupAggregator.COUNT, RollupAggregator.MIN));
+
+    try {
+      RollupPublisher.checkNativeRollups(null, hour, Collections.singletonList(RollupAggregator.SUM));
+      fail("rollups not enabled");
+    } catch (IllegalArgumentException expected) {
+    }
+    try {
+      RollupPublisher.checkNativeRollups(rollups, Arrays.asList(new RollupTier(300, null), HOUR),
+              Collections.singletonList(RollupAggregator.SUM));
+      fail("5m is not a rollup interval");
+    } catch (IllegalArgumentException expected) {
+      assertTrue(expected.getMessage().contains("5m"));
+    }
+    try {
+      RollupPublisher.checkNativeRollups(rollups, hour, Collections.singletonList(RollupAggregator.AVG));
+      fail("avg has no native form");
+    } catch (IllegalArgumentException expected) {
+      assertTrue(expected.getMessage().contains("avg"));
+    }
+    try {
+      RollupPublisher.checkNativeRollups(rollups, hour, Collections.singletonList(RollupAggregator.MAX));
+      fail("max has no aggregation id");
+    } catch (IllegalArgumentException expected) {
+    }
+  }
+
+  @Test
+  public void testNativeOutputRejectsCounters() throws Exception {
+    Config config = new Config(false);
+    config.overrideConfig("tsd.rtpublisher.rollup.output", "native");
+    config.overrideConfig("tsd.rtpublisher.rollup.counters", "net.if.bytes_in");
+    try {
+      new RollupPublisher().initialize(config, rollupConfig(), new RollupFlusher.Writer() {
+        @Override
+        public Deferred<Object> write(RollupPoint point) {
+          return Deferred.fromResult(null);
+        }
+      });
+      fail("native counter rollups would land under the raw metric");
+    } catch (IllegalArgumentException expected) {
+      assertTrue(expected.getMessage().contains("Counters"));
+    }
+  }
+
+  @Test
+  public void testRulesAndRecentSeeSeriesPastTheLimits() throws Exception {
+    Config config = new Config(false);
+    config.overrideConfig("tsd.rtpublisher.rollup.windows", "1m");
+    config.overrideConfig("tsd.rtpublisher.rollup.limits.global_hard", "1");
+    config.overrideConfig("tsd.rtpublisher.rollup.rules", "hot = max(1m) test.temp > 10");
+    config.overrideConfig("tsd.rtpublisher.rollup.recent.metrics", "test.*");
+    final List<RollupPoint> written = Collections.synchronizedList(new ArrayList<RollupPoint>());
+    RollupPublisher publisher = new RollupPublisher();
+    publisher.initialize(config, null, new RollupFlusher.Writer() {
+      @Override
+      public Deferred<Object> write(RollupPoint point) {
+        written.add(point);
+        return Deferred.fromResult(null);
+      }
+    });
+    try {
+      long now = System.currentTimeMillis() / 1000;
+      long start = now - now % 60;
+      HashMap<String, String> a = new HashMap<String, String>();
+      a.put("host", "a");
+      HashMap<String, String> b = new HashMap<String, String>();
+      b.put("host", "b");
+      publisher.publishDataPoint("test.temp", start, 1L, a, null);
+      // past the global limit, so not rolled up
+      publisher.publishDataPoint("test.temp", start, 50L, b, null);
+      publisher.publishDataPoint("test.temp", start + 60, 50L, b, null);
+
+      assertEquals(1, publisher.getTier(null).getStore().size());
+      List<RuleEngine.Transition> breaching = publisher.getRules().breaching();
+      assertEquals(1, breaching.size());
+      assertEquals("b", breaching.get(0).getTags().get("host"));
+      assertEquals(start, breaching.get(0).getWindowStart());
+      assertEquals(2, publisher.getRecent().query("test.temp", start * 1000, (start + 60) * 1000).size());
+    } finally {
+      publisher.shutdown().join(10000);
+    }
+    for (RollupPoint point : written) {
+      assertEquals("a", point.getTags().get("host"));
+    }
+  }
+}
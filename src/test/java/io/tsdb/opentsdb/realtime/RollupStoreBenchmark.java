@@ -0,0 +1,90 @@
+package io.tsdb.opentsdb.realtime;
+
+import io.tsdb.opentsdb.core.SeriesKey;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Copyright 2015 The DiscoveryPlugins Authors
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * Ingest scaling of {@link RollupStore} with 1, 2, 4, 8 and 16 writer threads.
+ * A single stripe store is run alongside as the global lock baseline.
+ * <p/>
+ * Run with: java -cp build/classes/test:build/classes/main:... io.tsdb.opentsdb.realtime.RollupStoreBenchmark
+ */
+public class RollupStoreBenchmark {
+  private static final int SERIES = 10000;
+  private static final int POINTS_PER_THREAD = 2000000;
+  private static final int[] THREADS = {1, 2, 4, 8, 16};
+
+  public static void main(String[] args) throws Exception {
+    final long[] keys = new long[SERIES];
+    final List<Map<String, String>> tags = new ArrayList<Map<String, String>>();
+    for (int s = 0; s < SERIES; s++) {
+      Map<String, String> t = new HashMap<String, String>();
+      t.put("host", "web" + s);
+      tags.add(t);
+      keys[s] = SeriesKey.hash("sys.cpu.user", t);
+    }
+
+    // warm up the JIT before measuring
+    run(new RollupStore(64), 4, keys, tags);
+
+    System.out.println(String.format("%8s %16s %16s", "threads", "striped pts/s", "global pts/s"));
+    for (int threads : THREADS) {
+      double striped = run(new RollupStore(Math.max(64, threads * 4)), threads, keys, tags);
+      double global = run(new RollupStore(1), threads, keys, tags);
+      System.out.println(String.format("%8d %16.0f %16.0f", threads, striped, global));
+    }
+  }
+
+  private static double run(final RollupStore store, final int threadCount, final long[] keys,
+                            final List<Map<String, String>> tags) throws InterruptedException {
+    final CountDownLatch start = new CountDownLatch(1);
+    final List<Thread> threads = new ArrayList<Thread>();
+    for (int t = 0; t < threadCount; t++) {
+      final int offset = t * 7919;
+      Thread thread = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            start.await();
+          } catch (InterruptedException e) {
+            return;
+          }
+          for (int i = 0; i < POINTS_PER_THREAD; i++) {
+            int s = (i + offset) % SERIES;
+            store.addValue(keys[s], "sys.cpu.user", 0L, tags.get(s), i, i);
+          }
+        }
+      });
+      threads.add(thread);
+      thread.start();
+    }
+    long begin = System.nanoTime();
+    start.countDown();
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    long elapsed = System.nanoTime() - begin;
+    return (double) threadCount * POINTS_PER_THREAD / (elapsed / 1e9);
+  }
+}
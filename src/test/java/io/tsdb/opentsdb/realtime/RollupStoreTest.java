@@ -0,0 +1,210 @@
+package io.tsdb.opentsdb.realtime;
+
+import io.tsdb.opentsdb.core.DataPoints;
+import io.tsdb.opentsdb.core.SeriesKey;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+/**
+ * Copyright 2015 The DiscoveryPlugins Authors
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+public class RollupStoreTest {
+  private static final int THREADS = 8;
+  private static final int SERIES = 64;
+  private static final int POINTS_PER_THREAD = 20000;
+
+  private static Map<String, String> tags(final int series) {
+    Map<String, String> tags = new HashMap<String, String>();
+    tags.put("host", "web" + series);
+    return tags;
+  }
+
+  @Test
+  public void testConcurrentAddsAreNotLost() throws Exception {
+    final RollupStore store = new RollupStore(4);
+    runWriters(store);
+
+    List<DataPoints> windows = store.removeAll();
+    assertEquals(SERIES, windows.size());
+    long total = 0;
+    long sum = 0;
+    for (DataPoints dps : windows) {
+      total += dps.getCount();
+      sum += dps.getLongSum();
+    }
+    assertEquals((long) THREADS * POINTS_PER_THREAD, total);
+    assertEquals((long) THREADS * POINTS_PER_THREAD, sum);
+    assertEquals(0, store.size());
+  }
+
+  @Test
+  public void testConcurrentRemoveWhileAdding() throws Exception {
+    final RollupStore store = new RollupStore(4);
+    final List<DataPoints> drained = Collections.synchronizedList(new ArrayList<DataPoints>());
+    final AtomicBoolean done = new AtomicBoolean();
+    Thread flusher = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        while (!done.get()) {
+          drained.addAll(store.removeBefore(Long.MAX_VALUE));
+        }
+      }
+    });
+    flusher.start();
+    runWriters(store);
+    done.set(true);
+    flusher.join();
+    drained.addAll(store.removeAll());
+
+    long total = 0;
+    for (DataPoints dps : drained) {
+      total += dps.getCount();
+    }
+    assertEquals((long) THREADS * POINTS_PER_THREAD, total);
+  }
+
+  @Test
+  public void testSnapshotWhileAdding() throws Exception {
+    final RollupStore store = new RollupStore(4);
+    final AtomicBoolean done = new AtomicBoolean();
+    final AtomicBoolean torn = new AtomicBoolean();
+    final AtomicLong snapshots = new AtomicLong();
+    Thread reader = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        long previous = 0;
+        while (!done.get()) {
+          List<DataPoints> windows = new ArrayList<DataPoints>();
+          store.snapshot("sys.cpu.user", windows);
+          long total = 0;
+          for (DataPoints dps : windows) {
+            // every value is 1, a copy taken mid write would disagree
+            if (dps.getCount() != dps.getLongSum()) {
+              torn.set(true);
+            }
+            total += dps.getCount();
+          }
+          if (total < previous) {
+            torn.set(true);
+          }
+          previous = total;
+          snapshots.incrementAndGet();
+        }
+      }
+    });
+    reader.start();
+    runWriters(store);
+    done.set(true);
+    reader.join();
+    assertFalse(torn.get());
+    assertTrue(snapshots.get() > 0);
+
+    List<DataPoints> windows = new ArrayList<DataPoints>();
+    store.snapshot("sys.cpu.user", windows);
+    long total = 0;
+    for (DataPoints dps : windows) {
+      total += dps.getCount();
+    }
+    assertEquals((long) THREADS * POINTS_PER_THREAD, total);
+    // copies, the store keeps its windows
+    assertEquals(SERIES, store.size());
+    windows.clear();
+    store.snapshot("sys.cpu.nice", windows);
+    assertTrue(windows.isEmpty());
+  }
+
+  @Test
+  public void testMergeIntoLargerWindow() throws Exception {
+    RollupStore minutes = new RollupStore(2);
+    RollupStore hours = new RollupStore(2);
+    long seriesId = SeriesKey.hash("m", tags(1));
+    minutes.addValue(seriesId, "m", 60L, tags(1), 61L, 1L);
+    minutes.addValue(seriesId, "m", 120L, tags(1), 121L, 3L);
+    for (DataPoints closed : minutes.removeAll()) {
+      hours.merge(0L, closed);
+    }
+    List<DataPoints> hour = hours.removeAll();
+    assertEquals(1, hour.size());
+    assertEquals(seriesId, hour.get(0).getSeriesId());
+    assertEquals(2, hour.get(0).getCount());
+    assertEquals(4L, hour.get(0).getLongSum());
+  }
+
+  @Test
+  public void testExpiredWindowsAreNotReopened() throws Exception {
+    RollupStore store = new RollupStore(2, 60, 10, 0, 0);
+    assertTrue(store.addValue(1L, "m", 0L, tags(1), 1000L, 1L));
+    assertEquals(1, store.expire(70L).size());
+    // a point that checked the watermark before the expiry
+    assertFalse(store.addValue(1L, "m", 0L, tags(1), 2000L, 2L));
+    assertFalse(store.addValue(2L, "m", 0L, tags(2), 2000L, 2.5d));
+    assertEquals(0, store.size());
+    assertTrue(store.addValue(1L, "m", 60L, tags(1), 61000L, 3L));
+    assertEquals(1, store.size());
+  }
+
+  @Test
+  public void testRemoveBeforeOnlyClosesOlderWindows() throws Exception {
+    RollupStore store = new RollupStore(2);
+    store.addValue(1L, "m", 100L, tags(1), 101L, 1L);
+    store.addValue(1L, "m", 200L, tags(1), 201L, 2.5d);
+    List<DataPoints> closed = store.removeBefore(200L);
+    assertEquals(1, closed.size());
+    assertEquals(100L, closed.get(0).getTimestamp());
+    assertEquals(1, store.size());
+  }
+
+  private static void runWriters(final RollupStore store) throws InterruptedException {
+    final CountDownLatch start = new CountDownLatch(1);
+    final List<Thread> threads = new ArrayList<Thread>();
+    for (int t = 0; t < THREADS; t++) {
+      Thread thread = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          List<Map<String, String>> tagList = new ArrayList<Map<String, String>>();
+          for (int s = 0; s < SERIES; s++) {
+            tagList.add(tags(s));
+          }
+          try {
+            start.await();
+          } catch (InterruptedException e) {
+            return;
+          }
+          for (int i = 0; i < POINTS_PER_THREAD; i++) {
+            int s = i % SERIES;
+            store.addValue(SeriesKey.hash("sys.cpu.user", tagList.get(s)), "sys.cpu.user", 0L, tagList.get(s), i, 1L);
+          }
+        }
+      });
+      threads.add(thread);
+      thread.start();
+    }
+    start.countDown();
+    for (Thread thread : threads) {
+      thread.join();
+    }
+  }
+}
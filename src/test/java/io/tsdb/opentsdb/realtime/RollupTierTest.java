@@ -0,0 +1,85 @@
+package io.tsdb.opentsdb.realtime;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * Copyright 2015 The DiscoveryPlugins Authors
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+public class RollupTierTest {
+
+  @Test
+  public void testParseSeconds() {
+    assertEquals(30, RollupTier.parseSeconds("30s"));
+    assertEquals(300, RollupTier.parseSeconds(" 5M "));
+    assertEquals(7200, RollupTier.parseSeconds("2h"));
+    assertEquals(86400, RollupTier.parseSeconds("1d"));
+    // a bare number is minutes, like tsd.rtpublisher.rollup.window
+    assertEquals(900, RollupTier.parseSeconds("15"));
+    try {
+      RollupTier.parseSeconds("5w");
+      fail("unknown unit");
+    } catch (IllegalArgumentException expected) {
+    }
+  }
+
+  @Test
+  public void testParseList() {
+    assertEquals(Arrays.asList(60L, 300L, 3600L), RollupTier.parseList("1h, 1m,5m,5m"));
+    try {
+      RollupTier.parseList("2m,5m");
+      fail("5m is not built from 2m windows");
+    } catch (IllegalArgumentException expected) {
+    }
+    try {
+      RollupTier.parseList(" , ");
+      fail("no windows");
+    } catch (IllegalArgumentException expected) {
+    }
+  }
+
+  @Test
+  public void testLabels() {
+    assertEquals("45s", RollupTier.formatLabel(45));
+    assertEquals("90m", RollupTier.formatLabel(5400));
+    assertEquals("1h", RollupTier.formatLabel(3600));
+    assertEquals("2d", RollupTier.formatLabel(172800));
+
+    Map<Long, String> windows = RollupTier.parseWindows("1h,1m,1d", 5);
+    assertEquals(Arrays.asList(60L, 3600L, 86400L), Arrays.asList(windows.keySet().toArray()));
+    assertEquals(Arrays.asList("1m", "1h", "1d"), Arrays.asList(windows.values().toArray()));
+
+    // the legacy window keeps its metric names
+    windows = RollupTier.parseWindows(null, 60);
+    assertEquals(1, windows.size());
+    assertEquals("60m", windows.get(3600L));
+    assertEquals("1440m", RollupTier.parseWindows(null, 1440).get(86400L));
+    assertEquals("5m", RollupTier.parseWindows(null, 5).get(300L));
+  }
+
+  @Test
+  public void testWindowStart() {
+    RollupTier tier = new RollupTier(300, null);
+    assertEquals("5m", tier.getLabel());
+    assertEquals(1500000000L - 1500000000L % 300, tier.windowStart(1500000000L));
+    assertEquals(-300, tier.windowStart(-1));
+    assertEquals("60m", new RollupTier(3600, "60m", null).getLabel());
+  }
+}
@@ -0,0 +1,169 @@
+package io.tsdb.opentsdb.realtime;
+
+import io.tsdb.opentsdb.core.SeriesKey;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * Copyright 2015 The DiscoveryPlugins Authors
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+public class RuleEngineTest {
+
+  private static Map<String, String> tags(final String host, final String dc) {
+    Map<String, String> tags = new HashMap<String, String>();
+    tags.put("host", host);
+    tags.put("dc", dc);
+    return tags;
+  }
+
+  private static final class Recorder implements RuleEngine.Sink {
+    private final List<RuleEngine.Transition> transitions = new ArrayList<RuleEngine.Transition>();
+
+    @Override
+    public synchronized void transition(RuleEngine.Transition transition) {
+      transitions.add(transition);
+    }
+  }
+
+  private static void add(final RuleEngine engine, final String metric, final Map<String, String> tags,
+                          final long seconds, final double value) {
+    engine.add(SeriesKey.hash(metric, tags), metric, tags, seconds * 1000L, value);
+  }
+
+  @Test
+  public void testParsesRules() throws Exception {
+    List<ThresholdRule> rules = ThresholdRule.parseList(
+            "cpu_high = avg(5m) sys.cpu.user{host=web*,dc=lga|ewr} > 90\n"
+                    + "# comment\n"
+                    + "disk=max(1h) sys.disk.*{host=*}<=0.5; quiet = count(30s) app.requests == 0");
+    assertEquals(3, rules.size());
+    ThresholdRule cpu = rules.get(0);
+    assertEquals("cpu_high", cpu.getName());
+    assertEquals("sys.cpu.user", cpu.getMetric());
+    assertFalse(cpu.isPrefix());
+    assertEquals(ThresholdRule.Aggregate.AVG, cpu.getAggregate());
+    assertEquals(300, cpu.getWindow());
+    assertTrue(cpu.matches(tags("web01", "lga")));
+    assertFalse(cpu.matches(tags("db01", "lga")));
+    assertFalse(cpu.matches(tags("web01", "sjc")));
+    assertFalse(cpu.matches(new HashMap<String, String>()));
+    assertTrue(cpu.breached(90.5));
+    assertFalse(cpu.breached(90));
+    assertEquals("sys.disk.", rules.get(1).getMetric());
+    assertTrue(rules.get(1).isPrefix());
+    assertTrue(rules.get(1).breached(0.5));
+    assertTrue(rules.get(2).breached(0));
+
+    ThresholdRule globs = ThresholdRule.parse("g = max(1m) m{host=web*|*-db|cache01} > 1");
+    assertTrue(globs.matches(tags("web01", "lga")));
+    assertTrue(globs.matches(tags("lga-db", "lga")));
+    assertTrue(globs.matches(tags("cache01", "lga")));
+    assertFalse(globs.matches(tags("cache02", "lga")));
+    assertFalse(globs.matches(tags("db01", "lga")));
+
+    try {
+      ThresholdRule.parse("bad = avg(5m) m{host=w*b} > 1");
+      fail("Expected IllegalArgumentException");
+    } catch (IllegalArgumentException e) {
+      // expected
+    }
+    try {
+      ThresholdRule.parse("bad = avg(5m) sys.cpu* > 1");
+      fail("Expected IllegalArgumentException");
+    } catch (IllegalArgumentException e) {
+      // expected
+    }
+    try {
+      ThresholdRule.parseList("a = p99(5m) m > 1");
+      fail("Expected IllegalArgumentException");
+    } catch (IllegalArgumentException e) {
+      // expected
+    }
+  }
+
+  @Test
+  public void testReportsTransitionsOnly() throws Exception {
+    Recorder sink = new Recorder();
+    RuleEngine engine = new RuleEngine(ThresholdRule.parseList(
+            "cpu_high = avg(1m) sys.cpu.user{host=web*} > 90; disk_full = max(1m) sys.disk.*{host=*} >= 95"),
+            sink, 4, 0, 3600);
+    Map<String, String> web = tags("web01", "lga");
+    Map<String, String> db = tags("db01", "lga");
+    // breaching from the second window on, the third window starting evaluates it
+    for (long ts = 0; ts < 180; ts += 10) {
+      add(engine, "sys.cpu.user", web, ts, ts < 60 ? 50 : 95);
+      add(engine, "sys.cpu.user", db, ts, 99);
+    }
+    assertEquals(1, sink.transitions.size());
+    RuleEngine.Transition breach = sink.transitions.get(0);
+    assertEquals("cpu_high", breach.getRule().getName());
+    assertEquals(web, breach.getTags());
+    assertEquals(60, breach.getWindowStart());
+    assertEquals(95, breach.getValue(), 0.0);
+    assertTrue(breach.isBreached());
+    assertEquals(1, engine.breaching().size());
+
+    // the watermark closes the last window, still breaching
+    engine.advance(240);
+    assertEquals(1, sink.transitions.size());
+    add(engine, "sys.cpu.user", web, 240, 10);
+    // late for a window already evaluated
+    add(engine, "sys.cpu.user", web, 100, 10);
+    engine.advance(300);
+    assertEquals(2, sink.transitions.size());
+    assertFalse(sink.transitions.get(1).isBreached());
+    assertEquals(240, sink.transitions.get(1).getWindowStart());
+    assertTrue(engine.breaching().isEmpty());
+
+    add(engine, "sys.disk.used", web, 300, 97);
+    engine.advance(360);
+    assertEquals(3, sink.transitions.size());
+    assertEquals("disk_full", sink.transitions.get(2).getRule().getName());
+    // idle for longer than the timeout while breaching
+    engine.advance(360 + 3601);
+    assertEquals(4, sink.transitions.size());
+    assertFalse(sink.transitions.get(3).isBreached());
+    assertTrue(Double.isNaN(sink.transitions.get(3).getValue()));
+  }
+
+  @Test
+  public void testMatchesEveryPrefixOfTheMetric() throws Exception {
+    Recorder sink = new Recorder();
+    RuleEngine engine = new RuleEngine(ThresholdRule.parseList(
+            "all = max(1m) sys.* > 0; disk = max(1m) sys.disk.* > 0; other = max(1m) sys.dis.* > 0"),
+            sink, 1, 0, 3600);
+    Map<String, String> web = tags("web01", "lga");
+    add(engine, "sys.disk.used", web, 0, 1);
+    add(engine, "sysx.disk.used", web, 0, 1);
+    add(engine, "sys", web, 0, 1);
+    engine.advance(60);
+    List<String> names = new ArrayList<String>();
+    for (RuleEngine.Transition transition : sink.transitions) {
+      assertEquals("sys.disk.used", transition.getMetric());
+      names.add(transition.getRule().getName());
+    }
+    Collections.sort(names);
+    assertEquals(Arrays.asList("all", "disk"), names);
+  }
+}
@@ -0,0 +1,117 @@
+package io.tsdb.opentsdb.realtime;
+
+import io.tsdb.opentsdb.core.SeriesKey;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * Copyright 2015 The DiscoveryPlugins Authors
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+public class SeriesLimiterTest {
+
+  private static long seriesId(final String metric, final int request) {
+    Map<String, String> tags = new HashMap<String, String>();
+    tags.put("request_id", Integer.toString(request));
+    return SeriesKey.hash(metric, tags);
+  }
+
+  @Test
+  public void testLimitsPerMetric() throws Exception {
+    SeriesLimiter limiter = new SeriesLimiter(4, 100, 200, 0, 0, 0.25, 60, 100);
+    int admitted = 0;
+    for (int i = 0; i < 10000; i++) {
+      if (limiter.admit("bad.metric", seriesId("bad.metric", i), 1000)) {
+        admitted++;
+      }
+    }
+    // the first 100 in full, then a quarter of the rest until the hard limit
+    assertEquals(200, admitted);
+    assertEquals(200, limiter.getLive());
+    assertEquals(9800, limiter.getRejected());
+    // a well behaved metric is not held back by the bad one
+    for (int i = 0; i < 50; i++) {
+      assertTrue(limiter.admit("good.metric", seriesId("good.metric", i), 1000));
+    }
+    // admitted series stay admitted
+    assertTrue(limiter.admit("bad.metric", seriesId("bad.metric", 0), 1001));
+
+    List<SeriesLimiter.MetricStats> top = limiter.topMetrics(1);
+    assertEquals("bad.metric", top.get(0).getMetric());
+    assertEquals(10000, top.get(0).getLastEstimate(), 10000 * 0.1);
+  }
+
+  @Test
+  public void testIdleSeriesMakeRoom() throws Exception {
+    SeriesLimiter limiter = new SeriesLimiter(4, 0, 0, 0, 100, 0, 60, 100);
+    for (int i = 0; i < 100; i++) {
+      assertTrue(limiter.admit("sys.cpu.user", seriesId("sys.cpu.user", i), 1000));
+    }
+    assertFalse(limiter.admit("sys.cpu.user", seriesId("sys.cpu.user", 100), 1000));
+    // half the series keep reporting
+    for (int i = 0; i < 50; i++) {
+      assertTrue(limiter.admit("sys.cpu.user", seriesId("sys.cpu.user", i), 1050));
+    }
+    assertEquals(50, limiter.evictIdle(1070));
+    assertEquals(50, limiter.getLive());
+    assertTrue(limiter.admit("sys.cpu.user", seriesId("sys.cpu.user", 100), 1070));
+  }
+
+  @Test
+  public void testMetricsPastTheMaximumShareOneEntry() throws Exception {
+    SeriesLimiter limiter = new SeriesLimiter(1, 0, 0, 0, 1000, 0, 60, 2);
+    for (int m = 0; m < 10; m++) {
+      limiter.admit("metric" + m, seriesId("metric" + m, 0), 1000);
+    }
+    assertEquals(10, limiter.getLive());
+    List<SeriesLimiter.MetricStats> top = limiter.topMetrics(100);
+    assertEquals(3, top.size());
+    assertEquals(SeriesLimiter.OTHER, top.get(0).getMetric());
+  }
+
+  @Test
+  public void testNoLimitsTracksNoSeries() throws Exception {
+    SeriesLimiter limiter = new SeriesLimiter(4, 0, 0, 0, 0, 0, 60, 100);
+    for (int i = 0; i < 1000; i++) {
+      assertTrue(limiter.admit("sys.cpu.user", seriesId("sys.cpu.user", i), 1000));
+    }
+    assertEquals(0, limiter.getLive());
+    assertEquals(0, limiter.evictIdle(2000));
+    // the cardinality is still estimated
+    assertEquals(1000, limiter.topMetrics(1).get(0).getLastEstimate(), 1000 * 0.1);
+  }
+
+  @Test
+  public void testTableGrowsAndShrinks() throws Exception {
+    SeriesLimiter limiter = new SeriesLimiter(1, 0, 0, 0, 100000, 0, 60, 100);
+    for (int i = 0; i < 50000; i++) {
+      assertTrue(limiter.admit("m" + (i % 3), seriesId("m" + (i % 3), i), i < 25000 ? 1000 : 1100));
+    }
+    assertEquals(50000, limiter.getLive());
+    assertEquals(25000, limiter.evictIdle(1070));
+    for (int i = 25000; i < 50000; i++) {
+      // still known, so admitted without counting again
+      assertTrue(limiter.admit("m" + (i % 3), seriesId("m" + (i % 3), i), 1101));
+    }
+    assertEquals(25000, limiter.getLive());
+    assertEquals(25000, limiter.evictIdle(1200));
+    assertEquals(0, limiter.getLive());
+  }
+}
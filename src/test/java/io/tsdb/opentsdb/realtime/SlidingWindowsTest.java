@@ -0,0 +1,127 @@
+package io.tsdb.opentsdb.realtime;
+
+import io.tsdb.opentsdb.core.SeriesKey;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * Copyright 2015 The DiscoveryPlugins Authors
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+public class SlidingWindowsTest {
+  private final Map<String, String> tags = new HashMap<String, String>();
+  private long seriesId;
+  // the panes' timing wheel starts at the wall clock, so stay just ahead of it
+  private final long base = (System.currentTimeMillis() / 1000 / 30 + 20) * 30;
+  private SlidingWindows sliding;
+
+  @Before
+  public void setup() {
+    tags.put("host", "web01");
+    seriesId = SeriesKey.hash("sys.cpu.user", tags);
+    sliding = new SlidingWindows(new MetricPatterns("sys.cpu.*"), 30, Arrays.asList(120L, 60L),
+            RollupAggregator.parseList("avg,count"), Arrays.asList(30L), 4, 0, 0, 0);
+  }
+
+  private void add(final long ts, final long value) {
+    sliding.addValue(seriesId, "sys.cpu.user", tags, ts * 1000, value);
+  }
+
+  private static RollupPoint find(final List<RollupPoint> points, final String metric, final long ts) {
+    for (RollupPoint point : points) {
+      if (point.getMetric().equals(metric) && point.getTimestamp() == ts) {
+        return point;
+      }
+    }
+    return null;
+  }
+
+  @Test
+  public void testWindowsAndEwmaFromPanes() throws Exception {
+    assertTrue(sliding.matches("sys.cpu.nice"));
+    assertFalse(sliding.matches("sys.mem.free"));
+    add(base + 5, 10);
+    add(base + 35, 15);
+    add(base + 50, 25);
+    add(base + 65, 30);
+
+    List<RollupPoint> points = new ArrayList<RollupPoint>();
+    sliding.close(base + 30, false, points);
+    assertEquals(10, find(points, "sys.cpu.user.1m_30s-avg", base - 30).getDoubleValue(), 0);
+    assertEquals(10, find(points, "sys.cpu.user.ewma_30s", base).getDoubleValue(), 0);
+
+    points.clear();
+    sliding.close(base + 90, false, points);
+    // both boundaries passed since the last call are emitted
+    assertNotNull(find(points, "sys.cpu.user.1m_30s-avg", base));
+    RollupPoint minute = find(points, "sys.cpu.user.1m_30s-avg", base + 30);
+    assertEquals(70 / 3.0, minute.getDoubleValue(), 1e-9);
+    assertEquals((base + 90) * 1000, minute.getWindowEnd());
+    assertEquals(4, find(points, "sys.cpu.user.2m_30s-count", base - 30).getLongValue());
+    assertEquals(20, find(points, "sys.cpu.user.2m_30s-avg", base - 30).getDoubleValue(), 0);
+    // half way to 20 after the second pane, then half way to 30
+    assertEquals(22.5, find(points, "sys.cpu.user.ewma_30s", base + 60).getDoubleValue(), 0);
+
+    points.clear();
+    sliding.close(base + 120, false, points);
+    assertEquals(30, find(points, "sys.cpu.user.1m_30s-avg", base + 60).getDoubleValue(), 0);
+    // no new pane, the average holds
+    assertEquals(22.5, find(points, "sys.cpu.user.ewma_30s", base + 90).getDoubleValue(), 0);
+    assertEquals(1, sliding.size());
+
+    points.clear();
+    sliding.close(base + 600, false, points);
+    assertNull(find(points, "sys.cpu.user.2m_30s-avg", base + 600 - 120));
+    assertEquals(0, sliding.size());
+  }
+
+  @Test
+  public void testEwmaOnly() throws Exception {
+    sliding = new SlidingWindows(new MetricPatterns("sys.cpu.*"), 30, new ArrayList<Long>(),
+            RollupAggregator.parseList("avg"), Arrays.asList(30L), 4, 0, 0, 0);
+    assertEquals(Collections.singletonList(".ewma_30s"), sliding.suffixes());
+    add(base + 5, 10);
+    add(base + 35, 30);
+
+    List<RollupPoint> points = new ArrayList<RollupPoint>();
+    sliding.close(base + 30, false, points);
+    sliding.close(base + 60, false, points);
+    assertEquals(2, points.size());
+    assertEquals(10, find(points, "sys.cpu.user.ewma_30s", base).getDoubleValue(), 0);
+    assertEquals(20, find(points, "sys.cpu.user.ewma_30s", base + 30).getDoubleValue(), 0);
+    assertEquals(1, sliding.size());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testNeedsAWindowOrAnEwma() throws Exception {
+    new SlidingWindows(new MetricPatterns("m"), 30, new ArrayList<Long>(),
+            RollupAggregator.parseList("avg"), new ArrayList<Long>(), 1, 0, 0, 0);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testWindowMustBeAMultipleOfTheSlide() throws Exception {
+    new SlidingWindows(new MetricPatterns("m"), 60, Arrays.asList(90L),
+            RollupAggregator.parseList("avg"), new ArrayList<Long>(), 1, 0, 0, 0);
+  }
+}